@@ -0,0 +1,695 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.brandeis.llc.mae.agreement.MaeAgreementMain;
+import edu.brandeis.llc.mae.agreement.MaeAgreementStrings;
+import edu.brandeis.llc.mae.agreement.calculator.AgreementEngine;
+import edu.brandeis.llc.mae.agreement.calculator.AgreementRunStore;
+import edu.brandeis.llc.mae.agreement.calculator.BootstrapEstimator;
+import edu.brandeis.llc.mae.agreement.calculator.SpanMatcher;
+import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.MaeIODTDException;
+import edu.brandeis.llc.mae.io.MaeIOException;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import edu.brandeis.llc.mae.util.MappedSet;
+import org.xml.sax.SAXException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Headless entry point to compute inter-annotator agreements over a dataset,
+ * laid out either as a flat directory of annotation files or as one
+ * sub-directory per annotator. Prints agreements and parse warnings as JSON
+ * or CSV, and exits with 1 if the dataset does not validate against the task,
+ * or with 2 on a usage error, such as an unknown tag type or annotator.
+ *
+ * Usage: --task DTD --dir DATASET (--global SPEC | --local SPEC)...
+ *        [--include A1,A2] [--exclude A3] [--multi] [--pairwise] [--format json|csv] [--out FILE] [--cache DIR]
+ *        [--bootstrap RESAMPLES] [--confidence LEVEL] [--seed SEED] [--by-document] [--span-match MODE]
+ *        [--runs FILE [--diff]]
+ *
+ * A SPEC is a metric and its targets, e.g. "pi:NOUN,VERB" on cross-tag level,
+ * or "alphau:NOUN/type/comment,VERB" on tag level, where attributes follow
+ * their tag type after slashes. Metrics are pi (Fleiss), kappa (Hubert),
+ * alpha (Krippendorff's, nominal) and alphau (Krippendorff's unitizing alpha).
+ * Link tags can be measured on tag level with the first three, where links
+ * of annotators are matched by the spans of their arguments, e.g.
+ * "kappa:ARGUMENTS/-args/has_gap" compares whether each link is there, the
+ * roles its arguments fill (the "-args" pseudo attribute), and an attribute.
+ * <p>
+ * With a cache directory, what each document contributes to agreement
+ * studies is kept there, and later runs only parse documents whose
+ * annotation files have changed. With --pairwise, agreements of every pair
+ * of annotators are added as a matrix per target, in the order of annotators.
+ * <p>
+ * Each agreement comes with a bootstrapped percentile interval (low, high),
+ * from 1000 resamples at 95% by default, drawn with a fixed seed so that
+ * runs are reproducible. --bootstrap 0 turns intervals off.
+ * <p>
+ * With --by-document, agreements are also measured on each document alone,
+ * and listed per target from the worst document to the best, so that
+ * documents annotators disagree on most can be reviewed first.
+ * <p>
+ * Labeling metrics take spans of annotators as the same item only when they
+ * are identical, unless --span-match is given as "overlap", "jaccard:T"
+ * (characters in common over characters covered by either, at least T) or
+ * "boundary:K" (both boundaries at most K characters apart).
+ * <p>
+ * With a runs file (an SQLite database), each run is stored along with
+ * hashes of the annotation files it was run over, and a run of the same
+ * agreements over unchanged files is answered from there without parsing.
+ * With --diff, agreements that moved since the previous run of the same
+ * agreements are added, along with documents whose files changed and, when
+ * both runs were broken down --by-document, documents whose own agreements
+ * moved.
+ */
+public class MaeIAAMain {
+
+    private static final String USAGE = "usage: --task <dtd file> --dir <dataset directory> " +
+            "(--global <metric>:<tag>[,<tag>...] | --local <metric>:<tag>[/<att>...][,<tag>...])... " +
+            "[--include <annotators>] [--exclude <annotators>] [--multi] [--pairwise] [--format json|csv] [--out <result file>] " +
+            "[--cache <cache directory>] [--bootstrap <resamples>] [--confidence <level>] [--seed <seed>] [--by-document] " +
+            "[--span-match exact|overlap|jaccard:<threshold>|boundary:<characters>] [--runs <runs file> [--diff]]";
+
+    static final Map<String, String> METRIC_NAMES = new LinkedHashMap<>();
+    static {
+        METRIC_NAMES.put("pi", MaeAgreementStrings.MULTIPI_CALC_STRING);
+        METRIC_NAMES.put("kappa", MaeAgreementStrings.MULTIKAPPA_CALC_STRING);
+        METRIC_NAMES.put("alpha", MaeAgreementStrings.ALPHA_CALC_STRING);
+        METRIC_NAMES.put("alphau", MaeAgreementStrings.ALPHAU_CALC_STRING);
+    }
+
+    private static String getArg(List<String> argsList, String flag) {
+        int idx = argsList.indexOf(flag);
+        return idx >= 0 && idx + 1 < argsList.size() ? argsList.get(idx + 1) : null;
+    }
+
+    private static List<String> getArgs(List<String> argsList, String flag) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < argsList.size() - 1; i++) {
+            if (argsList.get(i).equals(flag)) {
+                values.add(argsList.get(i + 1));
+            }
+        }
+        return values;
+    }
+
+    static TaskSchema readTaskSchema(File dtdFile) throws MaeException {
+        TaskSchema schema = DTDLoader.compile(dtdFile);
+        if (schema.getTagTypes().size() == 0) {
+            throw new MaeIODTDException("DTD does not contain any definition, maybe not a DTD file? " + dtdFile.getAbsolutePath());
+        }
+        return schema;
+    }
+
+    /**
+     * Parses metric specs into [metric name --> tag types --> attribute types].
+     */
+    static Map<String, MappedSet<String, String>> parseSpecs(List<String> specs, TaskSchema schema) {
+        Map<String, MappedSet<String, String>> metricToTargets = new LinkedHashMap<>();
+        for (String spec : specs) {
+            int colon = spec.indexOf(':');
+            String metric = colon < 0 ? null : METRIC_NAMES.get(spec.substring(0, colon).toLowerCase());
+            if (metric == null) {
+                throw new IllegalArgumentException(String.format(
+                        "unknown metric in \"%s\", use one of %s", spec, METRIC_NAMES.keySet()));
+            }
+            MappedSet<String, String> targets = metricToTargets.computeIfAbsent(metric, m -> new MappedSet<>());
+            for (String target : spec.substring(colon + 1).split(",")) {
+                String[] tagAndAtts = target.trim().split("/");
+                String tagType = tagAndAtts[0];
+                if (schema.getTagType(tagType) == null) {
+                    throw new IllegalArgumentException(String.format("unknown tag type in \"%s\": %s", spec, tagType));
+                }
+                List<String> attTypes = new ArrayList<>();
+                for (int i = 1; i < tagAndAtts.length; i++) {
+                    boolean roles = schema.isLinkTagType(tagType) && tagAndAtts[i].equals(MaeAgreementStrings.ARGS_ATT);
+                    if (!roles && schema.getAttType(tagType, tagAndAtts[i]) == null) {
+                        throw new IllegalArgumentException(String.format(
+                                "unknown attribute type in \"%s\": %s", spec, tagAndAtts[i]));
+                    }
+                    attTypes.add(tagAndAtts[i]);
+                }
+                targets.putCollection(tagType, attTypes);
+            }
+        }
+        return metricToTargets;
+    }
+
+    /**
+     * @return annotator IDs given to the flag, all found in the dataset
+     */
+    static List<String> parseAnnotators(String annotators, List<String> found, String flag) {
+        List<String> parsed = Arrays.asList(annotators.split(","));
+        for (String annotator : parsed) {
+            if (!found.contains(annotator)) {
+                throw new IllegalArgumentException(String.format(
+                        "unknown annotator in %s: %s, found %s", flag, annotator, found));
+            }
+        }
+        return parsed;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Runs the command line, printing the report to the given stream.
+     * @return the exit code, 0 on success, 1 if the dataset does not
+     * validate against the task, and 2 on a usage or any other error
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        List<String> argsList = new ArrayList<>();
+        Collections.addAll(argsList, args);
+        String tFilename = getArg(argsList, "--task");
+        String datasetDirname = getArg(argsList, "--dir");
+        List<String> globalSpecs = getArgs(argsList, "--global");
+        List<String> localSpecs = getArgs(argsList, "--local");
+        String format = getArg(argsList, "--format");
+        if (tFilename == null || datasetDirname == null || (globalSpecs.isEmpty() && localSpecs.isEmpty())
+                || (format != null && !format.equals("json") && !format.equals("csv"))) {
+            err.println(USAGE);
+            return 2;
+        }
+        String include = getArg(argsList, "--include");
+        String exclude = getArg(argsList, "--exclude");
+        String outFilename = getArg(argsList, "--out");
+        String cacheDirname = getArg(argsList, "--cache");
+        boolean allowMultiTagging = argsList.contains("--multi");
+        boolean pairwise = argsList.contains("--pairwise");
+        boolean byDocument = argsList.contains("--by-document");
+        String resamples = getArg(argsList, "--bootstrap");
+        String confidence = getArg(argsList, "--confidence");
+        String seed = getArg(argsList, "--seed");
+        String spanMatch = getArg(argsList, "--span-match");
+        String runsFilename = getArg(argsList, "--runs");
+        boolean diff = argsList.contains("--diff");
+
+        try {
+            TaskSchema schema = readTaskSchema(new File(tFilename));
+            Map<String, MappedSet<String, String>> global = parseSpecs(globalSpecs, schema);
+            Map<String, MappedSet<String, String>> local = parseSpecs(localSpecs, schema);
+
+            MaeAgreementMain calc = new MaeAgreementMain(schema);
+            if (cacheDirname != null) {
+                calc.useContributionCache(new File(cacheDirname));
+            }
+            int numResamples = resamples == null ? BootstrapEstimator.DEFAULT_RESAMPLES : Integer.parseInt(resamples);
+            if (numResamples > 0) {
+                calc.useBootstrap(new BootstrapEstimator(numResamples,
+                        confidence == null ? BootstrapEstimator.DEFAULT_CONFIDENCE : Double.parseDouble(confidence),
+                        seed == null ? 0L : Long.parseLong(seed)));
+            }
+            calc.useDocumentBreakdown(byDocument);
+            if (spanMatch != null) {
+                calc.useSpanMatcher(SpanMatcher.parse(spanMatch));
+            }
+            if (runsFilename != null) {
+                calc.useRunStore(new File(runsFilename));
+            }
+            calc.indexDataset(new File(datasetDirname));
+            if (include != null) {
+                List<String> included = parseAnnotators(include, calc.getAnnotators(), "--include");
+                for (String annotator : calc.getAnnotators()) {
+                    if (!included.contains(annotator)) {
+                        calc.ignoreAnnotator(annotator);
+                    }
+                }
+            }
+            if (exclude != null) {
+                for (String annotator : parseAnnotators(exclude, calc.getAnnotators(), "--exclude")) {
+                    calc.ignoreAnnotator(annotator);
+                }
+            }
+            // pairwise agreements are not stored, hence need the files loaded anyway
+            AgreementRunStore.Run stored = pairwise ? null : calc.findStoredRun(global, local, allowMultiTagging);
+            if (stored == null) {
+                try {
+                    calc.loadXmlFiles();
+                } catch (MaeIOException e) {
+                    // dataset does not validate against the task
+                    err.println(e.getMessage());
+                    return 1;
+                }
+            }
+            AgreementEngine.Results results = stored == null
+                    ? calc.calcAgreements(global, local, allowMultiTagging) : calc.getStoredResults(stored);
+
+            // stored runs had no parse warnings
+            Report report = new Report(schema.getTaskName(), datasetDirname, calc.getApprovedAnnotators(),
+                    calc.getDocumentCount(), stored == null ? calc.getParseWarnings() : Collections.emptyMap());
+            addResults(report, MaeAgreementStrings.SCOPE_CROSSTAG_STRING, global.keySet(), results, true);
+            addResults(report, MaeAgreementStrings.SCOPE_LOCAL_STRING, local.keySet(), results, false);
+            if (pairwise) {
+                AgreementEngine.PairwiseResults pairwiseResults = calc.calcPairwiseAgreements(global, local, allowMultiTagging);
+                addPairwiseResults(report, MaeAgreementStrings.SCOPE_CROSSTAG_STRING, global.keySet(), pairwiseResults, true);
+                addPairwiseResults(report, MaeAgreementStrings.SCOPE_LOCAL_STRING, local.keySet(), pairwiseResults, false);
+            }
+            if (diff) {
+                addDiff(report, calc.diffWithPreviousRun());
+            }
+            String output = "csv".equals(format) ? report.toCsv() : report.toJson();
+            if (outFilename == null) {
+                out.print(output);
+            } else {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(outFilename), StandardCharsets.UTF_8)) {
+                    writer.write(output);
+                }
+                out.println(String.format("%d agreements over %d documents, %d files with warnings",
+                        report.getAgreements().size(), report.getDocumentCount(), report.getParseWarnings().size()));
+            }
+            return 0;
+        } catch (MaeException | IOException | SAXException | RuntimeException e) {
+            // also covers malformed specs and file names the indexer cannot split
+            err.println(e.getMessage());
+            return 2;
+        }
+    }
+
+    private static void addResults(Report report, String scope, Set<String> metricTypes,
+                                   AgreementEngine.Results results, boolean crossTag) {
+        for (String metricType : metricTypes) {
+            Map<String, Double> agreements = crossTag
+                    ? results.getGlobalAgreements(metricType) : results.getLocalAgreements(metricType);
+            Map<String, BootstrapEstimator.Interval> intervals = crossTag
+                    ? results.getGlobalIntervals(metricType) : results.getLocalIntervals(metricType);
+            for (Map.Entry<String, Double> agreement : agreements.entrySet()) {
+                report.agreements.add(new Agreement(scope, metricType, agreement.getKey(), agreement.getValue(),
+                        intervals.get(agreement.getKey())));
+            }
+            Map<String, List<AgreementEngine.DocumentAgreement>> documents = crossTag
+                    ? results.getGlobalDocumentAgreements(metricType) : results.getLocalDocumentAgreements(metricType);
+            if (documents == null) {
+                // not broken down
+                continue;
+            }
+            for (Map.Entry<String, List<AgreementEngine.DocumentAgreement>> target : documents.entrySet()) {
+                for (AgreementEngine.DocumentAgreement agreement : target.getValue()) {
+                    report.documentAgreements.add(new DocumentAgreement(scope, metricType, target.getKey(),
+                            agreement.getDocument(), agreement.getAgreement()));
+                }
+            }
+        }
+    }
+
+    private static void addDiff(Report report, AgreementRunStore.Diff diff) {
+        if (diff == null) {
+            // no earlier run to compare with
+            return;
+        }
+        report.changedDocuments.putAll(diff.getChangedDocuments());
+        for (AgreementRunStore.Change change : diff.getChanges()) {
+            String scope = change.isCrossTag()
+                    ? MaeAgreementStrings.SCOPE_CROSSTAG_STRING : MaeAgreementStrings.SCOPE_LOCAL_STRING;
+            report.changes.add(new Change(scope, change.getMetricType(), change.getTarget(), null,
+                    change.getAfter(), change.getBefore()));
+            for (AgreementRunStore.DocumentChange document : change.getDocuments()) {
+                report.changes.add(new Change(scope, change.getMetricType(), change.getTarget(),
+                        document.getDocument(), document.getAfter(), document.getBefore()));
+            }
+        }
+    }
+
+    private static void addPairwiseResults(Report report, String scope, Set<String> metricTypes,
+                                           AgreementEngine.PairwiseResults results, boolean crossTag) {
+        for (String metricType : metricTypes) {
+            Map<String, double[][]> agreements = crossTag
+                    ? results.getGlobalAgreements(metricType) : results.getLocalAgreements(metricType);
+            if (agreements == null) {
+                // fewer than two annotators
+                continue;
+            }
+            for (Map.Entry<String, double[][]> agreement : agreements.entrySet()) {
+                report.pairwiseAgreements.add(
+                        new PairwiseAgreement(scope, metricType, agreement.getKey(), agreement.getValue()));
+            }
+        }
+    }
+
+    public static class Agreement {
+        private final String scope;
+        private final String metric;
+        private final String target;
+        private final double value;
+        private final BootstrapEstimator.Interval interval;
+
+        Agreement(String scope, String metric, String target, double value, BootstrapEstimator.Interval interval) {
+            this.scope = scope;
+            this.metric = metric;
+            this.target = target;
+            this.value = value;
+            this.interval = interval;
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        public String getMetric() {
+            return metric;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return agreement value, or null when undefined (e.g. no item to agree on)
+         */
+        public Double getValue() {
+            return Double.isNaN(value) ? null : value;
+        }
+
+        /**
+         * @return lower bound of the bootstrapped interval, absent when not
+         * bootstrapped or undefined
+         */
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Double getLow() {
+            return interval == null || Double.isNaN(interval.getLow()) ? null : interval.getLow();
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Double getHigh() {
+            return interval == null || Double.isNaN(interval.getHigh()) ? null : interval.getHigh();
+        }
+    }
+
+    public static class PairwiseAgreement {
+        private final String scope;
+        private final String metric;
+        private final String target;
+        private final double[][] matrix;
+
+        PairwiseAgreement(String scope, String metric, String target, double[][] matrix) {
+            this.scope = scope;
+            this.metric = metric;
+            this.target = target;
+            this.matrix = matrix;
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        public String getMetric() {
+            return metric;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return agreements of annotator pairs, in the order of annotators of the report,
+         * with nulls on the diagonal and for undefined agreements
+         */
+        public Double[][] getMatrix() {
+            Double[][] values = new Double[matrix.length][];
+            for (int i = 0; i < matrix.length; i++) {
+                values[i] = new Double[matrix[i].length];
+                for (int j = 0; j < matrix[i].length; j++) {
+                    values[i][j] = Double.isNaN(matrix[i][j]) ? null : matrix[i][j];
+                }
+            }
+            return values;
+        }
+    }
+
+    public static class DocumentAgreement {
+        private final String scope;
+        private final String metric;
+        private final String target;
+        private final String document;
+        private final double value;
+
+        DocumentAgreement(String scope, String metric, String target, String document, double value) {
+            this.scope = scope;
+            this.metric = metric;
+            this.target = target;
+            this.document = document;
+            this.value = value;
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        public String getMetric() {
+            return metric;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public String getDocument() {
+            return document;
+        }
+
+        /**
+         * @return agreement value on the document, or null when undefined
+         * (e.g. a single category in the document)
+         */
+        public Double getValue() {
+            return Double.isNaN(value) ? null : value;
+        }
+    }
+
+    /**
+     * An agreement that moved since the previous run, on the whole corpus or
+     * on a single document.
+     */
+    public static class Change {
+        private final String scope;
+        private final String metric;
+        private final String target;
+        private final String document;
+        private final double value;
+        private final double previous;
+
+        Change(String scope, String metric, String target, String document, double value, double previous) {
+            this.scope = scope;
+            this.metric = metric;
+            this.target = target;
+            this.document = document;
+            this.value = value;
+            this.previous = previous;
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        public String getMetric() {
+            return metric;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return the document that moved, absent for the whole corpus
+         */
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public String getDocument() {
+            return document;
+        }
+
+        public Double getValue() {
+            return Double.isNaN(value) ? null : value;
+        }
+
+        public Double getPrevious() {
+            return Double.isNaN(previous) ? null : previous;
+        }
+    }
+
+    public static class Report {
+        private final String taskName;
+        private final String dataset;
+        private final List<String> annotators;
+        private final int documentCount;
+        private final List<Agreement> agreements = new ArrayList<>();
+        private final List<PairwiseAgreement> pairwiseAgreements = new ArrayList<>();
+        private final List<DocumentAgreement> documentAgreements = new ArrayList<>();
+        private final Map<String, String> changedDocuments = new TreeMap<>();
+        private final List<Change> changes = new ArrayList<>();
+        private final Map<String, String> parseWarnings;
+
+        Report(String taskName, String dataset, List<String> annotators, int documentCount,
+               Map<String, String> parseWarnings) {
+            this.taskName = taskName;
+            this.dataset = dataset;
+            this.annotators = annotators;
+            this.documentCount = documentCount;
+            this.parseWarnings = new TreeMap<>(parseWarnings);
+        }
+
+        public String getTaskName() {
+            return taskName;
+        }
+
+        public String getDataset() {
+            return dataset;
+        }
+
+        public List<String> getAnnotators() {
+            return annotators;
+        }
+
+        public int getDocumentCount() {
+            return documentCount;
+        }
+
+        public List<Agreement> getAgreements() {
+            return agreements;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_EMPTY)
+        public List<PairwiseAgreement> getPairwiseAgreements() {
+            return pairwiseAgreements;
+        }
+
+        /**
+         * @return agreements of each document, worst first per target
+         */
+        @JsonInclude(JsonInclude.Include.NON_EMPTY)
+        public List<DocumentAgreement> getDocumentAgreements() {
+            return documentAgreements;
+        }
+
+        /**
+         * @return documents whose annotation files changed since the previous run
+         */
+        @JsonInclude(JsonInclude.Include.NON_EMPTY)
+        public Map<String, String> getChangedDocuments() {
+            return changedDocuments;
+        }
+
+        /**
+         * @return agreements that moved since the previous run
+         */
+        @JsonInclude(JsonInclude.Include.NON_EMPTY)
+        public List<Change> getChanges() {
+            return changes;
+        }
+
+        public Map<String, String> getParseWarnings() {
+            return parseWarnings;
+        }
+
+        public String toJson() throws IOException {
+            return new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(this) + "\n";
+        }
+
+        /**
+         * One row per agreement (with bounds of its interval in two more
+         * columns, if bootstrapped), then one row per annotator pair of
+         * pairwise agreements (if any, in two more columns), then one row per
+         * document and target of the breakdown (if any, in one more column),
+         * then one row per agreement that moved since the previous run (with
+         * its previous value in one more column, and a document if it moved
+         * on a single document) and one row per document whose files
+         * changed, then one row per file with parse warnings, distinguished
+         * by the first column.
+         */
+        public String toCsv() {
+            boolean bootstrapped = agreements.stream().anyMatch(agreement -> agreement.interval != null);
+            boolean pairwise = pairwiseAgreements.size() > 0;
+            boolean diffed = changes.size() > 0 || changedDocuments.size() > 0;
+            boolean byDocument = documentAgreements.size() > 0 || diffed;
+            String intervalColumns = bootstrapped ? ",," : "";
+            String pairColumns = pairwise ? ",," : "";
+            String documentColumn = byDocument ? "," : "";
+            String previousColumn = diffed ? "," : "";
+            StringBuilder csv = new StringBuilder("record,scope,metric,target,value");
+            csv.append(bootstrapped ? ",low,high" : "");
+            csv.append(pairwise ? ",annotator_a,annotator_b" : "");
+            csv.append(byDocument ? ",document" : "");
+            csv.append(diffed ? ",previous\n" : "\n");
+            for (Agreement agreement : agreements) {
+                csv.append(String.join(",", "agreement", csvField(agreement.scope), csvField(agreement.metric),
+                        csvField(agreement.target), csvValue(agreement.value)));
+                if (bootstrapped) {
+                    csv.append(",").append(agreement.interval == null ? "" : csvValue(agreement.interval.getLow()))
+                            .append(",").append(agreement.interval == null ? "" : csvValue(agreement.interval.getHigh()));
+                }
+                csv.append(pairColumns).append(documentColumn).append(previousColumn).append("\n");
+            }
+            for (PairwiseAgreement agreement : pairwiseAgreements) {
+                for (int i = 0; i < annotators.size(); i++) {
+                    for (int j = i + 1; j < annotators.size(); j++) {
+                        csv.append(String.join(",", "pair", csvField(agreement.scope), csvField(agreement.metric),
+                                csvField(agreement.target), csvValue(agreement.matrix[i][j])))
+                                .append(intervalColumns).append(",")
+                                .append(String.join(",", csvField(annotators.get(i)), csvField(annotators.get(j))))
+                                .append(documentColumn).append(previousColumn).append("\n");
+                    }
+                }
+            }
+            for (DocumentAgreement agreement : documentAgreements) {
+                csv.append(String.join(",", "document", csvField(agreement.scope), csvField(agreement.metric),
+                        csvField(agreement.target), csvValue(agreement.value)))
+                        .append(intervalColumns).append(pairColumns).append(",")
+                        .append(csvField(agreement.document)).append(previousColumn).append("\n");
+            }
+            for (Change change : changes) {
+                csv.append(String.join(",", "change", csvField(change.scope), csvField(change.metric),
+                        csvField(change.target), csvValue(change.value)))
+                        .append(intervalColumns).append(pairColumns).append(",")
+                        .append(change.document == null ? "" : csvField(change.document))
+                        .append(",").append(csvValue(change.previous)).append("\n");
+            }
+            for (Map.Entry<String, String> document : changedDocuments.entrySet()) {
+                csv.append(String.join(",", "changed", "", "", csvField(document.getKey()), csvField(document.getValue())))
+                        .append(intervalColumns).append(pairColumns).append(documentColumn).append(previousColumn).append("\n");
+            }
+            for (Map.Entry<String, String> warning : parseWarnings.entrySet()) {
+                csv.append(String.join(",", "warning", "", "", csvField(warning.getKey()), csvField(warning.getValue())))
+                        .append(intervalColumns).append(pairColumns).append(documentColumn).append(previousColumn).append("\n");
+            }
+            return csv.toString();
+        }
+
+        private static String csvValue(double value) {
+            return Double.isNaN(value) ? "" : Double.toString(value);
+        }
+
+        private static String csvField(String value) {
+            if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+                return "\"" + value.replace("\"", "\"\"") + "\"";
+            }
+            return value;
+        }
+    }
+}
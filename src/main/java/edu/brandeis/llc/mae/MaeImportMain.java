@@ -0,0 +1,93 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae;
+
+import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.MaeIODTDException;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import edu.brandeis.llc.mae.io.TxtBatchImporter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless entry point to convert a directory tree of plain text files into
+ * empty MAE XML files, ready to be assigned to annotators.
+ *
+ * Usage: --task DTD --dir ROOT [--out OUTROOT] [--threads N] [--ext .txt]
+ */
+public class MaeImportMain {
+
+    private static final String USAGE = "usage: --task <dtd file> --dir <root directory> " +
+            "[--out <output root directory>] [--threads <number of workers>] [--ext <source file extension>]";
+
+    private static String getArg(List<String> argsList, String flag) {
+        int idx = argsList.indexOf(flag);
+        return idx >= 0 && idx + 1 < argsList.size() ? argsList.get(idx + 1) : null;
+    }
+
+    static String readTaskName(File dtdFile) throws MaeException {
+        TaskSchema schema = DTDLoader.compile(dtdFile);
+        if (schema.getTagTypes().size() == 0 || schema.getTaskName() == null) {
+            throw new MaeIODTDException("DTD does not define a task name and tag types, maybe not a DTD file? " + dtdFile.getAbsolutePath());
+        }
+        return schema.getTaskName();
+    }
+
+    public static void main(String[] args) {
+        List<String> argsList = new ArrayList<>();
+        Collections.addAll(argsList, args);
+        String tFilename = getArg(argsList, "--task");
+        String rootDirname = getArg(argsList, "--dir");
+        if (tFilename == null || rootDirname == null) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        String outDirname = getArg(argsList, "--out");
+        String threads = getArg(argsList, "--threads");
+        String ext = getArg(argsList, "--ext");
+
+        try {
+            String taskName = readTaskName(new File(tFilename));
+            TxtBatchImporter importer = new TxtBatchImporter(taskName,
+                    threads == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads),
+                    ext == null ? TxtBatchImporter.DEFAULT_SOURCE_EXT : ext);
+            TxtBatchImporter.Report report = importer.importDirectory(new File(rootDirname),
+                    outDirname == null ? null : new File(outDirname));
+            Map<String, String> failures = report.getFailures();
+            for (String failed : failures.keySet()) {
+                System.err.println(String.format("FAILED: %s\n\t%s", failed, failures.get(failed)));
+            }
+            System.out.println(report);
+            System.exit(failures.size() > 0 ? 1 : 0);
+        } catch (MaeException | NumberFormatException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+}
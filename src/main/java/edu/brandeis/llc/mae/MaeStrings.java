@@ -205,6 +205,16 @@ public class MaeStrings {
     public static String getXmlNotMatchErr(String filename, String taskName) {
         return String.format(XML_NOT_MATCH_ERR, filename, taskName);
     }
+    public static final String JOURNAL_RECOVERED_MSG = "Found unsaved changes from a previous session of \"%s\".\n" +
+            "%d edits are recovered, save the document to keep them.";
+    public static String getJournalRecoveredMsg(String filename, int edits) {
+        return String.format(JOURNAL_RECOVERED_MSG, filename, edits);
+    }
+    public static final String JOURNAL_STALE_MSG = "Found unsaved changes from a previous session of \"%s\",\n" +
+            "but the file has changed since, so they are not recovered.\nThey are kept in \"%s\".";
+    public static String getJournalStaleMsg(String filename, String setAsideName) {
+        return String.format(JOURNAL_STALE_MSG, filename, setAsideName);
+    }
 
     /* XML strings */
 
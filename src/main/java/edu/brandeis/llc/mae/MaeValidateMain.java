@@ -0,0 +1,100 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae;
+
+import edu.brandeis.llc.mae.io.AnnotationValidator;
+import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.MaeIODTDException;
+import edu.brandeis.llc.mae.io.TaskSchema;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Headless entry point to validate a directory tree of annotation XML files
+ * against a DTD. Prints a JSON report and exits with 1 if any file has issues,
+ * or with 2 if validation could not check every file.
+ *
+ * Usage: --task DTD --dir ROOT [--threads N] [--out REPORT_JSON]
+ */
+public class MaeValidateMain {
+
+    private static final String USAGE = "usage: --task <dtd file> --dir <root directory> " +
+            "[--threads <number of workers>] [--out <report file>]";
+
+    private static String getArg(List<String> argsList, String flag) {
+        int idx = argsList.indexOf(flag);
+        return idx >= 0 && idx + 1 < argsList.size() ? argsList.get(idx + 1) : null;
+    }
+
+    static TaskSchema readTaskSchema(File dtdFile) throws MaeException {
+        TaskSchema schema = DTDLoader.compile(dtdFile);
+        if (schema.getTagTypes().size() == 0) {
+            throw new MaeIODTDException("DTD does not contain any definition, maybe not a DTD file? " + dtdFile.getAbsolutePath());
+        }
+        return schema;
+    }
+
+    public static void main(String[] args) {
+        List<String> argsList = new ArrayList<>();
+        Collections.addAll(argsList, args);
+        String tFilename = getArg(argsList, "--task");
+        String rootDirname = getArg(argsList, "--dir");
+        if (tFilename == null || rootDirname == null) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        String threads = getArg(argsList, "--threads");
+        String outFilename = getArg(argsList, "--out");
+
+        try {
+            TaskSchema schema = readTaskSchema(new File(tFilename));
+            AnnotationValidator validator = new AnnotationValidator(schema,
+                    threads == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads));
+            AnnotationValidator.ValidationReport report = validator.validateDirectory(new File(rootDirname));
+            if (outFilename == null) {
+                System.out.println(report.toJson());
+            } else {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(outFilename), StandardCharsets.UTF_8)) {
+                    writer.write(report.toJson());
+                }
+                System.out.println(String.format("%d files checked, %d files with %d issues",
+                        report.getFileCount(), report.getInvalidFileCount(), report.getIssueCount()));
+            }
+            if (!report.isComplete()) {
+                System.err.println(String.format("validation aborted after %d of %d files",
+                        report.getCheckedFileCount(), report.getFileCount()));
+                System.exit(2);
+            }
+            System.exit(report.isValid() ? 0 : 1);
+        } catch (MaeException | IOException | NumberFormatException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+}
@@ -33,17 +33,26 @@ import edu.brandeis.llc.mae.database.MaeDBException;
 import edu.brandeis.llc.mae.database.MaeDriverI;
 import edu.brandeis.llc.mae.io.MaeIOException;
 import edu.brandeis.llc.mae.io.MaeIOXMLException;
-import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.TaskSchema;
 import edu.brandeis.llc.mae.util.FileHandler;
 import edu.brandeis.llc.mae.util.MappedSet;
-import edu.brandeis.llc.mae.agreement.calculator.*;
+import edu.brandeis.llc.mae.agreement.calculator.AgreementEngine;
+import edu.brandeis.llc.mae.agreement.calculator.AgreementRunStore;
+import edu.brandeis.llc.mae.agreement.calculator.BootstrapEstimator;
+import edu.brandeis.llc.mae.agreement.calculator.ContributionCache;
+import edu.brandeis.llc.mae.agreement.calculator.SpanMatcher;
 import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
 
 /**
  * Main controller for IAA calculator.
@@ -54,13 +63,36 @@ public class MaeAgreementMain {
 
     private AbstractAnnotationIndexer fileIdx;
     private MaeDriverI driver;
+    private TaskSchema schema;
     private XMLParseCache parseCache;
+    private ContributionCache contributionCache;
+    private BootstrapEstimator bootstrap;
+    private boolean documentBreakdown;
+    private SpanMatcher spanMatcher = SpanMatcher.EXACT;
+    private AgreementRunStore runStore;
+    private AgreementRunStore.Run lastRun;
     private int[] documentLength;
+    private int[] documentOffset;
 
     public MaeAgreementMain(MaeDriverI driver) {
         this.driver = driver;
     }
 
+    /**
+     * Creates a calculator working only on a task definition, without a
+     * database driver (e.g. for headless runs).
+     */
+    public MaeAgreementMain(TaskSchema schema) {
+        this.schema = schema;
+    }
+
+    private TaskSchema getTaskSchema() throws MaeDBException {
+        if (schema == null) {
+            schema = driver.getTaskSchema();
+        }
+        return schema;
+    }
+
     public void indexDataset(File datasetDir) throws MaeIOException {
          if (!FileHandler.containsDirsOnly(datasetDir)) {
             fileIdx = new AnnotationFilesIndexer();
@@ -83,9 +115,173 @@ public class MaeAgreementMain {
         fileIdx.approveAnnotator(annotatorId);
     }
 
+    /**
+     * Keeps per-document contributions to agreement studies in a directory,
+     * so that later calculations only parse documents whose annotation
+     * files have changed since.
+     */
+    public void useContributionCache(File cacheDir) throws IOException, MaeDBException {
+        contributionCache = new ContributionCache(cacheDir, getTaskSchema());
+    }
+
+    public ContributionCache getContributionCache() {
+        return contributionCache;
+    }
+
+    /**
+     * Keeps every calculation of agreements in an SQLite file, so that the
+     * same calculation over unchanged annotation files is answered from
+     * there, and a calculation can be compared with the previous one.
+     */
+    public void useRunStore(File storeFile) throws MaeDBException {
+        runStore = new AgreementRunStore(storeFile, getTaskSchema());
+    }
+
+    /**
+     * Looks up a stored calculation of the same agreements by the approved
+     * annotators over the annotation files as they are now. Files are
+     * hashed but not parsed, so this can be done before loading them.
+     * @return the run found, or null if there is none or no store is used
+     */
+    public AgreementRunStore.Run findStoredRun(
+            Map<String, MappedSet<String, String>> globalMetricToTargetsMap,
+            Map<String, MappedSet<String, String>> localMetricToTargetsMap,
+            boolean allowMultiTagging)
+            throws IOException, MaeDBException {
+        if (runStore == null) {
+            return null;
+        }
+        AgreementRunStore.Run run = runStore.findRun(
+                describeConfiguration(globalMetricToTargetsMap, localMetricToTargetsMap, allowMultiTagging),
+                fileIdx.getApprovedAnnotators(), runStore.getDocumentKeys(fileIdx));
+        if (run != null) {
+            lastRun = run;
+        }
+        return run;
+    }
+
+    public AgreementEngine.Results getStoredResults(AgreementRunStore.Run run) throws MaeDBException {
+        return runStore.getResults(run);
+    }
+
+    /**
+     * @return the run last calculated or found in the store, or null
+     */
+    public AgreementRunStore.Run getLastRun() {
+        return lastRun;
+    }
+
+    /**
+     * Compares the last run with the run stored before it for the same
+     * agreements and annotators.
+     * @return the difference, or null if there is no run to compare with
+     */
+    public AgreementRunStore.Diff diffWithPreviousRun() throws MaeDBException {
+        if (lastRun == null) {
+            return null;
+        }
+        AgreementRunStore.Run previous = runStore.findPreviousRun(lastRun);
+        return previous == null ? null : runStore.diff(previous, lastRun);
+    }
+
+    /**
+     * @return a description of everything agreements of the given targets
+     * depend on other than the annotation files, telling runs apart
+     */
+    private String describeConfiguration(
+            Map<String, MappedSet<String, String>> globalMetricToTargets,
+            Map<String, MappedSet<String, String>> localMetricToTargets,
+            boolean allowMultiTagging) {
+        StringBuilder configuration = new StringBuilder();
+        for (String metricType : new TreeSet<>(globalMetricToTargets.keySet())) {
+            configuration.append(String.format("global %s: %s\n", metricType,
+                    new TreeSet<>(globalMetricToTargets.get(metricType).keySet())));
+        }
+        for (String metricType : new TreeSet<>(localMetricToTargets.keySet())) {
+            MappedSet<String, String> targets = localMetricToTargets.get(metricType);
+            for (String tagType : new TreeSet<>(targets.keySet())) {
+                configuration.append(String.format("local %s: %s %s\n", metricType, tagType,
+                        new TreeSet<>(targets.get(tagType))));
+            }
+        }
+        configuration.append(String.format("multi-tagging: %s\nspan matching: %s\nbootstrap: %s\nby document: %s",
+                allowMultiTagging, spanMatcher, bootstrap == null ? "none" : bootstrap, documentBreakdown));
+        return configuration.toString();
+    }
+
+
+    /**
+     * Makes calculations report bootstrapped confidence intervals along with
+     * agreements, or stop doing so with null.
+     */
+    public void useBootstrap(BootstrapEstimator bootstrap) {
+        this.bootstrap = bootstrap;
+    }
+
+    /**
+     * Makes calculations also report agreements of each document, worst
+     * first, computed in the same walk over the dataset.
+     */
+    public void useDocumentBreakdown(boolean documentBreakdown) {
+        this.documentBreakdown = documentBreakdown;
+    }
+
+    /**
+     * Makes labeling studies match spans of annotators up as the given
+     * matcher does, instead of by exact identity.
+     */
+    public void useSpanMatcher(SpanMatcher spanMatcher) {
+        this.spanMatcher = spanMatcher;
+    }
+
+    /**
+     * Parses all annotation files once, in parallel, and validates that they
+     * are annotated with the task and share primary texts by their
+     * documents, using what was seen while parsing. Parses are kept for
+     * calculation. With a contribution cache, documents cached as they are
+     * now are neither parsed nor validated again.
+     */
     public void loadXmlFiles() throws MaeIOException, IOException, SAXException, MaeDBException {
+        loadXmlFiles(new AgreementEngine.Listener() { });
+    }
+
+    /**
+     * Same as {@link #loadXmlFiles()}, telling the listener as each document
+     * is parsed. When the calling thread is interrupted, parsing is stopped
+     * and an {@link InterruptedIOException} is thrown.
+     */
+    public void loadXmlFiles(AgreementEngine.Listener listener)
+            throws MaeIOException, IOException, SAXException, MaeDBException {
+
+        if (parseCache != null) {
+            parseCache.close();
+        }
+        parseCache = new XMLParseCache(getTaskSchema(), fileIdx, Runtime.getRuntime().availableProcessors());
+        List<String> documents = fileIdx.getDocumentNames();
+        documentLength = new int[documents.size()];
+        if (contributionCache == null) {
+            Arrays.fill(documentLength, -1);
+        } else {
+            // hashing files for cache keys is done in parallel as well
+            IntStream.range(0, documents.size()).parallel().forEach(i -> documentLength[i] =
+                    contributionCache.getDocumentLength(fileIdx.getAnnotationsOfDocument(documents.get(i))));
+        }
+        List<String> toParse = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            if (documentLength[i] < 0) {
+                toParse.add(documents.get(i));
+                documentLength[i] = 0;
+            }
+        }
+        parseCache.prewarm(toParse);
+        try {
+            parseCache.awaitScheduled(listener::documentParsed);
+        } catch (InterruptedIOException e) {
+            parseCache.close();
+            throw e;
+        }
 
-        String invalidTaskNameFile = validateTaskNames(driver.getTaskName());
+        String invalidTaskNameFile = validateTaskNames(getTaskSchema().getTaskName());
         String invalidPrimaryTextFile = validateTextSharing();
         if (!invalidTaskNameFile.equals(SUCCESS)) {
             throw new MaeIOException("XML annotated with different DTD name: " + invalidTaskNameFile);
@@ -93,71 +289,65 @@ public class MaeAgreementMain {
         if (!invalidPrimaryTextFile.equals(SUCCESS)) {
             throw new MaeIOException("XML file has different primary text: " + invalidPrimaryTextFile);
         }
-        parseCache = new XMLParseCache(driver, fileIdx);
+        documentOffset = AgreementEngine.textOffsets(documentLength);
     }
 
     public Map<String, String> getParseWarnings() {
         return parseCache.getParseWarnings();
     }
 
-    String validateTaskNames(String taskName) throws IOException, SAXException, MaeIOXMLException {
-        MaeXMLParser parser = new MaeXMLParser();
+    public XMLParseCache.Statistics getParseCacheStatistics() {
+        return parseCache.getStatistics();
+    }
+
+    /**
+     * Checks task names of parsed files, skipping files not parsed.
+     */
+    String validateTaskNames(String taskName) throws MaeIOXMLException {
         for (String docName : fileIdx.getDocumentNames()) {
             for (String fileName : fileIdx.getAnnotationsOfDocument(docName)) {
-                try {
-                    if (fileName != null && !parser.isTaskNameMatching(new File(fileName), taskName)) {
-                        return fileName;
-                    }
-                } catch (SAXParseException e) {
-                    throw new MaeIOXMLException(String.format("Invalid XML string (%s): %s", e.getMessage(), fileName));
+                XMLParseCache.FileSummary summary = getParsedFileSummary(fileName);
+                if (summary != null && !taskName.equals(summary.getTaskName())) {
+                    return fileName;
                 }
             }
         }
         return SUCCESS;
     }
 
-    String validateTextSharing() throws IOException, SAXException, MaeIOXMLException {
-        MaeXMLParser parser = new MaeXMLParser();
-        documentLength = new int[fileIdx.getDocumentNames().size()];
-        int curDoc = 0;
-        for (String docName : fileIdx.getDocumentNames()) {
-            String[] fileNames = fileIdx.getAnnotationsOfDocument(docName);
-            int seen = getFirstNonNullIndex(fileNames);
-            if (seen == -1) {
-                continue;
-            }
-            parser.readAnnotationPreamble(new File(fileNames[seen++]));
-            String primaryText = parser.getParsedPrimaryText();
-            documentLength[curDoc++] = primaryText.length();
-            for (int i = seen; i < fileNames.length; i++) {
-                try {
-                    if (fileNames[i] != null && !parser.isPrimaryTextMatching(new File(fileNames[i]), primaryText)) {
-                        return fileNames[i];
-                    }
-                } catch (SAXParseException e) {
-                    throw new MaeIOXMLException(String.format("Invalid XML string (%s): %s", e.getMessage(), fileNames[i]));
+    /**
+     * Checks that parsed files of each document share a primary text, by its
+     * length and digest, and records text lengths of documents.
+     */
+    String validateTextSharing() throws MaeIOXMLException {
+        List<String> documents = fileIdx.getDocumentNames();
+        for (int i = 0; i < documents.size(); i++) {
+            XMLParseCache.FileSummary seen = null;
+            for (String fileName : fileIdx.getAnnotationsOfDocument(documents.get(i))) {
+                XMLParseCache.FileSummary summary = getParsedFileSummary(fileName);
+                if (summary == null) {
+                    continue;
+                }
+                if (seen == null) {
+                    seen = summary;
+                    documentLength[i] = summary.getTextLength();
+                } else if (!seen.hasSameText(summary)) {
+                    return fileName;
                 }
             }
         }
         return SUCCESS;
     }
 
-    /**
-     * Returns the index of the first non-null element of the given array.
-     * If the array is full of null items, return -1.
-     * @param array an array
-     * @return the index of non-null item, or -1
-     */
-    private static int getFirstNonNullIndex(Object[] array) {
-        int seen = 0;
-        while (seen < array.length && array[seen] == null) {
-            seen++;
+    private XMLParseCache.FileSummary getParsedFileSummary(String fileName) throws MaeIOXMLException {
+        if (fileName == null) {
+            return null;
         }
-        if (seen >= array.length) {
-            return -1;
-        } else {
-            return seen;
+        XMLParseCache.FileSummary summary = parseCache.getFileSummary(fileName);
+        if (summary != null && summary.getParseError() != null) {
+            throw new MaeIOXMLException(String.format("Invalid XML string (%s): %s", summary.getParseError(), fileName));
         }
+        return summary;
     }
 
     public String agreementsToString(String agreementType, Map<String, Double> agreements) {
@@ -177,69 +367,115 @@ public class MaeAgreementMain {
             Map<String, MappedSet<String, String>> metricToTargetsMap,
             boolean allowMultiTagging)
             throws MaeException, SAXException, IOException {
-        StringBuilder result = new StringBuilder();
-        for (String metricType : metricToTargetsMap.keySet()) {
-            MappedSet<String, String> targetTagsAndAtts = metricToTargetsMap.get(metricType);
-            if (targetTagsAndAtts.size() == 0) {
-                continue;
-            }
-            String agrTitle = String.format("<%s> %s  %s", MaeAgreementStrings.SCOPE_CROSSTAG_STRING, metricType, targetTagsAndAtts.keyList());
-            AbstractMaeAgreementCalc calc = null;
-            switch (metricType) {
-                case MaeAgreementStrings.ALPHAU_CALC_STRING:
-                    calc = new GlobalAlphaUCalc(fileIdx, parseCache, documentLength);
-                    break;
-                case MaeAgreementStrings.ALPHA_CALC_STRING:
-                    break;
-                case MaeAgreementStrings.MULTIKAPPA_CALC_STRING:
-                    calc = new GlobalMultiKappaCalc(fileIdx, parseCache);
-                    break;
-                case MaeAgreementStrings.MULTIPI_CALC_STRING:
-                    calc = new GlobalMultiPiCalc(fileIdx, parseCache);
-                    break;
-            }
-            if (calc == null) {
-                result.append("metric not defined: ").append(metricType);
-            } else {
-                result.append(agreementsToString(agrTitle,
-                        calc.calculateAgreement(targetTagsAndAtts, allowMultiTagging)));
-            }
-        }
-        return result.toString();
+        return calcAgreementToString(metricToTargetsMap, new TreeMap<>(), allowMultiTagging);
     }
 
     public String calcLocalAgreementToString(
             Map<String, MappedSet<String, String>> metricToTargetsMap,
             boolean allowMultiTagging)
             throws MaeException, SAXException, IOException {
+        return calcAgreementToString(new TreeMap<>(), metricToTargetsMap, allowMultiTagging);
+    }
+
+    /**
+     * Computes cross-tag and tag-level agreements in one go, and returns them
+     * keyed by metric names.
+     */
+    public AgreementEngine.Results calcAgreements(
+            Map<String, MappedSet<String, String>> globalMetricToTargetsMap,
+            Map<String, MappedSet<String, String>> localMetricToTargetsMap,
+            boolean allowMultiTagging)
+            throws MaeException, SAXException, IOException {
+        AgreementRunStore.Run stored = findStoredRun(globalMetricToTargetsMap, localMetricToTargetsMap, allowMultiTagging);
+        if (stored != null) {
+            return runStore.getResults(stored);
+        }
+        AgreementEngine.Results results = newEngine().calculateAgreements(
+                globalMetricToTargetsMap, localMetricToTargetsMap, allowMultiTagging);
+        // like cached contributions, runs over files with parse problems are not kept
+        if (runStore != null && getParseWarnings().isEmpty()) {
+            lastRun = runStore.saveRun(
+                    describeConfiguration(globalMetricToTargetsMap, localMetricToTargetsMap, allowMultiTagging),
+                    fileIdx.getApprovedAnnotators(), runStore.getDocumentKeys(fileIdx), results);
+        }
+        return results;
+    }
+
+    /**
+     * Computes agreements of every pair of approved annotators, from a
+     * single walk over the dataset.
+     */
+    public AgreementEngine.PairwiseResults calcPairwiseAgreements(
+            Map<String, MappedSet<String, String>> globalMetricToTargetsMap,
+            Map<String, MappedSet<String, String>> localMetricToTargetsMap,
+            boolean allowMultiTagging)
+            throws MaeException, SAXException, IOException {
+        return newEngine().calculatePairwiseAgreements(globalMetricToTargetsMap, localMetricToTargetsMap, allowMultiTagging);
+    }
+
+    private AgreementEngine newEngine() {
+        AgreementEngine engine = new AgreementEngine(fileIdx, parseCache, documentLength, documentOffset);
+        engine.setContributionCache(contributionCache);
+        engine.setBootstrap(bootstrap);
+        engine.setDocumentBreakdown(documentBreakdown);
+        engine.setSpanMatcher(spanMatcher);
+        return engine;
+    }
+
+    public List<String> getApprovedAnnotators() {
+        return fileIdx.getApprovedAnnotators();
+    }
+
+    public int getDocumentCount() {
+        return fileIdx.getDocumentCount();
+    }
+
+    public String calcAgreementToString(
+            Map<String, MappedSet<String, String>> globalMetricToTargetsMap,
+            Map<String, MappedSet<String, String>> localMetricToTargetsMap,
+            boolean allowMultiTagging)
+            throws MaeException, SAXException, IOException {
+        return calcAgreementToString(globalMetricToTargetsMap, localMetricToTargetsMap, allowMultiTagging,
+                new AgreementEngine.Listener() {});
+    }
+
+    /**
+     * Computes cross-tag and tag-level agreements in one go, walking the
+     * dataset only once for all metrics.
+     * @param listener notified of per-document progress and each agreement as soon as it's computed
+     */
+    public String calcAgreementToString(
+            Map<String, MappedSet<String, String>> globalMetricToTargetsMap,
+            Map<String, MappedSet<String, String>> localMetricToTargetsMap,
+            boolean allowMultiTagging,
+            AgreementEngine.Listener listener)
+            throws MaeException, SAXException, IOException {
+        AgreementEngine.Results agreements = newEngine().calculateAgreements(globalMetricToTargetsMap, localMetricToTargetsMap, allowMultiTagging, listener);
         StringBuilder result = new StringBuilder();
-        for (String metricType : metricToTargetsMap.keySet()) {
-            MappedSet<String, String> targetTagsAndAtts = metricToTargetsMap.get(metricType);
+        for (String metricType : globalMetricToTargetsMap.keySet()) {
+            MappedSet<String, String> targetTagsAndAtts = globalMetricToTargetsMap.get(metricType);
             if (targetTagsAndAtts.size() == 0) {
                 continue;
             }
-            String agrTitle = String.format("<%s> %s", MaeAgreementStrings.SCOPE_LOCAL_STRING, metricType);
-            AbstractMaeAgreementCalc calc = null;
-            switch (metricType) {
-                case MaeAgreementStrings.ALPHAU_CALC_STRING:
-                    calc = new LocalAlphaUCalc(fileIdx, parseCache, documentLength);
-                    break;
-                case MaeAgreementStrings.ALPHA_CALC_STRING:
-                    break;
-                case MaeAgreementStrings.MULTIKAPPA_CALC_STRING:
-                    calc = new LocalMultiKappaCalc(fileIdx, parseCache);
-                    break;
-                case MaeAgreementStrings.MULTIPI_CALC_STRING:
-                    calc = new LocalMultiPiCalc(fileIdx, parseCache);
-                    break;
-            }
-            if (calc == null) {
-                result.append("metric not defined: ").append(metricType);
-            } else {
-                result.append(agreementsToString(agrTitle,
-                        calc.calculateAgreement(targetTagsAndAtts, allowMultiTagging)));
+            String agrTitle = String.format("<%s> %s  %s", MaeAgreementStrings.SCOPE_CROSSTAG_STRING, metricType, targetTagsAndAtts.keyList());
+            appendAgreements(result, metricType, agrTitle, agreements.getGlobalAgreements(metricType));
+        }
+        for (String metricType : localMetricToTargetsMap.keySet()) {
+            MappedSet<String, String> targetTagsAndAtts = localMetricToTargetsMap.get(metricType);
+            if (targetTagsAndAtts.size() == 0) {
+                continue;
             }
+            String agrTitle = String.format("<%s> %s", MaeAgreementStrings.SCOPE_LOCAL_STRING, metricType);
+            appendAgreements(result, metricType, agrTitle, agreements.getLocalAgreements(metricType));
         }
         return result.toString();
     }
+
+    private void appendAgreements(StringBuilder result, String metricType, String agrTitle, Map<String, Double> agreements) {
+        if (agreements == null) {
+            result.append("metric not defined: ").append(metricType);
+        } else {
+            result.append(agreementsToString(agrTitle, agreements));
+        }
+    }
 }
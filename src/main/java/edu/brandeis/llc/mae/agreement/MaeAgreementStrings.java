@@ -32,6 +32,7 @@ import java.util.ArrayList;
 public class MaeAgreementStrings {
 
     public final static String SPAN_ATT = "-";
+    public final static String ARGS_ATT = "-args";
     public final static String UNMARKED_CAT = "#UNMARKED#";
     public final static String TAG_ATT_DELIM = "::";
     public final static String GUI_ATT_SELECT_GUIDE = "Choose a tag using dropdown and then select attributes.\nUse ctrl/cmd or shift keys to select items.";
@@ -28,16 +28,12 @@ import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
 import edu.brandeis.llc.mae.agreement.io.XMLParseCache;
 import edu.brandeis.llc.mae.database.MaeDBException;
 import edu.brandeis.llc.mae.io.MaeXMLParser;
-import edu.brandeis.llc.mae.io.ParsedAtt;
-import edu.brandeis.llc.mae.io.ParsedTag;
 import edu.brandeis.llc.mae.util.MappedSet;
-import edu.brandeis.llc.mae.util.SpanHandler;
 import org.dkpro.statistics.agreement.unitizing.UnitizingAnnotationStudy;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
 import java.util.Map;
-import java.util.stream.IntStream;
 
 /**
  * Created by krim on 4/23/2016.
@@ -47,51 +43,22 @@ public abstract class AbstractUnitizationAgreementCalc extends AbstractMaeAgreem
 
     int totalDocumentsLength;
     int[] documentLength;
+    int[] documentOffset;
 
     public AbstractUnitizationAgreementCalc(AbstractAnnotationIndexer fileIdx, XMLParseCache parseCache, int[] documentLength) {
         super(fileIdx, parseCache);
         this.documentLength = documentLength;
-        this.totalDocumentsLength = IntStream.of(documentLength).reduce( 0,(a, b) -> a + b);
+        this.documentOffset = AgreementEngine.textOffsets(documentLength);
+        this.totalDocumentsLength = documentOffset[documentLength.length];
 
     }
 
     void addTagAsUnits(String tagTypeName, MaeXMLParser[] annotations, int textOffset, UnitizingAnnotationStudy study) {
-
-        int annotator = 0;
-        for (MaeXMLParser parse : annotations) {
-            if (parse == null) continue;
-            for (ParsedTag tag : parse.getParsedTags()) {
-                if (tag.getTagTypeName().equals(tagTypeName) && tag.getSpans().length > 0) {
-                    for (int[] pair : SpanHandler.convertArrayToPairs(tag.getSpans())) {
-                        study.addUnit(pair[0] + textOffset, pair[1] - pair[0], annotator, tagTypeName);
-                    }
-                }
-            }
-            annotator++;
-        }
-
+        UnitizingStudyBuilder.addTagAsUnits(tagTypeName, annotations, textOffset, study);
     }
 
     void addAttAsUnits(String tagTypeName, String attTypeName, MaeXMLParser[] annotations, int textOffset, UnitizingAnnotationStudy study) {
-
-        int annotator = 0;
-        for (MaeXMLParser parse : annotations) {
-            if (parse != null) {
-                for (ParsedTag tag : parse.getParsedTags()) {
-                    if (tag.getTagTypeName().equalsIgnoreCase(tagTypeName) && tag.getSpans().length > 0) {
-                        for (ParsedAtt att : parse.getParsedAtts()) {
-                            if (att.getTagTypeName().equalsIgnoreCase(tag.getTagTypeName()) &&
-                                    att.getAttTypeName().equalsIgnoreCase(attTypeName)) {
-                                for (int[] pair : SpanHandler.convertArrayToPairs(tag.getSpans())) {
-                                    study.addUnit(pair[0] + textOffset, pair[1] - pair[0], annotator, att.getAttValue());
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            annotator++;
-        }
+        UnitizingStudyBuilder.addAttAsUnits(tagTypeName, attTypeName, annotations, textOffset, study);
     }
 
 
@@ -0,0 +1,913 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.agreement.MaeAgreementStrings;
+import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
+import edu.brandeis.llc.mae.agreement.io.XMLParseCache;
+import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import edu.brandeis.llc.mae.util.MappedSet;
+import org.dkpro.statistics.agreement.unitizing.KrippendorffAlphaUnitizingAgreement;
+import org.dkpro.statistics.agreement.unitizing.UnitizingAnnotationStudy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.ARGS_ATT;
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.SPAN_ATT;
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.TAG_ATT_DELIM;
+
+/**
+ * Computes all requested agreement metrics with a single walk over the
+ * corpus. Each distinct study (a cross-tag coding study per set of tag types,
+ * coding studies per attribute of a tag type, and their unitizing
+ * counterparts) is built once, and then every metric asking for it is
+ * evaluated against the shared study. Link tags are measured only on tag
+ * level with coding metrics, with links matched by their arguments.
+ * <p>
+ * Studies are fed and measures are evaluated concurrently on a worker pool.
+ * A {@link Listener} is told about each processed document and each computed
+ * agreement as soon as it's available. Interrupting the calling thread
+ * cancels the computation with a {@link CancellationException}.
+ */
+public class AgreementEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(AgreementEngine.class.getName());
+
+    private final AbstractAnnotationIndexer fileIdx;
+    private final XMLParseCache parseCache;
+    private final int[] documentLength;
+    private final int[] documentOffset;
+    private final int totalDocumentsLength;
+    private final ExecutorService workers;
+    private ContributionCache contributionCache;
+    private BootstrapEstimator bootstrap;
+    private boolean documentBreakdown;
+    private SpanMatcher spanMatcher = SpanMatcher.EXACT;
+
+    public AgreementEngine(AbstractAnnotationIndexer fileIdx, XMLParseCache parseCache, int[] documentLength) {
+        this(fileIdx, parseCache, documentLength, textOffsets(documentLength));
+    }
+
+    /**
+     * @param documentOffset where each document text starts on the continuum
+     *                       all documents are laid on, as given by {@link #textOffsets(int[])}
+     */
+    public AgreementEngine(AbstractAnnotationIndexer fileIdx, XMLParseCache parseCache, int[] documentLength,
+                           int[] documentOffset) {
+        this(fileIdx, parseCache, documentLength, documentOffset, ForkJoinPool.commonPool());
+    }
+
+    public AgreementEngine(AbstractAnnotationIndexer fileIdx, XMLParseCache parseCache, int[] documentLength,
+                           int[] documentOffset, ExecutorService workers) {
+        this.workers = workers;
+        this.fileIdx = fileIdx;
+        this.parseCache = parseCache;
+        this.documentLength = documentLength;
+        this.documentOffset = documentOffset;
+        this.totalDocumentsLength = documentOffset[documentLength.length];
+    }
+
+    /**
+     * Lays documents one after another on a single continuum.
+     * @return offsets where document texts start, followed by the total length
+     */
+    public static int[] textOffsets(int[] documentLength) {
+        int[] offsets = new int[documentLength.length + 1];
+        for (int i = 0; i < documentLength.length; i++) {
+            offsets[i + 1] = offsets[i] + documentLength[i];
+        }
+        return offsets;
+    }
+
+    /**
+     * Makes the engine reuse per-document contributions to studies from
+     * earlier runs, and store new ones, so that only changed documents are
+     * parsed. Parsing of those documents is scheduled by the engine, hence
+     * the parse cache doesn't need to be warmed up beforehand.
+     */
+    public void setContributionCache(ContributionCache contributionCache) {
+        this.contributionCache = contributionCache;
+    }
+
+    /**
+     * Makes the engine report a bootstrapped confidence interval along with
+     * each agreement, or stop doing so with null. Pairwise agreements are
+     * never bootstrapped.
+     */
+    public void setBootstrap(BootstrapEstimator bootstrap) {
+        this.bootstrap = bootstrap;
+    }
+
+    /**
+     * Makes the engine also measure each document on its own, as it walks the
+     * corpus for the whole-corpus studies, so that problem documents can be
+     * found without parsing anything twice. Pairwise agreements are never
+     * broken down.
+     */
+    public void setDocumentBreakdown(boolean documentBreakdown) {
+        this.documentBreakdown = documentBreakdown;
+    }
+
+    /**
+     * Sets how spans of annotators are matched up into items of labeling
+     * studies, by exact identity unless set otherwise. Unitizing studies
+     * compare boundaries by themselves, and links are always matched by
+     * the exact spans of their arguments.
+     */
+    public void setSpanMatcher(SpanMatcher spanMatcher) {
+        this.spanMatcher = spanMatcher;
+    }
+
+    public static boolean isCodingMetric(String metricType) {
+        switch (metricType) {
+            case MaeAgreementStrings.MULTIPI_CALC_STRING:
+            case MaeAgreementStrings.MULTIKAPPA_CALC_STRING:
+            case MaeAgreementStrings.ALPHA_CALC_STRING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static boolean isUnitizingMetric(String metricType) {
+        return MaeAgreementStrings.ALPHAU_CALC_STRING.equals(metricType);
+    }
+
+    public Results calculateAgreements(
+            Map<String, MappedSet<String, String>> globalMetricToTargets,
+            Map<String, MappedSet<String, String>> localMetricToTargets,
+            boolean allowMultiTagging)
+            throws IOException, SAXException, MaeException {
+        return calculateAgreements(globalMetricToTargets, localMetricToTargets, allowMultiTagging, new Listener() {});
+    }
+
+    /**
+     * @param globalMetricToTargets maps metric names to tag types (and attributes) to compute on cross-tag level
+     * @param localMetricToTargets maps metric names to tag types and their attributes to compute on tag level
+     * @param allowMultiTagging whether an annotator can put more than one tag on the same span
+     * @param listener notified of progress, possibly from worker threads
+     * @return agreements keyed by metric names, with per-document agreements
+     * sorted worst first if the engine was asked for them
+     * @throws CancellationException when the calling thread is interrupted
+     */
+    public Results calculateAgreements(
+            Map<String, MappedSet<String, String>> globalMetricToTargets,
+            Map<String, MappedSet<String, String>> localMetricToTargets,
+            boolean allowMultiTagging,
+            Listener listener)
+            throws IOException, SAXException, MaeException {
+
+        StudyPlan plan = new StudyPlan(fileIdx.getApprovedAnnotators(), globalMetricToTargets, localMetricToTargets,
+                allowMultiTagging);
+        Results results = new Results();
+        DocumentVisitor breakdown = (docIdx, document, entry) -> runAll(evaluate(
+                plan.forDocument(entry, documentLength[docIdx]), globalMetricToTargets, localMetricToTargets,
+                true, null, (crossTag, metricType, key, agreement) ->
+                        results.putDocument(crossTag, metricType, key, document, agreement)));
+        walkCorpus(plan, listener, documentBreakdown ? breakdown : null);
+        results.sortDocumentAgreements();
+
+        runAll(evaluate(plan, globalMetricToTargets, localMetricToTargets, false, bootstrap, new AgreementSink() {
+            @Override
+            public void declare(boolean crossTag, String metricType) {
+                results.declare(crossTag, metricType);
+            }
+
+            @Override
+            public void accept(boolean crossTag, String metricType, String key, double agreement) {
+                results.put(crossTag, metricType, key, agreement);
+                listener.agreementCalculated(crossTag, metricType, key, agreement);
+            }
+
+            @Override
+            public void acceptInterval(boolean crossTag, String metricType, String key,
+                                       BootstrapEstimator.Interval interval) {
+                results.putInterval(crossTag, metricType, key, interval);
+            }
+        }));
+        return results;
+    }
+
+    public PairwiseResults calculatePairwiseAgreements(
+            Map<String, MappedSet<String, String>> globalMetricToTargets,
+            Map<String, MappedSet<String, String>> localMetricToTargets,
+            boolean allowMultiTagging)
+            throws IOException, SAXException, MaeException {
+        return calculatePairwiseAgreements(globalMetricToTargets, localMetricToTargets, allowMultiTagging,
+                new Listener() {});
+    }
+
+    /**
+     * Computes agreements of every pair of approved annotators, as if only
+     * the two were approved. The corpus is walked once; what each document
+     * contributes to studies is kept and projected onto each pair, and pairs
+     * are built and measured concurrently.
+     * @param listener notified of per-document progress, and of each pairwise
+     *                 agreement with the pair appended to its key
+     * @return matrices of agreements keyed by metric names and targets
+     * @throws CancellationException when the calling thread is interrupted
+     */
+    public PairwiseResults calculatePairwiseAgreements(
+            Map<String, MappedSet<String, String>> globalMetricToTargets,
+            Map<String, MappedSet<String, String>> localMetricToTargets,
+            boolean allowMultiTagging,
+            Listener listener)
+            throws IOException, SAXException, MaeException {
+
+        List<String> annotators = fileIdx.getApprovedAnnotators();
+        StudyPlan plan = new StudyPlan(annotators, globalMetricToTargets, localMetricToTargets, allowMultiTagging);
+        List<ContributionCache.Entry> contributions = new ArrayList<>();
+        walkCorpus(plan, listener, (docIdx, document, entry) -> contributions.add(entry));
+
+        int numAnnotators = annotators.size();
+        StudyPlan[][] pairPlans = new StudyPlan[numAnnotators][numAnnotators];
+        List<Callable<Void>> builds = new ArrayList<>();
+        for (int i = 0; i < numAnnotators; i++) {
+            for (int j = i + 1; j < numAnnotators; j++) {
+                int[] pair = {i, j};
+                builds.add(() -> {
+                    checkCancelled();
+                    pairPlans[pair[0]][pair[1]] = plan.project(pair, contributions);
+                    return null;
+                });
+            }
+        }
+        runAll(builds);
+
+        PairwiseResults results = new PairwiseResults(annotators);
+        List<Callable<Void>> evaluations = new ArrayList<>();
+        for (int i = 0; i < numAnnotators; i++) {
+            for (int j = i + 1; j < numAnnotators; j++) {
+                int first = i;
+                int second = j;
+                evaluations.addAll(evaluate(pairPlans[i][j], globalMetricToTargets, localMetricToTargets, true, null,
+                        (crossTag, metricType, key, agreement) -> {
+                            results.put(crossTag, metricType, key, first, second, agreement);
+                            listener.agreementCalculated(crossTag, metricType, String.format("%s (%s, %s)",
+                                    key, annotators.get(first), annotators.get(second)), agreement);
+                        }));
+            }
+        }
+        runAll(evaluations);
+        return results;
+    }
+
+    /**
+     * Walks the corpus once, feeding all planned studies.
+     * @param visitor given what each document contributed, in the order of the
+     *                index, if not null
+     */
+    private void walkCorpus(StudyPlan plan, Listener listener, DocumentVisitor visitor)
+            throws IOException, SAXException, MaeException {
+        List<CodingStudyBuilder> codingBuilders = plan.getCodingBuilders();
+        List<UnitizingStudyBuilder> unitizingBuilders = plan.getUnitizingBuilders();
+        List<String> codingKeys = new ArrayList<>();
+        codingBuilders.forEach(builder -> codingKeys.add(builder.getCacheKey()));
+        List<String> unitizingKeys = new ArrayList<>();
+        unitizingBuilders.forEach(builder -> unitizingKeys.add(builder.getCacheKey()));
+        List<String> documents = fileIdx.getDocumentNames();
+        String[] documentKeys = new String[documents.size()];
+        ContributionCache.Entry[] cached = new ContributionCache.Entry[documents.size()];
+        if (contributionCache != null) {
+            lookUpContributions(documents, codingKeys, unitizingKeys, documentKeys, cached);
+        }
+        List<Callable<Void>> feeds = new ArrayList<>();
+        // contributions are only kept when they are cached or looked at again after the walk
+        boolean keepContributions = contributionCache != null || visitor != null;
+        for (int i = 0; i < documents.size(); i++) {
+            checkCancelled();
+            String document = documents.get(i);
+            ContributionCache.Entry entry = cached[i] == null ? new ContributionCache.Entry() : cached[i];
+            // documents fully served by the cache are not parsed at all
+            boolean complete = cached[i] != null && cached[i].containsAll(codingKeys, unitizingKeys);
+            MaeXMLParser[] parses = complete ? null : parseCache.getParses(document);
+            int offset = documentOffset[i];
+            feeds.clear();
+            for (CodingStudyBuilder builder : codingBuilders) {
+                feeds.add(() -> {
+                    Map<String, List<String[]>> contribution = entry.getCoding(builder.getCacheKey());
+                    if (contribution == null) {
+                        contribution = builder.contribute(document, parses);
+                        entry.putCoding(builder.getCacheKey(), contribution);
+                    }
+                    builder.merge(contribution);
+                    return null;
+                });
+            }
+            for (UnitizingStudyBuilder builder : unitizingBuilders) {
+                feeds.add(() -> {
+                    if (!keepContributions) {
+                        builder.addDocument(parses, offset);
+                        return null;
+                    }
+                    Map<String, List<UnitizingStudyBuilder.Unit>> contribution = entry.getUnitizing(builder.getCacheKey());
+                    if (contribution == null) {
+                        contribution = builder.contribute(parses);
+                        entry.putUnitizing(builder.getCacheKey(), contribution);
+                    }
+                    builder.merge(contribution, offset);
+                    return null;
+                });
+            }
+            runAll(feeds);
+            // documents with parse problems are parsed again next time, so that their warnings are reported
+            if (contributionCache != null && !complete && !parseCache.hasParseWarnings(document)) {
+                try {
+                    entry.setDocumentLength(documentLength[i]);
+                    contributionCache.write(documentKeys[i], entry);
+                } catch (IOException e) {
+                    logger.warn(String.format("failed to cache contributions of %s: %s", document, e.getMessage()));
+                }
+            }
+            if (visitor != null) {
+                visitor.visit(i, document, entry);
+            }
+            listener.documentProcessed(document, i + 1, documents.size());
+        }
+    }
+
+    /**
+     * Creates tasks evaluating each (metric, tag) against studies of a plan.
+     * @param lenient whether to report studies with too few categories, or
+     *                otherwise undefined agreements, as NaN instead of failing
+     * @param bootstrap estimates intervals of agreements, if not null
+     */
+    private List<Callable<Void>> evaluate(StudyPlan plan,
+                                          Map<String, MappedSet<String, String>> globalMetricToTargets,
+                                          Map<String, MappedSet<String, String>> localMetricToTargets,
+                                          boolean lenient, BootstrapEstimator bootstrap, AgreementSink sink)
+            throws MaeException {
+        List<Callable<Void>> evaluations = new ArrayList<>();
+        for (String metricType : globalMetricToTargets.keySet()) {
+            Set<String> targetTags = new TreeSet<>(globalMetricToTargets.get(metricType).keySet());
+            if (targetTags.size() == 0 || !(isCodingMetric(metricType) || isUnitizingMetric(metricType))) {
+                continue;
+            }
+            sink.declare(true, metricType);
+            String key = globalMetricName(metricType);
+            if (isCodingMetric(metricType)) {
+                CodingItemMatrix study = plan.globalCoding.get(targetTags).getStudy();
+                evaluations.add(() -> {
+                    sink.accept(true, metricType, key, codingAgreement(study, metricType, lenient));
+                    if (bootstrap != null) {
+                        sink.acceptInterval(true, metricType, key, bootstrap.estimate(metricType, study));
+                    }
+                    return null;
+                });
+            } else {
+                UnitizingAnnotationStudy study = plan.globalUnitizing.get(targetTags).getStudy();
+                evaluations.add(() -> {
+                    sink.accept(true, metricType, key, new KrippendorffAlphaUnitizingAgreement(study).calculateAgreement());
+                    if (bootstrap != null) {
+                        sink.acceptInterval(true, metricType, key, bootstrap.estimate(study, documentLength));
+                    }
+                    return null;
+                });
+            }
+        }
+        for (String metricType : localMetricToTargets.keySet()) {
+            MappedSet<String, String> targetTagsAndAtts = localMetricToTargets.get(metricType);
+            if (targetTagsAndAtts.size() == 0 || !(isCodingMetric(metricType) || isUnitizingMetric(metricType))) {
+                continue;
+            }
+            sink.declare(false, metricType);
+            for (String tagType : targetTagsAndAtts.keyList()) {
+                List<String> attTypes = withSpanAtt(targetTagsAndAtts.getAsList(tagType));
+                if (isCodingMetric(metricType)) {
+                    Map<String, CodingItemMatrix> studies = new LinkedHashMap<>();
+                    CodingStudyBuilder.Local builder = plan.localCoding.get(tagType);
+                    for (String attType : attTypes) {
+                        studies.put(tagType + TAG_ATT_DELIM + attType, builder.getStudy(attType));
+                    }
+                    try {
+                        CodingStudyBuilder.checkCategoryCounts(studies);
+                    } catch (MaeException e) {
+                        if (!lenient) {
+                            throw e;
+                        }
+                        studies.keySet().forEach(attFullName -> sink.accept(false, metricType, attFullName, Double.NaN));
+                        continue;
+                    }
+                    evaluations.add(() -> {
+                        for (String attFullName : studies.keySet()) {
+                            CodingItemMatrix study = studies.get(attFullName);
+                            sink.accept(false, metricType, attFullName, codingAgreement(study, metricType, lenient));
+                            if (bootstrap != null) {
+                                sink.acceptInterval(false, metricType, attFullName, bootstrap.estimate(metricType, study));
+                            }
+                        }
+                        return null;
+                    });
+                } else {
+                    UnitizingStudyBuilder.Local builder = plan.localUnitizing.get(tagType);
+                    evaluations.add(() -> {
+                        for (String attType : attTypes) {
+                            UnitizingAnnotationStudy study = builder.getStudy(attType);
+                            String attFullName = tagType + TAG_ATT_DELIM + attType;
+                            sink.accept(false, metricType, attFullName,
+                                    new KrippendorffAlphaUnitizingAgreement(study).calculateAgreement());
+                            if (bootstrap != null) {
+                                sink.acceptInterval(false, metricType, attFullName,
+                                        bootstrap.estimate(study, documentLength));
+                            }
+                        }
+                        return null;
+                    });
+                }
+            }
+        }
+        return evaluations;
+    }
+
+    /**
+     * Hashes annotation files and reads cached contributions of all documents
+     * concurrently, then schedules parsing of documents missing any of them.
+     */
+    private void lookUpContributions(List<String> documents, List<String> codingKeys, List<String> unitizingKeys,
+                                     String[] documentKeys, ContributionCache.Entry[] cached)
+            throws IOException, SAXException, MaeException {
+        List<Callable<Void>> lookups = new ArrayList<>(documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            int docIdx = i;
+            lookups.add(() -> {
+                documentKeys[docIdx] = contributionCache.getDocumentKey(
+                        fileIdx.getAnnotationsOfDocument(documents.get(docIdx)));
+                cached[docIdx] = contributionCache.read(documentKeys[docIdx]);
+                return null;
+            });
+        }
+        runAll(lookups);
+        List<String> toParse = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            boolean hit = cached[i] != null && cached[i].containsAll(codingKeys, unitizingKeys);
+            contributionCache.recordLookup(hit);
+            if (!hit) {
+                toParse.add(documents.get(i));
+            }
+        }
+        parseCache.prewarm(toParse);
+    }
+
+    private static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("agreement computation is cancelled");
+        }
+    }
+
+    /**
+     * Runs tasks on the worker pool and waits for all of them. If any task
+     * fails or the calling thread is interrupted, the remaining ones are
+     * cancelled and the failure is rethrown.
+     */
+    private void runAll(List<Callable<Void>> tasks) throws IOException, SAXException, MaeException {
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+                return;
+            } catch (IOException | SAXException | MaeException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new MaeException(e.getMessage(), e);
+            }
+        }
+        List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(workers.submit(task));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("agreement computation is cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            } else if (cause instanceof MaeException) {
+                throw (MaeException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new MaeException(cause.getMessage(), cause);
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static double codingAgreement(CodingItemMatrix study, String metricType, boolean lenient) {
+        return lenient ? study.calculateAgreement(metricType, null) : study.calculateAgreement(metricType);
+    }
+
+    private static List<String> withSpanAtt(List<String> attTypes) {
+        List<String> withSpan = new ArrayList<>(attTypes);
+        withSpan.remove(SPAN_ATT);
+        withSpan.add(0, SPAN_ATT);
+        return withSpan;
+    }
+
+    static String globalMetricName(String metricType) {
+        switch (metricType) {
+            case MaeAgreementStrings.MULTIPI_CALC_STRING:
+                return "cross-tag_multi_pi";
+            case MaeAgreementStrings.MULTIKAPPA_CALC_STRING:
+                return "cross-tag_multi_kappa";
+            case MaeAgreementStrings.ALPHA_CALC_STRING:
+                return "cross-tag_alpha";
+            case MaeAgreementStrings.ALPHAU_CALC_STRING:
+                return "cross-tag_alpha_u";
+            default:
+                return metricType;
+        }
+    }
+
+    /**
+     * Receives progress of an engine run. Methods can be called from worker
+     * threads.
+     */
+    public interface Listener {
+
+        /**
+         * Called while a dataset is loaded, before any document is processed.
+         */
+        default void documentParsed(String document, int parsed, int total) {
+        }
+
+        default void documentProcessed(String document, int processed, int total) {
+        }
+
+        default void agreementCalculated(boolean crossTag, String metricType, String key, double agreement) {
+        }
+    }
+
+    /**
+     * Receives agreements as they are computed, possibly from worker threads.
+     */
+    private interface AgreementSink {
+
+        /**
+         * Called on the calling thread before any agreement of a metric is computed.
+         */
+        default void declare(boolean crossTag, String metricType) {
+        }
+
+        void accept(boolean crossTag, String metricType, String key, double agreement);
+
+        default void acceptInterval(boolean crossTag, String metricType, String key,
+                                    BootstrapEstimator.Interval interval) {
+        }
+    }
+
+    /**
+     * Receives what each document contributed to studies, on the calling
+     * thread, as soon as the document is walked.
+     */
+    private interface DocumentVisitor {
+
+        void visit(int docIdx, String document, ContributionCache.Entry entry)
+                throws IOException, SAXException, MaeException;
+    }
+
+    /**
+     * Distinct studies needed by requested metrics, with their builders.
+     * Tag-level studies of a tag type are built once over the union of
+     * attributes requested by any metric.
+     */
+    private class StudyPlan {
+        private final List<String> annotators;
+        private final Map<Set<String>, CodingStudyBuilder.Global> globalCoding = new LinkedHashMap<>();
+        private final Map<Set<String>, UnitizingStudyBuilder.Global> globalUnitizing = new LinkedHashMap<>();
+        private final Map<String, CodingStudyBuilder.Local> localCoding = new LinkedHashMap<>();
+        private final Map<String, UnitizingStudyBuilder.Local> localUnitizing = new LinkedHashMap<>();
+
+        private StudyPlan(List<String> annotators) {
+            this.annotators = annotators;
+        }
+
+        StudyPlan(List<String> annotators,
+                  Map<String, MappedSet<String, String>> globalMetricToTargets,
+                  Map<String, MappedSet<String, String>> localMetricToTargets,
+                  boolean allowMultiTagging) throws MaeException {
+            this(annotators);
+            int numAnnotators = annotators.size();
+            TaskSchema schema = parseCache.getTaskSchema();
+            for (String metricType : globalMetricToTargets.keySet()) {
+                Set<String> targetTags = new TreeSet<>(globalMetricToTargets.get(metricType).keySet());
+                if (targetTags.size() == 0) {
+                    continue;
+                }
+                for (String tagType : targetTags) {
+                    checkExtentTag(schema, tagType, metricType);
+                }
+                if (isCodingMetric(metricType)) {
+                    globalCoding.computeIfAbsent(targetTags,
+                            tags -> new CodingStudyBuilder.Global(annotators, tags, allowMultiTagging, spanMatcher));
+                } else if (isUnitizingMetric(metricType)) {
+                    globalUnitizing.computeIfAbsent(targetTags,
+                            tags -> new UnitizingStudyBuilder.Global(numAnnotators, totalDocumentsLength, tags));
+                }
+            }
+            MappedSet<String, String> localCodingAtts = new MappedSet<>();
+            MappedSet<String, String> localUnitizingAtts = new MappedSet<>();
+            for (String metricType : localMetricToTargets.keySet()) {
+                MappedSet<String, String> targetTagsAndAtts = localMetricToTargets.get(metricType);
+                MappedSet<String, String> planned = isCodingMetric(metricType) ? localCodingAtts
+                        : isUnitizingMetric(metricType) ? localUnitizingAtts : null;
+                if (planned == null) {
+                    continue;
+                }
+                for (String tagType : targetTagsAndAtts.keyList()) {
+                    if (isUnitizingMetric(metricType)) {
+                        checkExtentTag(schema, tagType, metricType);
+                    } else if (!schema.isLinkTagType(tagType) && targetTagsAndAtts.get(tagType).contains(ARGS_ATT)) {
+                        throw new MaeException(String.format(
+                                "Error: \"%s\" is not a link tag, hence has no argument roles to compare", tagType));
+                    }
+                    planned.putCollection(tagType, targetTagsAndAtts.getAsList(tagType));
+                }
+            }
+            for (String tagType : localCodingAtts.keyList()) {
+                localCoding.put(tagType, new CodingStudyBuilder.Local(
+                        annotators, tagType, localCodingAtts.getAsList(tagType), allowMultiTagging,
+                        schema.isLinkTagType(tagType), spanMatcher));
+            }
+            for (String tagType : localUnitizingAtts.keyList()) {
+                localUnitizing.put(tagType, new UnitizingStudyBuilder.Local(
+                        numAnnotators, totalDocumentsLength, tagType, localUnitizingAtts.getAsList(tagType)));
+            }
+        }
+
+        private void checkExtentTag(TaskSchema schema, String tagType, String metricType) throws MaeException {
+            if (schema.isLinkTagType(tagType)) {
+                throw new MaeException(String.format(
+                        "Error: \"%s\" is a link tag, which can only be measured on tag level with a labeling metric, not with %s",
+                        tagType, metricType));
+            }
+        }
+
+        List<CodingStudyBuilder> getCodingBuilders() {
+            List<CodingStudyBuilder> builders = new ArrayList<>(globalCoding.values());
+            builders.addAll(localCoding.values());
+            return builders;
+        }
+
+        List<UnitizingStudyBuilder> getUnitizingBuilders() {
+            List<UnitizingStudyBuilder> builders = new ArrayList<>(globalUnitizing.values());
+            builders.addAll(localUnitizing.values());
+            return builders;
+        }
+
+        /**
+         * Builds the same studies for a subset of annotators, out of
+         * contributions of all documents kept from a walk of this plan.
+         */
+        StudyPlan project(int[] annotatorIdx, List<ContributionCache.Entry> contributions) {
+            List<String> selected = new ArrayList<>(annotatorIdx.length);
+            for (int idx : annotatorIdx) {
+                selected.add(annotators.get(idx));
+            }
+            StudyPlan projected = new StudyPlan(selected);
+            globalCoding.forEach((tags, builder) -> projected.globalCoding.put(tags, builder.forAnnotators(selected)));
+            localCoding.forEach((tagType, builder) -> projected.localCoding.put(tagType, builder.forAnnotators(selected)));
+            globalUnitizing.forEach((tags, builder) ->
+                    projected.globalUnitizing.put(tags, builder.forAnnotators(selected.size())));
+            localUnitizing.forEach((tagType, builder) ->
+                    projected.localUnitizing.put(tagType, builder.forAnnotators(selected.size())));
+            List<CodingStudyBuilder> codingBuilders = getCodingBuilders();
+            List<CodingStudyBuilder> projectedCoding = projected.getCodingBuilders();
+            List<UnitizingStudyBuilder> unitizingBuilders = getUnitizingBuilders();
+            List<UnitizingStudyBuilder> projectedUnitizing = projected.getUnitizingBuilders();
+            for (int i = 0; i < contributions.size(); i++) {
+                ContributionCache.Entry entry = contributions.get(i);
+                for (int j = 0; j < codingBuilders.size(); j++) {
+                    CodingStudyBuilder builder = codingBuilders.get(j);
+                    projectedCoding.get(j).merge(builder.project(entry.getCoding(builder.getCacheKey()), annotatorIdx));
+                }
+                for (int j = 0; j < unitizingBuilders.size(); j++) {
+                    UnitizingStudyBuilder builder = unitizingBuilders.get(j);
+                    projectedUnitizing.get(j).merge(UnitizingStudyBuilder.project(
+                            entry.getUnitizing(builder.getCacheKey()), annotatorIdx), documentOffset[i]);
+                }
+            }
+            return projected;
+        }
+
+        /**
+         * Builds the same studies over a single document, out of what it
+         * contributed during a walk of this plan.
+         */
+        StudyPlan forDocument(ContributionCache.Entry entry, int documentLength) {
+            StudyPlan single = new StudyPlan(annotators);
+            globalCoding.forEach((tags, builder) -> single.globalCoding.put(tags, builder.forAnnotators(annotators)));
+            localCoding.forEach((tagType, builder) -> single.localCoding.put(tagType, builder.forAnnotators(annotators)));
+            globalUnitizing.forEach((tags, builder) ->
+                    single.globalUnitizing.put(tags, builder.forDocument(documentLength)));
+            localUnitizing.forEach((tagType, builder) ->
+                    single.localUnitizing.put(tagType, builder.forDocument(documentLength)));
+            for (CodingStudyBuilder builder : single.getCodingBuilders()) {
+                builder.merge(entry.getCoding(builder.getCacheKey()));
+            }
+            for (UnitizingStudyBuilder builder : single.getUnitizingBuilders()) {
+                builder.merge(entry.getUnitizing(builder.getCacheKey()), 0);
+            }
+            return single;
+        }
+    }
+
+    /**
+     * Agreements computed by an engine, keyed by metric names and then by
+     * tag (and attribute) names, with their bootstrapped intervals if the
+     * engine was asked for them, and the same agreements measured on each
+     * document if the engine was asked for a breakdown. Metrics the engine
+     * does not know about are absent.
+     */
+    public static class Results {
+        private final Map<String, Map<String, Double>> global = new LinkedHashMap<>();
+        private final Map<String, Map<String, Double>> local = new LinkedHashMap<>();
+        private final Map<String, Map<String, BootstrapEstimator.Interval>> globalIntervals = new LinkedHashMap<>();
+        private final Map<String, Map<String, BootstrapEstimator.Interval>> localIntervals = new LinkedHashMap<>();
+        private final Map<String, Map<String, List<DocumentAgreement>>> globalDocuments = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, List<DocumentAgreement>>> localDocuments = new ConcurrentHashMap<>();
+
+        public Map<String, Double> getGlobalAgreements(String metricType) {
+            return global.get(metricType);
+        }
+
+        public Map<String, Double> getLocalAgreements(String metricType) {
+            return local.get(metricType);
+        }
+
+        /**
+         * @return intervals keyed like agreements, empty if none was estimated
+         */
+        public Map<String, BootstrapEstimator.Interval> getGlobalIntervals(String metricType) {
+            return globalIntervals.get(metricType);
+        }
+
+        public Map<String, BootstrapEstimator.Interval> getLocalIntervals(String metricType) {
+            return localIntervals.get(metricType);
+        }
+
+        /**
+         * @return agreements of each document keyed like agreements, worst
+         * first with undefined ones last, or null if not broken down
+         */
+        public Map<String, List<DocumentAgreement>> getGlobalDocumentAgreements(String metricType) {
+            return globalDocuments.get(metricType);
+        }
+
+        public Map<String, List<DocumentAgreement>> getLocalDocumentAgreements(String metricType) {
+            return localDocuments.get(metricType);
+        }
+
+        /**
+         * @return metric types of agreements, in the order they were asked for
+         */
+        List<String> getMetricTypes(boolean crossTag) {
+            return new ArrayList<>((crossTag ? global : local).keySet());
+        }
+
+        void declare(boolean crossTag, String metricType) {
+            (crossTag ? global : local).put(metricType, new ConcurrentSkipListMap<>());
+            (crossTag ? globalIntervals : localIntervals).put(metricType, new ConcurrentSkipListMap<>());
+        }
+
+        void put(boolean crossTag, String metricType, String key, double agreement) {
+            (crossTag ? global : local).get(metricType).put(key, agreement);
+        }
+
+        void putInterval(boolean crossTag, String metricType, String key,
+                                 BootstrapEstimator.Interval interval) {
+            (crossTag ? globalIntervals : localIntervals).get(metricType).put(key, interval);
+        }
+
+        /**
+         * Called by a single task per key at a time, as documents are
+         * measured one after another.
+         */
+        void putDocument(boolean crossTag, String metricType, String key, String document, double agreement) {
+            (crossTag ? globalDocuments : localDocuments)
+                    .computeIfAbsent(metricType, m -> new ConcurrentSkipListMap<>())
+                    .computeIfAbsent(key, k -> new ArrayList<>())
+                    .add(new DocumentAgreement(document, agreement));
+        }
+
+        void sortDocumentAgreements() {
+            // NaN compares greater than any number, and the sort is stable,
+            // so ties and undefined agreements stay in the order of the index
+            Comparator<DocumentAgreement> worstFirst = Comparator.comparingDouble(DocumentAgreement::getAgreement);
+            for (Map<String, List<DocumentAgreement>> documents : globalDocuments.values()) {
+                documents.values().forEach(agreements -> agreements.sort(worstFirst));
+            }
+            for (Map<String, List<DocumentAgreement>> documents : localDocuments.values()) {
+                documents.values().forEach(agreements -> agreements.sort(worstFirst));
+            }
+        }
+    }
+
+    /**
+     * An agreement measured on a single document.
+     */
+    public static class DocumentAgreement {
+        private final String document;
+        private final double agreement;
+
+        DocumentAgreement(String document, double agreement) {
+            this.document = document;
+            this.agreement = agreement;
+        }
+
+        public String getDocument() {
+            return document;
+        }
+
+        /**
+         * @return agreement, or NaN if undefined on the document
+         */
+        public double getAgreement() {
+            return agreement;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.4f", document, agreement);
+        }
+    }
+
+    /**
+     * Agreements of each pair of annotators, as matrices indexed in the order
+     * of {@link #getAnnotators()}, keyed by metric names and then by tag (and
+     * attribute) names. Matrices are symmetric, and their diagonals as well as
+     * undefined agreements are NaN. Metrics the engine does not know about
+     * are absent.
+     */
+    public static class PairwiseResults {
+        private final List<String> annotators;
+        private final Map<String, Map<String, double[][]>> global = new ConcurrentSkipListMap<>();
+        private final Map<String, Map<String, double[][]>> local = new ConcurrentSkipListMap<>();
+
+        PairwiseResults(List<String> annotators) {
+            this.annotators = annotators;
+        }
+
+        public List<String> getAnnotators() {
+            return annotators;
+        }
+
+        public Map<String, double[][]> getGlobalAgreements(String metricType) {
+            return global.get(metricType);
+        }
+
+        public Map<String, double[][]> getLocalAgreements(String metricType) {
+            return local.get(metricType);
+        }
+
+        void put(boolean crossTag, String metricType, String key, int first, int second, double agreement) {
+            double[][] matrix = (crossTag ? global : local)
+                    .computeIfAbsent(metricType, m -> new ConcurrentSkipListMap<>())
+                    .computeIfAbsent(key, k -> {
+                        double[][] empty = new double[annotators.size()][annotators.size()];
+                        for (double[] row : empty) {
+                            Arrays.fill(row, Double.NaN);
+                        }
+                        return empty;
+                    });
+            matrix[first][second] = agreement;
+            matrix[second][first] = agreement;
+        }
+    }
+}
@@ -0,0 +1,648 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.stmt.SelectArg;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.DatabaseTable;
+import com.j256.ormlite.table.TableUtils;
+import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
+import edu.brandeis.llc.mae.database.MaeDBException;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps agreement runs in an SQLite file: what was measured (as described by
+ * {@link edu.brandeis.llc.mae.agreement.MaeAgreementMain}), by which annotators, over
+ * which version of each document (a content hash of its annotation files),
+ * and the agreements found. A run of the same configuration over unchanged
+ * files can then be answered from the store without parsing anything, and
+ * a run can be compared with the one before it, to see which agreements
+ * moved and which documents moved them.
+ */
+public class AgreementRunStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AgreementRunStore.class.getName());
+
+    static final String TAB_RUN = "agreement_run";
+    static final String TAB_RUN_COL_ID = "id";
+    static final String TAB_RUN_COL_CONFIGURATION = "configuration";
+    static final String TAB_RUN_COL_ANNOTATORS = "annotators";
+    static final String TAB_RUN_COL_CORPUS_KEY = "corpus_key";
+    static final String TAB_RUN_COL_GLOBAL_METRICS = "global_metrics";
+    static final String TAB_RUN_COL_LOCAL_METRICS = "local_metrics";
+    static final String TAB_RUN_COL_CREATED = "created";
+
+    static final String TAB_DOC = "agreement_run_document";
+    static final String TAB_DOC_COL_ID = "id";
+    static final String TAB_DOC_FCOL_RUN = "run_id";
+    static final String TAB_DOC_COL_DOCUMENT = "document";
+    static final String TAB_DOC_COL_DOCUMENT_KEY = "document_key";
+
+    static final String TAB_RES = "agreement_run_result";
+    static final String TAB_RES_COL_ID = "id";
+    static final String TAB_RES_FCOL_RUN = "run_id";
+    static final String TAB_RES_COL_CROSS_TAG = "cross_tag";
+    static final String TAB_RES_COL_METRIC = "metric";
+    static final String TAB_RES_COL_TARGET = "target";
+    static final String TAB_RES_COL_DOCUMENT = "document";
+    static final String TAB_RES_COL_VALUE = "value";
+    static final String TAB_RES_COL_LOW = "low";
+    static final String TAB_RES_COL_HIGH = "high";
+    static final String TAB_RES_COL_RESAMPLES = "resamples";
+
+    public static final String DOCUMENT_ADDED = "added";
+    public static final String DOCUMENT_REMOVED = "removed";
+    public static final String DOCUMENT_MODIFIED = "modified";
+
+    private static final String JDBC_DRIVER = "jdbc:sqlite:";
+    private static final String LIST_DELIM = "\n";
+
+    private final ConnectionSource source;
+    private final Dao<Run, Integer> runDao;
+    private final Dao<RunDocument, Integer> documentDao;
+    private final Dao<RunResult, Integer> resultDao;
+    private final String schemaFingerprint;
+    private final FileDigests fileDigests = new FileDigests();
+
+    public AgreementRunStore(File file, TaskSchema schema) throws MaeDBException {
+        try {
+            source = new JdbcConnectionSource(JDBC_DRIVER + file.getAbsolutePath());
+            runDao = DaoManager.createDao(source, Run.class);
+            documentDao = DaoManager.createDao(source, RunDocument.class);
+            resultDao = DaoManager.createDao(source, RunResult.class);
+            TableUtils.createTableIfNotExists(source, Run.class);
+            TableUtils.createTableIfNotExists(source, RunDocument.class);
+            TableUtils.createTableIfNotExists(source, RunResult.class);
+        } catch (SQLException e) {
+            throw catchSQLException(e);
+        }
+        this.schemaFingerprint = FileDigests.fingerprint(schema);
+    }
+
+    /**
+     * Hashes annotation files of every document, without parsing them.
+     * @return keys of documents, changing whenever any of their files or the task changes
+     */
+    public Map<String, String> getDocumentKeys(AbstractAnnotationIndexer fileIdx) throws IOException {
+        Map<String, String> documentKeys = new TreeMap<>();
+        for (String document : fileIdx.getDocumentNames()) {
+            documentKeys.put(document,
+                    fileDigests.getDocumentDigest(schemaFingerprint + "\n", fileIdx.getAnnotationsOfDocument(document)));
+        }
+        return documentKeys;
+    }
+
+    private static String getCorpusKey(Map<String, String> documentKeys) {
+        MessageDigest corpusDigest = FileDigests.newDigest();
+        for (Map.Entry<String, String> documentKey : new TreeMap<>(documentKeys).entrySet()) {
+            corpusDigest.update(String.format("%s\n%s\n", documentKey.getKey(), documentKey.getValue())
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        return FileDigests.toHex(corpusDigest.digest());
+    }
+
+    /**
+     * @return the latest run of the configuration by the annotators over the
+     * documents as they are now, or null if there is none
+     */
+    public Run findRun(String configuration, List<String> annotators, Map<String, String> documentKeys)
+            throws MaeDBException {
+        try {
+            return runDao.queryBuilder().orderBy(TAB_RUN_COL_ID, false).where()
+                    .eq(TAB_RUN_COL_CONFIGURATION, new SelectArg(configuration)).and()
+                    .eq(TAB_RUN_COL_ANNOTATORS, new SelectArg(String.join(LIST_DELIM, annotators))).and()
+                    .eq(TAB_RUN_COL_CORPUS_KEY, new SelectArg(getCorpusKey(documentKeys)))
+                    .queryForFirst();
+        } catch (SQLException e) {
+            throw catchSQLException(e);
+        }
+    }
+
+    /**
+     * @return the latest run of the same configuration by the same
+     * annotators stored before the given one, or null if there is none
+     */
+    public Run findPreviousRun(Run run) throws MaeDBException {
+        try {
+            return runDao.queryBuilder().orderBy(TAB_RUN_COL_ID, false).where()
+                    // metric names and configurations have quotes in them, hence are bound
+                    .eq(TAB_RUN_COL_CONFIGURATION, new SelectArg(run.configuration)).and()
+                    .eq(TAB_RUN_COL_ANNOTATORS, new SelectArg(run.annotators)).and()
+                    .lt(TAB_RUN_COL_ID, run.id)
+                    .queryForFirst();
+        } catch (SQLException e) {
+            throw catchSQLException(e);
+        }
+    }
+
+    /**
+     * Stores a run with all its agreements, including intervals and
+     * agreements of each document, as a single transaction.
+     */
+    public Run saveRun(String configuration, List<String> annotators, Map<String, String> documentKeys,
+                       AgreementEngine.Results results) throws MaeDBException {
+        Run run = new Run(configuration, String.join(LIST_DELIM, annotators), getCorpusKey(documentKeys),
+                String.join(LIST_DELIM, results.getMetricTypes(true)),
+                String.join(LIST_DELIM, results.getMetricTypes(false)), System.currentTimeMillis());
+        try {
+            TransactionManager.callInTransaction(source, () -> {
+                runDao.create(run);
+                for (Map.Entry<String, String> documentKey : documentKeys.entrySet()) {
+                    documentDao.create(new RunDocument(run, documentKey.getKey(), documentKey.getValue()));
+                }
+                for (boolean crossTag : new boolean[]{true, false}) {
+                    for (String metricType : results.getMetricTypes(crossTag)) {
+                        saveResults(run, results, crossTag, metricType);
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw catchSQLException(e);
+        }
+        logger.info(String.format("stored agreement run #%d over %d documents", run.id, documentKeys.size()));
+        return run;
+    }
+
+    private void saveResults(Run run, AgreementEngine.Results results, boolean crossTag, String metricType)
+            throws SQLException {
+        Map<String, Double> agreements = crossTag
+                ? results.getGlobalAgreements(metricType) : results.getLocalAgreements(metricType);
+        Map<String, BootstrapEstimator.Interval> intervals = crossTag
+                ? results.getGlobalIntervals(metricType) : results.getLocalIntervals(metricType);
+        for (Map.Entry<String, Double> agreement : agreements.entrySet()) {
+            resultDao.create(new RunResult(run, crossTag, metricType, agreement.getKey(), null,
+                    agreement.getValue(), intervals.get(agreement.getKey())));
+        }
+        Map<String, List<AgreementEngine.DocumentAgreement>> documents = crossTag
+                ? results.getGlobalDocumentAgreements(metricType) : results.getLocalDocumentAgreements(metricType);
+        if (documents != null) {
+            for (Map.Entry<String, List<AgreementEngine.DocumentAgreement>> target : documents.entrySet()) {
+                for (AgreementEngine.DocumentAgreement agreement : target.getValue()) {
+                    resultDao.create(new RunResult(run, crossTag, metricType, target.getKey(),
+                            agreement.getDocument(), agreement.getAgreement(), null));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return agreements of a stored run, as the engine gave them
+     */
+    public AgreementEngine.Results getResults(Run run) throws MaeDBException {
+        AgreementEngine.Results results = new AgreementEngine.Results();
+        for (String metricType : run.getMetricTypes(true)) {
+            results.declare(true, metricType);
+        }
+        for (String metricType : run.getMetricTypes(false)) {
+            results.declare(false, metricType);
+        }
+        for (RunResult result : getRunResults(run)) {
+            if (result.document != null) {
+                results.putDocument(result.crossTag, result.metric, result.target, result.document, result.getValue());
+            } else {
+                results.put(result.crossTag, result.metric, result.target, result.getValue());
+                if (result.resamples > 0) {
+                    results.putInterval(result.crossTag, result.metric, result.target, new BootstrapEstimator.Interval(
+                            toDouble(result.low), toDouble(result.high), result.resamples));
+                }
+            }
+        }
+        // stored worst first, and the sort is stable
+        results.sortDocumentAgreements();
+        return results;
+    }
+
+    private List<RunResult> getRunResults(Run run) throws MaeDBException {
+        try {
+            return resultDao.queryBuilder().orderBy(TAB_RES_COL_ID, true)
+                    .where().eq(TAB_RES_FCOL_RUN, run.id).query();
+        } catch (SQLException e) {
+            throw catchSQLException(e);
+        }
+    }
+
+    private Map<String, String> getDocumentKeys(Run run) throws MaeDBException {
+        try {
+            Map<String, String> documentKeys = new TreeMap<>();
+            for (RunDocument document : documentDao.queryForEq(TAB_DOC_FCOL_RUN, run.id)) {
+                documentKeys.put(document.document, document.documentKey);
+            }
+            return documentKeys;
+        } catch (SQLException e) {
+            throw catchSQLException(e);
+        }
+    }
+
+    /**
+     * Compares two runs of the same configuration. An agreement has moved
+     * when its value differs, or when only one of the runs has it. Documents
+     * that moved it are those whose own agreement differs between the runs,
+     * if both runs broke agreements down by document.
+     */
+    public Diff diff(Run before, Run after) throws MaeDBException {
+        Map<String, String> changedDocuments = new TreeMap<>();
+        Map<String, String> beforeKeys = getDocumentKeys(before);
+        Map<String, String> afterKeys = getDocumentKeys(after);
+        for (String document : beforeKeys.keySet()) {
+            if (!afterKeys.containsKey(document)) {
+                changedDocuments.put(document, DOCUMENT_REMOVED);
+            } else if (!afterKeys.get(document).equals(beforeKeys.get(document))) {
+                changedDocuments.put(document, DOCUMENT_MODIFIED);
+            }
+        }
+        for (String document : afterKeys.keySet()) {
+            if (!beforeKeys.containsKey(document)) {
+                changedDocuments.put(document, DOCUMENT_ADDED);
+            }
+        }
+
+        // maps [scope, metric, target --> [document or null for the corpus --> value]]
+        Map<List<Object>, Map<String, Double>> beforeValues = indexResults(getRunResults(before));
+        Map<List<Object>, Map<String, Double>> afterValues = indexResults(getRunResults(after));
+        List<Change> changes = new ArrayList<>();
+        for (List<Object> key : afterValues.keySet()) {
+            beforeValues.putIfAbsent(key, Collections.emptyMap());
+        }
+        for (Map.Entry<List<Object>, Map<String, Double>> beforeEntry : beforeValues.entrySet()) {
+            Map<String, Double> beforeOfKey = beforeEntry.getValue();
+            Map<String, Double> afterOfKey = afterValues.getOrDefault(beforeEntry.getKey(), Collections.emptyMap());
+            double beforeValue = beforeOfKey.getOrDefault(null, Double.NaN);
+            double afterValue = afterOfKey.getOrDefault(null, Double.NaN);
+            if (Double.compare(beforeValue, afterValue) == 0) {
+                continue;
+            }
+            List<DocumentChange> documents = new ArrayList<>();
+            if (beforeOfKey.size() > 1 && afterOfKey.size() > 1) {
+                // the corpus value is keyed by null, which a sorted set can't hold
+                Set<String> allDocuments = new HashSet<>(beforeOfKey.keySet());
+                allDocuments.addAll(afterOfKey.keySet());
+                allDocuments.remove(null);
+                allDocuments = new TreeSet<>(allDocuments);
+                for (String document : allDocuments) {
+                    double beforeOfDocument = beforeOfKey.getOrDefault(document, Double.NaN);
+                    double afterOfDocument = afterOfKey.getOrDefault(document, Double.NaN);
+                    if (Double.compare(beforeOfDocument, afterOfDocument) != 0) {
+                        documents.add(new DocumentChange(document, beforeOfDocument, afterOfDocument));
+                    }
+                }
+            }
+            List<Object> key = beforeEntry.getKey();
+            changes.add(new Change((Boolean) key.get(0), (String) key.get(1), (String) key.get(2),
+                    beforeValue, afterValue, documents));
+        }
+        return new Diff(before, after, changedDocuments, changes);
+    }
+
+    private static Map<List<Object>, Map<String, Double>> indexResults(List<RunResult> results) {
+        Map<List<Object>, Map<String, Double>> values = new LinkedHashMap<>();
+        for (RunResult result : results) {
+            values.computeIfAbsent(Arrays.asList(result.crossTag, result.metric, result.target), k -> new HashMap<>())
+                    .put(result.document, result.getValue());
+        }
+        return values;
+    }
+
+    private static Double toNullable(double value) {
+        // SQLite has no NaN, and stores it as null anyway
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private static double toDouble(Double value) {
+        return value == null ? Double.NaN : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            source.close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private MaeDBException catchSQLException(SQLException e) {
+        String message = "caught sql error: " + e.getMessage();
+        logger.error(message);
+        return new MaeDBException(message, e);
+    }
+
+    /**
+     * A stored run: configuration and annotators it was run with, and a key
+     * of the documents it was run over.
+     */
+    @DatabaseTable(tableName = TAB_RUN)
+    public static class Run {
+
+        @DatabaseField(generatedId = true, columnName = TAB_RUN_COL_ID)
+        private int id;
+
+        @DatabaseField(index = true, canBeNull = false, columnName = TAB_RUN_COL_CONFIGURATION)
+        private String configuration;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_RUN_COL_ANNOTATORS)
+        private String annotators;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_RUN_COL_CORPUS_KEY)
+        private String corpusKey;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_RUN_COL_GLOBAL_METRICS)
+        private String globalMetrics;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_RUN_COL_LOCAL_METRICS)
+        private String localMetrics;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_RUN_COL_CREATED)
+        private long created;
+
+        Run() {
+        }
+
+        Run(String configuration, String annotators, String corpusKey, String globalMetrics, String localMetrics,
+            long created) {
+            this.configuration = configuration;
+            this.annotators = annotators;
+            this.corpusKey = corpusKey;
+            this.globalMetrics = globalMetrics;
+            this.localMetrics = localMetrics;
+            this.created = created;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getConfiguration() {
+            return configuration;
+        }
+
+        public List<String> getAnnotators() {
+            return Arrays.asList(annotators.split(LIST_DELIM));
+        }
+
+        /**
+         * @return when the run was stored, in milliseconds since the epoch
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        List<String> getMetricTypes(boolean crossTag) {
+            String metricTypes = crossTag ? globalMetrics : localMetrics;
+            return metricTypes.isEmpty() ? Collections.emptyList() : Arrays.asList(metricTypes.split(LIST_DELIM));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("run #%d", id);
+        }
+    }
+
+    @DatabaseTable(tableName = TAB_DOC)
+    static class RunDocument {
+
+        @DatabaseField(generatedId = true, columnName = TAB_DOC_COL_ID)
+        private int id;
+
+        @DatabaseField(foreign = true, index = true, canBeNull = false, columnName = TAB_DOC_FCOL_RUN)
+        private Run run;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_DOC_COL_DOCUMENT)
+        private String document;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_DOC_COL_DOCUMENT_KEY)
+        private String documentKey;
+
+        RunDocument() {
+        }
+
+        RunDocument(Run run, String document, String documentKey) {
+            this.run = run;
+            this.document = document;
+            this.documentKey = documentKey;
+        }
+    }
+
+    /**
+     * An agreement of a run, on the whole corpus (with its interval, if
+     * any) or on a single document.
+     */
+    @DatabaseTable(tableName = TAB_RES)
+    static class RunResult {
+
+        @DatabaseField(generatedId = true, columnName = TAB_RES_COL_ID)
+        private int id;
+
+        @DatabaseField(foreign = true, index = true, canBeNull = false, columnName = TAB_RES_FCOL_RUN)
+        private Run run;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_RES_COL_CROSS_TAG)
+        private boolean crossTag;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_RES_COL_METRIC)
+        private String metric;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_RES_COL_TARGET)
+        private String target;
+
+        @DatabaseField(columnName = TAB_RES_COL_DOCUMENT)
+        private String document;
+
+        @DatabaseField(columnName = TAB_RES_COL_VALUE)
+        private Double value;
+
+        @DatabaseField(columnName = TAB_RES_COL_LOW)
+        private Double low;
+
+        @DatabaseField(columnName = TAB_RES_COL_HIGH)
+        private Double high;
+
+        @DatabaseField(canBeNull = false, columnName = TAB_RES_COL_RESAMPLES)
+        private int resamples;
+
+        RunResult() {
+        }
+
+        RunResult(Run run, boolean crossTag, String metric, String target, String document, double value,
+                  BootstrapEstimator.Interval interval) {
+            this.run = run;
+            this.crossTag = crossTag;
+            this.metric = metric;
+            this.target = target;
+            this.document = document;
+            this.value = toNullable(value);
+            if (interval != null) {
+                this.low = toNullable(interval.getLow());
+                this.high = toNullable(interval.getHigh());
+                this.resamples = interval.getResamples();
+            }
+        }
+
+        double getValue() {
+            return toDouble(value);
+        }
+    }
+
+    /**
+     * Agreements that moved between two runs, and documents whose annotation
+     * files changed in between, as {@link #DOCUMENT_ADDED},
+     * {@link #DOCUMENT_REMOVED} or {@link #DOCUMENT_MODIFIED}.
+     */
+    public static class Diff {
+        private final Run before;
+        private final Run after;
+        private final Map<String, String> changedDocuments;
+        private final List<Change> changes;
+
+        Diff(Run before, Run after, Map<String, String> changedDocuments, List<Change> changes) {
+            this.before = before;
+            this.after = after;
+            this.changedDocuments = changedDocuments;
+            this.changes = changes;
+        }
+
+        public Run getBefore() {
+            return before;
+        }
+
+        public Run getAfter() {
+            return after;
+        }
+
+        public Map<String, String> getChangedDocuments() {
+            return changedDocuments;
+        }
+
+        public List<Change> getChanges() {
+            return changes;
+        }
+    }
+
+    /**
+     * An agreement that moved, NaN on the side of a run that didn't have it,
+     * with documents that moved it.
+     */
+    public static class Change {
+        private final boolean crossTag;
+        private final String metricType;
+        private final String target;
+        private final double before;
+        private final double after;
+        private final List<DocumentChange> documents;
+
+        Change(boolean crossTag, String metricType, String target, double before, double after,
+               List<DocumentChange> documents) {
+            this.crossTag = crossTag;
+            this.metricType = metricType;
+            this.target = target;
+            this.before = before;
+            this.after = after;
+            this.documents = documents;
+        }
+
+        public boolean isCrossTag() {
+            return crossTag;
+        }
+
+        public String getMetricType() {
+            return metricType;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public double getBefore() {
+            return before;
+        }
+
+        public double getAfter() {
+            return after;
+        }
+
+        /**
+         * @return documents whose own agreement moved, empty unless both runs
+         * broke agreements down by document
+         */
+        public List<DocumentChange> getDocuments() {
+            return documents;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.4f -> %.4f", target, before, after);
+        }
+    }
+
+    public static class DocumentChange {
+        private final String document;
+        private final double before;
+        private final double after;
+
+        DocumentChange(String document, double before, double after) {
+            this.document = document;
+            this.before = before;
+            this.after = after;
+        }
+
+        public String getDocument() {
+            return document;
+        }
+
+        public double getBefore() {
+            return before;
+        }
+
+        public double getAfter() {
+            return after;
+        }
+    }
+}
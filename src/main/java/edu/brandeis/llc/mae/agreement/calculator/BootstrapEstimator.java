@@ -0,0 +1,442 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import org.dkpro.statistics.agreement.unitizing.IUnitizingAnnotationStudy;
+import org.dkpro.statistics.agreement.unitizing.IUnitizingAnnotationUnit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Estimates percentile confidence intervals of agreements by bootstrapping.
+ * Coding studies are resampled by items, and unitizing studies by
+ * documents, as units of a document are not independent of each other.
+ * <p>
+ * Each resample re-computes the measure over compact primitive arrays, so
+ * that no study is rebuilt: coding agreements over the item table of a
+ * {@link CodingItemMatrix}, and alpha_u over units read once from a study,
+ * with the same formulas as DKPro's
+ * {@link org.dkpro.statistics.agreement.unitizing.KrippendorffAlphaUnitizingAgreement}. Resamples are drawn from independent random
+ * streams split off a seeded generator and computed on the fork-join pool,
+ * hence results are reproducible regardless of scheduling. Resamples where
+ * the measure is undefined are left out of intervals.
+ */
+public class BootstrapEstimator {
+
+    public static final int DEFAULT_RESAMPLES = 1000;
+    public static final double DEFAULT_CONFIDENCE = 0.95;
+
+    private final int resamples;
+    private final double confidence;
+    private final long seed;
+
+    public BootstrapEstimator(int resamples, double confidence, long seed) {
+        if (resamples < 1) {
+            throw new IllegalArgumentException("number of resamples must be positive: " + resamples);
+        }
+        if (!(confidence > 0 && confidence < 1)) {
+            throw new IllegalArgumentException("confidence level must be between 0 and 1: " + confidence);
+        }
+        this.resamples = resamples;
+        this.confidence = confidence;
+        this.seed = seed;
+    }
+
+    public int getResamples() {
+        return resamples;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public Interval estimate(String metricType, CodingItemMatrix study) {
+        return percentiles(resample(study.getItemCount(), sample -> study.calculateAgreement(metricType, sample)));
+    }
+
+    /**
+     * @param documentLength lengths of documents laid out back to back on
+     *                       the continuum of the study
+     */
+    public Interval estimate(IUnitizingAnnotationStudy study, int[] documentLength) {
+        UnitizingDocuments documents = new UnitizingDocuments(study, documentLength);
+        return percentiles(resample(documents.size(), documents::calculate));
+    }
+
+    /**
+     * Computes a statistic over each resample, given as indices of drawn
+     * elements, in the order of resamples.
+     */
+    private double[] resample(int size, ToDoubleFunction<int[]> statistic) {
+        double[] values = new double[resamples];
+        if (size == 0) {
+            Arrays.fill(values, Double.NaN);
+            return values;
+        }
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] randoms = new SplittableRandom[resamples];
+        for (int b = 0; b < resamples; b++) {
+            randoms[b] = root.split();
+        }
+        return IntStream.range(0, resamples).parallel().mapToDouble(b -> {
+            int[] sample = new int[size];
+            for (int i = 0; i < size; i++) {
+                sample[i] = randoms[b].nextInt(size);
+            }
+            return statistic.applyAsDouble(sample);
+        }).toArray();
+    }
+
+    private Interval percentiles(double[] values) {
+        double[] defined = Arrays.stream(values).filter(value -> !Double.isNaN(value)).sorted().toArray();
+        if (defined.length == 0) {
+            return new Interval(Double.NaN, Double.NaN, 0);
+        }
+        double tail = (1 - confidence) / 2;
+        return new Interval(quantile(defined, tail), quantile(defined, 1 - tail), defined.length);
+    }
+
+    /**
+     * Linearly interpolates between the closest ranks of sorted values.
+     */
+    private static double quantile(double[] sorted, double p) {
+        double rank = p * (sorted.length - 1);
+        int lower = (int) Math.floor(rank);
+        int upper = Math.min(lower + 1, sorted.length - 1);
+        return sorted[lower] + (rank - lower) * (sorted[upper] - sorted[lower]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d resamples at %s, seed %d", resamples, confidence, seed);
+    }
+
+    /**
+     * A percentile interval, with the number of resamples it was taken from.
+     * Bounds are NaN when the measure is undefined on every resample.
+     */
+    public static class Interval {
+        private final double low;
+        private final double high;
+        private final int resamples;
+
+        Interval(double low, double high, int resamples) {
+            this.low = low;
+            this.high = high;
+            this.resamples = resamples;
+        }
+
+        public double getLow() {
+            return low;
+        }
+
+        public double getHigh() {
+            return high;
+        }
+
+        public int getResamples() {
+            return resamples;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%.4f, %.4f]", low, high);
+        }
+    }
+
+    /**
+     * Units of a unitizing study, split into documents and grouped by
+     * category and rater, with offsets relative to their documents. A
+     * resample lays out drawn documents back to back as a new continuum.
+     */
+    static final class UnitizingDocuments {
+        private final int numRaters;
+        private final int numCategories;
+        private final long[] documentLength;
+        // per document, units of each (category, rater) cell in the order of the study
+        private final long[][] offsets;
+        private final long[][] lengths;
+        private final int[][] cellStarts;
+
+        UnitizingDocuments(IUnitizingAnnotationStudy study, int[] documentLength) {
+            numRaters = study.getRaterCount();
+            int numDocuments = documentLength.length;
+            this.documentLength = new long[numDocuments];
+            long[] documentStart = new long[numDocuments];
+            long start = 0;
+            for (int i = 0; i < numDocuments; i++) {
+                documentStart[i] = start;
+                this.documentLength[i] = documentLength[i];
+                start += documentLength[i];
+            }
+            Map<Object, Integer> categoryIdx = new HashMap<>();
+            for (Object category : study.getCategories()) {
+                categoryIdx.put(category, categoryIdx.size());
+            }
+            List<IUnitizingAnnotationUnit> units = new ArrayList<>(study.getUnitCount());
+            for (IUnitizingAnnotationUnit unit : study.getUnits()) {
+                categoryIdx.computeIfAbsent(unit.getCategory(), c -> categoryIdx.size());
+                units.add(unit);
+            }
+            numCategories = study.getCategoryCount();
+            int numCells = categoryIdx.size() * numRaters;
+            int[] unitDocument = new int[units.size()];
+            int[] unitCell = new int[units.size()];
+            cellStarts = new int[numDocuments][numCells + 1];
+            for (int u = 0; u < units.size(); u++) {
+                IUnitizingAnnotationUnit unit = units.get(u);
+                unitDocument[u] = findDocument(documentStart, unit.getOffset() - study.getContinuumBegin());
+                unitCell[u] = categoryIdx.get(unit.getCategory()) * numRaters + unit.getRaterIdx();
+                cellStarts[unitDocument[u]][unitCell[u] + 1]++;
+            }
+            offsets = new long[numDocuments][];
+            lengths = new long[numDocuments][];
+            int[][] filled = new int[numDocuments][];
+            for (int i = 0; i < numDocuments; i++) {
+                for (int cell = 0; cell < numCells; cell++) {
+                    cellStarts[i][cell + 1] += cellStarts[i][cell];
+                }
+                offsets[i] = new long[cellStarts[i][numCells]];
+                lengths[i] = new long[cellStarts[i][numCells]];
+                filled[i] = Arrays.copyOf(cellStarts[i], numCells);
+            }
+            for (int u = 0; u < units.size(); u++) {
+                IUnitizingAnnotationUnit unit = units.get(u);
+                int document = unitDocument[u];
+                int pos = filled[document][unitCell[u]]++;
+                offsets[document][pos] = unit.getOffset() - study.getContinuumBegin() - documentStart[document];
+                lengths[document][pos] = unit.getLength();
+            }
+        }
+
+        /**
+         * @return the last document starting at or before an offset, skipping empty ones
+         */
+        private static int findDocument(long[] documentStart, long offset) {
+            int low = 0;
+            int high = documentStart.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (documentStart[mid] <= offset) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        int size() {
+            return documentLength.length;
+        }
+
+        /**
+         * @param documents indices of documents in a resample, possibly repeated
+         * @return alpha_u over the resample, or NaN if undefined
+         */
+        double calculate(int[] documents) {
+            int numCells = cellStarts.length == 0 ? 0 : cellStarts[0].length - 1;
+            int[] cellSizes = new int[numCells];
+            long continuumLength = 0;
+            for (int document : documents) {
+                continuumLength += documentLength[document];
+                for (int cell = 0; cell < numCells; cell++) {
+                    cellSizes[cell] += cellStarts[document][cell + 1] - cellStarts[document][cell];
+                }
+            }
+            long[][] cellOffsets = new long[numCells][];
+            long[][] cellLengths = new long[numCells][];
+            for (int cell = 0; cell < numCells; cell++) {
+                cellOffsets[cell] = new long[cellSizes[cell]];
+                cellLengths[cell] = new long[cellSizes[cell]];
+            }
+            int[] filled = new int[numCells];
+            long shift = 0;
+            for (int document : documents) {
+                for (int cell = 0; cell < numCells; cell++) {
+                    for (int u = cellStarts[document][cell]; u < cellStarts[document][cell + 1]; u++) {
+                        cellOffsets[cell][filled[cell]] = offsets[document][u] + shift;
+                        cellLengths[cell][filled[cell]] = lengths[document][u];
+                        filled[cell]++;
+                    }
+                }
+                shift += documentLength[document];
+            }
+
+            double observed = 0;
+            double expected = 0;
+            for (int category = 0; category < numCells / Math.max(numRaters, 1); category++) {
+                int base = category * numRaters;
+                observed += observedDisagreement(cellOffsets, cellLengths, base, continuumLength);
+                expected += expectedDisagreement(cellOffsets, cellLengths, base, continuumLength);
+            }
+            observed /= numCategories;
+            expected /= numCategories;
+            return observed == expected ? 0 : 1 - observed / expected;
+        }
+
+        private double observedDisagreement(long[][] cellOffsets, long[][] cellLengths, int base, long length) {
+            double distance = 0;
+            for (int r1 = 0; r1 < numRaters; r1++) {
+                for (int r2 = r1 + 1; r2 < numRaters; r2++) {
+                    distance += observedDistance(cellOffsets[base + r1], cellLengths[base + r1],
+                            cellOffsets[base + r2], cellLengths[base + r2], length);
+                }
+            }
+            distance *= 2;
+            return distance / ((long) (numRaters * (numRaters - 1)) * (length * length));
+        }
+
+        /**
+         * Walks two raters' sections of the continuum side by side, units and
+         * the gaps between them, summing distances of overlapping sections.
+         */
+        private static double observedDistance(long[] offsets1, long[] lengths1, long[] offsets2, long[] lengths2,
+                                               long length) {
+            long begin1 = 0, length1 = 0, begin2 = 0, length2 = 0;
+            boolean unit1 = false, unit2 = false;
+            int next1 = 0, next2 = 0;
+            double distance = 0;
+            long pos = 0;
+            while (pos < length && (next1 < offsets1.length || next2 < offsets2.length)) {
+                if (pos == begin1 + length1) {
+                    unit1 = next1 < offsets1.length && pos == offsets1[next1];
+                    if (unit1) {
+                        length1 = lengths1[next1++];
+                    } else {
+                        length1 = (next1 < offsets1.length ? offsets1[next1] : length) - pos;
+                    }
+                    begin1 = pos;
+                }
+                if (pos == begin2 + length2) {
+                    unit2 = next2 < offsets2.length && pos == offsets2[next2];
+                    if (unit2) {
+                        length2 = lengths2[next2++];
+                    } else {
+                        length2 = (next2 < offsets2.length ? offsets2[next2] : length) - pos;
+                    }
+                    begin2 = pos;
+                }
+                distance += measureDistance(begin1, length1, unit1, begin2, length2, unit2);
+                pos = Math.min(begin1 + length1, begin2 + length2);
+            }
+            return distance;
+        }
+
+        private static double measureDistance(long begin1, long length1, boolean unit1,
+                                              long begin2, long length2, boolean unit2) {
+            long beginDiff = begin1 - begin2;
+            long lengthDiff = length1 - length2;
+            if (unit1 && unit2 && -length1 < beginDiff && beginDiff < length2) {
+                return beginDiff * beginDiff + (beginDiff + lengthDiff) * (beginDiff + lengthDiff);
+            }
+            if (unit1 && !unit2 && beginDiff <= -lengthDiff && beginDiff >= 0) {
+                return length1 * length1;
+            }
+            if (!unit1 && unit2 && beginDiff >= -lengthDiff && beginDiff <= 0) {
+                return length2 * length2;
+            }
+            return 0;
+        }
+
+        private double expectedDisagreement(long[][] cellOffsets, long[][] cellLengths, int base, long length) {
+            int count = 0;
+            double lengthProducts = 0;
+            for (int rater = 0; rater < numRaters; rater++) {
+                count += cellLengths[base + rater].length;
+                for (long unitLength : cellLengths[base + rater]) {
+                    lengthProducts += unitLength * (unitLength - 1.0);
+                }
+            }
+            long[] gaps = new long[count + numRaters];
+            int numGaps = 0;
+            for (int rater = 0; rater < numRaters; rater++) {
+                long[] unitOffsets = cellOffsets[base + rater];
+                long[] unitLengths = cellLengths[base + rater];
+                long begin = 0, section = 0, pos = 0;
+                int next = 0;
+                while (pos < length) {
+                    if (pos == begin + section) {
+                        if (next < unitOffsets.length && pos == unitOffsets[next]) {
+                            section = unitLengths[next++];
+                        } else {
+                            section = (next < unitOffsets.length ? unitOffsets[next] : length) - pos;
+                            if (numGaps == gaps.length) {
+                                gaps = Arrays.copyOf(gaps, numGaps * 2);
+                            }
+                            gaps[numGaps++] = section;
+                        }
+                        begin = pos;
+                    }
+                    pos = begin + section;
+                }
+            }
+            Arrays.sort(gaps, 0, numGaps);
+            // sums of the longest gaps, to add up gaps at least as long as a unit at once
+            double[] gapSuffixSums = new double[numGaps + 1];
+            for (int i = numGaps - 1; i >= 0; i--) {
+                gapSuffixSums[i] = gapSuffixSums[i + 1] + gaps[i];
+            }
+            double total = 0;
+            for (int rater = 0; rater < numRaters; rater++) {
+                for (long unitLength : cellLengths[base + rater]) {
+                    double l = unitLength;
+                    total += (count - 1) * (2 * l * l * l - 3 * l * l + l) / 3;
+                    int longer = lowerBound(gaps, numGaps, unitLength);
+                    total += (gapSuffixSums[longer] - (numGaps - longer) * (l - 1)) * (unitLength * unitLength);
+                }
+            }
+            total *= 2.0 / length;
+            long ratedLength = numRaters * length;
+            return total / (ratedLength * (ratedLength - 1) - lengthProducts);
+        }
+
+        private static int lowerBound(long[] sorted, int size, long key) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import edu.brandeis.llc.mae.agreement.MaeAgreementStrings;
+import org.dkpro.statistics.agreement.InsufficientDataException;
+import org.dkpro.statistics.agreement.coding.CodingAnnotationStudy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A coding study kept as a table of int-coded categories, one row per item
+ * and one column per annotator, with -1 for missing annotations. Fleiss'
+ * multi-pi, Hubert's multi-kappa and Krippendorff's (nominal) alpha are all
+ * computed from the same table, with the formulas of their DKPro
+ * counterparts, so a study is built once for any number of coding metrics
+ * and no object is allocated per annotation. Agreements can also be
+ * computed over a subset of items drawn with repetition, for bootstrapping.
+ */
+public class CodingItemMatrix {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int numRaters;
+    private final Map<Object, Integer> categoryIdx = new HashMap<>();
+    private final List<Object> categories = new ArrayList<>();
+    private int[] cells;
+    // per item, the number of annotations, and the number of ordered pairs of annotations agreeing
+    private int[] raterCounts;
+    private int[] agreeingPairs;
+    private int numItems;
+
+    public CodingItemMatrix(int numRaters) {
+        this.numRaters = numRaters;
+        this.cells = new int[INITIAL_CAPACITY * numRaters];
+        this.raterCounts = new int[INITIAL_CAPACITY];
+        this.agreeingPairs = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @param annotations category by each annotator, null for missing ones
+     */
+    public void addItem(Object... annotations) {
+        if (annotations.length != numRaters) {
+            throw new IllegalArgumentException(String.format(
+                    "an item needs %d annotations, but got %d", numRaters, annotations.length));
+        }
+        if (numItems == raterCounts.length) {
+            raterCounts = Arrays.copyOf(raterCounts, numItems * 2);
+            agreeingPairs = Arrays.copyOf(agreeingPairs, numItems * 2);
+            cells = Arrays.copyOf(cells, numItems * 2 * numRaters);
+        }
+        int base = numItems * numRaters;
+        int raters = 0;
+        for (int rater = 0; rater < numRaters; rater++) {
+            Object annotation = annotations[rater];
+            int category = annotation == null ? -1 : categoryIdx.computeIfAbsent(annotation, newCategory -> {
+                categories.add(newCategory);
+                return categories.size() - 1;
+            });
+            cells[base + rater] = category;
+            if (category >= 0) {
+                raters++;
+            }
+        }
+        int pairs = 0;
+        for (int a = 0; a < numRaters; a++) {
+            for (int b = a + 1; b < numRaters; b++) {
+                if (cells[base + a] >= 0 && cells[base + a] == cells[base + b]) {
+                    pairs += 2;
+                }
+            }
+        }
+        raterCounts[numItems] = raters;
+        agreeingPairs[numItems] = pairs;
+        numItems++;
+    }
+
+    public int getItemCount() {
+        return numItems;
+    }
+
+    public int getRaterCount() {
+        return numRaters;
+    }
+
+    public int getCategoryCount() {
+        return categories.size();
+    }
+
+    /**
+     * @return categories in the order they first appeared
+     */
+    public List<Object> getCategories() {
+        return Collections.unmodifiableList(categories);
+    }
+
+    /**
+     * @return category annotated by a rater on an item, or null if missing
+     */
+    public Object getCategory(int item, int rater) {
+        int category = cells[item * numRaters + rater];
+        return category < 0 ? null : categories.get(category);
+    }
+
+    /**
+     * Copies the table into a DKPro study, e.g. to use a measure not
+     * computed here.
+     */
+    public CodingAnnotationStudy toStudy() {
+        CodingAnnotationStudy study = new CodingAnnotationStudy(numRaters);
+        Object[] annotations = new Object[numRaters];
+        for (int item = 0; item < numItems; item++) {
+            for (int rater = 0; rater < numRaters; rater++) {
+                annotations[rater] = getCategory(item, rater);
+            }
+            study.addItemAsArray(annotations);
+        }
+        return study;
+    }
+
+    /**
+     * @throws InsufficientDataException as DKPro does, when a kappa-like
+     * measure is not defined on the study
+     */
+    public double calculateAgreement(String metricType) {
+        return calculate(metricType, null, true);
+    }
+
+    /**
+     * @param items indices of items to compute over, possibly repeated, or
+     *              null for all items
+     * @return agreement, or NaN if undefined
+     */
+    double calculateAgreement(String metricType, int[] items) {
+        return calculate(metricType, items, false);
+    }
+
+    private double calculate(String metricType, int[] items, boolean strict) {
+        boolean multiPi = false;
+        boolean multiKappa = false;
+        switch (metricType) {
+            case MaeAgreementStrings.MULTIPI_CALC_STRING:
+                multiPi = true;
+                break;
+            case MaeAgreementStrings.MULTIKAPPA_CALC_STRING:
+                multiKappa = true;
+                break;
+            case MaeAgreementStrings.ALPHA_CALC_STRING:
+                break;
+            default:
+                throw new IllegalArgumentException("not a coding metric: " + metricType);
+        }
+        int numCategories = categories.size();
+        if ((multiPi || multiKappa) && numCategories <= 1) {
+            return undefined(strict, "An annotation study needs at least two different categories; " +
+                    "otherwise there is no decision for the raters to agree on.");
+        }
+        int size = items == null ? numItems : items.length;
+        double agreementSum = 0;
+        long ratingSum = 0;
+        double[] categoryShares = multiPi ? new double[numCategories] : null;
+        long[] raterCategoryCounts = multiKappa ? new long[numCategories * numRaters] : null;
+        long[] categoryTotals = multiPi || multiKappa ? null : new long[numCategories];
+        for (int k = 0; k < size; k++) {
+            int item = items == null ? k : items[k];
+            int raters = raterCounts[item];
+            if (raters > 1) {
+                agreementSum += agreeingPairs[item] / (raters - 1.0);
+                ratingSum += raters;
+            }
+            int base = item * numRaters;
+            for (int rater = 0; rater < numRaters; rater++) {
+                int category = cells[base + rater];
+                if (category < 0) {
+                    continue;
+                }
+                if (multiPi) {
+                    categoryShares[category] += 1.0 / raters;
+                } else if (multiKappa) {
+                    raterCategoryCounts[category * numRaters + rater]++;
+                } else if (raters > 1) {
+                    categoryTotals[category]++;
+                }
+            }
+        }
+
+        if (!multiPi && !multiKappa) {
+            // nominal alpha, from the coincidence of categories within items
+            double pairable = ratingSum;
+            double squaredTotals = 0;
+            for (long total : categoryTotals) {
+                squaredTotals += (double) total * total;
+            }
+            double observed = (pairable - agreementSum) / pairable;
+            double expected = (pairable * pairable - squaredTotals) / (pairable * (pairable - 1));
+            return observed == expected ? 0 : 1 - observed / expected;
+        }
+        double observed = agreementSum / ratingSum;
+        double squaredItems = (double) size * size;
+        double expected = 0;
+        if (multiPi) {
+            for (double share : categoryShares) {
+                expected += share * share;
+            }
+            expected /= squaredItems;
+        } else {
+            for (int category = 0; category < numCategories; category++) {
+                int base = category * numRaters;
+                for (int m = 0; m < numRaters; m++) {
+                    for (int n = m + 1; n < numRaters; n++) {
+                        expected += (double) raterCategoryCounts[base + m] * raterCategoryCounts[base + n];
+                    }
+                }
+            }
+            expected = expected * 2 / ((double) numRaters * (numRaters - 1) * squaredItems);
+        }
+        if (expected == 0) {
+            return observed;
+        }
+        if (observed == 1 && expected == 1) {
+            return undefined(strict, "Insufficient variation. Most likely, the raters only used a single " +
+                    "category which yields an expected agreement of 1.0. In this case, it is not possible to make " +
+                    "any statement about the other categories and thus the agreement of the study itself.");
+        }
+        return (observed - expected) / (1 - expected);
+    }
+
+    private static double undefined(boolean strict, String reason) {
+        if (strict) {
+            throw new InsufficientDataException(reason);
+        }
+        return Double.NaN;
+    }
+}
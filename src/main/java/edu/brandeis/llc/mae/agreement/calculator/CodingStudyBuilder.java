@@ -0,0 +1,504 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.ParsedAnnotationIndex;
+import edu.brandeis.llc.mae.io.ParsedArg;
+import edu.brandeis.llc.mae.io.ParsedAtt;
+import edu.brandeis.llc.mae.io.ParsedTag;
+import edu.brandeis.llc.mae.util.LinkKey;
+import edu.brandeis.llc.mae.util.MappedList;
+import edu.brandeis.llc.mae.util.SpanKey;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.*;
+
+/**
+ * Builds coding (labeling) studies document by document, so that a single
+ * walk over a corpus can feed any number of studies. {@link Global} treats
+ * a set of tag types as labels of spans, {@link Local} builds a study for
+ * each attribute (and the span itself) of a single tag type, extent or link.
+ * Spans annotators marked are matched up into items by a {@link SpanMatcher}.
+ */
+abstract class CodingStudyBuilder {
+
+    final List<String> annotators;
+    final int numAnnotators;
+    final boolean allowMultiTagging;
+    final SpanMatcher spanMatcher;
+
+    CodingStudyBuilder(List<String> annotators, boolean allowMultiTagging, SpanMatcher spanMatcher) {
+        this.annotators = annotators;
+        this.numAnnotators = annotators.size();
+        this.allowMultiTagging = allowMultiTagging;
+        this.spanMatcher = spanMatcher;
+    }
+
+    /**
+     * @return a string identifying studies this builder makes, so that
+     * contributions cached by one run can be reused by another
+     */
+    abstract String getCacheKey();
+
+    /**
+     * Computes items a single document adds to the studies, without adding
+     * them yet. Items depend only on the given parses.
+     * @return annotation items keyed by study names, in the order to add them
+     */
+    abstract Map<String, List<String[]>> contribute(String document, MaeXMLParser[] parses) throws MaeException;
+
+    /**
+     * Adds items of a document, computed now or by an earlier run, to the studies.
+     */
+    abstract void merge(Map<String, List<String[]>> contribution);
+
+    void addDocument(String document, MaeXMLParser[] parses) throws MaeException {
+        merge(contribute(document, parses));
+    }
+
+    /**
+     * Creates an empty builder of the same studies for a subset of annotators.
+     */
+    abstract CodingStudyBuilder forAnnotators(List<String> annotators);
+
+    /**
+     * Projects a contribution of a document onto a subset of annotators,
+     * giving what the document would contribute if only they annotated it.
+     * @param annotatorIdx indices of the annotators to keep, in the order of the new builder
+     */
+    abstract Map<String, List<String[]>> project(Map<String, List<String[]>> contribution, int[] annotatorIdx);
+
+    static String[] select(String[] item, int[] annotatorIdx) {
+        String[] selected = new String[annotatorIdx.length];
+        for (int i = 0; i < annotatorIdx.length; i++) {
+            selected[i] = item[annotatorIdx[i]];
+        }
+        return selected;
+    }
+
+    MaeException multiTaggingError(String document, int annotatorIdx, int offset, List<ParsedTag> tags) {
+        StringBuilder errorBuilder = new StringBuilder("Error: an annotator marked the same range with two or labels - ");
+        errorBuilder.append(String.format("Document: \"%s\", Annotator: \"%s\", Offset: \"%d\"", document, annotators.get(annotatorIdx), offset));
+        tags.forEach(tag -> errorBuilder.append(String.format("<%s> ", tag.getTagTypeName())));
+        return new MaeException(errorBuilder.toString());
+    }
+
+    /**
+     * Makes sure all studies have enough labels used.
+     */
+    static void checkCategoryCounts(Map<String, CodingItemMatrix> studies) throws MaeException {
+        for (String attFullName : studies.keySet()) {
+            CodingItemMatrix study = studies.get(attFullName);
+            if (study.getCategoryCount() < 2) {
+                StringBuilder errorBuilder = new StringBuilder();
+                errorBuilder.append(String.format("Error: \"%s\" has too few categories: ", attFullName));
+                study.getCategories().forEach(cat -> errorBuilder.append(String.format("<%s> ", cat)));
+                errorBuilder.append("\n100% agreement can cause this error, as the program couldn't find any other category.");
+                throw new MaeException(errorBuilder.toString());
+            }
+        }
+    }
+
+    /**
+     * Given an array of XML parses and a set of tag names, match spans of
+     * relevant tags of annotators up into items.
+     * @return items, each holding the span of every annotator, or null for
+     * annotators who marked none of the item
+     */
+    List<SpanKey[]> matchSpansOfTagTypes(MaeXMLParser[] parses, Collection<String> tagTypeNames) {
+        List<Set<SpanKey>> spansOfAnnotators = new ArrayList<>(parses.length);
+        for (MaeXMLParser parse : parses) {
+            Set<SpanKey> spans = null;
+            if (parse != null) {
+                spans = new HashSet<>();
+                for (String tagTypeName : tagTypeNames) {
+                    spans.addAll(parse.getIndex().getSpansOfTagType(tagTypeName));
+                }
+            }
+            spansOfAnnotators.add(spans);
+        }
+        return spanMatcher.match(spansOfAnnotators);
+    }
+
+    /**
+     * Given an array of XML parses and a link tag name, return keys of
+     * relevant links from the XML parses, so that links of annotators over
+     * the same arguments make a single item.
+     */
+    static Set<LinkKey> getLinkKeysOfTagType(MaeXMLParser[] parses, String tagTypeName) {
+        TreeSet<LinkKey> keys = new TreeSet<>();
+        for (MaeXMLParser parse : parses) {
+            if (parse != null) {
+                keys.addAll(parse.getIndex().getLinkKeysOfTagType(tagTypeName));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return argument types of a link tag, in the order of the spans they
+     * point to, so that links over the same arguments can be compared by roles
+     */
+    static String getRolesOfTid(ParsedAnnotationIndex index, String tid) {
+        List<ParsedArg> args = new ArrayList<>(index.getArgsOfTid(tid));
+        if (args.size() == 0) {
+            return UNMARKED_CAT;
+        }
+        args.sort(Comparator.comparing((ParsedArg arg) -> index.getSpanOfTid(arg.getArgTid()))
+                .thenComparing(ParsedArg::getArgTypeName));
+        return args.stream().map(ParsedArg::getArgTypeName).collect(Collectors.joining(","));
+    }
+
+    static List<ParsedTag> getTagsOfTagTypesAndSpans(SpanKey span, Collection<String> tagTypeNames, MaeXMLParser parse) {
+        if (parse != null) {
+            return parse.getIndex().getTagsOfTagTypesAndSpan(tagTypeNames, span);
+        }
+        return new ArrayList<>();
+    }
+
+    static void fillAllAttValueOfTid(MaeXMLParser annotation, int annotatorIdx, String tid, Map<String, String[]> attAnnotationsMap) {
+        for (ParsedAtt att : annotation.getIndex().getAttsOfTid(tid)) {
+            if (attAnnotationsMap.containsKey(att.getAttTypeName())) {
+                String attTypeName = att.getAttTypeName();
+                if (att.getAttValue() != null && att.getAttValue().length() > 0) {
+                    attAnnotationsMap.get(attTypeName)[annotatorIdx] = att.getAttValue();
+                } else {
+                    // using UNMARKED value ensures this attribute to be included in the calculation,
+                    // as opposed to null (e.g. FleissKapps will ignore null values, which results in higher agreement)
+                    attAnnotationsMap.get(attTypeName)[annotatorIdx] = UNMARKED_CAT;
+                }
+            }
+        }
+    }
+
+    static void concatThenFillAllAttValueOfTids(MaeXMLParser annotation, int annotatorIdx, Collection<String> tids, Map<String, String[]> attAnnotationsMap) {
+        MappedList<String, String> markedAttByAttName = new MappedList<>();
+        for (String tid : tids) {
+            for (ParsedAtt att : annotation.getIndex().getAttsOfTid(tid)) {
+                if (attAnnotationsMap.containsKey(att.getAttTypeName())) {
+                    String attTypeName = att.getAttTypeName();
+                    String attValue = att.getAttValue();
+                    if (attValue == null || attValue.length() <= 0) {
+                        // using UNMARKED value ensures this attribute to be included in the calculation,
+                        // as opposed to null (e.g. FleissKapps will ignore null values, which results in higher agreement)
+                        attValue = UNMARKED_CAT;
+                    }
+                    markedAttByAttName.putItem(attTypeName, attValue);
+                }
+            }
+        }
+        for (String attTypeName : markedAttByAttName.keySet()) {
+            List<String> sorted = markedAttByAttName.getAsList(attTypeName);
+            Collections.sort(sorted);
+            attAnnotationsMap.get(attTypeName)[annotatorIdx] = sorted.toString();
+        }
+    }
+
+    /**
+     * Builds a single study where all tag types are used as a set of labels
+     * and no attributes are included.
+     */
+    static class Global extends CodingStudyBuilder {
+
+        private final Set<String> targetTags;
+        private final CodingItemMatrix study;
+
+        Global(List<String> annotators, Set<String> targetTags, boolean allowMultiTagging, SpanMatcher spanMatcher) {
+            super(annotators, allowMultiTagging, spanMatcher);
+            this.targetTags = targetTags;
+            this.study = new CodingItemMatrix(numAnnotators);
+        }
+
+        @Override
+        String getCacheKey() {
+            return String.format("coding-global:%s:%s:%s", allowMultiTagging, spanMatcher, targetTags);
+        }
+
+        @Override
+        Map<String, List<String[]>> contribute(String document, MaeXMLParser[] parses) throws MaeException {
+            List<String[]> items = new ArrayList<>();
+            List<SpanKey[]> relevantSpans = matchSpansOfTagTypes(parses, targetTags);
+            if (relevantSpans.size() == 0) {
+                String[] unmarkedArray = new String[numAnnotators];
+                Arrays.fill(unmarkedArray, UNMARKED_CAT);
+                items.add(unmarkedArray);
+                return Collections.singletonMap(targetTags.toString(), items);
+            }
+            for (SpanKey[] matched : relevantSpans) {
+                String[] annotations = new String[numAnnotators];
+                for (int i = 0; i < parses.length; i++) {
+                    SpanKey span = matched[i];
+                    // we pass targetTags as a whole set since all tags on
+                    // the global level are treated as a set of labels
+                    List<ParsedTag> relevantTags = span == null
+                            ? Collections.emptyList() : getTagsOfTagTypesAndSpans(span, targetTags, parses[i]);
+                    if (relevantTags.size() == 0) {
+                        annotations[i] = UNMARKED_CAT;
+                    } else if (!allowMultiTagging) {
+                        if (relevantTags.size() == 1) {
+                            annotations[i] = relevantTags.get(0).getTagTypeName();
+                        } else {
+                            throw multiTaggingError(document, i, span.getStart(), relevantTags);
+                        }
+                    } else {
+                        String[] markedTags = new String[relevantTags.size()];
+                        for (int j = 0; j < relevantTags.size(); j++) {
+                            markedTags[j] = relevantTags.get(j).getTagTypeName();
+                        }
+                        Arrays.sort(markedTags);
+                        annotations[i] = Arrays.toString(markedTags);
+                    }
+
+                }
+                items.add(annotations);
+            }
+            return Collections.singletonMap(targetTags.toString(), items);
+        }
+
+        @Override
+        void merge(Map<String, List<String[]>> contribution) {
+            for (List<String[]> items : contribution.values()) {
+                for (String[] item : items) {
+                    study.addItem((Object[]) item);
+                }
+            }
+        }
+
+        @Override
+        Global forAnnotators(List<String> annotators) {
+            return new Global(annotators, targetTags, allowMultiTagging, spanMatcher);
+        }
+
+        @Override
+        Map<String, List<String[]>> project(Map<String, List<String[]>> contribution, int[] annotatorIdx) {
+            // spans only others marked are dropped, and a document left
+            // without any span counts as a single unmarked item
+            List<String[]> items = new ArrayList<>();
+            for (List<String[]> allItems : contribution.values()) {
+                for (String[] item : allItems) {
+                    String[] selected = select(item, annotatorIdx);
+                    for (String annotation : selected) {
+                        if (!UNMARKED_CAT.equals(annotation)) {
+                            items.add(selected);
+                            break;
+                        }
+                    }
+                }
+            }
+            if (items.size() == 0) {
+                String[] unmarkedArray = new String[annotatorIdx.length];
+                Arrays.fill(unmarkedArray, UNMARKED_CAT);
+                items.add(unmarkedArray);
+            }
+            return Collections.singletonMap(targetTags.toString(), items);
+        }
+
+        /**
+         * Do not worry about the study having only one category, as null
+         * annotations are forced to be {@link edu.brandeis.llc.mae.agreement.MaeAgreementStrings#UNMARKED_CAT}.
+         */
+        CodingItemMatrix getStudy() {
+            return study;
+        }
+    }
+
+    /**
+     * Builds a study for each attribute of a tag type, plus one for the
+     * {@link edu.brandeis.llc.mae.agreement.MaeAgreementStrings#SPAN_ATT} dummy
+     * attribute representing the tag itself. Links are matched by the spans
+     * of their arguments instead of their own spans, and can be asked for the
+     * {@link edu.brandeis.llc.mae.agreement.MaeAgreementStrings#ARGS_ATT} dummy
+     * attribute, comparing roles their arguments fill.
+     */
+    static class Local extends CodingStudyBuilder {
+
+        private final String tagType;
+        private final boolean linkTag;
+        // maps [name of attribute name --> its "full" name (tag name + att name concatenated)]
+        private final Map<String, String> attFullNameMap;
+        // maps [att "full" name --> behind-the-hood data structure for IAA]
+        private final Map<String, CodingItemMatrix> attToStudyMap;
+        private final List<String> allAttTypes;
+
+        Local(List<String> annotators, String tagType, Collection<String> attTypes, boolean allowMultiTagging,
+              boolean linkTag, SpanMatcher spanMatcher) {
+            super(annotators, allowMultiTagging, spanMatcher);
+            this.tagType = tagType;
+            this.linkTag = linkTag;
+            this.attFullNameMap = new LinkedHashMap<>();
+            this.attToStudyMap = new LinkedHashMap<>();
+            this.allAttTypes = new ArrayList<>(attTypes);
+            allAttTypes.remove(SPAN_ATT);
+            if (allAttTypes.remove(ARGS_ATT) && linkTag) {
+                allAttTypes.add(0, ARGS_ATT);
+            }
+            allAttTypes.add(0, SPAN_ATT);
+            // convert each att names to their "full" names and initiate bookkeepers
+            for (String attType : allAttTypes) {
+                String attFull = tagType + TAG_ATT_DELIM + attType;
+                attToStudyMap.put(attFull, new CodingItemMatrix(numAnnotators));
+                attFullNameMap.put(attType, attFull);
+            }
+        }
+
+        @Override
+        String getCacheKey() {
+            return String.format("coding-local:%s:%s:%s:%s", allowMultiTagging, spanMatcher, tagType, allAttTypes);
+        }
+
+        @Override
+        Map<String, List<String[]>> contribute(String document, MaeXMLParser[] parses) throws MaeException {
+            Map<String, List<String[]>> items = new LinkedHashMap<>();
+            // maps [bare attrib name --> its value], reused at every span of the document
+            Map<String, String[]> attValueMap = new LinkedHashMap<>();
+            for (String attType : allAttTypes) {
+                items.put(attFullNameMap.get(attType), new ArrayList<>());
+                attValueMap.put(attType, new String[numAnnotators]);
+            }
+            Collection<?> relevantUnits = linkTag ? getLinkKeysOfTagType(parses, tagType)
+                    : matchSpansOfTagTypes(parses, Collections.singletonList(tagType));
+
+            // will treat each span of a tag type (or arguments of a link) that we found from the data set as a single annotation item
+            for (Object unit : relevantUnits) {
+
+                // for each span, this will populate the att-value array
+                for (int i = 0; i < parses.length; i++) {
+                    MaeXMLParser parse = parses[i];
+                    List<ParsedTag> relevantTags = parse == null
+                            ? Collections.emptyList() : getTagsOfUnit(parse.getIndex(), unit, i);
+                    // when no tags are found or parse is null
+                    if (relevantTags.size() == 0) {
+                        for (String attName : attValueMap.keySet()) {
+                            // Why do we use "null" for not found attributes?
+                            // (Note that not all coding measures can handle null annotation.
+                            // e.g. FleissKapps can't, and ignores all null values - resulting in higher agreement)
+                            // The reason for using null value is to ensure the user can
+                            // see the agreements between annotators that actually tagged at this span.
+                            attValueMap.get(attName)[i] = attName.equals(SPAN_ATT) ? Boolean.toString(false) : null;
+                        }
+                    } else if (!allowMultiTagging) {
+                        if (relevantTags.size() == 1) {
+                            attValueMap.get(SPAN_ATT)[i] = Boolean.toString(true);
+                            String tid = relevantTags.get(0).getTid();
+                            fillAllAttValueOfTid(parse, i, tid, attValueMap);
+                            if (attValueMap.containsKey(ARGS_ATT)) {
+                                attValueMap.get(ARGS_ATT)[i] = getRolesOfTid(parse.getIndex(), tid);
+                            }
+
+                        } else {
+                            throw multiTaggingError(document, i, offsetOf(unit, i), relevantTags);
+                        }
+                    } else {
+                        attValueMap.get(SPAN_ATT)[i] = Boolean.toString(true);
+                        List<String> tids = relevantTags.stream().map(ParsedTag::getTid).collect(Collectors.toList());
+                        concatThenFillAllAttValueOfTids(parse, i, tids, attValueMap);
+                        if (attValueMap.containsKey(ARGS_ATT)) {
+                            List<String> roles = new ArrayList<>();
+                            tids.forEach(tid -> roles.add(getRolesOfTid(parse.getIndex(), tid)));
+                            Collections.sort(roles);
+                            attValueMap.get(ARGS_ATT)[i] = roles.toString();
+                        }
+                    }
+                }
+
+                for (String attTypeName : attValueMap.keySet()) {
+                    items.get(attFullNameMap.get(attTypeName)).add(attValueMap.get(attTypeName).clone());
+                }
+            }
+            return items;
+        }
+
+        /**
+         * @param unit a link key, or spans of annotators matched up for an extent tag
+         */
+        private List<ParsedTag> getTagsOfUnit(ParsedAnnotationIndex index, Object unit, int annotatorIdx) {
+            if (linkTag) {
+                return index.getLinksOfTagTypeAndArgs(tagType, (LinkKey) unit);
+            }
+            SpanKey span = ((SpanKey[]) unit)[annotatorIdx];
+            return span == null ? Collections.emptyList() : index.getTagsOfTagTypeAndSpan(tagType, span);
+        }
+
+        private int offsetOf(Object unit, int annotatorIdx) {
+            return linkTag ? ((LinkKey) unit).getStart() : ((SpanKey[]) unit)[annotatorIdx].getStart();
+        }
+
+        @Override
+        void merge(Map<String, List<String[]>> contribution) {
+            for (String attFullName : contribution.keySet()) {
+                CodingItemMatrix study = attToStudyMap.get(attFullName);
+                for (String[] item : contribution.get(attFullName)) {
+                    study.addItem((Object[]) item);
+                }
+            }
+        }
+
+        @Override
+        Local forAnnotators(List<String> annotators) {
+            return new Local(annotators, tagType, allAttTypes, allowMultiTagging, linkTag, spanMatcher);
+        }
+
+        @Override
+        Map<String, List<String[]>> project(Map<String, List<String[]>> contribution, int[] annotatorIdx) {
+            // keeps spans tagged by any of the annotators, in all studies alike
+            List<String[]> spanItems = contribution.get(attFullNameMap.get(SPAN_ATT));
+            List<Integer> kept = new ArrayList<>();
+            for (int k = 0; k < spanItems.size(); k++) {
+                for (int idx : annotatorIdx) {
+                    if (Boolean.toString(true).equals(spanItems.get(k)[idx])) {
+                        kept.add(k);
+                        break;
+                    }
+                }
+            }
+            Map<String, List<String[]>> projected = new LinkedHashMap<>();
+            for (String attFullName : contribution.keySet()) {
+                List<String[]> items = contribution.get(attFullName);
+                List<String[]> selected = new ArrayList<>(kept.size());
+                for (int k : kept) {
+                    selected.add(select(items.get(k), annotatorIdx));
+                }
+                projected.put(attFullName, selected);
+            }
+            return projected;
+        }
+
+        /**
+         * @return studies keyed by "full" attribute names, with the span study
+         * first, followed by the roles study if asked for
+         */
+        Map<String, CodingItemMatrix> getStudies() {
+            return attToStudyMap;
+        }
+
+        CodingItemMatrix getStudy(String attType) {
+            return attToStudyMap.get(attFullNameMap.get(attType));
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import edu.brandeis.llc.mae.io.TaskSchema;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Persists what each document contributes to agreement studies (coding items
+ * and unitizing units), so that a later run only needs to parse documents
+ * whose annotation files have changed. An entry is keyed by the content
+ * hashes of a document's annotation files, in the order of annotators, and
+ * by the task definition, and holds contributions to any number of studies
+ * along with the length of the document text. A document having an entry
+ * was validated by the run that wrote it, so it needs no validation as long
+ * as its files are unchanged.
+ * <p>
+ * Content hashes are remembered for the lifetime of the cache, and computed
+ * again only for files whose size or modification time changes.
+ * <p>
+ * Entries are stored as one deflated file per document in a directory, and
+ * are replaced atomically. Unreadable entries are treated as missing.
+ */
+public class ContributionCache {
+
+    private static final int FORMAT_VERSION = 2;
+    private static final String ENTRY_SUFFIX = ".contrib";
+    private static final int NULL_STRING = -1;
+
+    private final File directory;
+    private final String schemaFingerprint;
+    private final FileDigests fileDigests = new FileDigests();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public ContributionCache(File directory, TaskSchema schema) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create cache directory: " + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.schemaFingerprint = FileDigests.fingerprint(schema);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of documents whose contributions were all found in the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of documents that had to be parsed for at least one study
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    void recordLookup(boolean hit) {
+        (hit ? hitCount : missCount).incrementAndGet();
+    }
+
+    /**
+     * Computes a key for a document from the contents of its annotation
+     * files, in the order of annotators.
+     */
+    String getDocumentKey(String[] fileNames) throws IOException {
+        return fileDigests.getDocumentDigest(String.format("%d\n%s\n", FORMAT_VERSION, schemaFingerprint), fileNames);
+    }
+
+    private File getEntryFile(String documentKey) {
+        return new File(directory, documentKey + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Looks up the text length of a document validated and cached by an
+     * earlier run, reading only the head of its entry.
+     * @param fileNames annotation files of the document, in the order of annotators
+     * @return the length, or -1 if the document (as it is now) has no entry
+     */
+    public int getDocumentLength(String[] fileNames) {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new FileInputStream(getEntryFile(getDocumentKey(fileNames)))))) {
+            return in.readInt() == FORMAT_VERSION ? in.readInt() : -1;
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (IOException e) {
+            // a corrupt entry is computed again and overwritten
+            return -1;
+        }
+    }
+
+    /**
+     * @return cached contributions of a document, or null if there are none
+     */
+    Entry read(String documentKey) {
+        File entryFile = getEntryFile(documentKey);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(entryFile))))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.setDocumentLength(in.readInt());
+            int codingCount = in.readInt();
+            for (int i = 0; i < codingCount; i++) {
+                String builderKey = readString(in);
+                Map<String, List<String[]>> studies = new LinkedHashMap<>();
+                int studyCount = in.readInt();
+                for (int j = 0; j < studyCount; j++) {
+                    String studyName = readString(in);
+                    int itemCount = in.readInt();
+                    List<String[]> items = new ArrayList<>(itemCount);
+                    for (int k = 0; k < itemCount; k++) {
+                        String[] item = new String[in.readInt()];
+                        for (int l = 0; l < item.length; l++) {
+                            item[l] = readString(in);
+                        }
+                        items.add(item);
+                    }
+                    studies.put(studyName, items);
+                }
+                entry.putCoding(builderKey, studies);
+            }
+            int unitizingCount = in.readInt();
+            for (int i = 0; i < unitizingCount; i++) {
+                String builderKey = readString(in);
+                Map<String, List<UnitizingStudyBuilder.Unit>> studies = new LinkedHashMap<>();
+                int studyCount = in.readInt();
+                for (int j = 0; j < studyCount; j++) {
+                    String studyName = readString(in);
+                    int unitCount = in.readInt();
+                    List<UnitizingStudyBuilder.Unit> units = new ArrayList<>(unitCount);
+                    for (int k = 0; k < unitCount; k++) {
+                        units.add(new UnitizingStudyBuilder.Unit(in.readInt(), in.readInt(), in.readInt(), readString(in)));
+                    }
+                    studies.put(studyName, units);
+                }
+                entry.putUnitizing(builderKey, studies);
+            }
+            return entry;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            // a corrupt or truncated entry is computed again and overwritten
+            return null;
+        }
+    }
+
+    /**
+     * Stores contributions of a document, replacing what was there.
+     */
+    void write(String documentKey, Entry entry) throws IOException {
+        File temp = File.createTempFile(documentKey, ".tmp", directory);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(temp))))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entry.getDocumentLength());
+                out.writeInt(entry.coding.size());
+                for (Map.Entry<String, Map<String, List<String[]>>> builder : entry.coding.entrySet()) {
+                    writeString(out, builder.getKey());
+                    out.writeInt(builder.getValue().size());
+                    for (Map.Entry<String, List<String[]>> study : builder.getValue().entrySet()) {
+                        writeString(out, study.getKey());
+                        out.writeInt(study.getValue().size());
+                        for (String[] item : study.getValue()) {
+                            out.writeInt(item.length);
+                            for (String annotation : item) {
+                                writeString(out, annotation);
+                            }
+                        }
+                    }
+                }
+                out.writeInt(entry.unitizing.size());
+                for (Map.Entry<String, Map<String, List<UnitizingStudyBuilder.Unit>>> builder : entry.unitizing.entrySet()) {
+                    writeString(out, builder.getKey());
+                    out.writeInt(builder.getValue().size());
+                    for (Map.Entry<String, List<UnitizingStudyBuilder.Unit>> study : builder.getValue().entrySet()) {
+                        writeString(out, study.getKey());
+                        out.writeInt(study.getValue().size());
+                        for (UnitizingStudyBuilder.Unit unit : study.getValue()) {
+                            out.writeInt(unit.getStart());
+                            out.writeInt(unit.getLength());
+                            out.writeInt(unit.getAnnotator());
+                            writeString(out, unit.getCategory());
+                        }
+                    }
+                }
+            }
+            Files.move(temp.toPath(), getEntryFile(documentKey).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(NULL_STRING);
+        } else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Contributions of a single document, keyed by cache keys of study
+     * builders. Builders can add theirs concurrently.
+     */
+    static class Entry {
+        private final Map<String, Map<String, List<String[]>>> coding = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, List<UnitizingStudyBuilder.Unit>>> unitizing = new ConcurrentHashMap<>();
+        private volatile int documentLength;
+
+        int getDocumentLength() {
+            return documentLength;
+        }
+
+        void setDocumentLength(int documentLength) {
+            this.documentLength = documentLength;
+        }
+
+        Map<String, List<String[]>> getCoding(String builderKey) {
+            return coding.get(builderKey);
+        }
+
+        void putCoding(String builderKey, Map<String, List<String[]>> contribution) {
+            coding.put(builderKey, contribution);
+        }
+
+        Map<String, List<UnitizingStudyBuilder.Unit>> getUnitizing(String builderKey) {
+            return unitizing.get(builderKey);
+        }
+
+        void putUnitizing(String builderKey, Map<String, List<UnitizingStudyBuilder.Unit>> contribution) {
+            unitizing.put(builderKey, contribution);
+        }
+
+        boolean containsAll(List<String> codingKeys, List<String> unitizingKeys) {
+            return coding.keySet().containsAll(codingKeys) && unitizing.keySet().containsAll(unitizingKeys);
+        }
+    }
+}
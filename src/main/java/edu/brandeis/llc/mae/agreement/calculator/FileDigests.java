@@ -0,0 +1,130 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import edu.brandeis.llc.mae.io.TaskSchema;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content hashes of annotation files, telling whether documents changed
+ * between runs. Hashes are remembered for the lifetime of an instance, and
+ * computed again only for files whose size or modification time changes.
+ */
+class FileDigests {
+
+    private static final String NO_FILE = "-";
+
+    // maps [file name --> {size, modification time, content hash}]
+    private final Map<String, Object[]> fileHashes = new ConcurrentHashMap<>();
+
+    /**
+     * @return a string telling task definitions apart, to mix into digests
+     * of documents annotated with them. Every part of a definition that can
+     * change how annotations are read counts, including valuesets, default
+     * values and required flags.
+     */
+    static String fingerprint(TaskSchema schema) {
+        StringBuilder fingerprint = new StringBuilder(schema.getTaskName());
+        for (TaskSchema.TagTypeDef tagType : schema.getTagTypes()) {
+            fingerprint.append('\n').append(String.format("%s|%s|%b|%b", tagType.getName(), tagType.getPrefix(),
+                    tagType.isLink(), tagType.isNonConsuming()));
+            for (TaskSchema.AttTypeDef attType : tagType.getAttTypes()) {
+                fingerprint.append("\n att ").append(String.format("%s|%s|%s|%b|%b", attType.getName(),
+                        attType.getValueset(), attType.getDefaultValue(), attType.isRequired(), attType.isIdRef()));
+            }
+            for (TaskSchema.ArgTypeDef argType : tagType.getArgTypes()) {
+                fingerprint.append("\n arg ").append(String.format("%s|%b", argType.getName(), argType.isRequired()));
+            }
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Computes a digest of a document from the contents of its annotation
+     * files. A null file name (an annotator did not annotate the document)
+     * counts as well, so that annotator positions stay aligned.
+     * @param prefix anything else the digest depends on
+     */
+    String getDocumentDigest(String prefix, String[] fileNames) throws IOException {
+        MessageDigest documentDigest = newDigest();
+        documentDigest.update(prefix.getBytes(StandardCharsets.UTF_8));
+        for (String fileName : fileNames) {
+            if (fileName == null) {
+                documentDigest.update(NO_FILE.getBytes(StandardCharsets.UTF_8));
+            } else {
+                documentDigest.update(getFileHash(fileName));
+            }
+        }
+        return toHex(documentDigest.digest());
+    }
+
+    private byte[] getFileHash(String fileName) throws IOException {
+        File file = new File(fileName);
+        long size = file.length();
+        long modified = file.lastModified();
+        Object[] known = fileHashes.get(fileName);
+        if (known != null && (long) known[0] == size && (long) known[1] == modified) {
+            return (byte[]) known[2];
+        }
+        MessageDigest fileDigest = newDigest();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                fileDigest.update(buffer, 0, read);
+            }
+        }
+        byte[] hash = fileDigest.digest();
+        fileHashes.put(fileName, new Object[]{size, modified, hash});
+        return hash;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
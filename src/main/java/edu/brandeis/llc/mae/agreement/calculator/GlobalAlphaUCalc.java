@@ -53,15 +53,13 @@ public class GlobalAlphaUCalc extends AbstractUnitizationAgreementCalc {
         Map<String, Double> globalAlphaU = new TreeMap<>();
 
         UnitizingAnnotationStudy study = new UnitizingAnnotationStudy(numAnnotators, totalDocumentsLength);
-        int curDocLength = 0;
         List<String> documents = fileIdx.getDocumentNames();
         for (int i = 0; i < documents.size(); i++) {
             String document = documents.get(i);
             MaeXMLParser[] parses = parseCache.getParses(document);
             for (String tagTypeName : targetTagsAndAtts.keyList()) {
-                addTagAsUnits(tagTypeName, parses, curDocLength, study);
+                addTagAsUnits(tagTypeName, parses, documentOffset[i], study);
             }
-            curDocLength += documentLength[i];
         }
         double agree = (new KrippendorffAlphaUnitizingAgreement(study)).calculateAgreement();
         globalAlphaU.put("cross-tag_alpha_u", agree);
@@ -25,11 +25,10 @@
 package edu.brandeis.llc.mae.agreement.calculator;
 
 import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.agreement.MaeAgreementStrings;
 import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
 import edu.brandeis.llc.mae.agreement.io.XMLParseCache;
 import edu.brandeis.llc.mae.util.MappedSet;
-import org.dkpro.statistics.agreement.coding.CodingAnnotationStudy;
-import org.dkpro.statistics.agreement.coding.HubertKappaAgreement;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
@@ -48,8 +47,8 @@ public class GlobalMultiKappaCalc extends AbstractCodingAgreementCalc {
     @Override
     public Map<String, Double> calculateAgreement(MappedSet<String, String> targetTagsAndAtts, boolean allowMultiTagging) throws IOException, SAXException, MaeException {
         Map<String, Double> globalMultiKappa = new TreeMap<>();
-        CodingAnnotationStudy study = prepareGlobalCodingStudy(targetTagsAndAtts, allowMultiTagging);
-        double agreement = (new HubertKappaAgreement(study)).calculateAgreement();
+        CodingItemMatrix study = prepareGlobalCodingStudy(targetTagsAndAtts, allowMultiTagging);
+        double agreement = study.calculateAgreement(MaeAgreementStrings.MULTIKAPPA_CALC_STRING);
         globalMultiKappa.put("cross-tag_multi_kappa", agreement);
         return globalMultiKappa;
     }
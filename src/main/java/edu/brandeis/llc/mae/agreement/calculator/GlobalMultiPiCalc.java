@@ -25,11 +25,10 @@
 package edu.brandeis.llc.mae.agreement.calculator;
 
 import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.agreement.MaeAgreementStrings;
 import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
 import edu.brandeis.llc.mae.agreement.io.XMLParseCache;
 import edu.brandeis.llc.mae.util.MappedSet;
-import org.dkpro.statistics.agreement.coding.CodingAnnotationStudy;
-import org.dkpro.statistics.agreement.coding.FleissKappaAgreement;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
@@ -48,8 +47,8 @@ public class GlobalMultiPiCalc extends AbstractCodingAgreementCalc {
     @Override
     public Map<String, Double> calculateAgreement(MappedSet<String, String> targetTagsAndAtts, boolean allowMultiTagging) throws IOException, SAXException, MaeException {
         Map<String, Double> globalMultiPi = new TreeMap<>();
-        CodingAnnotationStudy study = prepareGlobalCodingStudy(targetTagsAndAtts, allowMultiTagging);
-        double agreement = (new FleissKappaAgreement(study)).calculateAgreement();
+        CodingItemMatrix study = prepareGlobalCodingStudy(targetTagsAndAtts, allowMultiTagging);
+        double agreement = study.calculateAgreement(MaeAgreementStrings.MULTIPI_CALC_STRING);
         globalMultiPi.put("cross-tag_multi_pi", agreement);
         return globalMultiPi;
     }
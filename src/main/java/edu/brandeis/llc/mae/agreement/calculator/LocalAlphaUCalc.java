@@ -63,18 +63,16 @@ public class LocalAlphaUCalc extends AbstractUnitizationAgreementCalc {
                 studyPerAtt.put(attFullName, new UnitizingAnnotationStudy(numAnnotators, totalDocumentsLength));
                 attFullNameMap.put(attTypeName, attFullName);
             }
-            int curDocLength = 0;
             List<String> documents = fileIdx.getDocumentNames();
             for (int i = 0; i < documents.size(); i++) {
                 String document = documents.get(i);
                 MaeXMLParser[] parses = parseCache.getParses(document);
 
-                addTagAsUnits(tagTypeName, parses, curDocLength, studyPerAtt.get(attFullNameMap.get(SPAN_ATT)));
+                addTagAsUnits(tagTypeName, parses, documentOffset[i], studyPerAtt.get(attFullNameMap.get(SPAN_ATT)));
                 for (int j = 1; j < attTypeNames.size(); j++) {
                     String attTypeName = attTypeNames.get(j);
-                    addAttAsUnits(tagTypeName, attTypeName, parses, curDocLength, studyPerAtt.get(attFullNameMap.get(attTypeName)));
+                    addAttAsUnits(tagTypeName, attTypeName, parses, documentOffset[i], studyPerAtt.get(attFullNameMap.get(attTypeName)));
                 }
-                curDocLength += documentLength[i];
             }
             for (String attTypeName : attTypeNames) {
                 double agree = (new KrippendorffAlphaUnitizingAgreement(studyPerAtt.get(attFullNameMap.get(attTypeName)))).calculateAgreement();
@@ -25,11 +25,10 @@
 package edu.brandeis.llc.mae.agreement.calculator;
 
 import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.agreement.MaeAgreementStrings;
 import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
 import edu.brandeis.llc.mae.agreement.io.XMLParseCache;
 import edu.brandeis.llc.mae.util.MappedSet;
-import org.dkpro.statistics.agreement.coding.CodingAnnotationStudy;
-import org.dkpro.statistics.agreement.coding.FleissKappaAgreement;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
@@ -48,9 +47,9 @@ public class LocalMultiPiCalc extends AbstractCodingAgreementCalc {
     @Override
     public Map<String, Double> calculateAgreement(MappedSet<String, String> targetTagsAndAtts, boolean allowMultiTagging) throws IOException, SAXException, MaeException {
         Map<String, Double> localMultiPi = new TreeMap<>();
-        Map<String, CodingAnnotationStudy> studies = prepareLocalCodingStudies(targetTagsAndAtts, allowMultiTagging);
+        Map<String, CodingItemMatrix> studies = prepareLocalCodingStudies(targetTagsAndAtts, allowMultiTagging);
         for (String attFullName : studies.keySet()) {
-            localMultiPi.put(attFullName, (new FleissKappaAgreement(studies.get(attFullName))).calculateAgreement());
+            localMultiPi.put(attFullName, studies.get(attFullName).calculateAgreement(MaeAgreementStrings.MULTIPI_CALC_STRING));
         }
         return localMultiPi;
     }
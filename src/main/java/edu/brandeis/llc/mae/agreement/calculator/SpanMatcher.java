@@ -0,0 +1,266 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import edu.brandeis.llc.mae.util.SpanKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Decides which spans of different annotators make a single item of a
+ * coding study. Besides exact span identity, spans can be matched when they
+ * overlap, when their Jaccard index (characters in common over characters
+ * covered by either) reaches a threshold, or when both of their boundaries
+ * are within a number of characters from each other, so that annotators
+ * disagreeing on a boundary by a character still agree on the item.
+ * <p>
+ * Spans of all annotators are sorted once and swept in order of their
+ * starts. Each span joins the best matching item still open, among those
+ * its annotator has no span in yet, or opens a new one. Open items are kept
+ * in the order of their closing points, past which no later span can match
+ * them, and dropped from the head as the sweep passes those points. Thus each
+ * span is only compared with items open around it, which takes
+ * O(n log n + nk) for a document of n spans where at most k items are open at
+ * once. k stays small unless many spans are long or nested over the same
+ * text. Non-consuming spans only match each other.
+ */
+public final class SpanMatcher {
+
+    public enum Mode { EXACT, OVERLAP, JACCARD, BOUNDARY }
+
+    public static final SpanMatcher EXACT = new SpanMatcher(Mode.EXACT, 0);
+    public static final SpanMatcher OVERLAP = new SpanMatcher(Mode.OVERLAP, 0);
+
+    private final Mode mode;
+    private final double threshold;
+    private final int tolerance;
+
+    private SpanMatcher(Mode mode, double parameter) {
+        this.mode = mode;
+        this.threshold = parameter;
+        this.tolerance = (int) parameter;
+    }
+
+    /**
+     * @param threshold least Jaccard index, in (0, 1], of spans to match
+     */
+    public static SpanMatcher jaccard(double threshold) {
+        if (!(threshold > 0 && threshold <= 1)) {
+            throw new IllegalArgumentException("Jaccard threshold should be in (0, 1]: " + threshold);
+        }
+        return new SpanMatcher(Mode.JACCARD, threshold);
+    }
+
+    /**
+     * @param tolerance most characters each boundary of spans to match can be apart
+     */
+    public static SpanMatcher boundary(int tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("boundary tolerance should not be negative: " + tolerance);
+        }
+        return new SpanMatcher(Mode.BOUNDARY, tolerance);
+    }
+
+    /**
+     * @param spec "exact", "overlap", "jaccard:THRESHOLD" or "boundary:CHARACTERS"
+     */
+    public static SpanMatcher parse(String spec) {
+        String[] modeAndParameter = spec.split(":", 2);
+        String parameter = modeAndParameter.length > 1 ? modeAndParameter[1] : null;
+        switch (modeAndParameter[0].toLowerCase()) {
+            case "exact":
+                return EXACT;
+            case "overlap":
+                return OVERLAP;
+            case "jaccard":
+                return jaccard(parameter == null ? 0.5 : Double.parseDouble(parameter));
+            case "boundary":
+                return boundary(parameter == null ? 1 : Integer.parseInt(parameter));
+            default:
+                throw new IllegalArgumentException("unknown span matching: " + spec);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Matches spans of annotators up into items.
+     * @param spansOfAnnotators distinct spans each annotator marked, null for a missing annotator
+     * @return items in the order of their first spans, each holding the span
+     * of every annotator in it, or null for annotators with none
+     */
+    List<SpanKey[]> match(List<? extends Collection<SpanKey>> spansOfAnnotators) {
+        int numAnnotators = spansOfAnnotators.size();
+        List<AnnotatorSpan> sorted = new ArrayList<>();
+        for (int annotator = 0; annotator < numAnnotators; annotator++) {
+            if (spansOfAnnotators.get(annotator) != null) {
+                for (SpanKey span : spansOfAnnotators.get(annotator)) {
+                    sorted.add(new AnnotatorSpan(span, annotator));
+                }
+            }
+        }
+        sorted.sort(null);
+
+        List<SpanKey[]> items = new ArrayList<>();
+        PriorityQueue<OpenItem> open = new PriorityQueue<>(Comparator.comparingInt(item -> item.closesAt));
+        SpanKey previous = null;
+        for (AnnotatorSpan annotatorSpan : sorted) {
+            SpanKey span = annotatorSpan.span;
+            if (mode == Mode.EXACT && !span.equals(previous)) {
+                // identical spans are adjacent in the sweep
+                open.clear();
+            }
+            previous = span;
+            while (!open.isEmpty() && open.peek().closesAt <= span.getStart()) {
+                open.poll();
+            }
+            OpenItem best = null;
+            double bestSimilarity = Double.NEGATIVE_INFINITY;
+            for (OpenItem item : open) {
+                if (item.spans[annotatorSpan.annotator] == null && matches(item.first, span)) {
+                    double similarity = similarity(item.first, span);
+                    // on a tie, the item opened first wins
+                    if (similarity > bestSimilarity || similarity == bestSimilarity && item.order < best.order) {
+                        best = item;
+                        bestSimilarity = similarity;
+                    }
+                }
+            }
+            if (best == null) {
+                best = new OpenItem(span, new SpanKey[numAnnotators], items.size(), getClosingPoint(span));
+                items.add(best.spans);
+                open.add(best);
+            }
+            best.spans[annotatorSpan.annotator] = span;
+        }
+        return items;
+    }
+
+    /**
+     * Spans are compared with the first span of an item, so that an item
+     * doesn't drift along a chain of spans each overlapping the next.
+     */
+    boolean matches(SpanKey first, SpanKey span) {
+        if (first.isEmpty() || span.isEmpty() || mode == Mode.EXACT) {
+            return first.equals(span);
+        }
+        switch (mode) {
+            case OVERLAP:
+                return first.overlapLength(span) > 0;
+            case JACCARD:
+                return jaccardIndex(first, span) >= threshold;
+            default:
+                return Math.abs(first.getStart() - span.getStart()) <= tolerance
+                        && Math.abs(first.getEnd() - span.getEnd()) <= tolerance;
+        }
+    }
+
+    /**
+     * @return the least start of spans that can no longer match an item
+     * starting with the first span, as spans are swept in order of their
+     * starts
+     */
+    private int getClosingPoint(SpanKey first) {
+        if (mode == Mode.EXACT) {
+            return Integer.MAX_VALUE;
+        }
+        if (first.isEmpty()) {
+            // non-consuming spans, starting at -1, are swept before any other
+            return 0;
+        }
+        if (mode == Mode.BOUNDARY) {
+            return first.getStart() + tolerance + 1;
+        }
+        return first.getEnd();
+    }
+
+    /**
+     * @return how close two matching spans are, to pick the best of items a span matches
+     */
+    double similarity(SpanKey first, SpanKey span) {
+        if (mode == Mode.BOUNDARY) {
+            return -(Math.abs(first.getStart() - span.getStart()) + Math.abs(first.getEnd() - span.getEnd()));
+        }
+        return first.isEmpty() ? 1 : jaccardIndex(first, span);
+    }
+
+    private static double jaccardIndex(SpanKey a, SpanKey b) {
+        int overlap = a.overlapLength(b);
+        return (double) overlap / (a.length() + b.length() - overlap);
+    }
+
+    /**
+     * @return a spec {@link #parse(String)} reads back, also telling studies
+     * built with different matching apart in contribution caches
+     */
+    @Override
+    public String toString() {
+        switch (mode) {
+            case JACCARD:
+                return "jaccard:" + threshold;
+            case BOUNDARY:
+                return "boundary:" + tolerance;
+            default:
+                return mode.name().toLowerCase();
+        }
+    }
+
+    private static final class AnnotatorSpan implements Comparable<AnnotatorSpan> {
+        private final SpanKey span;
+        private final int annotator;
+
+        private AnnotatorSpan(SpanKey span, int annotator) {
+            this.span = span;
+            this.annotator = annotator;
+        }
+
+        @Override
+        public int compareTo(AnnotatorSpan other) {
+            int bySpan = span.compareTo(other.span);
+            return bySpan != 0 ? bySpan : Integer.compare(annotator, other.annotator);
+        }
+    }
+
+    private static final class OpenItem {
+        private final SpanKey first;
+        private final SpanKey[] spans;
+        private final int order;
+        private final int closesAt;
+
+        private OpenItem(SpanKey first, SpanKey[] spans, int order, int closesAt) {
+            this.first = first;
+            this.spans = spans;
+            this.order = order;
+            this.closesAt = closesAt;
+        }
+    }
+}
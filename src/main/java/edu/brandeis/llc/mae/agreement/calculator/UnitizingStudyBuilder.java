@@ -0,0 +1,374 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.ParsedAnnotationIndex;
+import edu.brandeis.llc.mae.io.ParsedAtt;
+import edu.brandeis.llc.mae.io.ParsedTag;
+import edu.brandeis.llc.mae.util.SpanKey;
+import org.dkpro.statistics.agreement.unitizing.UnitizingAnnotationStudy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.SPAN_ATT;
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.TAG_ATT_DELIM;
+
+/**
+ * Builds unitizing (segmentation) studies document by document. All documents
+ * are laid on a single continuum, so each document is added with the offset of
+ * its text on that continuum. {@link Global} puts units of a set of tag types
+ * into a single study, {@link Local} builds a study for each attribute (and
+ * the span itself) of a single tag type.
+ */
+abstract class UnitizingStudyBuilder {
+
+    final int numAnnotators;
+    final int totalDocumentsLength;
+
+    UnitizingStudyBuilder(int numAnnotators, int totalDocumentsLength) {
+        this.numAnnotators = numAnnotators;
+        this.totalDocumentsLength = totalDocumentsLength;
+    }
+
+    /**
+     * @return a string identifying studies this builder makes, so that
+     * contributions cached by one run can be reused by another
+     */
+    abstract String getCacheKey();
+
+    /**
+     * Computes units a single document adds to the studies, with offsets
+     * relative to the document text.
+     * @return units keyed by study names
+     */
+    abstract Map<String, List<Unit>> contribute(MaeXMLParser[] parses);
+
+    /**
+     * Adds units of a document, computed now or by an earlier run, to the
+     * studies, shifting them to where the document text starts on the continuum.
+     */
+    abstract void merge(Map<String, List<Unit>> contribution, int textOffset);
+
+    /**
+     * Adds units of a document straight to the studies, without keeping them
+     * as a contribution.
+     */
+    abstract void addDocument(MaeXMLParser[] parses, int textOffset);
+
+    /**
+     * Creates an empty builder of the same studies for a subset of annotators.
+     */
+    abstract UnitizingStudyBuilder forAnnotators(int numAnnotators);
+
+    /**
+     * Creates an empty builder of the same studies laid on the text of a
+     * single document, to which contributions are merged with no offset.
+     */
+    abstract UnitizingStudyBuilder forDocument(int documentLength);
+
+    /**
+     * Projects a contribution of a document onto a subset of annotators,
+     * renumbering them in the given order.
+     */
+    static Map<String, List<Unit>> project(Map<String, List<Unit>> contribution, int[] annotatorIdx) {
+        Map<Integer, Integer> renumbered = new HashMap<>();
+        for (int i = 0; i < annotatorIdx.length; i++) {
+            renumbered.put(annotatorIdx[i], i);
+        }
+        Map<String, List<Unit>> projected = new LinkedHashMap<>();
+        for (String studyName : contribution.keySet()) {
+            List<Unit> units = new ArrayList<>();
+            for (Unit unit : contribution.get(studyName)) {
+                Integer annotator = renumbered.get(unit.getAnnotator());
+                if (annotator != null) {
+                    units.add(new Unit(unit.getStart(), unit.getLength(), annotator, unit.getCategory()));
+                }
+            }
+            projected.put(studyName, units);
+        }
+        return projected;
+    }
+
+    static void addTagAsUnits(String tagTypeName, MaeXMLParser[] annotations, int textOffset, UnitizingAnnotationStudy study) {
+        collectTagUnits(tagTypeName, annotations, toStudy(study, textOffset));
+    }
+
+    static void addAttAsUnits(String tagTypeName, String attTypeName, MaeXMLParser[] annotations, int textOffset, UnitizingAnnotationStudy study) {
+        collectAttUnits(tagTypeName, attTypeName, annotations, toStudy(study, textOffset));
+    }
+
+    static List<Unit> collectTagUnits(String tagTypeName, MaeXMLParser[] annotations) {
+        List<Unit> units = new ArrayList<>();
+        collectTagUnits(tagTypeName, annotations, toList(units));
+        return units;
+    }
+
+    static List<Unit> collectAttUnits(String tagTypeName, String attTypeName, MaeXMLParser[] annotations) {
+        List<Unit> units = new ArrayList<>();
+        collectAttUnits(tagTypeName, attTypeName, annotations, toList(units));
+        return units;
+    }
+
+    static void collectTagUnits(String tagTypeName, MaeXMLParser[] annotations, UnitSink sink) {
+
+        for (int annotator = 0; annotator < annotations.length; annotator++) {
+            MaeXMLParser parse = annotations[annotator];
+            if (parse == null) continue;
+            ParsedAnnotationIndex index = parse.getIndex();
+            for (SpanKey span : index.getSpansOfTagType(tagTypeName)) {
+                if (span.isEmpty()) continue;
+                for (ParsedTag ignored : index.getTagsOfTagTypeAndSpan(tagTypeName, span)) {
+                    collectSpanAsUnits(span, annotator, tagTypeName, sink);
+                }
+            }
+        }
+
+    }
+
+    static void collectAttUnits(String tagTypeName, String attTypeName, MaeXMLParser[] annotations, UnitSink sink) {
+
+        for (int annotator = 0; annotator < annotations.length; annotator++) {
+            MaeXMLParser parse = annotations[annotator];
+            if (parse == null) continue;
+            ParsedAnnotationIndex index = parse.getIndex();
+            for (SpanKey span : index.getSpansOfTagType(tagTypeName)) {
+                if (span.isEmpty()) continue;
+                for (ParsedTag tag : index.getTagsOfTagTypeAndSpan(tagTypeName, span)) {
+                    // only attributes of this very tag, looked up by its tid
+                    for (ParsedAtt att : index.getAttsOfTid(tag.getTid())) {
+                        if (att.getAttTypeName().equalsIgnoreCase(attTypeName)) {
+                            collectSpanAsUnits(span, annotator, att.getAttValue(), sink);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void collectSpanAsUnits(SpanKey span, int annotator, String category, UnitSink sink) {
+        for (int run = 0; run < span.getRunCount(); run++) {
+            sink.unit(span.getRunStart(run), span.getRunEnd(run) - span.getRunStart(run), annotator, category);
+        }
+    }
+
+    static void addUnits(List<Unit> units, int textOffset, UnitizingAnnotationStudy study) {
+        for (Unit unit : units) {
+            study.addUnit(unit.getStart() + textOffset, unit.getLength(), unit.getAnnotator(), unit.getCategory());
+        }
+    }
+
+    private static UnitSink toStudy(UnitizingAnnotationStudy study, int textOffset) {
+        return (start, length, annotator, category) -> study.addUnit(start + textOffset, length, annotator, category);
+    }
+
+    private static UnitSink toList(List<Unit> units) {
+        return (start, length, annotator, category) -> units.add(new Unit(start, length, annotator, category));
+    }
+
+    /**
+     * Receives units of a document as they are read off the span keys of its
+     * parses, with offsets relative to the document text.
+     */
+    interface UnitSink {
+        void unit(int start, int length, int annotator, String category);
+    }
+
+    /**
+     * A unit of a single document, with its offset relative to the document text.
+     */
+    static final class Unit {
+        private final int start;
+        private final int length;
+        private final int annotator;
+        private final String category;
+
+        Unit(int start, int length, int annotator, String category) {
+            this.start = start;
+            this.length = length;
+            this.annotator = annotator;
+            this.category = category;
+        }
+
+        int getStart() {
+            return start;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        int getAnnotator() {
+            return annotator;
+        }
+
+        String getCategory() {
+            return category;
+        }
+    }
+
+    /**
+     * Builds a single study where tag types are categories of units.
+     */
+    static class Global extends UnitizingStudyBuilder {
+
+        private final Set<String> targetTags;
+        private final UnitizingAnnotationStudy study;
+
+        Global(int numAnnotators, int totalDocumentsLength, Set<String> targetTags) {
+            super(numAnnotators, totalDocumentsLength);
+            this.targetTags = targetTags;
+            this.study = new UnitizingAnnotationStudy(numAnnotators, totalDocumentsLength);
+        }
+
+        @Override
+        String getCacheKey() {
+            return String.format("unitizing-global:%s", targetTags);
+        }
+
+        @Override
+        Map<String, List<Unit>> contribute(MaeXMLParser[] parses) {
+            List<Unit> units = new ArrayList<>();
+            UnitSink sink = toList(units);
+            for (String tagTypeName : targetTags) {
+                collectTagUnits(tagTypeName, parses, sink);
+            }
+            return Collections.singletonMap(targetTags.toString(), units);
+        }
+
+        @Override
+        void merge(Map<String, List<Unit>> contribution, int textOffset) {
+            for (List<Unit> units : contribution.values()) {
+                addUnits(units, textOffset, study);
+            }
+        }
+
+        @Override
+        void addDocument(MaeXMLParser[] parses, int textOffset) {
+            for (String tagTypeName : targetTags) {
+                addTagAsUnits(tagTypeName, parses, textOffset, study);
+            }
+        }
+
+        @Override
+        Global forAnnotators(int numAnnotators) {
+            return new Global(numAnnotators, totalDocumentsLength, targetTags);
+        }
+
+        @Override
+        Global forDocument(int documentLength) {
+            return new Global(numAnnotators, documentLength, targetTags);
+        }
+
+        UnitizingAnnotationStudy getStudy() {
+            return study;
+        }
+    }
+
+    /**
+     * Builds a study for the spans of a tag type, and one for each of its
+     * attributes where attribute values are categories of units.
+     */
+    static class Local extends UnitizingStudyBuilder {
+
+        private final String tagTypeName;
+        private final List<String> attTypeNames;
+        // maps [att "full" name --> behind-the-hood data structure for IAA]
+        private final Map<String, UnitizingAnnotationStudy> studyPerAtt;
+
+        Local(int numAnnotators, int totalDocumentsLength, String tagTypeName, Collection<String> attTypeNames) {
+            super(numAnnotators, totalDocumentsLength);
+            this.tagTypeName = tagTypeName;
+            this.attTypeNames = new ArrayList<>(attTypeNames);
+            this.attTypeNames.remove(SPAN_ATT);
+            this.attTypeNames.add(0, SPAN_ATT);
+            this.studyPerAtt = new LinkedHashMap<>();
+            for (String attTypeName : this.attTypeNames) {
+                studyPerAtt.put(tagTypeName + TAG_ATT_DELIM + attTypeName,
+                        new UnitizingAnnotationStudy(numAnnotators, totalDocumentsLength));
+            }
+        }
+
+        @Override
+        String getCacheKey() {
+            return String.format("unitizing-local:%s:%s", tagTypeName, attTypeNames);
+        }
+
+        @Override
+        Map<String, List<Unit>> contribute(MaeXMLParser[] parses) {
+            Map<String, List<Unit>> units = new LinkedHashMap<>();
+            units.put(tagTypeName + TAG_ATT_DELIM + SPAN_ATT, collectTagUnits(tagTypeName, parses));
+            for (int j = 1; j < attTypeNames.size(); j++) {
+                String attTypeName = attTypeNames.get(j);
+                units.put(tagTypeName + TAG_ATT_DELIM + attTypeName, collectAttUnits(tagTypeName, attTypeName, parses));
+            }
+            return units;
+        }
+
+        @Override
+        void merge(Map<String, List<Unit>> contribution, int textOffset) {
+            for (String attFullName : contribution.keySet()) {
+                addUnits(contribution.get(attFullName), textOffset, studyPerAtt.get(attFullName));
+            }
+        }
+
+        @Override
+        void addDocument(MaeXMLParser[] parses, int textOffset) {
+            addTagAsUnits(tagTypeName, parses, textOffset, getStudy(SPAN_ATT));
+            for (int j = 1; j < attTypeNames.size(); j++) {
+                String attTypeName = attTypeNames.get(j);
+                addAttAsUnits(tagTypeName, attTypeName, parses, textOffset, getStudy(attTypeName));
+            }
+        }
+
+        @Override
+        Local forAnnotators(int numAnnotators) {
+            return new Local(numAnnotators, totalDocumentsLength, tagTypeName, attTypeNames);
+        }
+
+        @Override
+        Local forDocument(int documentLength) {
+            return new Local(numAnnotators, documentLength, tagTypeName, attTypeNames);
+        }
+
+        /**
+         * @return studies keyed by "full" attribute names, with the span study first
+         */
+        Map<String, UnitizingAnnotationStudy> getStudies() {
+            return studyPerAtt;
+        }
+
+        UnitizingAnnotationStudy getStudy(String attTypeName) {
+            return studyPerAtt.get(tagTypeName + TAG_ATT_DELIM + attTypeName);
+        }
+    }
+}
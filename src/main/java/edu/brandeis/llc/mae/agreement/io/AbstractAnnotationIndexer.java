@@ -27,10 +27,14 @@ package edu.brandeis.llc.mae.agreement.io;
 import edu.brandeis.llc.mae.io.MaeIOException;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.util.*;
 
 import static edu.brandeis.llc.mae.util.FileHandler.ANNOTATOR_SUFFIX_DELIM;
+import static edu.brandeis.llc.mae.util.FileHandler.GZIP_EXT;
 import static edu.brandeis.llc.mae.util.FileHandler.XML_EXT;
+import static edu.brandeis.llc.mae.util.FileHandler.getFileNameWithoutExtension;
+import static edu.brandeis.llc.mae.util.FileHandler.splitAnnotationAnnotator;
 
 
 /**
@@ -41,12 +45,15 @@ public abstract class AbstractAnnotationIndexer {
 
     // indexed list of annotator IDs
     List<String> annotatorMap;
+    // map from annotator ID to its index in annotatorMap
+    Map<String, Integer> annotatorIndex;
     // map from document ID to annotation file names
     Map<String, String[]> documentFileMap;
     Set<Integer> ignored;
 
     public AbstractAnnotationIndexer() {
         annotatorMap = new ArrayList<>();
+        annotatorIndex = new HashMap<>();
         documentFileMap = new TreeMap<>();
         ignored = new TreeSet<>();
     }
@@ -82,7 +89,40 @@ public abstract class AbstractAnnotationIndexer {
     }
 
     public int getAnnotatorIndex(String annotatorSymbol) {
-        return annotatorMap.indexOf(annotatorSymbol);
+        Integer index = annotatorIndex.get(annotatorSymbol);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Adds an annotator if not seen yet.
+     * @return index of the annotator
+     */
+    int addAnnotator(String annotatorSymbol) {
+        Integer index = annotatorIndex.get(annotatorSymbol);
+        if (index == null) {
+            index = annotatorMap.size();
+            annotatorMap.add(annotatorSymbol);
+            annotatorIndex.put(annotatorSymbol, index);
+        }
+        return index;
+    }
+
+    static boolean isXMLFile(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        return name.endsWith(XML_EXT) || name.endsWith(XML_EXT + GZIP_EXT);
+    }
+
+    /**
+     * Splits a file name formatted as `docId_annotatorID.xml` (or `.xml.gz`)
+     * into the document ID and the annotator ID.
+     */
+    static String[] splitAnnotationFileName(String fileBaseName) throws MaeIOException {
+        String shortName = getFileNameWithoutExtension(fileBaseName.trim());
+        if (!shortName.contains(ANNOTATOR_SUFFIX_DELIM)) {
+            throw new MaeIOException(String.format(
+                    "An annotation file name should end with %sannotatorID: %s", ANNOTATOR_SUFFIX_DELIM, fileBaseName));
+        }
+        return splitAnnotationAnnotator(shortName);
     }
 
     public List<String> getDocumentNames() {
@@ -27,9 +27,17 @@ package edu.brandeis.llc.mae.agreement.io;
 import edu.brandeis.llc.mae.io.MaeIOException;
 
 import java.io.File;
-import java.util.LinkedList;
-
-import static edu.brandeis.llc.mae.util.FileHandler.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Index annotation files from annotated dataset. The code expects the dataset is
@@ -38,35 +46,53 @@ import static edu.brandeis.llc.mae.util.FileHandler.*;
  * `docId_annotatorID.xml`. All non-xml files as well as xml files that does not
  * match the naming rule are ignored. That is, all annotation files must contains
  * the annotator ID, and they must be stored in a directory named after the annotator
+ * <p>
+ * Annotator directories are listed in parallel, then their files are grouped
+ * by document IDs in a single pass.
  */
 public class AnnotationDirsIndexer extends AbstractAnnotationIndexer {
 
     @Override
     public void indexAnnotations(File[] dataset) throws MaeIOException {
-        if (annotatorMap == null) {
-            annotatorMap = new LinkedList<>();
+        List<List<Path>> listings;
+        try {
+            listings = Arrays.stream(dataset).parallel()
+                    .map(AnnotationDirsIndexer::listAnnotationFiles)
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw new MaeIOException("Failed to list annotation files: " + e.getCause().getMessage(), e.getCause());
         }
+        int[] annotatorIdx = new int[dataset.length];
         for (int i = 0; i < dataset.length; i++) {
-            File annotatorDir = dataset[i];
-            String annotatorID = annotatorDir.getName();
-            annotatorMap.add(annotatorID);
-
-            // filter only files that have annotator ID as suffix and the "xml" extension
-            File[] annotationFiles = annotatorDir.listFiles(
-                    file -> file.getName().matches(".+_" + annotatorID + "\\.[Xx][Mm][Ll]$"));
-            if (annotationFiles == null || annotationFiles.length == 0) {
-                 throw new MaeIOException("Found an empty subset: " + annotatorDir.getName());
+            annotatorIdx[i] = addAnnotator(dataset[i].getName());
+        }
+        for (int i = 0; i < dataset.length; i++) {
+            if (listings.get(i).size() == 0) {
+                throw new MaeIOException("Found an empty subset: " + dataset[i].getName());
             }
-            for (File annotation : annotationFiles) {
-                String docId = splitAnnotationAnnotator(
-                        getFileNameWithoutExtension(
-                        getFileBaseName(annotation).trim()))
-                        [0];
-                if (!documentFileMap.containsKey(docId)) {
-                    documentFileMap.put(docId, new String[dataset.length]);
-                }
-                documentFileMap.get(docId)[i] = annotation.getAbsolutePath();
+            for (Path annotation : listings.get(i)) {
+                String docId = splitAnnotationFileName(annotation.getFileName().toString())[0];
+                documentFileMap.computeIfAbsent(docId, id -> new String[annotatorMap.size()])
+                        [annotatorIdx[i]] = annotation.toAbsolutePath().toString();
             }
         }
     }
+
+    /**
+     * Lists files in an annotator directory that have the annotator ID as
+     * suffix and the "xml" (or "xml.gz") extension, sorted by their names.
+     */
+    private static List<Path> listAnnotationFiles(File annotatorDir) {
+        Pattern annotationName = Pattern.compile(
+                ".+_" + Pattern.quote(annotatorDir.getName()) + "\\.[Xx][Mm][Ll](\\.[Gg][Zz])?$");
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(annotatorDir.toPath(),
+                path -> annotationName.matcher(path.getFileName().toString()).matches())) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Collections.sort(files);
+        return files;
+    }
 }
@@ -25,84 +25,75 @@
 package edu.brandeis.llc.mae.agreement.io;
 
 import edu.brandeis.llc.mae.io.MaeIOException;
-import edu.brandeis.llc.mae.util.FileHandler;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-
-import static edu.brandeis.llc.mae.util.FileHandler.*;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Index annotation files from a single directory. The code expects all annotation
- * files are XML and their names are formatted in `docId_annotatorID.xml`. All
+ * files are XML (optionally gzipped) and their names are formatted in
+ * `docId_annotatorID.xml` or `docId_annotatorID.xml.gz`. All
  * non-xml files and subdirectories would be ignored. The main public method to
  * index files expects an singleton array of the dataset directory.
+ * <p>
+ * Files are listed once and grouped by document IDs in a single pass, so
+ * indexing takes linear time in the number of files.
  */
 public class AnnotationFilesIndexer extends AbstractAnnotationIndexer {
 
-    private void listUpAnnotators(List<File> annotationFiles) throws MaeIOException {
+    @Override
+    public void indexAnnotations(File[] dataset) throws MaeIOException {
+        indexAnnotationFiles(listXMLFiles(dataset[0]));
+    }
 
-        if (annotatorMap == null) {
-            annotatorMap = new ArrayList<>();
+    /**
+     * Lists XML files in a directory, sorted by their names.
+     */
+    static List<Path> listXMLFiles(File directory) throws MaeIOException {
+        if (!directory.isDirectory()) {
+            throw new MaeIOException("Not a directory: " + directory.getName());
         }
-        if (annotatorMap.size() == 0) {
-            for (File annotationFile : annotationFiles) {
-                String annotationBaseName = getFileBaseName(annotationFile).trim();
-                if (!annotationFile.getName().endsWith(XML_EXT)) {
-                    throw new MaeIOException("An annotation should be an XML file: " + annotationFile.getName());
-                }
-
-                String annotationShortName = getFileNameWithoutExtension(annotationBaseName);
-                String annotatorSymbol = splitAnnotationAnnotator(annotationShortName)[1];
-                if (annotatorMap.indexOf(annotatorSymbol) < 0) {
-                    annotatorMap.add(annotatorSymbol);
-                }
-            }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath(), AbstractAnnotationIndexer::isXMLFile)) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            throw new MaeIOException("Failed to list files in the directory: " + directory.getName(), e);
         }
+        if (files.size() == 0) {
+            throw new MaeIOException("No XML found in the directory: " + directory.getName());
+        }
+        Collections.sort(files);
+        return files;
     }
 
-    @Override
-    public void indexAnnotations(File[] dataset) throws MaeIOException {
-        indexAnnotationFiles(FileHandler.getAllXMLFilesIn(dataset[0]));
-    }
-
-    private void indexAnnotationFiles(List<File> annotationFiles) throws MaeIOException {
-        // takes a list of all relevant files (assume all files are .xml)
+    private void indexAnnotationFiles(List<Path> annotationFiles) throws MaeIOException {
         // files need to end with annotator suffix, affixed with underscore('_')
-        // also they should share the rest of their names
-
-        listUpAnnotators(annotationFiles);
-        while (annotationFiles.size() > 0) {
-            File annotationFile = annotationFiles.remove(0);
-            String[] split = splitAnnotationAnnotator(getFileNameWithoutExtension(
-                    getFileBaseName(annotationFile).trim()));
-            String annotationName = split[0];
-            String annotatorName  = split[1];
-            String[] indexedFileNames = new String[annotatorMap.size()];
-            // fill current file's slot
-            indexedFileNames[annotatorMap.indexOf(annotatorName)] = annotationFile.getAbsolutePath();
-
-            // then iterate the rest of files, to find associated files
-            for (String symbol : annotatorMap) {
-                if (symbol.equals(annotatorName)) {
-                    continue;
-                }
-                String secondaryAnnotationBaseName = generateAnnotationFileName(annotationName, symbol);
-
-                int i = 0;
-                while (i < annotationFiles.size()) {
-                    File rest = annotationFiles.get(i);
-                    if (rest.getName().endsWith(secondaryAnnotationBaseName)) {
-                        indexedFileNames[annotatorMap.indexOf(symbol)] = rest.getAbsolutePath();
-                        annotationFiles.remove(i);
-                        break;
-                    } else {
-                        i++;
-                    }
-                }
+        // also they should share the rest of their names.
+        // first pass collects annotators, as the width of the index depends
+        // on them; they are indexed in the order of their IDs
+        String[][] splits = new String[annotationFiles.size()][];
+        Set<String> annotators = new TreeSet<>();
+        for (int i = 0; i < splits.length; i++) {
+            splits[i] = splitAnnotationFileName(annotationFiles.get(i).getFileName().toString());
+            annotators.add(splits[i][1]);
+        }
+        annotators.forEach(this::addAnnotator);
+        // then group files by document IDs; names are compared without
+        // extensions, so that .xml and .xml.gz files can be mixed
+        for (int i = 0; i < splits.length; i++) {
+            String[] indexedFileNames = documentFileMap.computeIfAbsent(splits[i][0], docId -> new String[annotatorMap.size()]);
+            int annotatorIdx = getAnnotatorIndex(splits[i][1]);
+            if (indexedFileNames[annotatorIdx] == null) {
+                indexedFileNames[annotatorIdx] = annotationFiles.get(i).toAbsolutePath().toString();
             }
-            documentFileMap.put(annotationName, indexedFileNames);
         }
     }
 }
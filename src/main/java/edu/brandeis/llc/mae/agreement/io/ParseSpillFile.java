@@ -0,0 +1,270 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.agreement.io;
+
+import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.ParsedArg;
+import edu.brandeis.llc.mae.io.ParsedAtt;
+import edu.brandeis.llc.mae.io.ParsedTag;
+import edu.brandeis.llc.mae.util.SpanKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only temporary file holding parses evicted from {@link XMLParseCache},
+ * so that they can be read back without parsing XML again. Each document is
+ * stored as a single deflated record; spans are written as runs of
+ * consecutive offsets and a primary text shared by annotators is written
+ * once per record.
+ */
+class ParseSpillFile {
+
+    private static final int NO_PARSE = -1;
+    private static final int NULL_STRING = -1;
+    private static final int NULL_SPANS = -1;
+
+    private final Map<String, long[]> offsets = new HashMap<>();
+    private File file;
+    private RandomAccessFile raf;
+
+    synchronized boolean contains(String docName) {
+        return offsets.containsKey(docName);
+    }
+
+    synchronized int size() {
+        return offsets.size();
+    }
+
+    synchronized long length() {
+        try {
+            return raf == null ? 0 : raf.length();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    void write(String docName, MaeXMLParser[] parses) throws IOException {
+        // encoding is the costly part, and needs no lock
+        byte[] record = encode(parses);
+        synchronized (this) {
+            if (raf == null) {
+                file = Files.createTempFile("mae-parse-cache", ".spill").toFile();
+                file.deleteOnExit();
+                raf = new RandomAccessFile(file, "rw");
+            }
+            long offset = raf.length();
+            raf.seek(offset);
+            raf.write(record);
+            offsets.put(docName, new long[]{offset, record.length});
+        }
+    }
+
+    synchronized MaeXMLParser[] read(String docName) throws IOException {
+        long[] location = offsets.get(docName);
+        if (location == null) {
+            return null;
+        }
+        byte[] record = new byte[(int) location[1]];
+        raf.seek(location[0]);
+        raf.readFully(record);
+        return decode(record);
+    }
+
+    synchronized void delete() {
+        offsets.clear();
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+            file.delete();
+        }
+    }
+
+    static byte[] encode(MaeXMLParser[] parses) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes)))) {
+            List<String> texts = new ArrayList<>();
+            out.writeInt(parses.length);
+            for (MaeXMLParser parse : parses) {
+                if (parse == null) {
+                    out.writeInt(NO_PARSE);
+                    continue;
+                }
+                String text = parse.getParsedPrimaryText();
+                int textIdx = texts.indexOf(text);
+                if (textIdx < 0) {
+                    textIdx = texts.size();
+                    texts.add(text);
+                    out.writeInt(textIdx);
+                    writeString(out, text);
+                } else {
+                    out.writeInt(textIdx);
+                }
+                writeString(out, parse.getParsed().getTaskName());
+                out.writeInt(parse.getParsedTags().size());
+                for (ParsedTag tag : parse.getParsedTags()) {
+                    out.writeBoolean(tag.isLink());
+                    writeString(out, tag.getTid());
+                    writeString(out, tag.getTagTypeName());
+                    writeString(out, tag.getText());
+                    writeSpans(out, tag.getSpanKey());
+                }
+                out.writeInt(parse.getParsedAtts().size());
+                for (ParsedAtt att : parse.getParsedAtts()) {
+                    writeString(out, att.getTid());
+                    writeString(out, att.getTagTypeName());
+                    writeString(out, att.getAttTypeName());
+                    writeString(out, att.getAttValue());
+                }
+                out.writeInt(parse.getParsedArgs().size());
+                for (ParsedArg arg : parse.getParsedArgs()) {
+                    writeString(out, arg.getTid());
+                    writeString(out, arg.getTagTypeName());
+                    writeString(out, arg.getArgTypeName());
+                    writeString(out, arg.getArgTid());
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    static MaeXMLParser[] decode(byte[] record) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(record))))) {
+            List<String> texts = new ArrayList<>();
+            MaeXMLParser[] parses = new MaeXMLParser[in.readInt()];
+            for (int i = 0; i < parses.length; i++) {
+                int textIdx = in.readInt();
+                if (textIdx == NO_PARSE) {
+                    continue;
+                }
+                if (textIdx == texts.size()) {
+                    texts.add(readString(in));
+                }
+                String text = texts.get(textIdx);
+                String taskName = readString(in);
+                int tagCount = in.readInt();
+                List<ParsedTag> tags = new ArrayList<>(tagCount);
+                for (int j = 0; j < tagCount; j++) {
+                    ParsedTag tag = new ParsedTag();
+                    tag.setLink(in.readBoolean());
+                    tag.setTid(readString(in));
+                    tag.setTagTypeName(readString(in));
+                    tag.setText(readString(in));
+                    tag.setSpans(readSpans(in));
+                    tags.add(tag);
+                }
+                int attCount = in.readInt();
+                List<ParsedAtt> atts = new ArrayList<>(attCount);
+                for (int j = 0; j < attCount; j++) {
+                    ParsedAtt att = new ParsedAtt();
+                    att.setTid(readString(in));
+                    att.setTagTypeName(readString(in));
+                    att.setAttTypeName(readString(in));
+                    att.setAttValue(readString(in));
+                    atts.add(att);
+                }
+                int argCount = in.readInt();
+                List<ParsedArg> args = new ArrayList<>(argCount);
+                for (int j = 0; j < argCount; j++) {
+                    ParsedArg arg = new ParsedArg();
+                    arg.setTid(readString(in));
+                    arg.setTagTypeName(readString(in));
+                    arg.setArgTypeName(readString(in));
+                    arg.setArgTid(readString(in));
+                    args.add(arg);
+                }
+                parses[i] = MaeXMLParser.restore(taskName, text, tags, atts, args);
+            }
+            return parses;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(NULL_STRING);
+        } else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes spans as they are held in a {@link SpanKey}, (start, exclusive end)
+     * runs of consecutive offsets.
+     */
+    private static void writeSpans(DataOutputStream out, SpanKey spans) throws IOException {
+        if (spans == null) {
+            out.writeInt(NULL_SPANS);
+            return;
+        }
+        out.writeInt(spans.getRunCount());
+        for (int run = 0; run < spans.getRunCount(); run++) {
+            out.writeInt(spans.getRunStart(run));
+            out.writeInt(spans.getRunEnd(run));
+        }
+    }
+
+    private static SpanKey readSpans(DataInputStream in) throws IOException {
+        int runCount = in.readInt();
+        if (runCount == NULL_SPANS) {
+            return null;
+        }
+        int[] runs = new int[runCount * 2];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = in.readInt();
+        }
+        return SpanKey.ofRanges(runs);
+    }
+}
@@ -27,59 +27,557 @@ package edu.brandeis.llc.mae.agreement.io;
 import edu.brandeis.llc.mae.database.MaeDBException;
 import edu.brandeis.llc.mae.database.MaeDriverI;
 import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.ParsedArg;
+import edu.brandeis.llc.mae.io.ParsedAtt;
+import edu.brandeis.llc.mae.io.ParsedTag;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Created by krim on 4/23/2016.
+ * Holds XML parses of annotation files, grouped by documents. Files are
+ * parsed concurrently on a pool of worker threads, either on demand or ahead
+ * of time via {@link #prewarm()}, and a caller asking for parses of a document
+ * only waits for that document. A file that fails to parse is left out (as if
+ * the annotator did not annotate the document) and reported in
+ * {@link #getParseWarnings()}.
+ * <p>
+ * While parsing, the task name and a digest of the primary text of each file
+ * are recorded in a {@link FileSummary}, so that a dataset can be validated
+ * without reading files again.
+ * <p>
+ * The cache is bounded by a number of documents and by estimated heap bytes
+ * of their parses. Least recently used documents over the bounds are evicted
+ * to a {@link ParseSpillFile} and read back from there when requested again.
  */
 public class XMLParseCache {
-    private Map<String, MaeXMLParser[]> parseCache;
-    private MaeDriverI driver;
-    private AbstractAnnotationIndexer fileIdx;
-    private Map<String, String> parseWarnings;
 
-    public XMLParseCache(MaeDriverI driver, AbstractAnnotationIndexer fileIdx) {
-        this.driver = driver;
+    private static final Logger logger = LoggerFactory.getLogger(XMLParseCache.class.getName());
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private final TaskSchema schema;
+    private final AbstractAnnotationIndexer fileIdx;
+    private final Map<String, String> parseWarnings;
+    private final Map<String, FileSummary> fileSummaries;
+    private final ThreadPoolExecutor executor;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // all guarded by this
+    private final LinkedHashMap<String, CompletableFuture<MaeXMLParser[]>> parseCache;
+    private final Map<String, Long> residentBytes;
+    private final Map<String, MaeXMLParser[]> spilling;
+    private long totalResidentBytes;
+
+    private final ParseSpillFile spillFile;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong parseCount = new AtomicLong();
+    private final AtomicLong spillReadCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public XMLParseCache(MaeDriverI driver, AbstractAnnotationIndexer fileIdx) throws MaeDBException {
+        this(driver.getTaskSchema(), fileIdx, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a cache bounded to a quarter of the maximum heap size.
+     */
+    public XMLParseCache(TaskSchema schema, AbstractAnnotationIndexer fileIdx, int numThreads) {
+        this(schema, fileIdx, numThreads, Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    public XMLParseCache(TaskSchema schema, AbstractAnnotationIndexer fileIdx, int numThreads,
+                         int maxEntries, long maxBytes) {
+        this.schema = schema;
         this.fileIdx = fileIdx;
-        this.parseCache = new HashMap<>();
-        this.parseWarnings = new HashMap<>();
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.parseCache = new LinkedHashMap<>(16, 0.75f, true);
+        this.residentBytes = new HashMap<>();
+        this.spilling = new HashMap<>();
+        this.parseWarnings = new ConcurrentSkipListMap<>();
+        this.fileSummaries = new ConcurrentHashMap<>();
+        this.spillFile = new ParseSpillFile();
+        int poolId = poolCount.incrementAndGet();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, String.format("mae-parse-%d-%d", poolId, threadCount.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        // idle workers go away once the corpus is parsed
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public TaskSchema getTaskSchema() {
+        return schema;
+    }
+
+    /**
+     * Schedules parsing of all documents in the index, in the order of the
+     * index, without waiting for them.
+     */
+    public void prewarm() {
+        prewarm(fileIdx.getDocumentNames());
+    }
+
+    /**
+     * Schedules parsing of given documents, in the given order, without
+     * waiting for them.
+     */
+    public void prewarm(Collection<String> docNames) {
+        for (String docName : docNames) {
+            getOrSubmitXMLParse(docName);
+        }
     }
 
     public MaeXMLParser[] getParses(String docName) throws IOException, SAXException, MaeDBException {
-        return getOrCacheXMLParse(docName);
+        try {
+            return getOrSubmitXMLParse(docName).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while parsing annotations of " + docName);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to parse annotations of " + docName, e.getCause());
+        }
+    }
+
+    private synchronized CompletableFuture<MaeXMLParser[]> getOrSubmitXMLParse(String docName) {
+        CompletableFuture<MaeXMLParser[]> parses = parseCache.get(docName);
+        if (parses != null) {
+            hitCount.incrementAndGet();
+            return parses;
+        }
+        CompletableFuture<MaeXMLParser[]> loading;
+        if (spilling.containsKey(docName)) {
+            // evicted, but not written out yet; taken back on a worker so
+            // that accounting and eviction don't run under this lock
+            MaeXMLParser[] evicted = spilling.remove(docName);
+            loading = CompletableFuture.supplyAsync(() -> evicted, executor);
+        } else if (spillFile.contains(docName)) {
+            loading = CompletableFuture.supplyAsync(() -> readSpilled(docName), executor);
+        } else {
+            loading = submitXMLParse(docName);
+        }
+        // callers are released only after the loaded entry is accounted for
+        CompletableFuture<MaeXMLParser[]> accounted = new CompletableFuture<>();
+        parseCache.put(docName, accounted);
+        loading.whenComplete((loaded, failure) -> {
+            if (failure != null) {
+                accounted.completeExceptionally(failure);
+            } else {
+                onLoaded(docName, loaded, accounted);
+            }
+        });
+        return accounted;
     }
 
-    private MaeXMLParser[] getOrCacheXMLParse(String docName) throws MaeDBException, IOException, SAXException {
-        if (!this.parseCache.containsKey(docName)) {
-            parseCache.put(docName, cacheXMLParse(docName));
+    private MaeXMLParser[] readSpilled(String docName) {
+        try {
+            spillReadCount.incrementAndGet();
+            return spillFile.read(docName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return parseCache.get(docName);
     }
 
-    private MaeXMLParser[] cacheXMLParse(String docName) throws MaeDBException, IOException, SAXException {
+    private CompletableFuture<MaeXMLParser[]> submitXMLParse(String docName) {
         // this var would only hold xml files of approved annotators, and so would the cache
         String[] xmlFilesToCache = fileIdx.getAnnotationsOfDocument(docName);
-        MaeXMLParser[] parses = new MaeXMLParser[xmlFilesToCache.length];
-        for (int i = 0; i < xmlFilesToCache.length; i++) {
-            String fileName = xmlFilesToCache[i];
-            if (fileName != null) {
-                MaeXMLParser parser = new MaeXMLParser(driver);
-                parser.readAnnotationFile(new File(fileName));
-                parses[i] = parser;
-                if (parser.getParseWarnings().length() > 0) {
-                    this.parseWarnings.put(fileName, parser.getParseWarnings());
+        List<CompletableFuture<MaeXMLParser>> fileParses = new ArrayList<>(xmlFilesToCache.length);
+        for (String fileName : xmlFilesToCache) {
+            if (fileName == null) {
+                fileParses.add(CompletableFuture.completedFuture(null));
+            } else {
+                fileParses.add(CompletableFuture.supplyAsync(() -> parseFile(fileName), executor));
+            }
+        }
+        return CompletableFuture.allOf(fileParses.toArray(new CompletableFuture<?>[fileParses.size()]))
+                .thenApply(done -> {
+                    MaeXMLParser[] parses = new MaeXMLParser[fileParses.size()];
+                    for (int i = 0; i < parses.length; i++) {
+                        parses[i] = fileParses.get(i).join();
+                    }
+                    return parses;
+                });
+    }
+
+    private MaeXMLParser parseFile(String fileName) {
+        parseCount.incrementAndGet();
+        MaeXMLParser parser = new MaeXMLParser(schema);
+        try {
+            parser.readAnnotationFile(new File(fileName));
+        } catch (IOException | SAXException | MaeDBException | RuntimeException e) {
+            // e.g. malformed offsets; one bad file must not fail the whole document
+            String message = "failed to parse, excluded from calculation: " + e.getMessage();
+            logger.error(String.format("%s: %s", fileName, message));
+            this.parseWarnings.put(fileName, message);
+            this.fileSummaries.put(fileName, new FileSummary(e.getMessage()));
+            return null;
+        }
+        if (parser.getParseWarnings().length() > 0) {
+            this.parseWarnings.put(fileName, parser.getParseWarnings());
+        }
+        String primaryText = parser.getParsedPrimaryText();
+        this.fileSummaries.put(fileName, new FileSummary(parser.getParsed().getTaskName(),
+                digest(primaryText), primaryText == null ? 0 : primaryText.length()));
+        return parser;
+    }
+
+    private static byte[] digest(String text) {
+        if (text == null) {
+            return new byte[0];
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void onLoaded(String docName, MaeXMLParser[] parses,
+                          CompletableFuture<MaeXMLParser[]> accounted) {
+        Map<String, MaeXMLParser[]> victims = Collections.emptyMap();
+        synchronized (this) {
+            // otherwise closed in the meantime
+            if (parseCache.get(docName) == accounted) {
+                long bytes = estimateBytes(parses);
+                residentBytes.put(docName, bytes);
+                totalResidentBytes += bytes;
+                victims = pickVictims(docName);
+            }
+        }
+        // spilling writes to disk and completion runs dependent stages of
+        // waiting callers; neither should hold up other threads on the cache
+        try {
+            spill(victims);
+        } finally {
+            accounted.complete(parses);
+        }
+    }
+
+    /**
+     * Takes least recently used, fully loaded documents out of the cache until
+     * it is within its bounds. The document just loaded is kept, even when it
+     * alone exceeds the byte bound. Taken documents stay readable from
+     * {@link #spilling} until {@link #spill(Map)} has written them.
+     */
+    private Map<String, MaeXMLParser[]> pickVictims(String justLoaded) {
+        Map<String, MaeXMLParser[]> victims = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, CompletableFuture<MaeXMLParser[]>>> entries = parseCache.entrySet().iterator();
+        while ((residentBytes.size() > maxEntries || totalResidentBytes > maxBytes) && entries.hasNext()) {
+            Map.Entry<String, CompletableFuture<MaeXMLParser[]>> entry = entries.next();
+            String docName = entry.getKey();
+            if (docName.equals(justLoaded) || !residentBytes.containsKey(docName)) {
+                continue;
+            }
+            MaeXMLParser[] parses = entry.getValue().getNow(null);
+            victims.put(docName, parses);
+            spilling.put(docName, parses);
+            entries.remove();
+            totalResidentBytes -= residentBytes.remove(docName);
+            evictionCount.incrementAndGet();
+        }
+        return victims;
+    }
+
+    /**
+     * Writes evicted documents to the spill file, outside the cache lock.
+     */
+    private void spill(Map<String, MaeXMLParser[]> victims) {
+        for (Map.Entry<String, MaeXMLParser[]> victim : victims.entrySet()) {
+            String docName = victim.getKey();
+            try {
+                if (!executor.isShutdown() && !spillFile.contains(docName)) {
+                    spillFile.write(docName, victim.getValue());
+                }
+            } catch (IOException e) {
+                // an entry that cannot be spilled is simply parsed again when requested
+                logger.warn(String.format("failed to spill parses of %s: %s", docName, e.getMessage()));
+            } finally {
+                synchronized (this) {
+                    spilling.remove(docName, victim.getValue());
                 }
             }
         }
-        return parses;
     }
 
+    /**
+     * Roughly estimates heap bytes taken by parses of a document, counting
+     * strings, span arrays and object headers.
+     */
+    static long estimateBytes(MaeXMLParser[] parses) {
+        long bytes = 16 + 8L * parses.length;
+        for (MaeXMLParser parse : parses) {
+            if (parse == null) {
+                continue;
+            }
+            bytes += 64 + stringBytes(parse.getParsedPrimaryText());
+            for (ParsedTag tag : parse.getParsedTags()) {
+                bytes += 48 + stringBytes(tag.getTid()) + stringBytes(tag.getText())
+                        + (tag.getSpanKey() == null ? 0 : 40 + 8L * tag.getSpanKey().getRunCount());
+            }
+            for (ParsedAtt att : parse.getParsedAtts()) {
+                bytes += 40 + stringBytes(att.getTid()) + stringBytes(att.getAttValue());
+            }
+            for (ParsedArg arg : parse.getParsedArgs()) {
+                bytes += 40 + stringBytes(arg.getTid()) + stringBytes(arg.getArgTid());
+            }
+        }
+        return bytes;
+    }
+
+    private static long stringBytes(String string) {
+        return string == null ? 0 : 40 + 2L * string.length();
+    }
+
+    /**
+     * Returns parse warnings keyed by file names. Waits for all scheduled
+     * parsing to finish, so that the warnings are complete, unless the
+     * waiting thread is interrupted.
+     */
     public Map<String, String> getParseWarnings() {
+        try {
+            awaitScheduled();
+        } catch (InterruptedIOException e) {
+            // the interrupt is kept for the caller; warnings so far are returned
+        }
         return this.parseWarnings;
     }
+
+    /**
+     * Waits for all scheduled parsing to finish, whether successfully or not.
+     * @throws InterruptedIOException when the waiting thread is interrupted;
+     * parsing goes on until the cache is closed
+     */
+    public void awaitScheduled() throws InterruptedIOException {
+        awaitScheduled((docName, done, total) -> { });
+    }
+
+    /**
+     * Waits for all scheduled parsing to finish, whether successfully or not,
+     * telling the listener as each document is done, in the scheduled order.
+     * @throws InterruptedIOException when the waiting thread is interrupted;
+     * parsing goes on until the cache is closed
+     */
+    public void awaitScheduled(ProgressListener listener) throws InterruptedIOException {
+        Map<String, CompletableFuture<MaeXMLParser[]>> scheduled;
+        synchronized (this) {
+            scheduled = new LinkedHashMap<>(parseCache);
+        }
+        int done = 0;
+        for (Map.Entry<String, CompletableFuture<MaeXMLParser[]>> parses : scheduled.entrySet()) {
+            try {
+                parses.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for parsing");
+            } catch (ExecutionException | CancellationException ignored) {
+                // failures are already logged as parse warnings
+            }
+            listener.documentLoaded(parses.getKey(), ++done, scheduled.size());
+        }
+    }
+
+    /**
+     * Returns what was seen while parsing a file. Summaries are kept even
+     * after parses are evicted.
+     * @return a summary, or null if the file is not parsed (yet)
+     */
+    public FileSummary getFileSummary(String fileName) {
+        return fileSummaries.get(fileName);
+    }
+
+    /**
+     * Tells whether any annotation file of a document had problems when
+     * parsed. Only meaningful once the document is parsed.
+     */
+    public boolean hasParseWarnings(String docName) {
+        for (String fileName : fileIdx.getAnnotationsOfDocument(docName)) {
+            if (fileName != null && parseWarnings.containsKey(fileName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized Statistics getStatistics() {
+        return new Statistics(hitCount.get(), parseCount.get(), spillReadCount.get(), evictionCount.get(),
+                parseCache.size(), totalResidentBytes, spillFile.size(), spillFile.length());
+    }
+
+    /**
+     * Stops worker threads and deletes the spill file. The cache is not
+     * usable afterwards.
+     */
+    public synchronized void close() {
+        executor.shutdownNow();
+        parseCache.clear();
+        residentBytes.clear();
+        spilling.clear();
+        totalResidentBytes = 0;
+        spillFile.delete();
+    }
+
+    /**
+     * Receives progress of {@link #awaitScheduled(ProgressListener)}.
+     */
+    public interface ProgressListener {
+
+        void documentLoaded(String docName, int loaded, int total);
+    }
+
+    /**
+     * Task name and primary text digest of a parsed file, or the error that
+     * made parsing fail.
+     */
+    public static class FileSummary {
+        private final String taskName;
+        private final byte[] textDigest;
+        private final int textLength;
+        private final String parseError;
+
+        FileSummary(String taskName, byte[] textDigest, int textLength) {
+            this.taskName = taskName;
+            this.textDigest = textDigest;
+            this.textLength = textLength;
+            this.parseError = null;
+        }
+
+        FileSummary(String parseError) {
+            this.taskName = null;
+            this.textDigest = null;
+            this.textLength = 0;
+            this.parseError = parseError;
+        }
+
+        public String getTaskName() {
+            return taskName;
+        }
+
+        public int getTextLength() {
+            return textLength;
+        }
+
+        /**
+         * @return null if the file is parsed successfully
+         */
+        public String getParseError() {
+            return parseError;
+        }
+
+        public boolean hasSameText(FileSummary other) {
+            return textLength == other.textLength && MessageDigest.isEqual(textDigest, other.textDigest);
+        }
+    }
+
+    /**
+     * A snapshot of cache counters.
+     */
+    public static class Statistics {
+        private final long hitCount;
+        private final long parsedFileCount;
+        private final long spillReadCount;
+        private final long evictionCount;
+        private final int residentCount;
+        private final long residentBytes;
+        private final int spilledCount;
+        private final long spillFileBytes;
+
+        Statistics(long hitCount, long parsedFileCount, long spillReadCount, long evictionCount,
+                   int residentCount, long residentBytes, int spilledCount, long spillFileBytes) {
+            this.hitCount = hitCount;
+            this.parsedFileCount = parsedFileCount;
+            this.spillReadCount = spillReadCount;
+            this.evictionCount = evictionCount;
+            this.residentCount = residentCount;
+            this.residentBytes = residentBytes;
+            this.spilledCount = spilledCount;
+            this.spillFileBytes = spillFileBytes;
+        }
+
+        /**
+         * @return number of requests for documents found on memory
+         */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * @return number of XML files parsed
+         */
+        public long getParsedFileCount() {
+            return parsedFileCount;
+        }
+
+        /**
+         * @return number of documents read back from the spill file
+         */
+        public long getSpillReadCount() {
+            return spillReadCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * @return number of documents on memory, including ones being loaded
+         */
+        public int getResidentCount() {
+            return residentCount;
+        }
+
+        /**
+         * @return estimated heap bytes of loaded documents on memory
+         */
+        public long getResidentBytes() {
+            return residentBytes;
+        }
+
+        public int getSpilledCount() {
+            return spilledCount;
+        }
+
+        public long getSpillFileBytes() {
+            return spillFileBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits: %d, parsed files: %d, spill reads: %d, evictions: %d, " +
+                            "resident: %d docs (~%d bytes), spilled: %d docs (%d bytes)",
+                    hitCount, parsedFileCount, spillReadCount, evictionCount,
+                    residentCount, residentBytes, spilledCount, spillFileBytes);
+        }
+    }
 }
@@ -37,11 +37,13 @@ import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.*;
  */
 class AgreementTypeSelectPanel extends JPanel {
     private String tagTypeName;
+    private boolean linkTag;
     private JComboBox<String> scopeCombo;
     private JComboBox<String> metricTypeCombo;
 
-    public AgreementTypeSelectPanel(String tagTypeName) {
+    public AgreementTypeSelectPanel(String tagTypeName, boolean linkTag) {
         this.tagTypeName = tagTypeName;
+        this.linkTag = linkTag;
         this.initUI();
     }
 
@@ -115,7 +117,10 @@ class AgreementTypeSelectPanel extends JPanel {
     private void prepareScopeCombobox() {
         scopeCombo = new JComboBox<>();
         for (String SCOPE : SCOPE_TYPE_STRINGS) {
-            scopeCombo.addItem(SCOPE);
+            // links are matched by their arguments, which only makes sense for tag-level labeling
+            if (!linkTag || SCOPE.equals(SCOPE_IGNORE_STRING) || SCOPE.equals(SCOPE_LOCAL_LABELING_STRING)) {
+                scopeCombo.addItem(SCOPE);
+            }
         }
         scopeCombo.addActionListener(e -> {
             if (((String) scopeCombo.getSelectedItem()).contains(SCOPE_LABELING_STRING)) {
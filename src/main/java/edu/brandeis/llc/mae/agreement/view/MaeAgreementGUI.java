@@ -28,12 +28,13 @@ import edu.brandeis.llc.mae.MaeException;
 import edu.brandeis.llc.mae.MaeStrings;
 import edu.brandeis.llc.mae.agreement.MaeAgreementMain;
 import edu.brandeis.llc.mae.agreement.MaeAgreementStrings;
+import edu.brandeis.llc.mae.agreement.calculator.AgreementEngine;
 import edu.brandeis.llc.mae.database.LocalSqliteDriverImpl;
 import edu.brandeis.llc.mae.database.MaeDBException;
 import edu.brandeis.llc.mae.database.MaeDriverI;
 import edu.brandeis.llc.mae.io.MaeIOException;
+import edu.brandeis.llc.mae.model.TagType;
 import edu.brandeis.llc.mae.util.MappedSet;
-import org.xml.sax.SAXException;
 
 import javax.swing.*;
 import java.awt.*;
@@ -44,6 +45,9 @@ import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.ALL_METRIC_TYPE_STRINGS;
 
@@ -64,6 +68,7 @@ public class MaeAgreementGUI extends JFrame {
 //    JPanel rightPanel;
 
     private MappedSet<String, String> tagsAndAtts;
+    private Set<String> linkTagTypeNames;
     private List<AgreementTypeSelectPanel> agrTypeSelectPanels;
     private AttTypeSelectPanel attTypeSelectionPanel;
     private JCheckBox allowMultiTaggingBox;
@@ -80,9 +85,13 @@ public class MaeAgreementGUI extends JFrame {
         setupDriver();
         this.calc = new MaeAgreementMain(this.driver);
 
-        // currently only support extent tags
-        // TODO: 2016-04-17 17:53:40EDT think of a way to handle link tags
+        // link tags can be only measured on tag level, with links matched by their arguments
         this.tagsAndAtts = driver.getTagTypesAndAttTypes();
+        this.linkTagTypeNames = new HashSet<>();
+        for (TagType linkTagType : driver.getLinkTagTypes()) {
+            linkTagTypeNames.add(linkTagType.getName());
+            tagsAndAtts.putItem(linkTagType.getName(), MaeAgreementStrings.ARGS_ATT);
+        }
 
         this.datasetDir = null;
         this.agrTypeSelectPanels = new LinkedList<>();
@@ -393,7 +402,7 @@ public class MaeAgreementGUI extends JFrame {
     private void onOk() {
         try {
             computeAgreement();
-        } catch (IOException | MaeException | SAXException | RuntimeException e) {
+        } catch (RuntimeException e) {
             JOptionPane.showMessageDialog(null, e.getMessage(), MaeStrings.ERROR_POPUP_TITLE, JOptionPane.WARNING_MESSAGE);
             e.printStackTrace();
         }
@@ -424,7 +433,8 @@ public class MaeAgreementGUI extends JFrame {
         agrTypeList.setLayout(new BoxLayout(agrTypeList, BoxLayout.Y_AXIS));
 
         for (String tagTypeName : tagsAndAtts.keyList()) {
-            AgreementTypeSelectPanel tagTypePanel = new AgreementTypeSelectPanel(tagTypeName);
+            AgreementTypeSelectPanel tagTypePanel = new AgreementTypeSelectPanel(
+                    tagTypeName, linkTagTypeNames.contains(tagTypeName));
             agrTypeSelectPanels.add(tagTypePanel);
             agrTypeList.add(tagTypePanel);
             agrTypeList.add(Box.createVerticalStrut(8));
@@ -436,12 +446,10 @@ public class MaeAgreementGUI extends JFrame {
         return agrTypeListScroller;
     }
 
-    private void computeAgreement() throws IOException, MaeException, SAXException {
+    private void computeAgreement() {
         if (datasetDir == null) {
             JOptionPane.showMessageDialog(null, "Choose dataset path first!");
         } else {
-            calc.loadXmlFiles();
-
             Map<String, MappedSet<String, String>> global = new TreeMap<>();
             Map<String, MappedSet<String, String>> local = new TreeMap<>();
 
@@ -462,40 +470,199 @@ public class MaeAgreementGUI extends JFrame {
                     }
                 }
             }
-            String result = "Please make sure you understand differences between metrices before you use these numbers. See the MAE wiki for more details.\n\n";
-            result += calc.calcGlobalAgreementToString(global, allowMultiTaggingBox.isSelected());
-            result += calc.calcLocalAgreementToString(local, allowMultiTaggingBox.isSelected());
-
-            Map<String, String> parseWarnings = calc.getParseWarnings();
-            if (parseWarnings.size() > 0) {
-                StringBuilder warnings = new StringBuilder();
-                for (String fileName : parseWarnings.keySet()) {
-                    warnings.append(String.format("%s: \n %s\n  ===\n\n", fileName, parseWarnings.get(fileName)));
+            new AgreementWorker(global, local, allowMultiTaggingBox.isSelected()).start();
+        }
+    }
+
+    /**
+     * Loads the dataset and computes agreements in the background, while a
+     * progress dialog shows per-document progress and each agreement as soon
+     * as it's computed. Closing or cancelling the dialog cancels the
+     * computation. The main window stays disabled until the background work
+     * actually returns, as it works on the shared agreement state.
+     */
+    private class AgreementWorker extends SwingWorker<String, String> {
+
+        private static final int NOT_STARTED = 0;
+        private static final int RUNNING = 1;
+        private static final int RELEASED = 2;
+
+        private final Map<String, MappedSet<String, String>> global;
+        private final Map<String, MappedSet<String, String>> local;
+        private final boolean allowMultiTagging;
+        private final JDialog progressDialog;
+        private final JProgressBar progressBar;
+        private final VerboseTextArea streamedResults;
+        private final JButton cancelButton;
+        private volatile String stage = "Parsed documents";
+        private volatile int processedDocuments;
+        private volatile int totalDocuments;
+        // NOT_STARTED -> RUNNING -> RELEASED, or NOT_STARTED -> RELEASED when cancelled before running
+        private final AtomicInteger state = new AtomicInteger(NOT_STARTED);
+
+        AgreementWorker(Map<String, MappedSet<String, String>> global,
+                        Map<String, MappedSet<String, String>> local,
+                        boolean allowMultiTagging) {
+            this.global = global;
+            this.local = local;
+            this.allowMultiTagging = allowMultiTagging;
+
+            progressBar = new JProgressBar(0, 100);
+            progressBar.setIndeterminate(true);
+            progressBar.setStringPainted(true);
+            progressBar.setString("Loading dataset...");
+            streamedResults = new VerboseTextArea("");
+            streamedResults.setPreferredSize(new Dimension(600, 300));
+            cancelButton = new JButton("Cancel");
+            cancelButton.addActionListener(e -> cancel(true));
+
+            JPanel progressPanel = new JPanel(new BorderLayout(8, 8));
+            progressPanel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+            progressPanel.add(progressBar, BorderLayout.NORTH);
+            progressPanel.add(streamedResults, BorderLayout.CENTER);
+            progressPanel.add(prepareRightAlignedButtonPanel(cancelButton), BorderLayout.SOUTH);
+            progressDialog = new JDialog(MaeAgreementGUI.this, "Computing agreements", false);
+            progressDialog.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+            progressDialog.addWindowListener(new WindowAdapter() {
+                public void windowClosing(WindowEvent e) {
+                    cancel(true);
                 }
-                JOptionPane.showMessageDialog(null, new JTextArea(warnings.toString()), "Some problems found in the dataset", JOptionPane.PLAIN_MESSAGE);
+            });
+            progressDialog.setContentPane(progressPanel);
+            progressDialog.pack();
+            progressDialog.setLocationRelativeTo(MaeAgreementGUI.this);
+
+            addPropertyChangeListener(event -> {
+                if ("progress".equals(event.getPropertyName()) && !isCancelled()) {
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue((Integer) event.getNewValue());
+                    progressBar.setString(String.format("%s: %d/%d", stage, processedDocuments, totalDocuments));
+                }
+            });
+        }
+
+        void start() {
+            MaeAgreementGUI.this.setEnabled(false);
+            progressDialog.setVisible(true);
+            execute();
+        }
 
+        @Override
+        protected String doInBackground() throws Exception {
+            if (!state.compareAndSet(NOT_STARTED, RUNNING)) {
+                return null;
             }
+            try {
+                AgreementEngine.Listener listener = new AgreementEngine.Listener() {
+                    @Override
+                    public void documentParsed(String document, int parsed, int total) {
+                        showProgress("Parsed documents", parsed, total);
+                    }
+
+                    @Override
+                    public void documentProcessed(String document, int processed, int total) {
+                        showProgress("Processed documents", processed, total);
+                    }
 
-            String[] resultButtons = new String[]{
-                    "Close",
-                    "Export to a file",
-                    MaeStrings.MENU_HELP
-            };
-            JPanel resultPanel = new JPanel(new BorderLayout());
-            resultPanel.add(new VerboseTextArea("Please make sure you understand differences between metrices before you use these numbers. See the MAE wiki for more details."), BorderLayout.NORTH);
-            JScrollPane scrollableText = new JScrollPane(new JTextArea(result));
-            scrollableText.setPreferredSize(new Dimension(400, 600));
-            resultPanel.add(scrollableText);
-            int export = JOptionPane.showOptionDialog(null,
-                    resultPanel, "Inter-Annotator Agreements",
-                    JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE,
-                    null, resultButtons, resultButtons[0]);
-            if (export == 1) {
-                exportResult(result);
-            } else if (export == resultButtons.length - 1) {
-                openWebsite(MaeStrings.IAA_HELP_WEBPAGE);
+                    @Override
+                    public void agreementCalculated(boolean crossTag, String metricType, String key, double agreement) {
+                        String scope = crossTag ? MaeAgreementStrings.SCOPE_CROSSTAG_STRING : MaeAgreementStrings.SCOPE_LOCAL_STRING;
+                        publish(calc.agreementToString(String.format("<%s> %s", scope, metricType), key, agreement));
+                    }
+                };
+                calc.loadXmlFiles(listener);
+                return calc.calcAgreementToString(global, local, allowMultiTagging, listener);
+            } finally {
+                SwingUtilities.invokeLater(this::release);
             }
         }
+
+        private void showProgress(String stage, int done, int total) {
+            this.stage = stage;
+            processedDocuments = done;
+            totalDocuments = total;
+            setProgress(done * 100 / total);
+        }
+
+        /**
+         * Gives the main window back, once nothing runs in the background.
+         */
+        private void release() {
+            state.set(RELEASED);
+            progressDialog.dispose();
+            MaeAgreementGUI.this.setEnabled(true);
+        }
+
+        @Override
+        protected void process(List<String> chunks) {
+            for (String agreement : chunks) {
+                streamedResults.append(agreement);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                if (state.compareAndSet(NOT_STARTED, RELEASED)) {
+                    release();
+                } else {
+                    // cancelled while running; released when the background work returns
+                    cancelButton.setEnabled(false);
+                    progressBar.setIndeterminate(true);
+                    progressBar.setString("Cancelling...");
+                }
+                return;
+            }
+            try {
+                showResult(get());
+            } catch (InterruptedException | CancellationException e) {
+                // cancelled by the user
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (!(cause instanceof CancellationException)) {
+                    JOptionPane.showMessageDialog(null, cause.getMessage(), MaeStrings.ERROR_POPUP_TITLE, JOptionPane.WARNING_MESSAGE);
+                    cause.printStackTrace();
+                }
+            } catch (IOException | MaeException | RuntimeException e) {
+                JOptionPane.showMessageDialog(null, e.getMessage(), MaeStrings.ERROR_POPUP_TITLE, JOptionPane.WARNING_MESSAGE);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void showResult(String agreements) throws IOException, MaeException {
+        String result = "Please make sure you understand differences between metrices before you use these numbers. See the MAE wiki for more details.\n\n";
+        result += agreements;
+
+        Map<String, String> parseWarnings = calc.getParseWarnings();
+        if (parseWarnings.size() > 0) {
+            StringBuilder warnings = new StringBuilder();
+            for (String fileName : parseWarnings.keySet()) {
+                warnings.append(String.format("%s: \n %s\n  ===\n\n", fileName, parseWarnings.get(fileName)));
+            }
+            JOptionPane.showMessageDialog(null, new JTextArea(warnings.toString()), "Some problems found in the dataset", JOptionPane.PLAIN_MESSAGE);
+
+        }
+
+        String[] resultButtons = new String[]{
+                "Close",
+                "Export to a file",
+                MaeStrings.MENU_HELP
+        };
+        JPanel resultPanel = new JPanel(new BorderLayout());
+        resultPanel.add(new VerboseTextArea("Please make sure you understand differences between metrices before you use these numbers. See the MAE wiki for more details."), BorderLayout.NORTH);
+        JScrollPane scrollableText = new JScrollPane(new JTextArea(result));
+        scrollableText.setPreferredSize(new Dimension(400, 600));
+        resultPanel.add(scrollableText);
+        int export = JOptionPane.showOptionDialog(null,
+                resultPanel, "Inter-Annotator Agreements",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE,
+                null, resultButtons, resultButtons[0]);
+        if (export == 1) {
+            exportResult(result);
+        } else if (export == resultButtons.length - 1) {
+            openWebsite(MaeStrings.IAA_HELP_WEBPAGE);
+        }
     }
 
     private void exportResult(String result) throws MaeDBException, IOException {
@@ -32,9 +32,11 @@ import java.awt.*;
  */
 public class VerboseTextArea extends JScrollPane {
 
+    private final JTextArea textArea;
+
     public VerboseTextArea(String text) {
         super();
-        JTextArea textArea = new JTextArea(text);
+        textArea = new JTextArea(text);
 
         textArea.setLineWrap(true);
         textArea.setWrapStyleWord(true);
@@ -47,4 +49,12 @@ public class VerboseTextArea extends JScrollPane {
         setViewportView(textArea);
         setBorder(BorderFactory.createEmptyBorder());
     }
+
+    /**
+     * Appends text at the end and scrolls down to it. Must be called on the EDT.
+     */
+    public void append(String text) {
+        textArea.append(text);
+        textArea.setCaretPosition(textArea.getDocument().getLength());
+    }
 }
@@ -33,6 +33,7 @@ import edu.brandeis.llc.mae.controller.textpanel.TextPanelController;
 import edu.brandeis.llc.mae.database.LocalSqliteDriverImpl;
 import edu.brandeis.llc.mae.database.MaeDBException;
 import edu.brandeis.llc.mae.database.MaeDriverI;
+import edu.brandeis.llc.mae.io.AnnotationJournal;
 import edu.brandeis.llc.mae.io.MaeIOException;
 import edu.brandeis.llc.mae.model.*;
 import edu.brandeis.llc.mae.preferences.MaeBooleanOption;
@@ -739,6 +740,7 @@ public class MaeMainController extends JPanel {
             xmlParseWarnings = getDriver().readAnnotation(annotationFile);
             logger.info(String.format("document \"%s\" is loaded into DB.",
                     getDriver().getAnnotationFileBaseName()));
+            xmlParseWarnings = startJournal(xmlParseWarnings);
 
         } catch (Exception e) {
             destroyIncompleteDriver(); // this includes resetting statBar
@@ -756,6 +758,34 @@ public class MaeMainController extends JPanel {
         showXMLParsingWarnings(xmlParseWarnings);
     }
 
+    /**
+     * Replays edits left in a journal by a previous session that did not end
+     * cleanly, then starts journaling edits on the current document. A
+     * journal written against another version of the annotation file is set
+     * aside instead.
+     */
+    private String startJournal(String xmlParseWarnings) throws MaeException {
+        AnnotationJournal journal = new AnnotationJournal(
+                AnnotationJournal.getJournalFile(getDriver().getAnnotationFileName()));
+        String journalMessage = null;
+        if (!journal.isBasedOnCurrentFile()) {
+            File setAside = journal.setAside();
+            journalMessage = MaeStrings.getJournalStaleMsg(getDriver().getAnnotationFileBaseName(), setAside.getName());
+            logger.warn(journalMessage);
+        } else {
+            int recovered = journal.replay(getDriver());
+            if (recovered > 0) {
+                journalMessage = MaeStrings.getJournalRecoveredMsg(getDriver().getAnnotationFileBaseName(), recovered);
+                logger.info(journalMessage);
+            }
+        }
+        getDriver().setJournal(journal);
+        if (journalMessage != null) {
+            return xmlParseWarnings.length() > 0 ? xmlParseWarnings + "\n\n" + journalMessage : journalMessage;
+        }
+        return xmlParseWarnings;
+    }
+
     private void showXMLParsingWarnings(String xmlParseWarnings) {
         if (xmlParseWarnings.length() > 0) {
             if (xmlParseWarnings.startsWith(MaeStrings.FILE_NOT_XML_ERR)) {
@@ -775,7 +805,7 @@ public class MaeMainController extends JPanel {
             try {
                 addAndSwitchDriver(setUpDriver(new File(getDriver().getTaskFileName()))); // will set up a new dirver for GS
                 getDrivers().add(adjudDriverIndex, getDrivers().remove(getDrivers().size() - 1)); // move gold driver to the front
-                String xmlParseWarnings = getDriver().readAnnotation(goldstandard);
+                String xmlParseWarnings = startJournal(getDriver().readAnnotation(goldstandard));
                 getTextPanel().addAdjudicationTab(goldstandard.getName(), getDriver().getPrimaryText());
                 getTablePanel().prepareAllTables();
                 switchAdjudicationTag();
@@ -1096,6 +1126,14 @@ public class MaeMainController extends JPanel {
         }
     }
 
+    /**
+     * Recolors anchors of the tag type in the background. A later call
+     * cancels coloring still in progress, and takes over its tag types.
+     */
+    public void assignTextColorsOf(TagType tagType) {
+        getTextPanel().assignFGColorOf(tagType);
+    }
+
     void resetPaintableColors() {
         try {
             textHighlighColors = new ColorHandler(getDriver().getExtentTagTypes().size());
@@ -1174,11 +1212,7 @@ public class MaeMainController extends JPanel {
     public void setFGColor(TagType tagType, Color newColor) {
         getTextHighlightColors().setColor(newColor, tagsForColor.indexOf(tagType));
         if (getTablePanel().getActiveExtentTags().contains(tagType)) {
-            try {
-                assignTextColorsOver(getDriver().getAllAnchorLocationsOfTagType(tagType));
-            } catch (MaeDBException e) {
-                showError(e);
-            }
+            assignTextColorsOf(tagType);
         }
     }
 
@@ -27,16 +27,19 @@ package edu.brandeis.llc.mae.controller.menuaction;
 import edu.brandeis.llc.mae.controller.MaeMainController;
 import edu.brandeis.llc.mae.database.MaeDBException;
 import edu.brandeis.llc.mae.database.MaeDriverI;
+import edu.brandeis.llc.mae.io.AnnotationJournal;
 import edu.brandeis.llc.mae.model.ExtentTag;
 import edu.brandeis.llc.mae.model.LinkTag;
 import edu.brandeis.llc.mae.model.TagType;
+import edu.brandeis.llc.mae.util.FileHandler;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Writes all of current annotation into an XML file. Will set unsaved status of the
@@ -78,9 +81,15 @@ public class SaveXML extends MaeActionI {
     void exportXML(File file) throws MaeDBException, IOException {
         getMainController().getDriver().setAnnotationChanged(false);
         getMainController().getDriver().setAnnotationFileName(file.getAbsolutePath());
-        OutputStreamWriter fw = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
-        fw.write(generateXMLString());
-        fw.close();
+        // a file name ending with ".gz" gets compressed output
+        try (Writer fw = new OutputStreamWriter(FileHandler.openOutputStream(file), StandardCharsets.UTF_8)) {
+            fw.write(generateXMLString());
+        }
+        // saved file holds all edits so far, so the journal can start over next to it
+        AnnotationJournal journal = getMainController().getDriver().getJournal();
+        if (journal != null) {
+            journal.moveTo(AnnotationJournal.getJournalFile(file.getAbsolutePath()));
+        }
     }
 
     String generateXMLString() throws MaeDBException {
@@ -106,14 +115,16 @@ public class SaveXML extends MaeActionI {
         String suffix = getMainController().getSaveSuffix();
         String annotatorSuffix = suffix != null && suffix.length() > 0 ? "_" + suffix : "";
         String annotationFileName = getMainController().getDriver().getAnnotationFileName();
-        if (!annotationFileName.endsWith(".xml")) {
-            return annotationFileName + annotatorSuffix + ".xml";
+        // keep compressed documents compressed
+        String xmlExt = annotationFileName.endsWith(".xml.gz") ? ".xml.gz" : ".xml";
+        if (!annotationFileName.endsWith(xmlExt)) {
+            return annotationFileName + annotatorSuffix + xmlExt;
         }
-        String baseName = annotationFileName.substring(0, annotationFileName.length() - 4);
+        String baseName = annotationFileName.substring(0, annotationFileName.length() - xmlExt.length());
         if (annotatorSuffix.length() == 0 || baseName.endsWith(annotatorSuffix)) {
             return annotationFileName;
         } else {
-            return baseName + annotatorSuffix + ".xml";
+            return baseName + annotatorSuffix + xmlExt;
         }
     }
 }
@@ -112,7 +112,7 @@ public class HighlightToggleListener extends MouseAdapter implements ItemListene
                     deactivateTag();
                 }
                 checkAllTab();
-                tablePanelController.getMainController().assignTextColorsOver(getRelevantAnchors());
+                tablePanelController.getMainController().assignTextColorsOf(tagType);
 
             }
             tablePanelController.getMainController().updateNotificationArea();
@@ -123,11 +123,6 @@ public class HighlightToggleListener extends MouseAdapter implements ItemListene
 
     }
 
-    private java.util.List<Integer> getRelevantAnchors() throws MaeDBException {
-        return tablePanelController.getDriver().getAllAnchorLocationsOfTagType(tagType);
-
-    }
-
     private void checkAllTab() throws MaeDBException {
         TablePanelView.TogglingTabTitle allTab = tablePanelController.getTagTabTitle(0);
         if (tablePanelController.getActiveExtentTags().size() == tablePanelController.getMainController().paintableTagTypes()) {
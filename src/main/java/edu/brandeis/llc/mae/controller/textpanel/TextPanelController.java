@@ -47,6 +47,11 @@ import javax.swing.text.*;
 import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
 
 /**
  * Created by krim on 12/31/2015.
@@ -61,6 +66,20 @@ public class TextPanelController extends MaeControllerI {
     public static final Color DEFAULT_FONT_COLOR = Color.BLACK;
     public static final String DEFAULT_FONT_FAMILY = Font.MONOSPACED;
     private int currentFontSize = DEFAULT_FONT_SIZE;
+    // maps [color, underline, italic --> attributes], shared by every run of that style
+    private final Map<List<Object>, AttributeSet> fgStyles = new ConcurrentHashMap<>();
+    // runs set on the document per event, to keep the UI responsive while coloring a large text
+    private static final int FG_RUNS_PER_CHUNK = 256;
+    // one computation at a time, so that cancelled ones queued behind it never start
+    private final ExecutorService fgColoringExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mae-fg-coloring");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // coloring in the background is only scheduled, started and applied on the event dispatch thread
+    private FGColoringWorker fgColoringWorker;
+    private final Set<TagType> fgTagTypesToColor = new LinkedHashSet<>();
+    private boolean fgColoringScheduled;
 
 
     public TextPanelController(MaeMainController mainController) throws MaeDBException {
@@ -422,10 +441,12 @@ public class TextPanelController extends MaeControllerI {
 
     void unassignAnchoredFGColors() throws MaeDBException {
         List<Integer> anchorLocations = getDriver().getAllAnchorLocations();
+        FGColorRuns runs = new FGColorRuns(getDocumentText());
         int anchorIndex = 0;
         while (anchorIndex < anchorLocations.size()) {
-            anchorIndex += setFGColorAtLocation(DEFAULT_FONT_COLOR, anchorLocations.get(anchorIndex), false, false);
+            anchorIndex += runs.add(DEFAULT_FONT_COLOR, anchorLocations.get(anchorIndex), false, false);
         }
+        applyFGStyleRuns(getDocument(), runs.finish());
     }
 
     void unassignAllFGColor() throws MaeDBException {
@@ -443,98 +464,345 @@ public class TextPanelController extends MaeControllerI {
         }
     }
 
-    private int setFGColorAtLocation(Color color, int location, boolean fullOverlap, boolean partialOverlap) {
-        try {
-            DefaultStyledDocument styleDoc = getDocument();
+    private AttributeSet getFGStyle(Color color, boolean fullOverlap, boolean partialOverlap) {
+        return fgStyles.computeIfAbsent(Arrays.asList(color, fullOverlap, partialOverlap), style -> {
             SimpleAttributeSet attributeSet = new SimpleAttributeSet();
             StyleConstants.setForeground(attributeSet, color);
             StyleConstants.setUnderline(attributeSet, fullOverlap);
             StyleConstants.setItalic(attributeSet, partialOverlap);
+            return attributeSet;
+        });
+    }
+
+    private int setFGColorAtLocation(Color color, int location, boolean fullOverlap, boolean partialOverlap) {
+        try {
+            DefaultStyledDocument styleDoc = getDocument();
             int length = Character.isHighSurrogate(styleDoc.getText(location, 1).charAt(0)) ? 2 : 1;
-            styleDoc.setCharacterAttributes(location, length, attributeSet, false);
+            styleDoc.setCharacterAttributes(location, length, getFGStyle(color, fullOverlap, partialOverlap), false);
             return length;
         } catch (BadLocationException ignored) {
         }
         return 0;
     }
 
-    void assignOverlappingColorOver(List<Integer> locations, Color srcColor, boolean fullOverlap) {
-        int locIndex = 0;
-        while (locIndex < locations.size()) {
-            locIndex += setFGColorAtLocation(srcColor, locations.get(locIndex), fullOverlap, false);
-        }
-    }
-
-    public void assignOverlappingColorAt(Integer location, Color srcColor, boolean fullOverlap) {
+    private String getDocumentText() {
         DefaultStyledDocument styleDoc = getDocument();
         try {
-            if (location == 0 || !Character.isHighSurrogate(styleDoc.getText(location - 1, 1).charAt(0))) {
-                setFGColorAtLocation(srcColor, location, fullOverlap, false);
-            }
+            return styleDoc.getText(0, styleDoc.getLength());
         } catch (BadLocationException ignored) {
         }
+        return "";
     }
 
-    public void assignAllFGColor() throws MaeDBException {
-        massivelyAssignFGColors(getDriver().getAllAnchorLocations());
+    /**
+     * A run of adjacent characters to be given the same foreground style.
+     */
+    private static class FGStyleRun {
 
+        private final int start;
+        private final int end;
+        private final AttributeSet style;
+
+        FGStyleRun(int start, int end, AttributeSet style) {
+            this.start = start;
+            this.end = end;
+            this.style = style;
+        }
     }
 
-    void assignFGColorOf(TagType type) throws MaeDBException {
-        massivelyAssignFGColors(getDriver().getAllAnchorLocationsOfTagType(type));
+    private static void applyFGStyleRuns(DefaultStyledDocument styleDoc, List<FGStyleRun> runs) {
+        for (FGStyleRun run : runs) {
+            styleDoc.setCharacterAttributes(run.start, run.end - run.start, run.style, false);
+        }
     }
 
-    public void massivelyAssignFGColors(List<Integer> largeSpan) throws MaeDBException {
-        int locIndex = 0;
-        Set<TagType> activeTags = getMainController().getActiveExtentTags();
-        Set<TagType> activeLinks = getMainController().getActiveLinkTags();
+    /**
+     * Collects foreground styles character by character into runs of
+     * adjacent characters of the same style, as every setCharacterAttributes
+     * fires document events and restyles elements. Runs keep the order
+     * locations are added in, so a later style of a location still wins.
+     */
+    private class FGColorRuns {
 
-        MappedSet<Integer, TagType> existingAnchors = new MappedSet<>();
-        for (TagType tagType : activeTags) {
-            for (Integer anchor : getDriver().getAllAnchorLocationsOfTagType(tagType)) {
-                existingAnchors.putItem(anchor, tagType);
+        private final String text;
+        private final List<FGStyleRun> runs = new ArrayList<>();
+        private AttributeSet runStyle;
+        private int runStart;
+        private int runEnd;
+
+        FGColorRuns(String text) {
+            this.text = text;
+        }
+
+        /**
+         * @return the number of characters at the location, 2 for a
+         * surrogate pair, or 1 to skip a location outside the text
+         */
+        int add(Color color, int location, boolean fullOverlap, boolean partialOverlap) {
+            if (location < 0 || location >= text.length()) {
+                return 1;
+            }
+            int length = Character.isHighSurrogate(text.charAt(location)) ? 2 : 1;
+            AttributeSet style = getFGStyle(color, fullOverlap, partialOverlap);
+            if (style != runStyle || location != runEnd) {
+                closeRun();
+                runStyle = style;
+                runStart = location;
             }
+            runEnd = location + length;
+            return length;
         }
 
-        MappedSet<Integer, TagType> existingArgumentAnchors = new MappedSet<>();
-        for (TagType tagType : activeLinks) {
-            for (Integer anchor : getDriver().getAllAnchorLocationsOfTagType(tagType)) {
-                existingArgumentAnchors.putItem(anchor, tagType);
+        private void closeRun() {
+            if (runStyle != null) {
+                runs.add(new FGStyleRun(runStart, runEnd, runStyle));
+                runStyle = null;
             }
         }
 
-        while (locIndex < largeSpan.size()) {
-            Integer location = largeSpan.get(locIndex);
-            boolean plural = false;
-            boolean argument = false;
-            Color c = DEFAULT_FONT_COLOR;
+        List<FGStyleRun> finish() {
+            closeRun();
+            return runs;
+        }
+    }
 
-            if (existingAnchors.containsKey(location)) {
-                List<TagType> types = new ArrayList<>(existingAnchors.get(location));
-                if (types.size() > 0) {
-                    c = getMainController().getFGColor(types.get(0));
+    /**
+     * Styles locations by the tag types highlighted when it is made. Which
+     * types are highlighted and their colors are taken on the event dispatch
+     * thread, while anchors of those types are read in bulk by
+     * {@link #readAnchors(MaeDriverI, Collection)}, so that reading and
+     * computing styles can be done on any thread.
+     */
+    private class FGStyler {
+
+        private final Map<TagType, Color> activeTagColors = new LinkedHashMap<>();
+        private final Set<TagType> activeLinkTags;
+        private final MappedSet<Integer, TagType> existingAnchors = new MappedSet<>();
+        private final Set<Integer> existingArgumentAnchors = new HashSet<>();
+
+        FGStyler() {
+            for (TagType tagType : getMainController().getActiveExtentTags()) {
+                activeTagColors.put(tagType, getMainController().getFGColor(tagType));
+            }
+            activeLinkTags = new LinkedHashSet<>(getMainController().getActiveLinkTags());
+        }
+
+        /**
+         * Reads anchors of highlighted tag types, along with anchors of any
+         * other tag types given.
+         * @return anchor locations of each tag type read
+         */
+        Map<TagType, List<Integer>> readAnchors(MaeDriverI driver, Collection<TagType> others) throws MaeDBException {
+            Set<TagType> toRead = new LinkedHashSet<>(activeTagColors.keySet());
+            toRead.addAll(activeLinkTags);
+            toRead.addAll(others);
+            Map<TagType, List<Integer>> anchors = driver.readAnchorLocationsOfTagTypes(toRead);
+            for (TagType tagType : activeTagColors.keySet()) {
+                for (Integer anchor : anchors.get(tagType)) {
+                    existingAnchors.putItem(anchor, tagType);
                 }
-                if (types.size() > 1) {
-                    plural = true;
+            }
+            for (TagType tagType : activeLinkTags) {
+                existingArgumentAnchors.addAll(anchors.get(tagType));
+            }
+            return anchors;
+        }
+
+        /**
+         * @return style runs of the locations, or what was computed when
+         * cancelled
+         */
+        List<FGStyleRun> computeRuns(String text, Collection<Integer> locations, BooleanSupplier cancelled) {
+            FGColorRuns runs = new FGColorRuns(text);
+            Iterator<Integer> locationIterator = locations.iterator();
+            while (locationIterator.hasNext() && !cancelled.getAsBoolean()) {
+                Integer location = locationIterator.next();
+                boolean plural = false;
+                boolean argument = false;
+                Color c = DEFAULT_FONT_COLOR;
+
+                if (existingAnchors.containsKey(location)) {
+                    List<TagType> types = new ArrayList<>(existingAnchors.get(location));
+                    if (types.size() > 0) {
+                        c = activeTagColors.get(types.get(0));
+                    }
+                    if (types.size() > 1) {
+                        plural = true;
+                    }
+                }
+                if (existingArgumentAnchors.contains(location)) {
+                    argument = true;
+                }
+
+                // the low surrogate of a pair is styled along with its high surrogate
+                if (runs.add(c, location, plural, argument) == 2 && locationIterator.hasNext()) {
+                    locationIterator.next();
                 }
             }
-            if (existingArgumentAnchors.containsKey(location)) {
-                argument = true;
+            return runs.finish();
+        }
+    }
+
+    /**
+     * Reads anchors and computes foreground styles of some tag types off the
+     * event dispatch thread, then sets them on the document a chunk of runs
+     * per event. It is made on the event dispatch thread, where it takes the
+     * document and the highlighted tag types, without touching the database.
+     * Its work is dropped once a newer worker replaces it, or the document it
+     * was made for is no longer shown.
+     */
+    private class FGColoringWorker extends SwingWorker<List<FGStyleRun>, Void> {
+
+        private final Set<TagType> tagTypes;
+        private final MaeDriverI driver = getDriver();
+        private final DefaultStyledDocument styleDoc = getDocument();
+        private final String text = getDocumentText();
+        private final FGStyler styler = new FGStyler();
+
+        FGColoringWorker(Set<TagType> tagTypes) {
+            this.tagTypes = tagTypes;
+        }
+
+        @Override
+        protected List<FGStyleRun> doInBackground() throws MaeDBException {
+            Map<TagType, List<Integer>> anchors = styler.readAnchors(driver, tagTypes);
+            TreeSet<Integer> locations = new TreeSet<>();
+            for (TagType tagType : tagTypes) {
+                locations.addAll(anchors.get(tagType));
+            }
+            return styler.computeRuns(text, locations, this::isCancelled);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() || fgColoringWorker != this) {
+                return;
+            }
+            if (getDocument() != styleDoc) {
+                // e.g. the file was closed, and its database along with it
+                fgColoringWorker = null;
+                return;
+            }
+            try {
+                applyInChunks(get(), 0);
+            } catch (InterruptedException | ExecutionException e) {
+                fgColoringWorker = null;
+                getMainController().showError(e);
             }
+        }
 
-            locIndex += setFGColorAtLocation(c, location, plural, argument);
+        private void applyInChunks(List<FGStyleRun> runs, int from) {
+            if (fgColoringWorker != this) {
+                return;
+            }
+            if (getDocument() != styleDoc) {
+                fgColoringWorker = null;
+                return;
+            }
+            int to = Math.min(runs.size(), from + FG_RUNS_PER_CHUNK);
+            applyFGStyleRuns(styleDoc, runs.subList(from, to));
+            if (to < runs.size()) {
+                SwingUtilities.invokeLater(() -> applyInChunks(runs, to));
+            } else {
+                fgColoringWorker = null;
+            }
+        }
+    }
+
+    /**
+     * Schedules coloring anchors of the tag types in the background. Types
+     * asked for in the same event, e.g. by toggling all tag types at once,
+     * are colored by a single worker.
+     */
+    private void scheduleFGColoring(Collection<TagType> tagTypes) {
+        fgTagTypesToColor.addAll(tagTypes);
+        if (!fgColoringScheduled) {
+            fgColoringScheduled = true;
+            SwingUtilities.invokeLater(this::startFGColoringWorker);
+        }
+    }
+
+    /**
+     * Starts coloring scheduled tag types in the background, along with
+     * types whose coloring is still pending, cancelling that stale work.
+     */
+    private void startFGColoringWorker() {
+        fgColoringScheduled = false;
+        Set<TagType> typesToColor = new LinkedHashSet<>(fgTagTypesToColor);
+        fgTagTypesToColor.clear();
+        if (fgColoringWorker != null) {
+            fgColoringWorker.cancel(false);
+            typesToColor.addAll(fgColoringWorker.tagTypes);
+            fgColoringWorker = null;
+        }
+        if (typesToColor.isEmpty()) {
+            return;
+        }
+        fgColoringWorker = new FGColoringWorker(typesToColor);
+        fgColoringExecutor.execute(fgColoringWorker);
+    }
+
+    /**
+     * Recomputes pending background coloring after anchors were colored
+     * right away, as its styles may predate changes that prompted it.
+     */
+    private void restartPendingFGColoring() {
+        if (fgColoringWorker != null) {
+            scheduleFGColoring(Collections.emptyList());
         }
     }
 
+    void assignOverlappingColorOver(List<Integer> locations, Color srcColor, boolean fullOverlap) {
+        FGColorRuns runs = new FGColorRuns(getDocumentText());
+        int locIndex = 0;
+        while (locIndex < locations.size()) {
+            locIndex += runs.add(srcColor, locations.get(locIndex), fullOverlap, false);
+        }
+        applyFGStyleRuns(getDocument(), runs.finish());
+    }
+
+    public void assignOverlappingColorAt(Integer location, Color srcColor, boolean fullOverlap) {
+        DefaultStyledDocument styleDoc = getDocument();
+        try {
+            if (location == 0 || !Character.isHighSurrogate(styleDoc.getText(location - 1, 1).charAt(0))) {
+                setFGColorAtLocation(srcColor, location, fullOverlap, false);
+            }
+        } catch (BadLocationException ignored) {
+        }
+    }
+
+    public void assignAllFGColor() throws MaeDBException {
+        massivelyAssignFGColors(getDriver().getAllAnchorLocations());
+
+    }
+
+    /**
+     * Colors anchors of the tag type in the background, so that toggling
+     * highlights of a type over a large text does not block the UI.
+     */
+    public void assignFGColorOf(TagType type) {
+        scheduleFGColoring(Collections.singleton(type));
+    }
+
+    public void massivelyAssignFGColors(List<Integer> largeSpan) throws MaeDBException {
+        FGStyler styler = new FGStyler();
+        styler.readAnchors(getDriver(), Collections.emptyList());
+        applyFGStyleRuns(getDocument(), styler.computeRuns(getDocumentText(), largeSpan, () -> false));
+        restartPendingFGColoring();
+    }
+
 
     public void assignFGColorOver(List<Integer> locations) throws MaeDBException {
+        FGColorRuns runs = new FGColorRuns(getDocumentText());
         int locIndex = 0;
         while (locIndex < locations.size()) {
-            locIndex += assignFGColorAt(locations.get(locIndex));
+            locIndex += assignFGColorAt(runs, locations.get(locIndex));
         }
+        applyFGStyleRuns(getDocument(), runs.finish());
+        restartPendingFGColoring();
     }
 
-    private int assignFGColorAt(int location) throws MaeDBException {
+    private int assignFGColorAt(FGColorRuns runs, int location) throws MaeDBException {
         boolean singular = false;
         boolean plural = false;
         boolean argument = false;
@@ -565,7 +833,7 @@ public class TextPanelController extends MaeControllerI {
                 }
             }
         }
-        return setFGColorAtLocation(c, location, plural, argument);
+        return runs.add(c, location, plural, argument);
     }
 
     public void addBGColorOver(int[] spans, Highlighter.HighlightPainter painter) throws MaeControlException {
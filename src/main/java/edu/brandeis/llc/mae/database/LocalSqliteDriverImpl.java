@@ -34,18 +34,24 @@ import com.j256.ormlite.support.ConnectionSource;
 import com.j256.ormlite.table.TableUtils;
 import edu.brandeis.llc.mae.MaeException;
 import edu.brandeis.llc.mae.MaeStrings;
+import edu.brandeis.llc.mae.io.AnnotationJournal;
 import edu.brandeis.llc.mae.io.AnnotationLoader;
 import edu.brandeis.llc.mae.io.DTDLoader;
 import edu.brandeis.llc.mae.io.MaeIODTDException;
+import edu.brandeis.llc.mae.io.TaskSchema;
 import edu.brandeis.llc.mae.model.*;
 import edu.brandeis.llc.mae.util.FileHandler;
 import edu.brandeis.llc.mae.util.MappedSet;
 import edu.brandeis.llc.mae.util.SpanHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.Callable;
@@ -65,6 +71,10 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
     // this should be distinguishable over diff tasks and diff versions
     private Task workingTask;
     private boolean workChanged;
+    // compiled view of the task definition, dropped whenever a type is modified
+    private TaskSchema taskSchema;
+    // when set, every edit on annotations is recorded
+    private AnnotationJournal journal;
 
     private Dao<Task, Integer> taskDao;
     private Dao<CharIndex, Integer> charIndexDao;
@@ -167,12 +177,81 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
         DTDLoader dtdl = new DTDLoader(this);
         dropAllTables(cs);
         createAllTables(cs);
+        taskSchema = null;
         if (!dtdl.read(file)) {
             throw new MaeIODTDException("DTD does not contain any definition, maybe not a DTD file? " + file.getAbsolutePath());
         }
 
     }
 
+    @Override
+    public void loadTaskSchema(final TaskSchema schema) throws MaeDBException {
+        if (schema.getTaskName() != null) {
+            setTaskName(schema.getTaskName());
+        }
+        try {
+            final List<TagType> created = new ArrayList<>();
+            tagTypeDao.callBatchTasks(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (TaskSchema.TagTypeDef tagTypeDef : schema.getTagTypes()) {
+                        TagType tagType = new TagType(tagTypeDef.getName(), tagTypeDef.getPrefix(), tagTypeDef.isLink());
+                        // only extent types can be non-consuming, and the setter resets link-ness
+                        if (tagTypeDef.isNonConsuming()) {
+                            tagType.setNonConsuming(true);
+                        }
+                        tagTypeDao.create(tagType);
+                        for (TaskSchema.AttTypeDef attTypeDef : tagTypeDef.getAttTypes()) {
+                            AttributeType attType = new AttributeType(tagType, attTypeDef.getName());
+                            if (attTypeDef.isFiniteValueset()) {
+                                attType.setValuesetFromList(attTypeDef.getValueset());
+                            }
+                            attType.setDefaultValue(attTypeDef.getDefaultValue());
+                            attType.setRequired(attTypeDef.isRequired());
+                            attType.setIdRef(attTypeDef.isIdRef());
+                            attTypeDao.create(attType);
+                        }
+                        for (TaskSchema.ArgTypeDef argTypeDef : tagTypeDef.getArgTypes()) {
+                            ArgumentType argType = new ArgumentType(tagType, argTypeDef.getName());
+                            argType.setRequired(argTypeDef.isRequired());
+                            argTypeDao.create(argType);
+                        }
+                        created.add(tagType);
+                    }
+                    return null;
+                }
+            });
+            // populate eager foreign collections of newly created types
+            for (TagType tagType : created) {
+                tagTypeDao.refresh(tagType);
+            }
+        } catch (SQLException e) {
+            throw catchSQLException(e);
+        } catch (Exception e) {
+            throw catchGeneralException(e);
+        }
+        logger.debug(String.format("loaded %d tag types from a task schema: %s", schema.getTagTypes().size(), getTaskName()));
+        setAnnotationChanged(true);
+        taskSchema = schema.getTaskName() == null ? new TaskSchema(getTaskName(), schema.getTagTypes()) : schema;
+    }
+
+    @Override
+    public void setJournal(AnnotationJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public AnnotationJournal getJournal() {
+        return journal;
+    }
+
+    @Override
+    public TaskSchema getTaskSchema() throws MaeDBException {
+        if (taskSchema == null) {
+            taskSchema = TaskSchema.fromDriver(this);
+        }
+        return taskSchema;
+    }
+
     @Override
     public String readAnnotation(File file) throws MaeException {
         AnnotationLoader xmll = new AnnotationLoader(this);
@@ -235,6 +314,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public void setTaskName(String name) throws MaeDBException {
+        taskSchema = null;
         try {
             // need to clear task table before updating id column of it
             TableUtils.clearTable(cs, taskDao.getDataClass());
@@ -411,6 +491,58 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     }
 
+    @Override
+    public Map<TagType, List<Integer>> readAnchorLocationsOfTagTypes(Collection<TagType> types) throws MaeDBException {
+        Map<TagType, List<Integer>> anchorLocations = new LinkedHashMap<>();
+        Map<String, List<Integer>> byName = new HashMap<>();
+        List<String> extentTypeNames = new ArrayList<>();
+        List<String> linkTypeNames = new ArrayList<>();
+        for (TagType type : types) {
+            List<Integer> locations = new ArrayList<>();
+            anchorLocations.put(type, locations);
+            byName.put(type.getName(), locations);
+            (type.isExtent() ? extentTypeNames : linkTypeNames).add(type.getName());
+        }
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        // a connection of its own, as DAOs and query builders of this driver are not thread-safe
+        try (Connection connection = config.createConnection(JDBC_DRIVER + SQLITE_FILENAME)) {
+            readAnchorLocations(connection, String.format(
+                    "SELECT e.%s, c.%s FROM %s c JOIN %s e ON c.%s = e.%s WHERE e.%s IN (%%s)",
+                    TAB_TAG_FCOL_TT, TAB_CI_COL_LOCATION, TAB_CI, TAB_ETAG, TAB_CI_FCOL_ETAG, TAB_TAG_COL_TID,
+                    TAB_TAG_FCOL_TT), extentTypeNames, byName);
+            readAnchorLocations(connection, String.format(
+                    "SELECT DISTINCT l.%s, c.%s FROM %s c JOIN %s a ON c.%s = a.%s JOIN %s l ON a.%s = l.%s WHERE l.%s IN (%%s)",
+                    TAB_TAG_FCOL_TT, TAB_CI_COL_LOCATION, TAB_CI, TAB_ARG, TAB_CI_FCOL_ETAG, TAB_ARG_FCOL_ETAG,
+                    TAB_LTAG, TAB_ARG_FCOL_LTAG, TAB_TAG_COL_TID, TAB_TAG_FCOL_TT), linkTypeNames, byName);
+        } catch (SQLException e) {
+            throw catchSQLException(e);
+        }
+        return anchorLocations;
+    }
+
+    /**
+     * @param query a query selecting a tag type name and a location, with a
+     *              placeholder for a list of tag type names
+     */
+    private void readAnchorLocations(Connection connection, String query, List<String> typeNames,
+                                     Map<String, List<Integer>> locationsByTypeName) throws SQLException {
+        if (typeNames.isEmpty()) {
+            return;
+        }
+        String params = String.join(",", Collections.nCopies(typeNames.size(), "?"));
+        try (PreparedStatement statement = connection.prepareStatement(String.format(query, params))) {
+            for (int i = 0; i < typeNames.size(); i++) {
+                statement.setString(i + 1, typeNames.get(i));
+            }
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    locationsByTypeName.get(results.getString(1)).add(results.getInt(2));
+                }
+            }
+        }
+    }
+
     public List<ExtentTag> getArgumentTags(LinkTag linker) {
         return linker.getArgumentTags();
     }
@@ -480,6 +612,9 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
             }
             logger.debug("a tag is deleted: " + tag.getId());
             setAnnotationChanged(true);
+            if (journal != null) {
+                journal.recordDeleteTag(tag.getId());
+            }
         } catch (SQLException e) {
             throw catchSQLException(e);
         }
@@ -621,6 +756,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public TagType createTagType(String typeName, String prefix, boolean isLink) throws MaeDBException {
+        taskSchema = null;
         try {
             TagType type  = new TagType(typeName, prefix, isLink);
             tagTypeDao.create(type);
@@ -634,6 +770,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public AttributeType createAttributeType(TagType tagType, String attTypeName) throws  MaeDBException {
+        taskSchema = null;
         try {
             AttributeType attType = new AttributeType(tagType, attTypeName);
             attTypeDao.create(attType);
@@ -685,10 +822,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
     public MappedSet<String, String> getTagTypesAndAttTypes() throws MaeDBException {
         MappedSet<String, String> tagsAndAtts = new MappedSet<>();
         for (TagType tagType : getAllTagTypes()) {
-            // TODO: 2016-04-17 19:23:06EDT support link tags as well in the future
-            if (tagType.isExtent()) {
-                tagsAndAtts.putCollection(tagType.getName(), tagType.getAttributeTypesAsString());
-            }
+            tagsAndAtts.putCollection(tagType.getName(), tagType.getAttributeTypesAsString());
         }
         return tagsAndAtts;
     }
@@ -805,6 +939,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public ArgumentType createArgumentType(TagType tagType, String argTypeName) throws MaeDBException {
+        taskSchema = null;
         try {
             ArgumentType argType = new ArgumentType(tagType, argTypeName);
             argTypeDao.create(argType);
@@ -843,6 +978,9 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
             }
             logger.debug("a new extent tag is created: " + tid);
             setAnnotationChanged(true);
+            if (journal != null) {
+                journal.recordCreateExtentTag(tid, tagType.getName(), text, spans);
+            }
             return tag;
         } catch (SQLException e) {
             throw catchSQLException(e);
@@ -882,6 +1020,9 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
             }
             logger.debug("a new link tag is created: " + tid);
             setAnnotationChanged(true);
+            if (journal != null) {
+                journal.recordCreateLinkTag(tid, tagType.getName());
+            }
             return link;
         } catch (SQLException e) {
             throw catchSQLException(e);
@@ -921,8 +1062,11 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
                 attDao.delete(oldAtt);
                 setAnnotationChanged(true);
             }
+            if (journal != null) {
+                journal.recordAttribute(tag.getId(), attType.getName(), attValue);
+            }
             if (attValue != null && attValue.length() > 0) {
-                return addAttribute(tag, attType, attValue);
+                return insertAttribute(tag, attType, attValue);
             } else {
                 logger.debug("no new value is provided. leaving the attribute deleted");
                 setAnnotationChanged(true);
@@ -936,6 +1080,14 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public Attribute addAttribute(Tag tag, AttributeType attType, String attValue) throws MaeDBException {
+        Attribute att = insertAttribute(tag, attType, attValue);
+        if (journal != null) {
+            journal.recordAttribute(tag.getId(), attType.getName(), attValue);
+        }
+        return att;
+    }
+
+    private Attribute insertAttribute(Tag tag, AttributeType attType, String attValue) throws MaeDBException {
         try {
             Attribute att = new Attribute(tag, attType, attValue);
             attDao.create(att);
@@ -1107,6 +1259,14 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public Argument addArgument(LinkTag linker, ArgumentType argType, ExtentTag argument) throws MaeDBException {
+        Argument arg = insertArgument(linker, argType, argument);
+        if (journal != null) {
+            journal.recordArgument(linker.getId(), argType.getName(), argument.getId());
+        }
+        return arg;
+    }
+
+    private Argument insertArgument(LinkTag linker, ArgumentType argType, ExtentTag argument) throws MaeDBException {
         try {
             logger.debug(String.format("adding an argument '%s: %s' to tag %s (%s)", argType.getName(), argument == null ? "null" : argument.getId(), linker.getId(), linker.getTagTypeName()));
             try {
@@ -1137,8 +1297,11 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
                     setAnnotationChanged(true);
                 }
                 resetQueryBuilders();
+                if (journal != null) {
+                    journal.recordArgument(linker.getId(), argType.getName(), argument == null ? null : argument.getId());
+                }
                 if (argument != null) {
-                    return addArgument(linker, argType, argument);
+                    return insertArgument(linker, argType, argument);
                 } else {
                     logger.debug("no new argument is provided. leaving the argument deleted");
                     return null;
@@ -1164,6 +1327,9 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
             if (eTagDao.update(tag) == 1) {
                 setAnnotationChanged(true);
                 resetQueryBuilders();
+                if (journal != null) {
+                    journal.recordSpans(tag.getId(), spans);
+                }
                 return true;
             }
         } catch (SQLException e) {
@@ -1182,6 +1348,9 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
             if (updateBuilder.update() == 1) {
                 setAnnotationChanged(true);
                 eTagDao.refresh(tag);
+                if (journal != null) {
+                    journal.recordText(tag.getId(), text);
+                }
                 return true;
             }
         } catch (SQLException e) {
@@ -1212,6 +1381,11 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
      */
     @Override
     public void destroy() throws MaeDBException {
+        if (journal != null) {
+            // the document is closed deliberately, unsaved edits are not to be recovered
+            journal.discard();
+            journal = null;
+        }
         if (cs != null){
             dropAllTables(cs);
             try {
@@ -1304,6 +1478,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public boolean setTagTypePrefix(TagType tagType, String prefix) throws MaeDBException {
+        taskSchema = null;
         try {
             tagType.setPrefix(prefix);
             boolean success = tagTypeDao.update(tagType) == 1;
@@ -1320,6 +1495,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public boolean setTagTypeNonConsuming(TagType tagType, boolean b) throws MaeDBException {
+        taskSchema = null;
         try {
             tagType.setNonConsuming(b);
             boolean success = tagTypeDao.update(tagType) == 1;
@@ -1336,6 +1512,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public void setAttributeTypeValueSet(AttributeType attType, List<String> validValues) throws MaeDBException {
+        taskSchema = null;
         attType.setValuesetFromList(validValues);
         try {
             attTypeDao.update(attType);
@@ -1351,6 +1528,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public void setAttributeTypeDefaultValue(AttributeType attType, String defaultValue) throws MaeDBException {
+        taskSchema = null;
         try {
             attType.setDefaultValue(defaultValue);
             attTypeDao.update(attType);
@@ -1364,6 +1542,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public void setAttributeTypeIDRef(AttributeType attType, boolean b) throws MaeDBException {
+        taskSchema = null;
         try {
             attType.setIdRef(b);
             attTypeDao.update(attType);
@@ -1375,6 +1554,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public void setAttributeTypeRequired(AttributeType attType, boolean b) throws MaeDBException {
+        taskSchema = null;
         try {
             attType.setRequired(true);
             attTypeDao.update(attType);
@@ -1387,6 +1567,7 @@ public class LocalSqliteDriverImpl implements MaeDriverI {
 
     @Override
     public void setArgumentTypeRequired(ArgumentType argType, boolean b) throws MaeDBException {
+        taskSchema = null;
         try {
             argType.setRequired(true);
             argTypeDao.update(argType);
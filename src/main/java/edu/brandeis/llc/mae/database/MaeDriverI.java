@@ -26,7 +26,9 @@ package edu.brandeis.llc.mae.database;
 
 import com.j256.ormlite.support.ConnectionSource;
 import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.io.AnnotationJournal;
 import edu.brandeis.llc.mae.io.MaeIODTDException;
+import edu.brandeis.llc.mae.io.TaskSchema;
 import edu.brandeis.llc.mae.model.*;
 import edu.brandeis.llc.mae.util.MappedSet;
 
@@ -51,6 +53,14 @@ public interface MaeDriverI {
     // task
     void readTask(File file) throws MaeDBException, MaeIODTDException, FileNotFoundException;
 
+    void loadTaskSchema(TaskSchema schema) throws MaeDBException;
+
+    void setJournal(AnnotationJournal journal);
+
+    AnnotationJournal getJournal();
+
+    TaskSchema getTaskSchema() throws MaeDBException;
+
     String getTaskName() throws MaeDBException;
 
     void setTaskName(String value) throws MaeDBException;
@@ -96,6 +106,15 @@ public interface MaeDriverI {
 
     List<Integer> getAllAnchorLocationsOfTagType(TagType type, List<TagType> exculdes) throws MaeDBException;
 
+    /**
+     * Reads anchor locations of many tag types at once, over a read-only
+     * connection of its own, thus can be called from a thread other than the
+     * one using this driver. Anchors of a link tag type are those of the
+     * extent tags its links point to.
+     * @return anchor locations of each of the tag types
+     */
+    Map<TagType, List<Integer>> readAnchorLocationsOfTagTypes(Collection<TagType> types) throws MaeDBException;
+
     Collection<CharIndex> getAnchorsByTid(String tid) throws MaeDBException;
 
     List<Integer> getAnchorLocationsByTid(String tid) throws MaeDBException;
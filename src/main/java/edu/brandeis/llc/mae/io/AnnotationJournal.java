@@ -0,0 +1,469 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.io;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.database.MaeDBException;
+import edu.brandeis.llc.mae.database.MaeDriverI;
+import edu.brandeis.llc.mae.model.ArgumentType;
+import edu.brandeis.llc.mae.model.AttributeType;
+import edu.brandeis.llc.mae.model.ExtentTag;
+import edu.brandeis.llc.mae.model.LinkTag;
+import edu.brandeis.llc.mae.model.Tag;
+import edu.brandeis.llc.mae.model.TagType;
+import edu.brandeis.llc.mae.util.SpanHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of annotation edits made through a driver. Each edit is
+ * a line of JSON, and edits are written out in small batches, so that
+ * unsaved work survives a crash at the cost of a few bytes per edit. The
+ * journal lives next to the annotation file and is replayed on top of the
+ * file when the document is opened again. Saving the document makes the
+ * journal obsolete, thus a save compacts (empties) the journal, and closing a
+ * document deletes it.
+ * <p>
+ * The first line of a journal records the length and digest of the
+ * annotation file the edits were made on. Edits are only replayed on top of
+ * that very file, and not if it was saved or changed elsewhere since.
+ */
+public class AnnotationJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnnotationJournal.class.getName());
+
+    public static final String JOURNAL_EXT = ".journal";
+    public static final String SET_ASIDE_EXT = ".stale";
+    static final int BATCH_SIZE = 8;
+    static final long FLUSH_DELAY_MILLIS = 1000;
+
+    static final String OP = "op";
+    static final String OP_CREATE_EXTENT = "create_extent";
+    static final String OP_CREATE_LINK = "create_link";
+    static final String OP_DELETE = "delete";
+    static final String OP_ATTRIBUTE = "attribute";
+    static final String OP_ARGUMENT = "argument";
+    static final String OP_SPANS = "spans";
+    static final String OP_TEXT = "text";
+    static final String OP_BASE = "base";
+    static final String LENGTH = "length";
+    static final String DIGEST = "digest";
+    static final String TID = "tid";
+    static final String TYPE = "type";
+    static final String NAME = "name";
+    static final String VALUE = "value";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    // a single daemon thread flushes pending edits of all journals
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mae-journal-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private File journalFile;
+    // the annotation file as edits in this journal start from
+    private ObjectNode baseStamp;
+    private Writer writer;
+    private final List<String> pending;
+    private boolean flushScheduled;
+    private int recordCount;
+
+    public AnnotationJournal(File journalFile) throws MaeDBException {
+        this.journalFile = journalFile;
+        this.pending = new ArrayList<>(BATCH_SIZE);
+        this.baseStamp = stampBaseFile();
+    }
+
+    public static File getJournalFile(String annotationFileName) {
+        return new File(annotationFileName + JOURNAL_EXT);
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * @return the annotation file the journal lives next to
+     */
+    public File getBaseFile() {
+        String journalName = journalFile.getPath();
+        return new File(journalName.endsWith(JOURNAL_EXT) ?
+                journalName.substring(0, journalName.length() - JOURNAL_EXT.length()) : journalName);
+    }
+
+    private ObjectNode stampBaseFile() throws MaeDBException {
+        ObjectNode stamp = mapper.createObjectNode();
+        stamp.put(OP, OP_BASE);
+        File baseFile = getBaseFile();
+        if (!baseFile.isFile()) {
+            return stamp;
+        }
+        try (FileInputStream in = new FileInputStream(baseFile)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            long length = 0;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+                length += read;
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            stamp.put(LENGTH, length);
+            stamp.put(DIGEST, hex.toString());
+            return stamp;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new MaeDBException("failed to read the annotation file: " + baseFile.getAbsolutePath(), e);
+        }
+    }
+
+    public boolean exists() {
+        return journalFile.exists() && journalFile.length() > 0;
+    }
+
+    /**
+     * @return number of edits recorded since the journal was last compacted
+     */
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    public void recordCreateExtentTag(String tid, String tagTypeName, String text, int[] spans) throws MaeDBException {
+        ObjectNode record = newRecord(OP_CREATE_EXTENT, tid);
+        record.put(TYPE, tagTypeName);
+        record.put(OP_TEXT, text);
+        record.put(OP_SPANS, spans == null ? null : SpanHandler.convertArrayToString(spans));
+        append(record);
+    }
+
+    public void recordCreateLinkTag(String tid, String tagTypeName) throws MaeDBException {
+        ObjectNode record = newRecord(OP_CREATE_LINK, tid);
+        record.put(TYPE, tagTypeName);
+        append(record);
+    }
+
+    public void recordDeleteTag(String tid) throws MaeDBException {
+        append(newRecord(OP_DELETE, tid));
+    }
+
+    public void recordAttribute(String tid, String attTypeName, String value) throws MaeDBException {
+        ObjectNode record = newRecord(OP_ATTRIBUTE, tid);
+        record.put(NAME, attTypeName);
+        record.put(VALUE, value);
+        append(record);
+    }
+
+    public void recordArgument(String tid, String argTypeName, String argumentTid) throws MaeDBException {
+        ObjectNode record = newRecord(OP_ARGUMENT, tid);
+        record.put(NAME, argTypeName);
+        record.put(VALUE, argumentTid);
+        append(record);
+    }
+
+    public void recordSpans(String tid, int[] spans) throws MaeDBException {
+        ObjectNode record = newRecord(OP_SPANS, tid);
+        record.put(VALUE, spans == null ? null : SpanHandler.convertArrayToString(spans));
+        append(record);
+    }
+
+    public void recordText(String tid, String text) throws MaeDBException {
+        ObjectNode record = newRecord(OP_TEXT, tid);
+        record.put(VALUE, text);
+        append(record);
+    }
+
+    private ObjectNode newRecord(String op, String tid) {
+        ObjectNode record = mapper.createObjectNode();
+        record.put(OP, op);
+        record.put(TID, tid);
+        return record;
+    }
+
+    private synchronized void append(ObjectNode record) throws MaeDBException {
+        pending.add(record.toString());
+        recordCount++;
+        if (pending.size() >= BATCH_SIZE) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            flusher.schedule(this::flushQuietly, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (MaeDBException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes out all pending edits.
+     */
+    public synchronized void flush() throws MaeDBException {
+        flushScheduled = false;
+        if (pending.size() == 0) {
+            return;
+        }
+        try {
+            StringBuilder batch = new StringBuilder();
+            if (writer == null) {
+                if (!exists()) {
+                    batch.append(baseStamp.toString()).append('\n');
+                }
+                writer = new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8);
+            }
+            for (String line : pending) {
+                batch.append(line).append('\n');
+            }
+            writer.write(batch.toString());
+            writer.flush();
+            pending.clear();
+        } catch (IOException e) {
+            throw new MaeDBException("failed to write to the edit journal: " + journalFile.getAbsolutePath(), e);
+        }
+    }
+
+    public synchronized void close() throws MaeDBException {
+        flush();
+        closeWriter();
+    }
+
+    private void closeWriter() throws MaeDBException {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                throw new MaeDBException("failed to close the edit journal: " + journalFile.getAbsolutePath(), e);
+            } finally {
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Drops all recorded edits, called once they are saved in the annotation
+     * file. Later edits start a new journal.
+     */
+    public synchronized void compact() throws MaeDBException {
+        pending.clear();
+        closeWriter();
+        recordCount = 0;
+        deleteJournalFile();
+        baseStamp = stampBaseFile();
+    }
+
+    private void deleteJournalFile() throws MaeDBException {
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new MaeDBException("failed to delete the edit journal: " + journalFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Compacts the journal and continues journaling into a new file, used when
+     * a document is saved under a different name.
+     */
+    public synchronized void moveTo(File newJournalFile) throws MaeDBException {
+        compact();
+        journalFile = newJournalFile;
+        // a stale journal at the new location is superseded by the saved file
+        deleteJournalFile();
+        baseStamp = stampBaseFile();
+    }
+
+    /**
+     * Closes and deletes the journal, as the document is being closed.
+     */
+    public synchronized void discard() throws MaeDBException {
+        compact();
+    }
+
+    /**
+     * @return true if the journal file was written against the annotation
+     * file as it is now, thus can be replayed on top of it
+     */
+    public boolean isBasedOnCurrentFile() throws MaeIOException {
+        if (!exists()) {
+            return true;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            // compared as written, as numbers may be read back in a narrower type
+            return baseStamp.toString().equals(reader.readLine());
+        } catch (IOException e) {
+            throw new MaeIOException("failed to read the edit journal: " + journalFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Moves a journal that cannot be replayed out of the way, keeping its
+     * edits for the user to look at, so that new edits start a new journal.
+     * @return the file the journal is moved to
+     */
+    public synchronized File setAside() throws MaeDBException {
+        closeWriter();
+        File setAside = new File(journalFile.getPath() + SET_ASIDE_EXT);
+        if (setAside.exists() && !setAside.delete() || !journalFile.renameTo(setAside)) {
+            throw new MaeDBException("failed to set aside the edit journal: " + journalFile.getAbsolutePath());
+        }
+        return setAside;
+    }
+
+    /**
+     * Applies edits in the journal file to a driver holding the annotation
+     * file the journal was written against. The driver must not be journaling
+     * into this journal while replaying. A truncated last line (from a crash
+     * during a write) is ignored.
+     * @return number of edits applied
+     * @throws MaeIOException when the annotation file is not the one the
+     * journal was written against, see {@link #isBasedOnCurrentFile()}
+     */
+    public int replay(MaeDriverI driver) throws MaeException {
+        if (!exists()) {
+            return 0;
+        }
+        if (!isBasedOnCurrentFile()) {
+            throw new MaeIOException(String.format("the edit journal %s was not written against the current %s",
+                    journalFile.getAbsolutePath(), getBaseFile().getName()));
+        }
+        logger.info("replaying unsaved edits from: " + journalFile.getAbsolutePath());
+        int applied = 0;
+        int lineNum = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNum++;
+                // the first line is the stamp of the annotation file
+                if (lineNum == 1 || line.trim().length() == 0) {
+                    continue;
+                }
+                JsonNode record;
+                try {
+                    record = mapper.readTree(line);
+                } catch (JsonProcessingException e) {
+                    logger.warn(String.format("stopped replaying at a broken edit at line %d: %s", lineNum, line));
+                    break;
+                }
+                if (apply(driver, record)) {
+                    applied++;
+                } else {
+                    logger.warn(String.format("skipped an edit that cannot be applied at line %d: %s", lineNum, line));
+                }
+            }
+        } catch (IOException e) {
+            throw new MaeIOException("failed to read the edit journal: " + journalFile.getAbsolutePath(), e);
+        }
+        synchronized (this) {
+            recordCount += applied;
+        }
+        return applied;
+    }
+
+    private static String getText(JsonNode record, String field) {
+        JsonNode value = record.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    private boolean apply(MaeDriverI driver, JsonNode record) throws MaeException {
+        String op = getText(record, OP);
+        String tid = getText(record, TID);
+        if (op == null || tid == null) {
+            return false;
+        }
+        if (op.equals(OP_CREATE_EXTENT) || op.equals(OP_CREATE_LINK)) {
+            TagType tagType = driver.getTagTypeByName(getText(record, TYPE));
+            if (tagType == null || driver.getTagByTid(tid) != null) {
+                return false;
+            }
+            if (op.equals(OP_CREATE_LINK)) {
+                return driver.createLinkTag(tid, tagType) != null;
+            }
+            String spans = getText(record, OP_SPANS);
+            return driver.createExtentTag(tid, tagType, getText(record, OP_TEXT),
+                    spans == null ? null : SpanHandler.convertStringToArray(spans)) != null;
+        }
+        Tag tag = driver.getTagByTid(tid);
+        if (tag == null) {
+            return false;
+        }
+        String value = getText(record, VALUE);
+        switch (op) {
+            case OP_DELETE:
+                driver.deleteTag(tag);
+                return true;
+            case OP_ATTRIBUTE:
+                AttributeType attType = driver.getAttributeTypeOfTagTypeByName(tag.getTagtype(), getText(record, NAME));
+                if (attType == null) {
+                    return false;
+                }
+                driver.updateAttribute(tag, attType, value);
+                return true;
+            case OP_ARGUMENT:
+                ArgumentType argType = driver.getArgumentTypeOfTagTypeByName(tag.getTagtype(), getText(record, NAME));
+                if (argType == null || !(tag instanceof LinkTag)) {
+                    return false;
+                }
+                Tag argument = value == null ? null : driver.getTagByTid(value);
+                if (argument != null && !(argument instanceof ExtentTag)) {
+                    return false;
+                }
+                driver.UpdateArgument((LinkTag) tag, argType, (ExtentTag) argument);
+                return true;
+            case OP_SPANS:
+                return tag instanceof ExtentTag && driver.updateTagSpans((ExtentTag) tag,
+                        value == null ? null : SpanHandler.convertStringToArray(value));
+            case OP_TEXT:
+                return tag instanceof ExtentTag && driver.updateTagText((ExtentTag) tag, value);
+            default:
+                return false;
+        }
+    }
+}
@@ -29,6 +29,7 @@ import edu.brandeis.llc.mae.MaeStrings;
 import edu.brandeis.llc.mae.database.MaeDBException;
 import edu.brandeis.llc.mae.database.MaeDriverI;
 import edu.brandeis.llc.mae.model.*;
+import edu.brandeis.llc.mae.util.FileHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
@@ -95,7 +96,7 @@ public class AnnotationLoader {
     public static boolean isXml(File file) throws MaeIOException {
         Scanner scanner = null;
         try {
-            scanner = new Scanner(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            scanner = new Scanner(new InputStreamReader(FileHandler.openInputStream(file), "UTF-8"));
             while (scanner.hasNext()) {
                 String nextLine = scanner.nextLine().trim();
                 if (nextLine.length() > 1) {
@@ -107,9 +108,12 @@ public class AnnotationLoader {
             // checked if file exists at the beginning
         } catch (UnsupportedEncodingException e) {
             throw new MaeIOException(e.getMessage());
+        } catch (IOException e) {
+            throw new MaeIOException("cannot read a file: " + file.getAbsolutePath(), e);
         } finally {
-            assert scanner != null;
-            scanner.close();
+            if (scanner != null) {
+                scanner.close();
+            }
         }
         return false;
     }
@@ -224,7 +228,14 @@ public class AnnotationLoader {
         return "";
     }
 
-    private File getNextAvailableXMLName(File file) {
+    /**
+     * Given a (non-XML) source file, returns a new XML file name next to it
+     * that is not taken yet. The name is the source name with ".xml" appended,
+     * or with "_N.xml" appended when lower numbered names already exist.
+     * @param file a source file to be converted into XML
+     * @return an XML file that does not exist yet
+     */
+    public static File getNextAvailableXMLName(File file) {
         int suffix = 1;
         String filePath = file.getAbsolutePath();
         String fileExt = filePath.substring(filePath.length() - 4);
@@ -0,0 +1,279 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.io;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.brandeis.llc.mae.MaeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static edu.brandeis.llc.mae.util.FileHandler.XML_FILTER;
+
+/**
+ * Checks a set of annotation XML files against a task definition without
+ * loading them into a database. Files are parsed concurrently, all sharing a
+ * single {@link TaskSchema}. On top of the warnings found during parsing
+ * (unknown tag/attribute types, invalid attribute values, spans out of the
+ * primary text), this checks task name, duplicate tag ids, required
+ * attributes and arguments, and whether argument ids point to existing tags.
+ */
+public class AnnotationValidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnnotationValidator.class.getName());
+
+    public static final String PARSE_ERROR = "parse_error";
+    public static final String TASK_NAME_MISMATCH = "task_name_mismatch";
+    public static final String DUPLICATE_TID = "duplicate_tid";
+    public static final String MISSING_REQUIRED_ATT = "missing_required_att";
+    public static final String MISSING_REQUIRED_ARG = "missing_required_arg";
+    public static final String UNRESOLVED_ARG = "unresolved_arg";
+
+    private final TaskSchema schema;
+    private final int numThreads;
+
+    public AnnotationValidator(TaskSchema schema) {
+        this(schema, Runtime.getRuntime().availableProcessors());
+    }
+
+    public AnnotationValidator(TaskSchema schema, int numThreads) {
+        this.schema = schema;
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Validates all XML files found under a directory tree.
+     */
+    public ValidationReport validateDirectory(File rootDir) throws MaeIOException {
+        if (!rootDir.isDirectory()) {
+            throw new MaeIOException("Not a directory: " + rootDir.getAbsolutePath());
+        }
+        try (Stream<Path> paths = Files.walk(rootDir.toPath())) {
+            return validate(paths.map(Path::toFile)
+                    .filter(file -> file.isFile() && !file.isHidden() && XML_FILTER.accept(file))
+                    .sorted()
+                    .collect(Collectors.toList()));
+        } catch (IOException | UncheckedIOException e) {
+            throw new MaeIOException("failed to walk the directory: " + rootDir.getAbsolutePath(), e);
+        }
+    }
+
+    public ValidationReport validate(List<File> files) {
+        ValidationReport report = new ValidationReport(schema.getTaskName(), files.size());
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<FileReport>> futures = new ArrayList<>(files.size());
+            for (File file : files) {
+                futures.add(pool.submit(() -> validateFile(file)));
+            }
+            for (Future<FileReport> future : futures) {
+                FileReport fileReport = future.get();
+                if (fileReport.getIssues().size() > 0) {
+                    report.files.add(fileReport);
+                }
+                report.checkedFileCount++;
+            }
+        } catch (InterruptedException e) {
+            // the report stays incomplete, so it can't pass as valid
+            logger.error(String.format("validation interrupted after %d of %d files",
+                    report.checkedFileCount, files.size()));
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // validateFile() captures all errors by itself
+            logger.error("unexpected error during validation: " + e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return report;
+    }
+
+    public FileReport validateFile(File file) {
+        FileReport fileReport = new FileReport(file.getAbsolutePath());
+        MaeXMLParser parser = new MaeXMLParser(schema);
+        try {
+            parser.readAnnotationFile(file);
+        } catch (IOException | SAXException | MaeException | RuntimeException e) {
+            fileReport.addIssue(PARSE_ERROR, null, e.getMessage());
+            return fileReport;
+        }
+        String taskName = parser.getParsed().getTaskName();
+        if (!schema.getTaskName().equals(taskName)) {
+            fileReport.addIssue(TASK_NAME_MISMATCH, null,
+                    String.format("annotated with \"%s\", expected \"%s\"", taskName, schema.getTaskName()));
+        }
+        fileReport.issues.addAll(parser.getParseWarningList());
+        checkTags(parser, fileReport);
+        return fileReport;
+    }
+
+    private void checkTags(MaeXMLParser parser, FileReport fileReport) {
+        Set<String> extTids = new HashSet<>();
+        Set<String> allTids = new HashSet<>();
+        for (ParsedTag tag : parser.getParsedTags()) {
+            if (!allTids.add(tag.getTid())) {
+                fileReport.addIssue(DUPLICATE_TID, tag.getTid(), "tag id is used more than once");
+            }
+            if (!tag.isLink()) {
+                extTids.add(tag.getTid());
+            }
+        }
+
+        Map<String, Set<String>> filledAtts = new HashMap<>();
+        for (ParsedAtt att : parser.getParsedAtts()) {
+            if (att.getAttValue() != null && att.getAttValue().length() > 0) {
+                filledAtts.computeIfAbsent(att.getTid(), k -> new HashSet<>()).add(att.getAttTypeName());
+            }
+        }
+        Map<String, Set<String>> filledArgs = new HashMap<>();
+        for (ParsedArg arg : parser.getParsedArgs()) {
+            filledArgs.computeIfAbsent(arg.getTid(), k -> new HashSet<>()).add(arg.getArgTypeName());
+            if (!extTids.contains(arg.getArgTid())) {
+                fileReport.addIssue(UNRESOLVED_ARG, arg.getTid(), String.format(
+                        "argument \"%s\" points to a non-existing extent tag: %s", arg.getArgTypeName(), arg.getArgTid()));
+            }
+        }
+
+        for (ParsedTag tag : parser.getParsedTags()) {
+            TaskSchema.TagTypeDef tagType = schema.getTagType(tag.getTagTypeName());
+            Set<String> atts = filledAtts.getOrDefault(tag.getTid(), Collections.emptySet());
+            for (TaskSchema.AttTypeDef attType : tagType.getAttTypes()) {
+                if (attType.isRequired() && !atts.contains(attType.getName())) {
+                    fileReport.addIssue(MISSING_REQUIRED_ATT, tag.getTid(),
+                            String.format("required attribute \"%s\" is not filled", attType.getName()));
+                }
+            }
+            if (tag.isLink()) {
+                Set<String> args = filledArgs.getOrDefault(tag.getTid(), Collections.emptySet());
+                for (TaskSchema.ArgTypeDef argType : tagType.getArgTypes()) {
+                    if (argType.isRequired() && !args.contains(argType.getName())) {
+                        fileReport.addIssue(MISSING_REQUIRED_ARG, tag.getTid(),
+                                String.format("required argument \"%s\" is not filled", argType.getName()));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Validation result of a single file.
+     */
+    public static class FileReport {
+        private final String fileName;
+        private final List<ParseWarning> issues = new ArrayList<>();
+
+        FileReport(String fileName) {
+            this.fileName = fileName;
+        }
+
+        void addIssue(String type, String tid, String message) {
+            issues.add(new ParseWarning(type, tid, message));
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public List<ParseWarning> getIssues() {
+            return issues;
+        }
+    }
+
+    /**
+     * Validation result of a corpus. Only files with any issues are listed.
+     */
+    public static class ValidationReport {
+        private final String taskName;
+        private final int fileCount;
+        private final List<FileReport> files = new ArrayList<>();
+        private int checkedFileCount;
+
+        ValidationReport(String taskName, int fileCount) {
+            this.taskName = taskName;
+            this.fileCount = fileCount;
+        }
+
+        public String getTaskName() {
+            return taskName;
+        }
+
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        public int getCheckedFileCount() {
+            return checkedFileCount;
+        }
+
+        /**
+         * @return false if validation was aborted before every file was checked
+         */
+        public boolean isComplete() {
+            return checkedFileCount == fileCount;
+        }
+
+        public int getInvalidFileCount() {
+            return files.size();
+        }
+
+        public int getIssueCount() {
+            int count = 0;
+            for (FileReport file : files) {
+                count += file.getIssues().size();
+            }
+            return count;
+        }
+
+        public List<FileReport> getFiles() {
+            return files;
+        }
+
+        public boolean isValid() {
+            return isComplete() && files.size() == 0;
+        }
+
+        public String toJson() {
+            ObjectMapper mapper = new ObjectMapper();
+            try {
+                return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(this);
+            } catch (JsonProcessingException e) {
+                return "JSON parse error" + e.getMessage();
+            }
+        }
+    }
+}
@@ -26,121 +26,205 @@ package edu.brandeis.llc.mae.io;
 
 import edu.brandeis.llc.mae.database.MaeDBException;
 import edu.brandeis.llc.mae.database.MaeDriverI;
-import edu.brandeis.llc.mae.model.ArgumentType;
-import edu.brandeis.llc.mae.model.AttributeType;
-import edu.brandeis.llc.mae.model.TagType;
+import edu.brandeis.llc.mae.io.TaskSchema.ArgTypeDef;
+import edu.brandeis.llc.mae.io.TaskSchema.AttTypeDef;
+import edu.brandeis.llc.mae.io.TaskSchema.TagTypeDef;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Scanner;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-/*
- * DTDLoader is ...
+/**
+ * DTDLoader compiles a DTD into an immutable {@link TaskSchema}, without
+ * touching any database. Schemas compiled from files are cached by their
+ * absolute path and invalidated when the file is modified, so that opening
+ * many documents (or spawning many parsers) of the same task reads the DTD
+ * only once. When constructed with a driver, a compiled schema is loaded
+ * into the driver in a single batch.
  */
 public class DTDLoader {
 
     private static final Logger logger = LoggerFactory.getLogger(DTDLoader.class.getName());
 
+    private static final Pattern TAG_TYPE_PATTERN = Pattern.compile(
+            "<! *ELEMENT +(\\S+) +(\\bEMPTY\\b|\\( *(#\\bPCDATA\\b)\\s*\\)) *>");
+    private static final Pattern ATT_PATTERN = Pattern.compile(
+            "<! *ATTLIST +(\\S+) +(\\S+) +(\\( *.+ *\\)|\\bCDATA\\b|\\bID\\b|\\bIDREF\\b)? *(prefix=\"(.+)\")? *(#\\bREQUIRED\\b|#\\bIMPLIED\\b)? *(\"(.+)\")?");
+    private static final Pattern ENTITY_PATTERN = Pattern.compile("<!\\s*ENTITY +(.+) +\"(.+)\" *>");
+    private static final Pattern ARG_NAME_PATTERN = Pattern.compile("arg[0-9]+");
+    private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+    private static final Pattern DOUBLE_QUOTES = Pattern.compile("[\u201C\u201D]");
+    private static final Pattern SINGLE_QUOTES = Pattern.compile("[\u2018\u2019]");
+    private static final Pattern VALUESET_PARENS = Pattern.compile("(\\( *| *\\))");
+    private static final Pattern VALUESET_DELIM = Pattern.compile(" \\| ");
+
+    private static final Map<String, CachedSchema> schemaCache = new ConcurrentHashMap<>();
+
     private MaeDriverI driver;
-    private ArrayList<TagType> loadedTagTypes;
+    private String taskName;
+    private LinkedHashMap<String, TagTypeBuilder> loadedTagTypes;
     private HashMap<String, String> prefixes;
 
     public DTDLoader(MaeDriverI driver) throws MaeIODTDException {
         this.driver = driver;
-        this.prefixes = new HashMap<>();
-        this.loadedTagTypes = new ArrayList<>();
     }
 
-    public boolean read(File file) throws MaeIODTDException, MaeDBException {
-        try {
-            logger.info("reading annotation scheme from: " + file.getAbsolutePath());
-            driver.setTaskFileName(file.getAbsolutePath());
-            return this.read(new FileInputStream(file));
+    private DTDLoader() {
+        this.driver = null;
+    }
+
+    /**
+     * Compiles a DTD file into a schema. Results are cached by the absolute
+     * path of the file and recompiled only when the file's modification time or
+     * size changes.
+     */
+    public static TaskSchema compile(File file) throws MaeIODTDException {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        CachedSchema cached = schemaCache.get(key);
+        if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+            logger.debug("using cached annotation scheme of: " + key);
+            return cached.schema;
+        }
+        logger.info("compiling annotation scheme from: " + key);
+        TaskSchema schema;
+        try (InputStream stream = new FileInputStream(file)) {
+            schema = compile(stream);
         } catch (FileNotFoundException e) {
-            String message = "file not found: " + file.getAbsolutePath();
+            String message = "file not found: " + key;
+            logger.error(message);
+            throw new MaeIODTDException(message, e);
+        } catch (IOException e) {
+            String message = "failed to read: " + key;
             logger.error(message);
             throw new MaeIODTDException(message, e);
         }
+        schemaCache.put(key, new CachedSchema(lastModified, length, schema));
+        return schema;
+    }
+
+    public static TaskSchema compile(String string) throws MaeIODTDException {
+        return compile(IOUtils.toInputStream(string, StandardCharsets.UTF_8));
+    }
+
+    public static TaskSchema compile(InputStream stream) throws MaeIODTDException {
+        return new DTDLoader().parse(stream);
+    }
+
+    public boolean read(File file) throws MaeIODTDException, MaeDBException {
+        logger.info("reading annotation scheme from: " + file.getAbsolutePath());
+        driver.setTaskFileName(file.getAbsolutePath());
+        return load(compile(file));
     }
 
     public boolean read(String string) throws MaeIODTDException, MaeDBException {
         logger.debug("reading annotation scheme from plain JAVA string");
-        return this.read(IOUtils.toInputStream(string));
+        return load(compile(string));
 
     }
+
     public boolean read(InputStream stream) throws MaeIODTDException, MaeDBException {
-        Scanner sc = new Scanner(stream, StandardCharsets.UTF_8.name());
+        return load(compile(stream));
+    }
+
+    private boolean load(TaskSchema schema) throws MaeDBException {
+        driver.loadTaskSchema(schema);
+        return schema.getTagTypes().size() > 0;
+    }
+
+    private TaskSchema parse(InputStream stream) throws MaeIODTDException {
+        taskName = null;
+        loadedTagTypes = new LinkedHashMap<>();
+        prefixes = new HashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
         int lineNum = 1;
-        while (sc.hasNextLine()) {
-            String next = sc.nextLine();
-            // getting rid of comments
-            if (next.contains("<!--")) {
-                while (sc.hasNextLine() && !next.contains("-->")) {
-                    next = sc.nextLine();
-                    lineNum++;
+        try {
+            String next;
+            while ((next = reader.readLine()) != null) {
+                // getting rid of comments
+                if (next.contains("<!--")) {
+                    while (next != null && !next.contains("-->")) {
+                        next = reader.readLine();
+                        lineNum++;
+                    }
+                    next = reader.readLine();
+                    if (next == null) {
+                        break;
+                    }
                 }
-                next = sc.nextLine();
-            }
 
-            //then, concatenate lines about a tag into one string
-            String element = "";
-            if (next.contains("<")) {
-                element += next;
-                while (sc.hasNextLine() && !next.contains(">")) {
-                    next = sc.nextLine();
-                    lineNum++;
-                    element += next;
+                //then, concatenate lines about a tag into one string
+                StringBuilder element = new StringBuilder();
+                if (next.contains("<")) {
+                    element.append(next);
+                    while (!next.contains(">") && (next = reader.readLine()) != null) {
+                        lineNum++;
+                        element.append(next);
+                    }
+                }
+                lineNum++;
+                // remove some problematic unicode characters before processing
+                process(normalize(element.toString()), lineNum);
+                if (next == null) {
+                    break;
                 }
             }
-            lineNum++;
-            // remove some problematic unicode characters before processing
-            element = normalizeLine(element);
-            process(element, lineNum);
+        } catch (IOException e) {
+            String message = "failed to read a DTD at line " + lineNum;
+            logger.error(message);
+            throw new MaeIODTDException(message, e);
         }
-        validateLinkTagTypes();
-        return validateReadTask();
+        return buildSchema();
     }
 
-    private boolean validateReadTask() throws MaeDBException {
-        return driver.getAllTagTypes().size() > 0;
-    }
-
-    private void validateLinkTagTypes() throws MaeDBException {
-        for (TagType linktag: driver.getLinkTagTypes()) {
-            if (linktag.getArgumentTypes().size() == 0) {
-                addDefaultArguments(linktag);
+    private TaskSchema buildSchema() {
+        List<TagTypeDef> tagTypes = new ArrayList<>(loadedTagTypes.size());
+        for (TagTypeBuilder tagType : loadedTagTypes.values()) {
+            if (tagType.isLink && tagType.argTypes.size() == 0) {
+                addDefaultArguments(tagType);
             }
+            tagTypes.add(tagType.build());
         }
+        return new TaskSchema(taskName, tagTypes);
     }
 
-    private void addDefaultArguments(TagType linktag) throws MaeDBException {
+    private void addDefaultArguments(TagTypeBuilder linktag) {
         // default arguments are NOT req, but note that args are always IDref
-        driver.createArgumentType(linktag, "from");
-        driver.createArgumentType(linktag, "to");
+        linktag.argTypes.put("from", new ArgTypeDef("from", false));
+        linktag.argTypes.put("to", new ArgTypeDef("to", false));
 
     }
 
     public String normalizeLine(String line) {
+        return normalize(line);
+    }
 
-        return line.trim()
-                .replaceAll("\\s+", " ")
-                .replaceAll("[\u201C\u201D]", "\"")
-                .replaceAll("[\u2018\u2019]", "'");
+    private static String normalize(String line) {
+        String normalized = WHITESPACES.matcher(line.trim()).replaceAll(" ");
+        normalized = DOUBLE_QUOTES.matcher(normalized).replaceAll("\"");
+        return SINGLE_QUOTES.matcher(normalized).replaceAll("'");
 
     }
 
-    private void process(String element, int lineNum) throws MaeIODTDException, MaeDBException {
+    private void process(String element, int lineNum) throws MaeIODTDException {
 
         if (element.startsWith("<!ELEMENT")) {
             processTagType(element, lineNum);
@@ -155,15 +239,14 @@ public class DTDLoader {
         }
     }
 
-    private void processTagType(String element, int lineNum) throws MaeIODTDException, MaeDBException {
-        Pattern tTypePattern = Pattern.compile( "<! *ELEMENT +(\\S+) +(\\bEMPTY\\b|\\( *(#\\bPCDATA\\b)\\s*\\)) *>" );
-        Matcher tTypeMatcher = tTypePattern.matcher(element);
+    private void processTagType(String element, int lineNum) throws MaeIODTDException {
+        Matcher tTypeMatcher = TAG_TYPE_PATTERN.matcher(element);
         if (tTypeMatcher.find()) {
             String name = tTypeMatcher.group(1);
             boolean isLink = tTypeMatcher.group(3) == null || !tTypeMatcher.group(3).equals("#PCDATA");
             String prefix = generatePrefix(name);
             logger.debug(String.format("adding a tag type: %s (%s)", name, prefix));
-            loadedTagTypes.add(driver.createTagType(name, prefix, isLink));
+            loadedTagTypes.put(name, new TagTypeBuilder(name, prefix, isLink));
         } else {
             this.error(String.format("DTD seems to be ill-formed: %s at %d", element, lineNum));
         }
@@ -185,10 +268,9 @@ public class DTDLoader {
         return prefix;
     }
 
-    private void processMeta(String element, int lineNum) throws MaeIODTDException, MaeDBException {
+    private void processMeta(String element, int lineNum) throws MaeIODTDException {
         // currently it can only process "internal parsed entities" element of DTD
-        Pattern elementPattern = Pattern.compile("<!\\s*ENTITY +(.+) +\"(.+)\" *>");
-        Matcher elementMatcher = elementPattern.matcher(element);
+        Matcher elementMatcher = ENTITY_PATTERN.matcher(element);
         boolean add;
         add = elementMatcher.matches() && addMetadata(elementMatcher.group(1), elementMatcher.group(2));
         if (!add) {
@@ -196,11 +278,11 @@ public class DTDLoader {
         }
     }
 
-    private boolean addMetadata(String key, String value) throws MaeDBException {
+    private boolean addMetadata(String key, String value) {
         boolean success;
         switch (key) {
             case "name":
-                driver.setTaskName(value);
+                taskName = value;
                 logger.debug("adding DTD name: " + value);
                 success = true;
                 break;
@@ -211,9 +293,8 @@ public class DTDLoader {
         return success;
     }
 
-    private void processAttribute(String element, int lineNum) throws MaeIODTDException, MaeDBException {
-        Pattern attPattern = Pattern.compile( "<! *ATTLIST +(\\S+) +(\\S+) +(\\( *.+ *\\)|\\bCDATA\\b|\\bID\\b|\\bIDREF\\b)? *(prefix=\"(.+)\")? *(#\\bREQUIRED\\b|#\\bIMPLIED\\b)? *(\"(.+)\")?" );
-        Matcher attMatcher = attPattern.matcher(element);
+    private void processAttribute(String element, int lineNum) throws MaeIODTDException {
+        Matcher attMatcher = ATT_PATTERN.matcher(element);
 
         if (attMatcher.find()) {
             String tagTypeName = attMatcher.group(1);
@@ -226,10 +307,10 @@ public class DTDLoader {
             boolean required = attMatcher.group(6) != null && attMatcher.group(6).equals("#REQUIRED");
             String defaultValue = attMatcher.group(8);
 
-            TagType tagtype = isTagTypeLoaded(tagTypeName);
+            TagTypeBuilder tagtype = loadedTagTypes.get(tagTypeName);
             if (tagtype == null) {
                 this.error("tag type is not define for an attribute/argument: " + attTypeName);
-            } else if (attTypeName.matches("arg[0-9]+")) {
+            } else if (ARG_NAME_PATTERN.matcher(attTypeName).matches()) {
                 defineArgument(lineNum, tagtype, attTypeName, valueset, prefix, required, defaultValue);
             } else {
                 defineAttribute(lineNum, tagtype, attTypeName, valueset, prefix, required, defaultValue);
@@ -239,8 +320,8 @@ public class DTDLoader {
         }
     }
 
-    private AttributeType defineAttribute(int lineNum, TagType tagType, String attTypeName, String valueset, String prefix, boolean required, String defaultValue) throws MaeIODTDException, MaeDBException {
-        AttributeType type = null;
+    private void defineAttribute(int lineNum, TagTypeBuilder tagType, String attTypeName, String valueset, String prefix, boolean required, String defaultValue) throws MaeIODTDException {
+        AttTypeBuilder type = null;
         switch (valueset) {
             case "ID":
                 if (!attTypeName.equals("id")) {
@@ -249,87 +330,126 @@ public class DTDLoader {
                     if (prefixes.values().contains(prefix)) {
                         this.error(String.format("prefix \"%s\" is already being used", prefix));
                     }
-                    logger.debug(String.format("setting a custom prefix to tag type \"%s\" : %s ",tagType.getName(), attTypeName));
-                    driver.setTagTypePrefix(tagType, prefix);
-                    prefixes.put(tagType.getName(), prefix);
+                    logger.debug(String.format("setting a custom prefix to tag type \"%s\" : %s ", tagType.name, attTypeName));
+                    tagType.prefix = prefix;
+                    prefixes.put(tagType.name, prefix);
                 }
                 break;
             case "IDREF":
                 type = addAttributeType(tagType, attTypeName);
                 logger.debug("setting as id-referencing attribute: " + attTypeName);
-                driver.setAttributeTypeIDRef(type, true);
+                type.isIdRef = true;
+                break;
             case "CDATA":
                 if ((attTypeName.equals("spans") || attTypeName.equals("start")) && !required) {
-                    logger.debug("setting as non-consuming: " + tagType.getName());
-                    driver.setTagTypeNonConsuming(tagType, true);
+                    logger.debug("setting as non-consuming: " + tagType.name);
+                    tagType.isNonConsuming = true;
                 } else {
                     type = addAttributeType(tagType, attTypeName);
                 }
                 break;
             default:
-                String[] validValues = valueset.replaceAll("(\\( *| *\\))", "").split(" \\| ");
+                String[] validValues = VALUESET_DELIM.split(VALUESET_PARENS.matcher(valueset).replaceAll(""));
 
                 if (validValues.length < 2) {
                     this.error(String.format("the set of values should have two or more values: \"%s\" at %d", valueset, lineNum));
                 }
                 type = addAttributeType(tagType, attTypeName);
                 logger.debug(String.format("setting valid value set to \"%s\": %s", attTypeName, Arrays.toString(validValues)));
-                driver.setAttributeTypeValueSet(type, Arrays.asList(validValues));
+                type.valueset = Arrays.asList(validValues);
         }
         if (type != null) {
             if (defaultValue != null) {
-                if (type.getValuesetAsList().size() == 0 || type.getValuesetAsList().contains(defaultValue)) {
+                if (type.valueset == null || type.valueset.contains(defaultValue)) {
                     logger.debug(String.format("setting default value to \"%s\": %s", attTypeName, defaultValue));
-                    driver.setAttributeTypeDefaultValue(type, defaultValue);
+                    type.defaultValue = defaultValue;
                 } else {
-                    this.error(String.format("Default value \"%s\" is not in the pre-defined value set %s: at %d", defaultValue, type.getValuesetAsList().toString(), lineNum));
+                    this.error(String.format("Default value \"%s\" is not in the pre-defined value set %s: at %d", defaultValue, type.valueset.toString(), lineNum));
                 }
             }
             if (required) {
                 logger.debug("setting to a required attribute: " + attTypeName);
-                driver.setAttributeTypeRequired(type, true);
+                type.isRequired = true;
             }
         }
-        return type;
     }
 
-    private AttributeType addAttributeType(TagType tagType, String attTypeName) throws MaeDBException {
-        logger.debug(String.format("adding a new attribute type attached to \"%s\": %s", tagType.getName(), attTypeName));
-        return driver.createAttributeType(tagType, attTypeName);
+    private AttTypeBuilder addAttributeType(TagTypeBuilder tagType, String attTypeName) {
+        logger.debug(String.format("adding a new attribute type attached to \"%s\": %s", tagType.name, attTypeName));
+        AttTypeBuilder type = new AttTypeBuilder(attTypeName);
+        tagType.attTypes.put(attTypeName, type);
+        return type;
     }
 
-    private ArgumentType defineArgument(int lineNum, TagType tagType, String argTypeName, String valueset, String prefix, boolean required, String defaultValue) throws MaeIODTDException, MaeDBException {
-        ArgumentType type = null;
-        if (!tagType.isLink()) {
-            this.error(String.format("extent tag \"%s\" can't have an argument \"%s\" at %d", tagType.getName(), argTypeName, lineNum));
+    private void defineArgument(int lineNum, TagTypeBuilder tagType, String argTypeName, String valueset, String prefix, boolean required, String defaultValue) throws MaeIODTDException {
+        String name = null;
+        if (!tagType.isLink) {
+            this.error(String.format("extent tag \"%s\" can't have an argument \"%s\" at %d", tagType.name, argTypeName, lineNum));
         } else if (defaultValue != null) {
             this.error("arguments cannot have a default value: " + lineNum);
         } else if (prefix!=null && !valueset.equals("IDREF")) {
             this.error("argument definition should be set to \"IDREF\": " + lineNum);
         } else if (prefix!=null) {
-            type = driver.createArgumentType(tagType, prefix);
+            name = prefix;
         } else {
-            type = driver.createArgumentType(tagType, argTypeName);
+            name = argTypeName;
         }
-        if (required && type != null) {
+        if (required) {
             logger.debug("setting to a required argument: " + argTypeName);
-            driver.setArgumentTypeRequired(type, true);
         }
-        return type;
+        tagType.argTypes.put(name, new ArgTypeDef(name, required));
+    }
+
+    private void error(String message) throws MaeIODTDException {
+        logger.error(message);
+        throw new MaeIODTDException(message);
+
+    }
+
+    private static class CachedSchema {
+        private final long lastModified;
+        private final long length;
+        private final TaskSchema schema;
+
+        CachedSchema(long lastModified, long length, TaskSchema schema) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.schema = schema;
+        }
     }
 
-    private TagType isTagTypeLoaded(String name) throws MaeDBException {
-        for (TagType tagtype : loadedTagTypes) {
-            if (tagtype.getName().equals(name)) {
-                return driver.getTagTypeByName(name);
+    private static class TagTypeBuilder {
+        private final String name;
+        private final boolean isLink;
+        private String prefix;
+        private boolean isNonConsuming;
+        private final LinkedHashMap<String, AttTypeBuilder> attTypes = new LinkedHashMap<>();
+        private final LinkedHashMap<String, ArgTypeDef> argTypes = new LinkedHashMap<>();
+
+        TagTypeBuilder(String name, String prefix, boolean isLink) {
+            this.name = name;
+            this.prefix = prefix;
+            this.isLink = isLink;
+        }
+
+        TagTypeDef build() {
+            List<AttTypeDef> atts = new ArrayList<>(attTypes.size());
+            for (AttTypeBuilder att : attTypes.values()) {
+                atts.add(new AttTypeDef(att.name, att.valueset, att.defaultValue, att.isRequired, att.isIdRef));
             }
+            return new TagTypeDef(name, prefix, isLink, isNonConsuming, atts, new ArrayList<>(argTypes.values()));
         }
-        return null;
     }
 
-    private void error(String message) throws MaeIODTDException {
-        logger.error(message);
-        throw new MaeIODTDException(message);
+    private static class AttTypeBuilder {
+        private final String name;
+        private List<String> valueset;
+        private String defaultValue;
+        private boolean isRequired;
+        private boolean isIdRef;
 
+        AttTypeBuilder(String name) {
+            this.name = name;
+        }
     }
 }
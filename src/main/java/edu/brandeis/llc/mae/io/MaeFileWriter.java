@@ -25,6 +25,7 @@
 package edu.brandeis.llc.mae.io;
 
 import edu.brandeis.llc.mae.MaeStrings;
+import edu.brandeis.llc.mae.util.FileHandler;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -38,8 +39,8 @@ public class MaeFileWriter {
             throws MaeIOException {
         try {
             writeTextToEmptyXML(new BufferedReader(new InputStreamReader(
-                    new FileInputStream(utf8file), StandardCharsets.UTF_8)), task, xmlOutFile);
-        } catch (FileNotFoundException e) {
+                    FileHandler.openInputStream(utf8file), StandardCharsets.UTF_8)), task, xmlOutFile);
+        } catch (IOException e) {
             throw new MaeIOException(e.getMessage());
         }
     }
@@ -53,7 +54,7 @@ public class MaeFileWriter {
             throws MaeIOException {
 
         try (PrintWriter outputWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
-                new FileOutputStream(xmlOutFile), StandardCharsets.UTF_8)))) {
+                FileHandler.openOutputStream(xmlOutFile), StandardCharsets.UTF_8)))) {
             if (!xmlOutFile.exists()) xmlOutFile.createNewFile();
             outputWriter.print(String.format(
                     MaeStrings.maeXMLHeader, task));
@@ -28,11 +28,8 @@ import edu.brandeis.llc.mae.MaeException;
 import edu.brandeis.llc.mae.MaeStrings;
 import edu.brandeis.llc.mae.database.MaeDBException;
 import edu.brandeis.llc.mae.database.MaeDriverI;
-import edu.brandeis.llc.mae.model.ArgumentType;
-import edu.brandeis.llc.mae.model.AttributeType;
-import edu.brandeis.llc.mae.model.TagType;
-import edu.brandeis.llc.mae.util.MappedSet;
-import edu.brandeis.llc.mae.util.SpanHandler;
+import edu.brandeis.llc.mae.util.FileHandler;
+import edu.brandeis.llc.mae.util.SpanKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.Attributes;
@@ -54,8 +51,11 @@ public class MaeXMLParser {
     private static final Logger logger = LoggerFactory.getLogger(MaeXMLParser.class.getName());
 
     private MaeDriverI driver;
+    private TaskSchema schema;
     private MaeSAXHandler xmlHandler;
+    private ParsedAnnotationIndex index;
     private String parseWarnings = "";
+    private List<ParseWarning> parseWarningList = new ArrayList<>();
 
     public MaeXMLParser() {
 
@@ -65,22 +65,38 @@ public class MaeXMLParser {
         this.driver = driver;
     }
 
-    public void readAnnotationFile(File file) throws SAXException, IOException, MaeDBException {
-        try {
-            List<String> extTagTypeNames = new ArrayList<>();
-            for (TagType type : driver.getExtentTagTypes()) {
-                extTagTypeNames.add(type.getName());
-            }
-            List<String> linkTagTypeNames = new ArrayList<>();
-            for (TagType type : driver.getLinkTagTypes()) {
-                linkTagTypeNames.add(type.getName());
-            }
+    /**
+     * Creates a parser that reads tag definitions from a schema, instead of
+     * querying a driver. Parsers sharing a schema can run concurrently.
+     * @param schema task definition
+     */
+    public MaeXMLParser(TaskSchema schema) {
+        this.schema = schema;
+    }
 
-            this.xmlHandler = new MaeSAXHandler(extTagTypeNames, linkTagTypeNames);
-            parse(file);
-        } catch (MaeDBException e) {
-            throw e;
+    public void readAnnotationFile(File file) throws SAXException, IOException, MaeDBException {
+        if (schema == null) {
+            schema = driver.getTaskSchema();
         }
+        this.xmlHandler = new MaeSAXHandler(schema);
+        parse(file);
+    }
+
+    /**
+     * Re-creates a parser holding already parsed contents of an annotation
+     * file, e.g. ones serialized out of memory, without reading the XML again.
+     */
+    public static MaeXMLParser restore(String taskName, String primaryText, List<ParsedTag> tags,
+                                       List<ParsedAtt> atts, List<ParsedArg> args) {
+        MaeXMLParser parser = new MaeXMLParser();
+        MaeSAXHandler handler = parser.new MaeSAXHandler();
+        handler.setTaskName(taskName);
+        handler.setPrimaryText(primaryText);
+        handler.tags = tags;
+        handler.atts = atts;
+        handler.args = args;
+        parser.xmlHandler = handler;
+        return parser;
     }
 
     public boolean hasParWarnings() {
@@ -94,19 +110,30 @@ public class MaeXMLParser {
         return parseWarnings;
     }
 
+    public List<ParseWarning> getParseWarningList() {
+        return parseWarningList;
+    }
+
+    private void addParseWarning(String type, String tid, String message) {
+        parseWarnings += message;
+        parseWarningList.add(new ParseWarning(type, tid, message.trim()));
+    }
+
     public void readAnnotationPreamble(File file) throws IOException, SAXException {
         this.xmlHandler = new MaeSAXSimpleHandler();
         parse(file);
     }
 
     private void parse(File utf8file) throws IOException, SAXException  {
+        index = null;
         try {
             SAXParserFactory factory = SAXParserFactory.newInstance();
             SAXParser saxParser = factory.newSAXParser();
-            Reader r = new InputStreamReader(new FileInputStream(utf8file), StandardCharsets.UTF_8);
-            InputSource source = new InputSource(r);
-            source.setEncoding(StandardCharsets.UTF_8.name());
-            saxParser.parse(source, xmlHandler);
+            try (Reader r = new InputStreamReader(FileHandler.openInputStream(utf8file), StandardCharsets.UTF_8)) {
+                InputSource source = new InputSource(r);
+                source.setEncoding(StandardCharsets.UTF_8.name());
+                saxParser.parse(source, xmlHandler);
+            }
         } catch (ParserConfigurationException e) {
             e.printStackTrace();
         }
@@ -144,6 +171,17 @@ public class MaeXMLParser {
         return this.xmlHandler;
     }
 
+    /**
+     * Returns lookup tables over parsed tags and attributes, built on the
+     * first call and kept as long as this parser.
+     */
+    public synchronized ParsedAnnotationIndex getIndex() {
+        if (index == null) {
+            index = new ParsedAnnotationIndex(getParsedTags(), getParsedAtts(), getParsedArgs());
+        }
+        return index;
+    }
+
     public class MaeSAXHandler extends DefaultHandler {
         private List<ParsedTag> tags;
         private List<ParsedAtt> atts;
@@ -152,57 +190,18 @@ public class MaeXMLParser {
         private boolean hasRootElem = false;
         private String primaryText;
         private String taskName;
-        private List<String> extTagTypeNames;
-        private List<String> linkTagTypeNames;
-        private MappedSet<String, String> attTypeMap;
-        private Map<String, List<String>> attValueMap;
-        private Map<String, String> attDefValueMap;
-        private MappedSet<String, String> argTypeMap;
+        private TaskSchema schema;
 
         public MaeSAXHandler() {
             initParsedLists();
         }
 
-        public MaeSAXHandler(List<String> extTagTypeNames, List<String> linkTagTypeNames) throws MaeDBException {
-            this.extTagTypeNames = extTagTypeNames;
-            this.linkTagTypeNames = linkTagTypeNames;
-            cacheAttMaps();
-            cacheArgMap();
+        public MaeSAXHandler(TaskSchema schema) {
+            this.schema = schema;
             initParsedLists();
 
         }
 
-        private void cacheArgMap() throws MaeDBException {
-            this.argTypeMap = new MappedSet<>();
-            for (String linkTypeName : linkTagTypeNames) {
-                for (ArgumentType argType : driver.getArgumentTypesOfLinkTagType(driver.getTagTypeByName(linkTypeName))) {
-                    argTypeMap.putItem(linkTypeName, argType.getName());
-                }
-            }
-        }
-
-        private void cacheAttMaps() throws MaeDBException {
-            this.attTypeMap = new MappedSet<>();
-            this.attValueMap = new HashMap<>();
-            this.attDefValueMap = new HashMap<>();
-            cacheAttMapsFromTagTypes(extTagTypeNames);
-            cacheAttMapsFromTagTypes(linkTagTypeNames);
-        }
-
-        private void cacheAttMapsFromTagTypes(List<String> tagTypeNames) throws MaeDBException {
-            for (String tagTypeName : tagTypeNames) {
-                for (AttributeType attType : driver.getAttributeTypesOfTagType(driver.getTagTypeByName(tagTypeName))) {
-                    String attTypeName = attType.getName();
-                    attTypeMap.putItem(tagTypeName, attTypeName);
-                    if (attType.isFiniteValueset()) {
-                        String attValuesKey = String.format("%s-%s", tagTypeName, attTypeName);
-                        attValueMap.put(attValuesKey, attType.getValuesetAsList());
-                        attDefValueMap.put(attValuesKey, attType.getDefaultValue());
-                    }
-                }
-            }
-        }
-
         private void initParsedLists() {
             this.tags = new ArrayList<>();
             this.atts = new ArrayList<>();
@@ -232,14 +231,15 @@ public class MaeXMLParser {
 
         private void parseTag(String tagTypeName, Attributes attributes) throws SAXException {
             ParsedTag tag = new ParsedTag();
-            if (extTagTypeNames.contains(tagTypeName)) {
+            if (schema.isExtentTagType(tagTypeName)) {
                 logger.debug(String.format("found extent tag: %s(%s)", attributes.getValue("id"), tagTypeName));
                 parseExtentTag(tagTypeName, tag, attributes);
-            } else if (linkTagTypeNames.contains(tagTypeName)) {
+            } else if (schema.isLinkTagType(tagTypeName)) {
                 logger.debug(String.format("found link tag: %s(%s)", attributes.getValue("id"), tagTypeName));
                 parseLinkTag(tagTypeName, tag, attributes);
             } else {
-                parseWarnings += String.format("unexpected tag type found: \"%s\"\nIgnored. \n\n", tagTypeName);
+                addParseWarning(ParseWarning.UNKNOWN_TAG_TYPE, attributes.getValue("id"),
+                        String.format("unexpected tag type found: \"%s\"\nIgnored. \n\n", tagTypeName));
             }
         }
 
@@ -250,6 +250,7 @@ public class MaeXMLParser {
             String tempStart = null;
             String tempEnd = null;
             String tid = null;
+            boolean spansInText = true;
             for(int i = 0; i < attributes.getLength(); i++){
                 String attName = attributes.getQName(i);
                 String attValue = attributes.getValue(i);
@@ -260,27 +261,21 @@ public class MaeXMLParser {
                         break;
                     case "spans":
                         try {
-                            int[] spans = SpanHandler.convertStringToArray(attValue);
-                            tag.setSpans(spans);
-                            tag.setText(getSubstringFromPrimaryText(spans));
+                            spansInText = setSpansAndText(tag, SpanKey.parse(attValue));
                         } catch (MaeException e) {
                             throw new SAXException(tid + ": " + e.getMessage());
                         }
                         break;
                     case "start":
                         if (tempEnd != null) {
-                            int[] spans = convertStartEndToSpansArray(attValue, tempEnd);
-                            tag.setSpans(spans);
-                            tag.setText(getSubstringFromPrimaryText(spans));
+                            spansInText = setSpansAndText(tag, convertStartEndToSpanKey(attValue, tempEnd));
                         } else {
                             tempStart = attValue;
                         }
                         break;
                     case "end":
                         if (tempStart != null) {
-                            int[] spans = convertStartEndToSpansArray(tempStart, attValue);
-                            tag.setSpans(spans);
-                            tag.setText(getSubstringFromPrimaryText(spans));
+                            spansInText = setSpansAndText(tag, convertStartEndToSpanKey(tempStart, attValue));
                         } else {
                             tempEnd = attValue;
                         }
@@ -295,35 +290,47 @@ public class MaeXMLParser {
 
                 }
             }
-            tags.add(tag);
+            if (spansInText) {
+                tags.add(tag);
+            } else {
+                addParseWarning(ParseWarning.SPAN_OUT_OF_TEXT, tid, String.format(
+                        "spans of %s are out of the primary text (length: %d): %s\nIgnored. \n\n",
+                        tid, primaryText == null ? 0 : primaryText.length(),
+                        tag.getSpanKey()));
+            }
 
         }
 
-        private String getSubstringFromPrimaryText(int[] spans) {
-            String text = "";
-            if (spans.length > 0) {
-                List<int[]> spanPairs = SpanHandler.convertArrayToPairs(spans);
-                Iterator<int[]> iter = spanPairs.iterator();
-
-                while (iter.hasNext()) {
-                    int[] pair = iter.next();
-                    text += primaryText.substring(pair[0], pair[1]);
-                    if (iter.hasNext()) {
-                        text += MaeStrings.SPANTEXTTRUNC;
-                    }
-                }
+        /**
+         * Sets spans of a tag and slices its text from the primary text.
+         * @return false if any of the spans is out of the primary text, then the text is not set
+         */
+        private boolean setSpansAndText(ParsedTag tag, SpanKey spans) {
+            tag.setSpans(spans);
+            // runs of a span key are always sorted
+            if (!spans.isEmpty() && (spans.getStart() < 0 || primaryText == null || spans.getEnd() > primaryText.length())) {
+                return false;
             }
-            return text;
+            tag.setText(getSubstringFromPrimaryText(spans));
+            return true;
         }
 
-        private int[] convertStartEndToSpansArray(String start, String end) {
-            int s = Integer.parseInt(start);
-            int e = Integer.parseInt(end);
-            if (s == -1 && e == -1) {
-                return new int[0];
-            } else {
-                return SpanHandler.range(s, e);
+        private String getSubstringFromPrimaryText(SpanKey spans) {
+            if (spans.getRunCount() == 1) {
+                return primaryText.substring(spans.getRunStart(0), spans.getRunEnd(0));
             }
+            StringBuilder text = new StringBuilder();
+            for (int run = 0; run < spans.getRunCount(); run++) {
+                if (run > 0) {
+                    text.append(MaeStrings.SPANTEXTTRUNC);
+                }
+                text.append(primaryText, spans.getRunStart(run), spans.getRunEnd(run));
+            }
+            return text.toString();
+        }
+
+        private SpanKey convertStartEndToSpanKey(String start, String end) {
+            return SpanKey.ofRange(Integer.parseInt(start), Integer.parseInt(end));
         }
 
         private void parseLinkTag(String tagTypeName, ParsedTag tag, Attributes attributes) throws SAXException {
@@ -338,7 +345,7 @@ public class MaeXMLParser {
                     tag.setTid(value);
                     tid = value;
                 } else if (name.endsWith(MaeStrings.ARG_IDCOL_SUF) && value.length() > 0
-                        && argTypeMap.get(tagTypeName).contains(name.substring(0, name.length() - MaeStrings.ARG_IDCOL_SUF.length()))) {
+                        && schema.getArgType(tagTypeName, name.substring(0, name.length() - MaeStrings.ARG_IDCOL_SUF.length())) != null) {
 
                     ParsedArg arg = new ParsedArg();
                     arg.setTid(tid);
@@ -358,21 +365,23 @@ public class MaeXMLParser {
         private void parseAttribute(String tagTypeName, String tid, String name, String value) throws SAXException {
             // used to filter null valued atts for DB insertion
             // however this caused errors at computing IAA, so now keep null atts as well
-            if (!attTypeMap.get(tagTypeName).contains(name)) {
-                parseWarnings += String.format("unexpected attribute type found: \"%s\" of %s\nIgnored. \n\n", name, tid);
+            TaskSchema.AttTypeDef attType = schema.getAttType(tagTypeName, name);
+            if (attType == null) {
+                addParseWarning(ParseWarning.UNKNOWN_ATT_TYPE, tid,
+                        String.format("unexpected attribute type found: \"%s\" of %s\nIgnored. \n\n", name, tid));
                 return;
             }
             ParsedAtt att = new ParsedAtt();
 
-            String attValuesKey = String.format("%s-%s", tagTypeName, name);
-            if (attValueMap.containsKey(attValuesKey)) {
-                if (!attValueMap.get(attValuesKey).contains(value) && value.length() > 0) {
-                    parseWarnings += String.format(
+            if (attType.isFiniteValueset()) {
+                if (!attType.isValidValue(value) && value.length() > 0) {
+                    String attValuesKey = String.format("%s-%s", tagTypeName, name);
+                    addParseWarning(ParseWarning.INVALID_ATT_VALUE, tid, String.format(
                             "\"%s\" is not a valid value for \"%s\", valid values are %s\nSet to its default value. \n\n",
                             value,
                             attValuesKey,
-                            attValueMap.get(attValuesKey));
-                    value = attDefValueMap.get(attValuesKey);
+                            attType.getValueset()));
+                    value = attType.getDefaultValue();
                 }
             }
             att.setTid(tid);
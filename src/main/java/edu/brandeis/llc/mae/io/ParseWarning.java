@@ -0,0 +1,64 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.io;
+
+/**
+ * A problem found while parsing an annotation XML that did not stop the parse.
+ * The same problems are also concatenated into a human readable string by
+ * {@link MaeXMLParser#getParseWarnings()}.
+ */
+public class ParseWarning {
+
+    public static final String UNKNOWN_TAG_TYPE = "unknown_tag_type";
+    public static final String UNKNOWN_ATT_TYPE = "unknown_att_type";
+    public static final String INVALID_ATT_VALUE = "invalid_att_value";
+    public static final String SPAN_OUT_OF_TEXT = "span_out_of_text";
+
+    private String type;
+    private String tid;
+    private String message;
+
+    public ParseWarning(String type, String tid, String message) {
+        this.type = type;
+        this.tid = tid;
+        this.message = message;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getTid() {
+        return tid;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String toString() {
+        return String.format("%s (%s): %s", type, tid, message);
+    }
+}
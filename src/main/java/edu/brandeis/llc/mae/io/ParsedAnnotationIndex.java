@@ -0,0 +1,175 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.io;
+
+import edu.brandeis.llc.mae.util.LinkKey;
+import edu.brandeis.llc.mae.util.SpanKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Lookup tables over the parsed contents of an annotation file, built in a
+ * single pass over the parsed tags. Extent tags are indexed by their tag type
+ * and then by {@link SpanKey}, so that tags an annotator put on a span are
+ * found without scanning the whole annotation. Link tags are indexed by their
+ * tag type and then by {@link LinkKey}, the spans of the extent tags they
+ * point to, so that links are matched across annotators by hashing as well.
+ * A non-consuming argument is keyed by its tag type and attribute values, and
+ * an argument that is not set (or points to no extent tag) is left out.
+ * Attributes and arguments are indexed by the tid of the tag they belong to.
+ */
+public class ParsedAnnotationIndex {
+
+    private final Map<String, Map<SpanKey, List<ParsedTag>>> extentTagsByTypeAndSpan;
+    private final Map<String, Map<LinkKey, List<ParsedTag>>> linkTagsByTypeAndArgs;
+    private final Map<String, ParsedTag> extentTagByTid;
+    private final Map<String, List<ParsedAtt>> attsByTid;
+    private final Map<String, List<ParsedArg>> argsByTid;
+
+    public ParsedAnnotationIndex(List<ParsedTag> tags, List<ParsedAtt> atts, List<ParsedArg> args) {
+        extentTagsByTypeAndSpan = new HashMap<>();
+        linkTagsByTypeAndArgs = new HashMap<>();
+        extentTagByTid = new HashMap<>();
+        attsByTid = new HashMap<>();
+        argsByTid = new HashMap<>();
+        for (ParsedTag tag : tags) {
+            if (tag.isLink() || tag.getSpanKey() == null) {
+                continue;
+            }
+            SpanKey span = tag.getSpanKey();
+            extentTagsByTypeAndSpan
+                    .computeIfAbsent(tag.getTagTypeName(), type -> new LinkedHashMap<>())
+                    .computeIfAbsent(span, s -> new ArrayList<>(1))
+                    .add(tag);
+            extentTagByTid.put(tag.getTid(), tag);
+        }
+        for (ParsedAtt att : atts) {
+            attsByTid.computeIfAbsent(att.getTid(), tid -> new ArrayList<>(2)).add(att);
+        }
+        for (ParsedArg arg : args) {
+            argsByTid.computeIfAbsent(arg.getTid(), tid -> new ArrayList<>(2)).add(arg);
+        }
+        // links are keyed only after all extent tags are seen, as they can point forward
+        for (ParsedTag tag : tags) {
+            if (!tag.isLink()) {
+                continue;
+            }
+            List<ParsedArg> linkArgs = getArgsOfTid(tag.getTid());
+            List<SpanKey> argSpans = new ArrayList<>(linkArgs.size());
+            List<String> nonConsumingArgs = new ArrayList<>(0);
+            for (ParsedArg arg : linkArgs) {
+                ParsedTag argTag = extentTagByTid.get(arg.getArgTid());
+                if (argTag == null) {
+                    continue;
+                }
+                if (argTag.getSpanKey().isEmpty()) {
+                    // empty spans would make links over different non-consuming tags look alike
+                    nonConsumingArgs.add(getNonConsumingKey(argTag));
+                } else {
+                    argSpans.add(argTag.getSpanKey());
+                }
+            }
+            linkTagsByTypeAndArgs
+                    .computeIfAbsent(tag.getTagTypeName(), type -> new LinkedHashMap<>())
+                    .computeIfAbsent(LinkKey.of(argSpans, nonConsumingArgs), key -> new ArrayList<>(1))
+                    .add(tag);
+        }
+    }
+
+    /**
+     * @return spans of all extent tags of the given type, in document order
+     */
+    public Set<SpanKey> getSpansOfTagType(String tagTypeName) {
+        return extentTagsByTypeAndSpan.getOrDefault(tagTypeName, Collections.emptyMap()).keySet();
+    }
+
+    public List<ParsedTag> getTagsOfTagTypeAndSpan(String tagTypeName, SpanKey span) {
+        return extentTagsByTypeAndSpan.getOrDefault(tagTypeName, Collections.emptyMap())
+                .getOrDefault(span, Collections.emptyList());
+    }
+
+    public List<ParsedTag> getTagsOfTagTypesAndSpan(Collection<String> tagTypeNames, SpanKey span) {
+        List<ParsedTag> tags = new ArrayList<>(1);
+        for (String tagTypeName : tagTypeNames) {
+            tags.addAll(getTagsOfTagTypeAndSpan(tagTypeName, span));
+        }
+        return tags;
+    }
+
+    /**
+     * @return keys of all link tags of the given type, in document order
+     */
+    public Set<LinkKey> getLinkKeysOfTagType(String tagTypeName) {
+        return linkTagsByTypeAndArgs.getOrDefault(tagTypeName, Collections.emptyMap()).keySet();
+    }
+
+    public List<ParsedTag> getLinksOfTagTypeAndArgs(String tagTypeName, LinkKey argSpans) {
+        return linkTagsByTypeAndArgs.getOrDefault(tagTypeName, Collections.emptyMap())
+                .getOrDefault(argSpans, Collections.emptyList());
+    }
+
+    /**
+     * @return span of an extent tag, or an empty span if the tid is not of
+     * an extent tag in this annotation (e.g. a dangling argument)
+     */
+    public SpanKey getSpanOfTid(String tid) {
+        ParsedTag tag = extentTagByTid.get(tid);
+        return tag == null ? SpanKey.EMPTY : tag.getSpanKey();
+    }
+
+    /**
+     * @return tag type and attribute values of a non-consuming extent tag,
+     * the closest to an identity that holds across annotators
+     */
+    private String getNonConsumingKey(ParsedTag tag) {
+        Map<String, String> atts = new TreeMap<>();
+        for (ParsedAtt att : getAttsOfTid(tag.getTid())) {
+            atts.put(att.getAttTypeName(), att.getAttValue());
+        }
+        return tag.getTagTypeName() + atts;
+    }
+
+    /**
+     * @return all arguments of a link tag, in the order they were parsed
+     */
+    public List<ParsedArg> getArgsOfTid(String tid) {
+        return argsByTid.getOrDefault(tid, Collections.emptyList());
+    }
+
+    /**
+     * @return all attributes of a tag, in the order they were parsed
+     */
+    public List<ParsedAtt> getAttsOfTid(String tid) {
+        return attsByTid.getOrDefault(tid, Collections.emptyList());
+    }
+}
@@ -25,7 +25,7 @@
 package edu.brandeis.llc.mae.io;
 
 import edu.brandeis.llc.mae.MaeException;
-import edu.brandeis.llc.mae.util.SpanHandler;
+import edu.brandeis.llc.mae.util.SpanKey;
 
 /**
  * Created by krim on 4/6/16.
@@ -35,7 +35,7 @@ public class ParsedTag {
     private String tid;
     private String tagTypeName;
     private String text;
-    private int[] spans;
+    private SpanKey spans;
 
     public boolean isLink() {
         return isLink;
@@ -69,25 +69,36 @@ public class ParsedTag {
         this.text = text;
     }
 
+    /**
+     * @return character offsets, expanded from {@link #getSpanKey()} on each call
+     */
     public int[] getSpans() {
+        return spans == null ? null : spans.toArray();
+    }
+
+    /**
+     * @return spans as runs of consecutive offsets, as read from the annotation file
+     */
+    public SpanKey getSpanKey() {
         return spans;
     }
 
     public void setSpans(String spansString) throws MaeException {
-        this.spans = SpanHandler.convertStringToArray(spansString);
+        this.spans = SpanKey.parse(spansString);
     }
 
     public void setSpans(String start, String end) {
-        int s = Integer.parseInt(start);
-        int e = Integer.parseInt(end);
-        if (s == -1 && e == -1) {
-            this.spans = new int[0];
-        } else {
-            this.spans = SpanHandler.range(s, e);
-        }
+        this.spans = SpanKey.ofRange(Integer.parseInt(start), Integer.parseInt(end));
     }
 
+    /**
+     * @param spans sorted, distinct character offsets
+     */
     public void setSpans(int[] spans) {
+        this.spans = spans == null ? null : SpanKey.of(spans);
+    }
+
+    public void setSpans(SpanKey spans) {
         this.spans = spans;
     }
 
@@ -0,0 +1,276 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.io;
+
+import edu.brandeis.llc.mae.database.MaeDBException;
+import edu.brandeis.llc.mae.database.MaeDriverI;
+import edu.brandeis.llc.mae.model.ArgumentType;
+import edu.brandeis.llc.mae.model.AttributeType;
+import edu.brandeis.llc.mae.model.TagType;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of an annotation task definition (tag types, their
+ * attribute types and argument types). Unlike the ORM model objects, a schema
+ * does not need a database to be queried, thus a single instance can be
+ * shared by many XML parsers running on different threads.
+ */
+public class TaskSchema {
+
+    private final String taskName;
+    private final List<TagTypeDef> tagTypes;
+    private final Map<String, TagTypeDef> tagTypeMap;
+    private final Set<String> extTagTypeNames;
+    private final Set<String> linkTagTypeNames;
+
+    public TaskSchema(String taskName, List<TagTypeDef> tagTypes) {
+        this.taskName = taskName;
+        this.tagTypes = Collections.unmodifiableList(new ArrayList<>(tagTypes));
+        Map<String, TagTypeDef> tagTypeMap = new LinkedHashMap<>();
+        Set<String> extTagTypeNames = new LinkedHashSet<>();
+        Set<String> linkTagTypeNames = new LinkedHashSet<>();
+        for (TagTypeDef tagType : tagTypes) {
+            tagTypeMap.put(tagType.getName(), tagType);
+            if (tagType.isLink()) {
+                linkTagTypeNames.add(tagType.getName());
+            } else {
+                extTagTypeNames.add(tagType.getName());
+            }
+        }
+        this.tagTypeMap = Collections.unmodifiableMap(tagTypeMap);
+        this.extTagTypeNames = Collections.unmodifiableSet(extTagTypeNames);
+        this.linkTagTypeNames = Collections.unmodifiableSet(linkTagTypeNames);
+    }
+
+    /**
+     * Takes a snapshot of the task definition loaded in a driver.
+     * @param driver a driver that has read a DTD
+     * @return a new schema
+     * @throws MaeDBException when querying the driver fails
+     */
+    public static TaskSchema fromDriver(MaeDriverI driver) throws MaeDBException {
+        List<TagTypeDef> tagTypes = new ArrayList<>();
+        for (TagType type : driver.getAllTagTypes()) {
+            List<AttTypeDef> attTypes = new ArrayList<>();
+            for (AttributeType attType : driver.getAttributeTypesOfTagType(type)) {
+                attTypes.add(new AttTypeDef(attType.getName(),
+                        attType.isFiniteValueset() ? attType.getValuesetAsList() : null,
+                        attType.getDefaultValue(), attType.isRequired(), attType.isIdRef()));
+            }
+            List<ArgTypeDef> argTypes = new ArrayList<>();
+            if (type.isLink()) {
+                for (ArgumentType argType : driver.getArgumentTypesOfLinkTagType(type)) {
+                    argTypes.add(new ArgTypeDef(argType.getName(), argType.isRequired()));
+                }
+            }
+            tagTypes.add(new TagTypeDef(type.getName(), type.getPrefix(), type.isLink(),
+                    type.isNonConsuming(), attTypes, argTypes));
+        }
+        return new TaskSchema(driver.getTaskName(), tagTypes);
+    }
+
+    public String getTaskName() {
+        return taskName;
+    }
+
+    public List<TagTypeDef> getTagTypes() {
+        return tagTypes;
+    }
+
+    public TagTypeDef getTagType(String tagTypeName) {
+        return tagTypeMap.get(tagTypeName);
+    }
+
+    public Set<String> getExtentTagTypeNames() {
+        return extTagTypeNames;
+    }
+
+    public Set<String> getLinkTagTypeNames() {
+        return linkTagTypeNames;
+    }
+
+    public boolean isExtentTagType(String tagTypeName) {
+        return extTagTypeNames.contains(tagTypeName);
+    }
+
+    public boolean isLinkTagType(String tagTypeName) {
+        return linkTagTypeNames.contains(tagTypeName);
+    }
+
+    public AttTypeDef getAttType(String tagTypeName, String attTypeName) {
+        TagTypeDef tagType = getTagType(tagTypeName);
+        return tagType == null ? null : tagType.getAttType(attTypeName);
+    }
+
+    public ArgTypeDef getArgType(String tagTypeName, String argTypeName) {
+        TagTypeDef tagType = getTagType(tagTypeName);
+        return tagType == null ? null : tagType.getArgType(argTypeName);
+    }
+
+    public String toString() {
+        return String.format("%s - %s", taskName, tagTypeMap.keySet());
+    }
+
+    /**
+     * Definition of a tag type.
+     */
+    public static class TagTypeDef {
+        private final String name;
+        private final String prefix;
+        private final boolean isLink;
+        private final boolean isNonConsuming;
+        private final Map<String, AttTypeDef> attTypes;
+        private final Map<String, ArgTypeDef> argTypes;
+
+        public TagTypeDef(String name, String prefix, boolean isLink, boolean isNonConsuming,
+                          List<AttTypeDef> attTypes, List<ArgTypeDef> argTypes) {
+            this.name = name;
+            this.prefix = prefix;
+            this.isLink = isLink;
+            this.isNonConsuming = isNonConsuming;
+            Map<String, AttTypeDef> attTypeMap = new LinkedHashMap<>();
+            for (AttTypeDef attType : attTypes) {
+                attTypeMap.put(attType.getName(), attType);
+            }
+            Map<String, ArgTypeDef> argTypeMap = new LinkedHashMap<>();
+            for (ArgTypeDef argType : argTypes) {
+                argTypeMap.put(argType.getName(), argType);
+            }
+            this.attTypes = Collections.unmodifiableMap(attTypeMap);
+            this.argTypes = Collections.unmodifiableMap(argTypeMap);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public boolean isLink() {
+            return isLink;
+        }
+
+        public boolean isExtent() {
+            return !isLink;
+        }
+
+        public boolean isNonConsuming() {
+            return isNonConsuming;
+        }
+
+        public Collection<AttTypeDef> getAttTypes() {
+            return attTypes.values();
+        }
+
+        public AttTypeDef getAttType(String attTypeName) {
+            return attTypes.get(attTypeName);
+        }
+
+        public Collection<ArgTypeDef> getArgTypes() {
+            return argTypes.values();
+        }
+
+        public ArgTypeDef getArgType(String argTypeName) {
+            return argTypes.get(argTypeName);
+        }
+
+        public String toString() {
+            return String.format("%s - %s - %s", name, attTypes.keySet(), argTypes.keySet());
+        }
+    }
+
+    /**
+     * Definition of an attribute type. A null valueset means free text.
+     */
+    public static class AttTypeDef {
+        private final String name;
+        private final List<String> valueset;
+        private final Set<String> valuesetLookup;
+        private final String defaultValue;
+        private final boolean isRequired;
+        private final boolean isIdRef;
+
+        public AttTypeDef(String name, List<String> valueset, String defaultValue, boolean isRequired, boolean isIdRef) {
+            this.name = name;
+            this.valueset = valueset == null ? null : Collections.unmodifiableList(new ArrayList<>(valueset));
+            this.valuesetLookup = valueset == null ? null : Collections.unmodifiableSet(new HashSet<>(valueset));
+            this.defaultValue = defaultValue == null ? "" : defaultValue;
+            this.isRequired = isRequired;
+            this.isIdRef = isIdRef;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getValueset() {
+            return valueset;
+        }
+
+        public boolean isFiniteValueset() {
+            return valueset != null;
+        }
+
+        public boolean isValidValue(String value) {
+            return valuesetLookup == null || valuesetLookup.contains(value);
+        }
+
+        public String getDefaultValue() {
+            return defaultValue;
+        }
+
+        public boolean isRequired() {
+            return isRequired;
+        }
+
+        public boolean isIdRef() {
+            return isIdRef;
+        }
+    }
+
+    /**
+     * Definition of an argument type of a link tag type.
+     */
+    public static class ArgTypeDef {
+        private final String name;
+        private final boolean isRequired;
+
+        public ArgTypeDef(String name, boolean isRequired) {
+            this.name = name;
+            this.isRequired = isRequired;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isRequired() {
+            return isRequired;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.io;
+
+import edu.brandeis.llc.mae.MaeStrings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Converts plain text files under a directory tree into empty MAE XML files
+ * without going through the GUI. Each conversion is the same as what happens
+ * when a text file is opened in MAE: the text is wrapped by
+ * {@link MaeFileWriter#writeTextToEmptyXML(File, String, File)} and the new
+ * file is named by {@link AnnotationLoader#getNextAvailableXMLName(File)}.
+ * Files are converted in parallel by a fixed size worker pool, and the queue
+ * of pending files is bounded so that walking a huge tree does not pile up
+ * tasks in memory.
+ */
+public class TxtBatchImporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TxtBatchImporter.class.getName());
+
+    public static final String DEFAULT_SOURCE_EXT = ".txt";
+
+    private final String taskName;
+    private final int numThreads;
+    private final String sourceExt;
+    // picking a free name and reserving it on disk must happen atomically across workers
+    private final Object namingLock = new Object();
+
+    public TxtBatchImporter(String taskName) {
+        this(taskName, Runtime.getRuntime().availableProcessors(), DEFAULT_SOURCE_EXT);
+    }
+
+    public TxtBatchImporter(String taskName, int numThreads, String sourceExt) {
+        this.taskName = taskName;
+        this.numThreads = Math.max(1, numThreads);
+        this.sourceExt = sourceExt.toLowerCase();
+    }
+
+    /**
+     * Converts all files with the source extension found under the root directory.
+     * @param rootDir root of a directory tree to walk
+     * @param outputRootDir root directory to write XML files, mirroring the source
+     *                      tree. If null, XML files are written next to the sources.
+     * @return a summary of the conversion, including per-file failures
+     * @throws MaeIOException when the root directory cannot be walked
+     */
+    public Report importDirectory(File rootDir, File outputRootDir) throws MaeIOException {
+        if (!rootDir.isDirectory()) {
+            throw new MaeIOException("Not a directory: " + rootDir.getAbsolutePath());
+        }
+        Report report = new Report();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(numThreads * 4),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        Path root = rootDir.toPath();
+        long start = System.nanoTime();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(path -> Files.isRegularFile(path) && isSource(path.toFile())).forEach(path -> {
+                File target = outputRootDir == null ? null
+                        : outputRootDir.toPath().resolve(root.relativize(path)).toFile();
+                pool.execute(() -> convertAndReport(path.toFile(), target, report));
+            });
+        } catch (IOException | UncheckedIOException e) {
+            throw new MaeIOException("failed to walk the directory: " + rootDir.getAbsolutePath(), e);
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            report.elapsedNanos = System.nanoTime() - start;
+        }
+        return report;
+    }
+
+    private boolean isSource(File file) {
+        return !file.isHidden() && file.getName().toLowerCase().endsWith(sourceExt);
+    }
+
+    private void convertAndReport(File source, File target, Report report) {
+        try {
+            convert(source, target);
+            report.converted.incrementAndGet();
+            report.bytes.addAndGet(source.length());
+        } catch (MaeIOException | RuntimeException e) {
+            // anything else thrown here would be lost in the pool, and missing from the report
+            logger.error(String.format("failed to convert %s: %s", source.getAbsolutePath(), e.getMessage()));
+            report.failures.put(source.getAbsolutePath(), String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Converts a single text file into an empty MAE XML.
+     * @param source a UTF-8 text file
+     * @param target a path of which XML name is based on. If null, source is used
+     * @return the newly created XML file
+     * @throws MaeIOException when writing fails or the generated XML is not well-formed
+     */
+    public File convert(File source, File target) throws MaeIOException {
+        File xmlized = reserveXMLName(target == null ? source : target);
+        boolean converted = false;
+        try {
+            MaeFileWriter.writeTextToEmptyXML(source, taskName, xmlized);
+            // same sanity check as opening the generated file in the GUI
+            new MaeXMLParser().readAnnotationPreamble(xmlized);
+            converted = true;
+        } catch (IOException | SAXException e) {
+            throw new MaeIOXMLException(MaeStrings.FILE_NOT_XML_AND_DELETE_ERR + e.getMessage(), e);
+        } finally {
+            // don't leave the reserved name behind, or the next run would skip it
+            if (!converted) {
+                xmlized.delete();
+            }
+        }
+        return xmlized;
+    }
+
+    private File reserveXMLName(File base) throws MaeIOException {
+        File parent = base.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new MaeIOException("Cannot create a directory: " + parent.getAbsolutePath());
+        }
+        synchronized (namingLock) {
+            File xmlized = AnnotationLoader.getNextAvailableXMLName(base);
+            try {
+                if (!xmlized.createNewFile()) {
+                    throw new MaeIOException("Cannot create a new file: " + xmlized.getAbsolutePath());
+                }
+            } catch (IOException e) {
+                throw new MaeIOException("Cannot create a new file: " + xmlized.getAbsolutePath(), e);
+            }
+            return xmlized;
+        }
+    }
+
+    /**
+     * Summary of a batch conversion.
+     */
+    public static class Report {
+        private final AtomicInteger converted = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final Map<String, String> failures = new ConcurrentSkipListMap<>();
+        private long elapsedNanos;
+
+        public int getConvertedCount() {
+            return converted.get();
+        }
+
+        public Map<String, String> getFailures() {
+            return new TreeMap<>(failures);
+        }
+
+        public double getElapsedSeconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        public double getFilesPerSecond() {
+            return elapsedNanos == 0 ? 0 : converted.get() / getElapsedSeconds();
+        }
+
+        public double getMegabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes.get() / 1048576.0 / getElapsedSeconds();
+        }
+
+        public String toString() {
+            return String.format("%d converted, %d failed in %.2f sec (%.1f files/sec, %.2f MB/sec)",
+                    getConvertedCount(), failures.size(), getElapsedSeconds(),
+                    getFilesPerSecond(), getMegabytesPerSecond());
+        }
+    }
+}
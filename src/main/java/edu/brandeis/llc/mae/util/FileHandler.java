@@ -26,11 +26,20 @@ package edu.brandeis.llc.mae.util;
 
 import edu.brandeis.llc.mae.io.MaeIOException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by krim on 4/12/16.
@@ -39,8 +48,49 @@ public class FileHandler {
 
     public static String ANNOTATOR_SUFFIX_DELIM = "_";
     public static String XML_EXT = ".xml";
+    public static String GZIP_EXT = ".gz";
     public static FileFilter XML_FILTER  = pathname
-            -> pathname.getName().toLowerCase().endsWith(".xml");
+            -> pathname.getName().toLowerCase().endsWith(".xml")
+            || pathname.getName().toLowerCase().endsWith(".xml.gz");
+
+    private static final int GZIP_MAGIC_FIRST = 0x1f;
+    private static final int GZIP_MAGIC_SECOND = 0x8b;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Checks the first two bytes of a file for the gzip magic number,
+     * regardless of the file name.
+     */
+    public static boolean isGzipped(File file) throws IOException {
+        try (InputStream stream = new FileInputStream(file)) {
+            return stream.read() == GZIP_MAGIC_FIRST && stream.read() == GZIP_MAGIC_SECOND;
+        }
+    }
+
+    /**
+     * Opens a buffered stream to read a file. A gzip compressed file is
+     * detected by its magic number and decompressed on the fly.
+     */
+    public static InputStream openInputStream(File file) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE);
+        stream.mark(2);
+        boolean gzipped = stream.read() == GZIP_MAGIC_FIRST && stream.read() == GZIP_MAGIC_SECOND;
+        stream.reset();
+        return gzipped ? new GZIPInputStream(stream, IO_BUFFER_SIZE) : stream;
+    }
+
+    /**
+     * Opens a buffered stream to write a file. Output is gzip compressed
+     * when the file name ends with ".gz".
+     */
+    public static OutputStream openOutputStream(File file) throws IOException {
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE);
+        return isGzipName(file.getName()) ? new GZIPOutputStream(stream, IO_BUFFER_SIZE) : stream;
+    }
+
+    public static boolean isGzipName(String fileName) {
+        return fileName.toLowerCase().endsWith(GZIP_EXT);
+    }
 
     public static String getFileBaseName(File file) {
         return getFileBaseName(file.getAbsolutePath());
@@ -96,6 +146,13 @@ public class FileHandler {
     }
 
     public static String getFileNameWithoutExtension(String fileBaseName) {
+        // compressed files lose both extensions, e.g. "doc_A.xml.gz" -> "doc_A"
+        if (isGzipName(fileBaseName)) {
+            fileBaseName = fileBaseName.substring(0, fileBaseName.length() - GZIP_EXT.length());
+            if (!fileBaseName.contains(".")) {
+                return fileBaseName;
+            }
+        }
         return splitSuffix(fileBaseName, ".")[0];
 
     }
@@ -0,0 +1,148 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Identifies a link tag across annotators by the spans of its arguments,
+ * regardless of the roles they fill. Spans are kept sorted, so links over the
+ * same extents are equal and hash alike however their arguments are ordered.
+ * Non-consuming arguments have no span to tell them apart, so they are
+ * identified by a caller-given key instead (e.g. their tag type and
+ * attributes), kept sorted as well.
+ */
+public final class LinkKey implements Comparable<LinkKey> {
+
+    private final SpanKey[] arguments;
+    private final String[] nonConsumingArguments;
+    private final int hash;
+
+    private LinkKey(SpanKey[] arguments, String[] nonConsumingArguments) {
+        this.arguments = arguments;
+        this.nonConsumingArguments = nonConsumingArguments;
+        this.hash = 31 * Arrays.hashCode(arguments) + Arrays.hashCode(nonConsumingArguments);
+    }
+
+    /**
+     * @param argumentSpans spans of the extent tags a link points to, in any order
+     */
+    public static LinkKey of(Collection<SpanKey> argumentSpans) {
+        return of(argumentSpans, Collections.emptyList());
+    }
+
+    /**
+     * @param argumentSpans spans of the consuming extent tags a link points to, in any order
+     * @param nonConsumingArguments keys of the non-consuming extent tags a link points to, in any order
+     */
+    public static LinkKey of(Collection<SpanKey> argumentSpans, Collection<String> nonConsumingArguments) {
+        SpanKey[] arguments = argumentSpans.toArray(new SpanKey[argumentSpans.size()]);
+        Arrays.sort(arguments);
+        String[] nonConsuming = nonConsumingArguments.toArray(new String[nonConsumingArguments.size()]);
+        Arrays.sort(nonConsuming);
+        return new LinkKey(arguments, nonConsuming);
+    }
+
+    /**
+     * @return number of consuming arguments
+     */
+    public int getArgumentCount() {
+        return arguments.length;
+    }
+
+    /**
+     * @return span of a consuming argument, in the sorted order
+     */
+    public SpanKey getArgument(int i) {
+        return arguments[i];
+    }
+
+    public int getNonConsumingArgumentCount() {
+        return nonConsumingArguments.length;
+    }
+
+    /**
+     * @return the first character offset of the arguments, or -1 if all are non-consuming
+     */
+    public int getStart() {
+        for (SpanKey argument : arguments) {
+            if (!argument.isEmpty()) {
+                return argument.getStart();
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int compareTo(LinkKey other) {
+        int toLook = Math.min(arguments.length, other.arguments.length);
+        for (int i = 0; i < toLook; i++) {
+            int compared = arguments[i].compareTo(other.arguments[i]);
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        if (arguments.length != other.arguments.length) {
+            return Integer.compare(arguments.length, other.arguments.length);
+        }
+        toLook = Math.min(nonConsumingArguments.length, other.nonConsumingArguments.length);
+        for (int i = 0; i < toLook; i++) {
+            int compared = nonConsumingArguments[i].compareTo(other.nonConsumingArguments[i]);
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return Integer.compare(nonConsumingArguments.length, other.nonConsumingArguments.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LinkKey)) {
+            return false;
+        }
+        LinkKey other = (LinkKey) o;
+        return hash == other.hash && Arrays.equals(arguments, other.arguments)
+                && Arrays.equals(nonConsumingArguments, other.nonConsumingArguments);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        if (nonConsumingArguments.length == 0) {
+            return Arrays.toString(arguments);
+        }
+        return Arrays.toString(arguments) + Arrays.toString(nonConsumingArguments);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.util;
+
+import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.MaeStrings;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, hashable key for the spans of an extent tag. Instead of keeping
+ * an offset for every character, a key holds runs of consecutive offsets as
+ * flattened (start, exclusive end) pairs, with its hash code computed once.
+ * Keys are ordered lexicographically by their runs, thus by start offsets
+ * first. For contiguous spans, this is the same order as
+ * {@link SortedIntArrayComparator} gives to character offset arrays.
+ */
+public final class SpanKey implements Comparable<SpanKey> {
+
+    public static final SpanKey EMPTY = new SpanKey(new int[0]);
+
+    private final int[] runs;
+    private final int hash;
+
+    private SpanKey(int[] runs) {
+        this.runs = runs;
+        this.hash = Arrays.hashCode(runs);
+    }
+
+    /**
+     * @param spans character offsets of a tag, as held by {@link edu.brandeis.llc.mae.io.ParsedTag}
+     */
+    public static SpanKey of(int[] spans) {
+        if (spans == null || spans.length == 0) {
+            return EMPTY;
+        }
+        int runCount = 1;
+        for (int i = 1; i < spans.length; i++) {
+            if (spans[i] != spans[i - 1] + 1) {
+                runCount++;
+            }
+        }
+        int[] runs = new int[runCount * 2];
+        int r = 0;
+        runs[r] = spans[0];
+        for (int i = 1; i < spans.length; i++) {
+            if (spans[i] != spans[i - 1] + 1) {
+                runs[r + 1] = spans[i - 1] + 1;
+                r += 2;
+                runs[r] = spans[i];
+            }
+        }
+        runs[r + 1] = spans[spans.length - 1] + 1;
+        return new SpanKey(runs);
+    }
+
+    /**
+     * Reads a spans string as written in annotation files (e.g. "3~7,12~15")
+     * straight into runs, without going through character offsets. Ranges
+     * are sorted and overlapping or adjacent ones are merged, as
+     * {@link SpanHandler#convertStringToArray(String)} does.
+     */
+    public static SpanKey parse(String spansString) throws MaeException {
+        if (spansString == null || spansString.equals("") || spansString.equals(MaeStrings.NCSPAN_PLACEHOLDER)) {
+            return EMPTY;
+        }
+        String[] pairs = spansString.split(MaeStrings.SPANDELIMITER);
+        int[] ranges = new int[pairs.length * 2];
+        for (int i = 0; i < pairs.length; i++) {
+            try {
+                int start = Integer.parseInt(pairs[i].split(MaeStrings.SPANRANGE)[0]);
+                int end = Integer.parseInt(pairs[i].split(MaeStrings.SPANRANGE)[1]);
+                if (start >= end) {
+                    throw new MaeException("SpanString ill-formed: start of each span should be smaller than its paired end");
+                }
+                ranges[i * 2] = start;
+                ranges[i * 2 + 1] = end;
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new MaeException("SpanString ill-formed: make sure using proper delimiters; \"~\" and \",\" (no space)");
+            }
+        }
+        return ofRanges(ranges);
+    }
+
+    /**
+     * @return a key of a single run, or {@link #EMPTY} if the range is empty
+     * (including the -1, -1 of a non-consuming tag)
+     */
+    public static SpanKey ofRange(int start, int end) {
+        return start >= end ? EMPTY : new SpanKey(new int[]{start, end});
+    }
+
+    /**
+     * @param ranges flattened (start, exclusive end) pairs in any order;
+     *               empty ranges are dropped, overlapping or adjacent ones merged
+     */
+    public static SpanKey ofRanges(int[] ranges) {
+        int[] sorted = new int[ranges.length];
+        int count = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] >= ranges[i + 1]) {
+                continue;
+            }
+            // insertion by start; tags rarely have more than a few ranges
+            int j = count;
+            while (j > 0 && sorted[j - 2] > ranges[i]) {
+                sorted[j] = sorted[j - 2];
+                sorted[j + 1] = sorted[j - 1];
+                j -= 2;
+            }
+            sorted[j] = ranges[i];
+            sorted[j + 1] = ranges[i + 1];
+            count += 2;
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        int r = 0;
+        for (int i = 2; i < count; i += 2) {
+            if (sorted[i] <= sorted[r + 1]) {
+                sorted[r + 1] = Math.max(sorted[r + 1], sorted[i + 1]);
+            } else {
+                r += 2;
+                sorted[r] = sorted[i];
+                sorted[r + 1] = sorted[i + 1];
+            }
+        }
+        return new SpanKey(Arrays.copyOf(sorted, r + 2));
+    }
+
+    public boolean isEmpty() {
+        return runs.length == 0;
+    }
+
+    /**
+     * @return the first character offset, or -1 for a non-consuming span
+     */
+    public int getStart() {
+        return isEmpty() ? -1 : runs[0];
+    }
+
+    /**
+     * @return the exclusive end of the last run, or -1 for a non-consuming span
+     */
+    public int getEnd() {
+        return isEmpty() ? -1 : runs[runs.length - 1];
+    }
+
+    public int getRunCount() {
+        return runs.length / 2;
+    }
+
+    public int getRunStart(int run) {
+        return runs[run * 2];
+    }
+
+    public int getRunEnd(int run) {
+        return runs[run * 2 + 1];
+    }
+
+    /**
+     * @return number of characters covered
+     */
+    public int length() {
+        int length = 0;
+        for (int i = 0; i < runs.length; i += 2) {
+            length += runs[i + 1] - runs[i];
+        }
+        return length;
+    }
+
+    /**
+     * @return number of characters covered by both keys
+     */
+    public int overlapLength(SpanKey other) {
+        int overlap = 0;
+        int i = 0;
+        int j = 0;
+        while (i < runs.length && j < other.runs.length) {
+            int start = Math.max(runs[i], other.runs[j]);
+            int end = Math.min(runs[i + 1], other.runs[j + 1]);
+            if (start < end) {
+                overlap += end - start;
+            }
+            if (runs[i + 1] < other.runs[j + 1]) {
+                i += 2;
+            } else {
+                j += 2;
+            }
+        }
+        return overlap;
+    }
+
+    /**
+     * @return character offsets as in {@link edu.brandeis.llc.mae.io.ParsedTag#getSpans()}
+     */
+    public int[] toArray() {
+        int[] spans = new int[length()];
+        int i = 0;
+        for (int r = 0; r < runs.length; r += 2) {
+            for (int offset = runs[r]; offset < runs[r + 1]; offset++) {
+                spans[i++] = offset;
+            }
+        }
+        return spans;
+    }
+
+    @Override
+    public int compareTo(SpanKey other) {
+        int toLook = Math.min(runs.length, other.runs.length);
+        for (int i = 0; i < toLook; i++) {
+            if (runs[i] != other.runs[i]) {
+                return Integer.compare(runs[i], other.runs[i]);
+            }
+        }
+        return Integer.compare(runs.length, other.runs.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SpanKey)) {
+            return false;
+        }
+        SpanKey other = (SpanKey) o;
+        return hash == other.hash && Arrays.equals(runs, other.runs);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return isEmpty() ? "(-1,-1)" : SpanHandler.convertArrayToString(toArray());
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.brandeis.llc.mae.agreement.MaeAgreementStrings;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import edu.brandeis.llc.mae.util.MappedSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class MaeIAAMainTest {
+
+    private String dtd;
+    private String dataset;
+    private ByteArrayOutputStream out;
+    private ByteArrayOutputStream err;
+
+    @Before
+    public void setUp() throws Exception {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        dtd = new File(loader.getResource("iaa_example/iaaSample.dtd").getPath()).getAbsolutePath();
+        dataset = new File(loader.getResource("iaa_example").getPath()).getAbsolutePath();
+        out = new ByteArrayOutputStream();
+        err = new ByteArrayOutputStream();
+    }
+
+    private int run(String... args) throws Exception {
+        List<String> argsList = new ArrayList<>(Arrays.asList("--task", dtd));
+        Collections.addAll(argsList, args);
+        // bootstrapping is slow and tested elsewhere
+        if (!argsList.contains("--bootstrap")) {
+            Collections.addAll(argsList, "--bootstrap", "0");
+        }
+        return MaeIAAMain.run(argsList.toArray(new String[argsList.size()]),
+                new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8"));
+    }
+
+    private String getOut() {
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private String getErr() {
+        return new String(err.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private JsonNode getJson() throws Exception {
+        return new ObjectMapper().readTree(getOut());
+    }
+
+    @Test
+    public void canParseSpecs() throws Exception {
+        TaskSchema schema = MaeIAAMain.readTaskSchema(new File(dtd));
+        Map<String, MappedSet<String, String>> specs = MaeIAAMain.parseSpecs(Arrays.asList(
+                "pi:NOUN,VERB", "alphau:NOUN/type/comment", "kappa:ARGUMENTS/-args"), schema);
+        assertEquals(Arrays.asList(MaeAgreementStrings.MULTIPI_CALC_STRING, MaeAgreementStrings.ALPHAU_CALC_STRING,
+                MaeAgreementStrings.MULTIKAPPA_CALC_STRING), new ArrayList<>(specs.keySet()));
+        assertEquals(new ArrayList<>(Arrays.asList("NOUN", "VERB")),
+                new ArrayList<>(specs.get(MaeAgreementStrings.MULTIPI_CALC_STRING).keySet()));
+        assertEquals(new TreeSet<>(Arrays.asList("type", "comment")),
+                specs.get(MaeAgreementStrings.ALPHAU_CALC_STRING).get("NOUN"));
+        assertTrue(specs.get(MaeAgreementStrings.MULTIKAPPA_CALC_STRING).get("ARGUMENTS")
+                .contains(MaeAgreementStrings.ARGS_ATT));
+
+        for (String badSpec : new String[]{"NOUN", "rho:NOUN", "pi:PRONOUN", "pi:NOUN/color", "pi:NOUN/-args"}) {
+            try {
+                MaeIAAMain.parseSpecs(Collections.singletonList(badSpec), schema);
+                fail("parsed " + badSpec);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(badSpec));
+            }
+        }
+    }
+
+    @Test
+    public void writesJsonReport() throws Exception {
+        assertEquals(0, run("--dir", dataset, "--global", "pi:NOUN,VERB", "--local", "kappa:VERB/tense"));
+        JsonNode report = getJson();
+        assertEquals(5, report.get("annotators").size());
+        assertEquals(4, report.get("documentCount").asInt());
+        List<String> targets = new ArrayList<>();
+        for (JsonNode agreement : report.get("agreements")) {
+            targets.add(agreement.get("target").asText());
+            assertFalse(agreement.has("low"));
+        }
+        assertTrue(targets.toString(), targets.contains("VERB::tense"));
+        assertFalse(report.has("documentAgreements"));
+    }
+
+    @Test
+    public void writesCsvColumnsOfRecordsPresent() throws Exception {
+        assertEquals(0, run("--dir", dataset, "--global", "pi:NOUN,VERB", "--format", "csv"));
+        String[] lines = getOut().split("\n");
+        assertEquals("record,scope,metric,target,value", lines[0]);
+        assertTrue(lines[1], lines[1].startsWith(
+                "agreement," + MaeAgreementStrings.SCOPE_CROSSTAG_STRING + "," + MaeAgreementStrings.MULTIPI_CALC_STRING + ","));
+
+        out.reset();
+        assertEquals(0, run("--dir", dataset, "--global", "pi:NOUN,VERB", "--format", "csv",
+                "--by-document", "--bootstrap", "10"));
+        lines = getOut().split("\n");
+        assertEquals("record,scope,metric,target,value,low,high,document", lines[0]);
+        int documentRows = 0;
+        for (String line : lines) {
+            assertEquals(line, 8, line.split(",", -1).length);
+            if (line.startsWith("document,")) {
+                documentRows++;
+                assertTrue(line, line.matches(".*,doc[1-4]"));
+            }
+        }
+        assertEquals(4, documentRows);
+    }
+
+    @Test
+    public void quotesCsvFields() throws Exception {
+        Map<String, String> warnings = new TreeMap<>();
+        warnings.put("a,b.xml", "said \"no\"");
+        MaeIAAMain.Report report = new MaeIAAMain.Report("task", "dir", Collections.singletonList("a"), 1, warnings);
+        assertEquals("record,scope,metric,target,value\nwarning,,,\"a,b.xml\",\"said \"\"no\"\"\"\n",
+                report.toCsv());
+    }
+
+    @Test
+    public void canIncludeAndExcludeAnnotators() throws Exception {
+        assertEquals(0, run("--dir", dataset, "--global", "pi:NOUN", "--include", "a1,a2,a3"));
+        assertEquals("[\"a1\",\"a2\",\"a3\"]", getJson().get("annotators").toString());
+
+        out.reset();
+        assertEquals(0, run("--dir", dataset, "--global", "pi:NOUN", "--exclude", "a5"));
+        assertEquals("[\"a1\",\"a2\",\"a3\",\"a4\"]", getJson().get("annotators").toString());
+    }
+
+    @Test
+    public void unknownNamesAreUsageErrors() throws Exception {
+        assertEquals(2, run("--dir", dataset, "--global", "pi:NOUN", "--include", "a1,nobody"));
+        assertTrue(getErr(), getErr().contains("nobody"));
+        assertEquals(2, run("--dir", dataset, "--global", "pi:NOUN", "--exclude", "nobody"));
+        assertEquals(2, run("--dir", dataset, "--global", "pi:PRONOUN"));
+        assertEquals(2, run("--dir", dataset, "--global", "pi:NOUN", "--format", "xml"));
+        assertEquals(2, run("--global", "pi:NOUN"));
+        assertEquals(2, run("--dir", dataset));
+        assertEquals("", getOut());
+    }
+
+    @Test
+    public void invalidDatasetExitsWithOne() throws Exception {
+        File copy = Files.createTempDirectory("mae-iaa-cli").toFile();
+        try {
+            FileUtils.copyDirectory(new File(dataset), copy);
+            File changed = new File(copy, "doc1_a2.xml");
+            String xml = FileUtils.readFileToString(changed, StandardCharsets.UTF_8);
+            FileUtils.writeStringToFile(changed, xml.replace("Mrs Miller", "Mr. Miller"), StandardCharsets.UTF_8);
+            assertEquals(1, run("--dir", copy.getAbsolutePath(), "--global", "pi:NOUN"));
+            assertTrue(getErr(), getErr().contains("doc1_a2.xml"));
+        } finally {
+            FileUtils.deleteDirectory(copy);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.agreement;
+
+import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.agreement.calculator.AgreementEngine;
+import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
+import edu.brandeis.llc.mae.agreement.io.AnnotationFilesIndexer;
+import edu.brandeis.llc.mae.agreement.io.XMLParseCache;
+import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.util.MappedSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AgreementEngineTest {
+
+    private AbstractAnnotationIndexer indexer;
+    private XMLParseCache cache;
+    private int[] documentLength;
+
+    @Before
+    public void setUp() throws Exception {
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        URL exmapleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        indexer = new AnnotationFilesIndexer();
+        indexer.indexAnnotations(new File[]{new File(exmapleFileUrl.getPath())});
+        cache = new XMLParseCache(DTDLoader.compile(new File(sampleFileUrl.getPath())), indexer, 2);
+        List<String> documents = indexer.getDocumentNames();
+        documentLength = new int[documents.size()];
+        for (int i = 0; i < documents.size(); i++) {
+            for (MaeXMLParser parse : cache.getParses(documents.get(i))) {
+                if (parse != null) {
+                    documentLength[i] = parse.getParsedPrimaryText().length();
+                }
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    private static MappedSet<String, String> targets(String tagType, String... attTypes) {
+        MappedSet<String, String> targets = new MappedSet<>();
+        LinkedList<String> atts = new LinkedList<>();
+        for (String attType : attTypes) {
+            atts.add(attType);
+        }
+        targets.putCollection(tagType, atts);
+        return targets;
+    }
+
+    @Test
+    public void sharedStudiesMatchBaselineAgreements() throws Exception {
+        MappedSet<String, String> moods = targets("MOOD_DECL");
+        moods.putCollection("MOOD_IMPE", new LinkedList<>());
+        moods.putCollection("MOOD_SUBJ", new LinkedList<>());
+        Map<String, MappedSet<String, String>> global = new LinkedHashMap<>();
+        global.put(MULTIPI_CALC_STRING, moods);
+        global.put(MULTIKAPPA_CALC_STRING, moods);
+        global.put(ALPHA_CALC_STRING, moods);
+        Map<String, MappedSet<String, String>> local = new LinkedHashMap<>();
+        local.put(MULTIPI_CALC_STRING, targets("NAMED_ENTITY", "type"));
+        local.put(MULTIKAPPA_CALC_STRING, targets("NAMED_ENTITY"));
+        local.put(ALPHAU_CALC_STRING, targets("VERB", "tense", "aspect"));
+
+        long hitsBefore = cache.getStatistics().getHitCount();
+        AgreementEngine.Results results = new AgreementEngine(indexer, cache, documentLength)
+                .calculateAgreements(global, local, false);
+        // one walk over the corpus for all metrics
+        assertEquals(indexer.getDocumentCount(), cache.getStatistics().getHitCount() - hitsBefore);
+
+        // expected values were computed by the separate calculators before the engine shared studies
+        assertAgreements(results.getGlobalAgreements(MULTIPI_CALC_STRING),
+                "cross-tag_multi_pi", -0.1445783132530119);
+        assertAgreements(results.getGlobalAgreements(MULTIKAPPA_CALC_STRING),
+                "cross-tag_multi_kappa", -0.10144927536231874);
+        assertAgreements(results.getGlobalAgreements(ALPHA_CALC_STRING),
+                "cross-tag_alpha", -0.08734939759036142);
+        assertAgreements(results.getLocalAgreements(MULTIPI_CALC_STRING),
+                "NAMED_ENTITY::-", -0.05263157894736848,
+                "NAMED_ENTITY::type", -0.1642008246422507);
+        assertAgreements(results.getLocalAgreements(MULTIKAPPA_CALC_STRING),
+                "NAMED_ENTITY::-", 0.0);
+        assertAgreements(results.getLocalAgreements(ALPHAU_CALC_STRING),
+                "VERB::-", 0.9373909843017394,
+                "VERB::aspect", 0.7100214097496707,
+                "VERB::tense", 0.5798276749256215);
+    }
+
+    /**
+     * @param expected pairs of an agreement key and its value
+     */
+    private static void assertAgreements(Map<String, Double> actual, Object... expected) {
+        assertEquals(expected.length / 2, actual.size());
+        for (int i = 0; i < expected.length; i += 2) {
+            assertEquals((String) expected[i], (double) expected[i + 1], actual.get(expected[i]), 1e-9);
+        }
+    }
+
+    @Test
+    public void canReportProgressAndCancel() throws Exception {
+        Map<String, MappedSet<String, String>> local = new LinkedHashMap<>();
+        local.put(ALPHAU_CALC_STRING, targets("VERB", "tense", "aspect"));
+        local.put(MULTIPI_CALC_STRING, targets("NAMED_ENTITY", "type"));
+        List<Integer> processed = new CopyOnWriteArrayList<>();
+        Map<String, Double> streamed = new ConcurrentHashMap<>();
+        AgreementEngine engine = new AgreementEngine(indexer, cache, documentLength);
+        AgreementEngine.Results results = engine.calculateAgreements(new LinkedHashMap<>(), local, false,
+                new AgreementEngine.Listener() {
+                    @Override
+                    public void documentProcessed(String document, int done, int total) {
+                        processed.add(done);
+                        assertEquals(indexer.getDocumentCount(), total);
+                    }
+
+                    @Override
+                    public void agreementCalculated(boolean crossTag, String metricType, String key, double agreement) {
+                        streamed.put(metricType + key, agreement);
+                    }
+                });
+        assertEquals(indexer.getDocumentCount(), processed.size());
+        assertEquals(Integer.valueOf(indexer.getDocumentCount()), processed.get(processed.size() - 1));
+        assertEquals(results.getLocalAgreements(ALPHAU_CALC_STRING).size()
+                + results.getLocalAgreements(MULTIPI_CALC_STRING).size(), streamed.size());
+
+        Thread.currentThread().interrupt();
+        try {
+            engine.calculateAgreements(new LinkedHashMap<>(), local, false);
+            fail("an interrupted run should be cancelled");
+        } catch (CancellationException expected) {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void pairwiseAgreementsMatchRunsOfEachPair() throws Exception {
+        MappedSet<String, String> moods = targets("MOOD_DECL");
+        moods.putCollection("MOOD_IMPE", new LinkedList<>());
+        moods.putCollection("MOOD_SUBJ", new LinkedList<>());
+        Map<String, MappedSet<String, String>> global = new LinkedHashMap<>();
+        global.put(MULTIPI_CALC_STRING, moods);
+        global.put(ALPHAU_CALC_STRING, moods);
+        Map<String, MappedSet<String, String>> local = new LinkedHashMap<>();
+        local.put(MULTIKAPPA_CALC_STRING, targets("NAMED_ENTITY", "type"));
+        local.put(ALPHAU_CALC_STRING, targets("VERB", "tense", "aspect"));
+
+        AgreementEngine.PairwiseResults pairwise = new AgreementEngine(indexer, cache, documentLength)
+                .calculatePairwiseAgreements(global, local, false);
+        List<String> annotators = pairwise.getAnnotators();
+        assertEquals(indexer.getApprovedAnnotators(), annotators);
+
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        URL exmapleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        for (int i = 0; i < annotators.size(); i++) {
+            for (int j = i + 1; j < annotators.size(); j++) {
+                AbstractAnnotationIndexer pairIndexer = new AnnotationFilesIndexer();
+                pairIndexer.indexAnnotations(new File[]{new File(exmapleFileUrl.getPath())});
+                for (String annotator : annotators) {
+                    if (!annotator.equals(annotators.get(i)) && !annotator.equals(annotators.get(j))) {
+                        pairIndexer.ignoreAnnotator(annotator);
+                    }
+                }
+                XMLParseCache pairCache = new XMLParseCache(
+                        DTDLoader.compile(new File(sampleFileUrl.getPath())), pairIndexer, 2);
+                AgreementEngine pairEngine = new AgreementEngine(pairIndexer, pairCache, documentLength);
+                AgreementEngine.Results pair = pairEngine.calculateAgreements(global, new LinkedHashMap<>(), false);
+                for (String metricType : global.keySet()) {
+                    Map<String, Double> expected = pair.getGlobalAgreements(metricType);
+                    for (String key : expected.keySet()) {
+                        assertPairAgreement(expected.get(key), pairwise.getGlobalAgreements(metricType).get(key), i, j);
+                    }
+                }
+                for (String metricType : local.keySet()) {
+                    Map<String, MappedSet<String, String>> single = new LinkedHashMap<>();
+                    single.put(metricType, local.get(metricType));
+                    try {
+                        Map<String, Double> expected = pairEngine.calculateAgreements(new LinkedHashMap<>(), single, false)
+                                .getLocalAgreements(metricType);
+                        for (String key : expected.keySet()) {
+                            assertPairAgreement(expected.get(key), pairwise.getLocalAgreements(metricType).get(key), i, j);
+                        }
+                    } catch (MaeException e) {
+                        // too few categories for this pair, which pairwise results leave undefined
+                        for (double[][] matrix : pairwise.getLocalAgreements(metricType).values()) {
+                            assertPairAgreement(Double.NaN, matrix, i, j);
+                        }
+                    }
+                }
+                pairCache.close();
+            }
+        }
+    }
+
+    @Test
+    public void documentBreakdownMatchesRunsOfEachDocument() throws Exception {
+        MappedSet<String, String> moods = targets("MOOD_DECL");
+        moods.putCollection("MOOD_IMPE", new LinkedList<>());
+        moods.putCollection("MOOD_SUBJ", new LinkedList<>());
+        Map<String, MappedSet<String, String>> global = new LinkedHashMap<>();
+        global.put(MULTIPI_CALC_STRING, moods);
+        global.put(ALPHAU_CALC_STRING, moods);
+        Map<String, MappedSet<String, String>> local = new LinkedHashMap<>();
+        local.put(ALPHAU_CALC_STRING, targets("VERB", "tense"));
+
+        // a single document is measured among all annotators of the corpus,
+        // so leave out the one who didn't annotate every document
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        URL exmapleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        AbstractAnnotationIndexer corpusIndexer = new AnnotationFilesIndexer();
+        corpusIndexer.indexAnnotations(new File[]{new File(exmapleFileUrl.getPath())});
+        corpusIndexer.ignoreAnnotator("a2");
+        XMLParseCache corpusCache = new XMLParseCache(
+                DTDLoader.compile(new File(sampleFileUrl.getPath())), corpusIndexer, 2);
+        AgreementEngine engine = new AgreementEngine(corpusIndexer, corpusCache, documentLength);
+        engine.setDocumentBreakdown(true);
+        AgreementEngine.Results results = engine.calculateAgreements(global, local, false);
+        // documents are measured in the same walk as the whole corpus, parsing each file once
+        long files = 0;
+        for (String document : corpusIndexer.getDocumentNames()) {
+            for (String annotation : corpusIndexer.getAnnotationsOfDocument(document)) {
+                files += annotation == null ? 0 : 1;
+            }
+        }
+        assertEquals(files, corpusCache.getStatistics().getParsedFileCount());
+        corpusCache.close();
+
+        List<String> documents = corpusIndexer.getDocumentNames();
+        for (int i = 0; i < documents.size(); i++) {
+            String document = documents.get(i);
+            File documentDir = Files.createTempDirectory("mae-iaa-doc").toFile();
+            documentDir.deleteOnExit();
+            for (File annotation : new File(exmapleFileUrl.getPath()).listFiles()) {
+                if (annotation.getName().startsWith(document + "_")) {
+                    File copy = new File(documentDir, annotation.getName());
+                    Files.copy(annotation.toPath(), copy.toPath());
+                    copy.deleteOnExit();
+                }
+            }
+            AbstractAnnotationIndexer documentIndexer = new AnnotationFilesIndexer();
+            documentIndexer.indexAnnotations(new File[]{documentDir});
+            if (documentIndexer.getAnnotators().contains("a2")) {
+                documentIndexer.ignoreAnnotator("a2");
+            }
+            XMLParseCache documentCache = new XMLParseCache(
+                    DTDLoader.compile(new File(sampleFileUrl.getPath())), documentIndexer, 2);
+            AgreementEngine documentEngine = new AgreementEngine(documentIndexer, documentCache,
+                    new int[]{documentLength[i]});
+            AgreementEngine.Results single = documentEngine.calculateAgreements(global, local, false);
+            for (String metricType : global.keySet()) {
+                Map<String, Double> expected = single.getGlobalAgreements(metricType);
+                for (String key : expected.keySet()) {
+                    assertDocumentAgreement(expected.get(key), document,
+                            results.getGlobalDocumentAgreements(metricType).get(key));
+                }
+            }
+            Map<String, Double> expected = single.getLocalAgreements(ALPHAU_CALC_STRING);
+            for (String key : expected.keySet()) {
+                assertDocumentAgreement(expected.get(key), document,
+                        results.getLocalDocumentAgreements(ALPHAU_CALC_STRING).get(key));
+            }
+            documentCache.close();
+        }
+    }
+
+    private static void assertDocumentAgreement(double expected, String document,
+                                                List<AgreementEngine.DocumentAgreement> agreements) {
+        double previous = Double.NEGATIVE_INFINITY;
+        boolean found = false;
+        for (AgreementEngine.DocumentAgreement agreement : agreements) {
+            // worst first, undefined last
+            assertTrue(Double.compare(previous, agreement.getAgreement()) <= 0);
+            previous = agreement.getAgreement();
+            if (agreement.getDocument().equals(document)) {
+                assertEquals(expected, agreement.getAgreement(), 1e-9);
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    private static void assertPairAgreement(double expected, double[][] matrix, int i, int j) {
+        assertEquals(expected, matrix[i][j], 1e-9);
+        assertEquals(expected, matrix[j][i], 1e-9);
+        assertTrue(Double.isNaN(matrix[i][i]));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.agreement;
+
+import edu.brandeis.llc.mae.agreement.calculator.AgreementEngine;
+import edu.brandeis.llc.mae.agreement.calculator.AgreementRunStore;
+import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import edu.brandeis.llc.mae.util.MappedSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.*;
+import static org.junit.Assert.*;
+
+public class AgreementRunStoreTest {
+
+    private TaskSchema schema;
+    private File datasetDir;
+    private File storeFile;
+    private Map<String, MappedSet<String, String>> global;
+    private Map<String, MappedSet<String, String>> local;
+
+    @Before
+    public void setUp() throws Exception {
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        URL exampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        schema = DTDLoader.compile(new File(sampleFileUrl.getPath()));
+        // work on a copy, as a test modifies annotation files
+        datasetDir = Files.createTempDirectory("mae-iaa-dataset").toFile();
+        for (File xml : new File(exampleFileUrl.getPath()).listFiles((dir, name) -> name.endsWith(".xml"))) {
+            FileUtils.copyFileToDirectory(xml, datasetDir);
+        }
+        storeFile = new File(Files.createTempDirectory("mae-iaa-runs").toFile(), "runs.db");
+
+        MappedSet<String, String> extents = new MappedSet<>();
+        extents.putCollection("NOUN", new LinkedList<>());
+        extents.putCollection("VERB", new LinkedList<>());
+        global = new LinkedHashMap<>();
+        global.put(MULTIPI_CALC_STRING, extents);
+        MappedSet<String, String> tense = new MappedSet<>();
+        tense.putCollection("VERB", new LinkedList<>(Collections.singletonList("tense")));
+        local = new LinkedHashMap<>();
+        local.put(MULTIKAPPA_CALC_STRING, tense);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(datasetDir);
+        FileUtils.deleteDirectory(storeFile.getParentFile());
+    }
+
+    private MaeAgreementMain index() throws Exception {
+        MaeAgreementMain calc = new MaeAgreementMain(schema);
+        calc.indexDataset(datasetDir);
+        calc.useDocumentBreakdown(true);
+        calc.useRunStore(storeFile);
+        return calc;
+    }
+
+    private static void assertSameDocumentAgreements(
+            Map<String, List<AgreementEngine.DocumentAgreement>> expected,
+            Map<String, List<AgreementEngine.DocumentAgreement>> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String target : expected.keySet()) {
+            List<AgreementEngine.DocumentAgreement> expectedOfTarget = expected.get(target);
+            List<AgreementEngine.DocumentAgreement> actualOfTarget = actual.get(target);
+            assertEquals(expectedOfTarget.size(), actualOfTarget.size());
+            for (int i = 0; i < expectedOfTarget.size(); i++) {
+                assertEquals(expectedOfTarget.get(i).getDocument(), actualOfTarget.get(i).getDocument());
+                assertEquals(expectedOfTarget.get(i).getAgreement(), actualOfTarget.get(i).getAgreement(), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void rerunIsAnsweredFromStoreWithoutParsing() throws Exception {
+        MaeAgreementMain first = index();
+        assertNull(first.findStoredRun(global, local, false));
+        first.loadXmlFiles();
+        AgreementEngine.Results computed = first.calcAgreements(global, local, false);
+        assertNotNull(first.getLastRun());
+        assertNull(first.diffWithPreviousRun());
+
+        MaeAgreementMain second = index();
+        AgreementRunStore.Run stored = second.findStoredRun(global, local, false);
+        assertNotNull(stored);
+        assertEquals(first.getLastRun().getId(), stored.getId());
+        AgreementEngine.Results restored = second.getStoredResults(stored);
+        assertEquals(computed.getGlobalAgreements(MULTIPI_CALC_STRING),
+                restored.getGlobalAgreements(MULTIPI_CALC_STRING));
+        assertEquals(computed.getLocalAgreements(MULTIKAPPA_CALC_STRING),
+                restored.getLocalAgreements(MULTIKAPPA_CALC_STRING));
+        assertSameDocumentAgreements(computed.getGlobalDocumentAgreements(MULTIPI_CALC_STRING),
+                restored.getGlobalDocumentAgreements(MULTIPI_CALC_STRING));
+
+        // another configuration is a separate run
+        MaeAgreementMain withoutBreakdown = index();
+        withoutBreakdown.useDocumentBreakdown(false);
+        assertNull(withoutBreakdown.findStoredRun(global, local, false));
+    }
+
+    @Test
+    public void diffReportsChangedDocumentsAndMovedAgreements() throws Exception {
+        MaeAgreementMain first = index();
+        first.loadXmlFiles();
+        AgreementEngine.Results before = first.calcAgreements(global, local, false);
+
+        // a2 now agrees with a1 on the tense of the only verb of doc3
+        File changed = new File(datasetDir, "doc3_a2.xml");
+        String xml = FileUtils.readFileToString(changed, StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(changed,
+                xml.replace("text=\"wants\" tense=\"\"", "text=\"wants\" tense=\"present\""),
+                StandardCharsets.UTF_8);
+        MaeAgreementMain second = index();
+        assertNull(second.findStoredRun(global, local, false));
+        second.loadXmlFiles();
+        AgreementEngine.Results after = second.calcAgreements(global, local, false);
+
+        AgreementRunStore.Diff diff = second.diffWithPreviousRun();
+        assertNotNull(diff);
+        assertEquals(first.getLastRun().getId(), diff.getBefore().getId());
+        assertEquals(Collections.singletonMap("doc3", AgreementRunStore.DOCUMENT_MODIFIED),
+                diff.getChangedDocuments());
+        assertEquals(1, diff.getChanges().size());
+        AgreementRunStore.Change change = diff.getChanges().get(0);
+        assertFalse(change.isCrossTag());
+        assertEquals(MULTIKAPPA_CALC_STRING, change.getMetricType());
+        assertEquals("VERB::tense", change.getTarget());
+        assertEquals(before.getLocalAgreements(MULTIKAPPA_CALC_STRING).get("VERB::tense"), change.getBefore(), 0.0);
+        assertEquals(after.getLocalAgreements(MULTIKAPPA_CALC_STRING).get("VERB::tense"), change.getAfter(), 0.0);
+        assertNotEquals(change.getBefore(), change.getAfter(), 0.0);
+    }
+}
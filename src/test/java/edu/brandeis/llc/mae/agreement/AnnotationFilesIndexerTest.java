@@ -27,15 +27,23 @@ package edu.brandeis.llc.mae.agreement;
 import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
 import edu.brandeis.llc.mae.agreement.io.AnnotationDirsIndexer;
 import edu.brandeis.llc.mae.agreement.io.AnnotationFilesIndexer;
+import edu.brandeis.llc.mae.io.MaeIOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by krim on 4/13/16.
@@ -69,6 +77,122 @@ public class AnnotationFilesIndexerTest {
         testIndexer();
     }
 
+    @Test
+    public void testGetAnnotationMatrixFromMixedGzippedFiles() throws Exception {
+        indexer = new AnnotationFilesIndexer();
+        URL exmapleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        File mixedDir = Files.createTempDirectory("mae-iaa-gz").toFile();
+        mixedDir.deleteOnExit();
+        boolean compress = false;
+        for (File annotation : new File(exmapleFileUrl.getPath()).listFiles()) {
+            File copy;
+            if (compress) {
+                copy = new File(mixedDir, annotation.getName() + ".gz");
+                try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(copy.toPath()))) {
+                    Files.copy(annotation.toPath(), out);
+                }
+            } else {
+                copy = new File(mixedDir, annotation.getName());
+                Files.copy(annotation.toPath(), copy.toPath());
+            }
+            copy.deleteOnExit();
+            compress = !compress;
+        }
+        indexer.indexAnnotations(new File[]{mixedDir});
+        testIndexer();
+    }
+
+    @Test(expected = MaeIOException.class)
+    public void rejectsFileNamesWithoutAnnotator() throws Exception {
+        File dir = Files.createTempDirectory("mae-iaa-names").toFile();
+        try {
+            Files.createFile(new File(dir, "doc1_a1.xml").toPath());
+            Files.createFile(new File(dir, "sampleTask.xml").toPath());
+            new AnnotationFilesIndexer().indexAnnotations(new File[]{dir});
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void canGroupFilesOfManyDocuments() throws Exception {
+        indexSyntheticDataset(70, 5);
+    }
+
+    /**
+     * Indexes a dataset of the size of a large corpus, which creates some
+     * 200k files, thus only runs with -Dmae.benchmark=true.
+     */
+    @Test
+    public void benchmarkIndexingLargeDatasets() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("mae.benchmark"));
+        long[] times = indexSyntheticDataset(23340, 5);
+        System.out.println(String.format("indexing flat directory %d ms, annotator directories %d ms",
+                times[0] / 1000000, times[1] / 1000000));
+        // indexing by pairwise sibling search took minutes on directories of this size
+        assertTrue(times[0] < 10_000_000_000L && times[1] < 10_000_000_000L);
+    }
+
+    /**
+     * Indexes the same synthetic dataset laid out flat and in annotator
+     * directories.
+     * @return nanoseconds it took to index each layout
+     */
+    private long[] indexSyntheticDataset(int documents, int annotators) throws Exception {
+        File flatDir = Files.createTempDirectory("mae-iaa-flat").toFile();
+        File nestedDir = Files.createTempDirectory("mae-iaa-nested").toFile();
+        try {
+            File[] annotatorDirs = new File[annotators];
+            for (int a = 0; a < annotators; a++) {
+                annotatorDirs[a] = new File(nestedDir, "a" + a);
+                annotatorDirs[a].mkdir();
+            }
+            for (int d = 0; d < documents; d++) {
+                for (int a = 0; a < annotators; a++) {
+                    // leave some holes, as not all annotators annotate all documents
+                    if ((d + a) % 7 == 0) {
+                        continue;
+                    }
+                    String name = String.format("doc%d_a%d.xml", d, a);
+                    Files.createFile(new File(flatDir, name).toPath());
+                    Files.createFile(new File(annotatorDirs[a], name).toPath());
+                }
+            }
+
+            long flatStart = System.nanoTime();
+            indexer = new AnnotationFilesIndexer();
+            indexer.indexAnnotations(new File[]{flatDir});
+            long flatTime = System.nanoTime() - flatStart;
+            assertLargeIndex(documents, annotators);
+
+            long nestedStart = System.nanoTime();
+            indexer = new AnnotationDirsIndexer();
+            indexer.indexAnnotations(annotatorDirs);
+            long nestedTime = System.nanoTime() - nestedStart;
+            assertLargeIndex(documents, annotators);
+            return new long[]{flatTime, nestedTime};
+        } finally {
+            FileUtils.deleteDirectory(flatDir);
+            FileUtils.deleteDirectory(nestedDir);
+        }
+    }
+
+    private void assertLargeIndex(int documents, int annotators) {
+        assertEquals(annotators, indexer.getAnnotators().size());
+        assertEquals(documents, indexer.getDocumentCount());
+        for (int a = 0; a < annotators; a++) {
+            assertEquals(a, indexer.getAnnotatorIndex("a" + a));
+        }
+        String[] doc10 = indexer.getDocumentFileMap().get("doc10");
+        for (int a = 0; a < annotators; a++) {
+            if ((10 + a) % 7 == 0) {
+                assertNull(doc10[a]);
+            } else {
+                assertTrue(doc10[a].endsWith(String.format("doc10_a%d.xml", a)));
+            }
+        }
+    }
+
     private void testIndexer() {
         assertEquals("Expected 5 annotators, found " + indexer.getAnnotators().size(),
                 5, indexer.getAnnotators().size());
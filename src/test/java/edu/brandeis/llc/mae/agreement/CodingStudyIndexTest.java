@@ -0,0 +1,267 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.agreement;
+
+import edu.brandeis.llc.mae.agreement.calculator.CodingItemMatrix;
+import edu.brandeis.llc.mae.agreement.calculator.LocalAlphaUCalc;
+import edu.brandeis.llc.mae.agreement.calculator.LocalMultiPiCalc;
+import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
+import edu.brandeis.llc.mae.agreement.io.AnnotationFilesIndexer;
+import edu.brandeis.llc.mae.agreement.io.XMLParseCache;
+import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.ParsedTag;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import edu.brandeis.llc.mae.util.MappedSet;
+import edu.brandeis.llc.mae.util.SortedIntArrayComparator;
+import edu.brandeis.llc.mae.util.SpanKey;
+import org.apache.commons.io.FileUtils;
+import org.dkpro.statistics.agreement.unitizing.KrippendorffAlphaUnitizingAgreement;
+import org.dkpro.statistics.agreement.unitizing.UnitizingAnnotationStudy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.UNMARKED_CAT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds coding studies over a generated, densely annotated NER corpus of 5
+ * annotators, comparing span-indexed study construction against a linear
+ * scan of parsed tags for each span, and printing the timings of both.
+ */
+public class CodingStudyIndexTest {
+
+    private static final int DOCUMENTS = 8;
+    private static final int TOKENS_PER_DOCUMENT = 800;
+    private static final int ANNOTATORS = 5;
+    private static final String[] NE_TYPES = {"person", "place", "other"};
+
+    private File corpusDir;
+    private AbstractAnnotationIndexer indexer;
+    private XMLParseCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        TaskSchema schema = DTDLoader.compile(new File(sampleFileUrl.getPath()));
+        corpusDir = Files.createTempDirectory("mae-dense-ner").toFile();
+        generateCorpus(corpusDir, new Random(42));
+        indexer = new AnnotationFilesIndexer();
+        indexer.indexAnnotations(new File[]{corpusDir});
+        cache = new XMLParseCache(schema, indexer, 4);
+        cache.prewarm();
+        cache.getParseWarnings();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+        FileUtils.deleteDirectory(corpusDir);
+    }
+
+    private static void generateCorpus(File dir, Random random) throws Exception {
+        for (int d = 0; d < DOCUMENTS; d++) {
+            StringBuilder text = new StringBuilder();
+            List<int[]> tokens = new ArrayList<>();
+            for (int t = 0; t < TOKENS_PER_DOCUMENT; t++) {
+                String token = "tok" + t;
+                tokens.add(new int[]{text.length(), text.length() + token.length()});
+                text.append(token).append(' ');
+            }
+            for (int a = 1; a <= ANNOTATORS; a++) {
+                StringBuilder xml = new StringBuilder();
+                xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<NounVerbTask>\n<TEXT><![CDATA[")
+                        .append(text).append("]]></TEXT>\n<TAGS>\n");
+                int tid = 0;
+                for (int[] token : tokens) {
+                    if (random.nextInt(10) == 0) {
+                        continue;
+                    }
+                    int end = random.nextInt(8) == 0 ? token[1] - 1 : token[1];
+                    xml.append(String.format("<NAMED_ENTITY id=\"NE%d\" spans=\"%d~%d\" text=\"\" type=\"%s\" />\n",
+                            tid++, token[0], end, NE_TYPES[random.nextInt(random.nextInt(4) == 0 ? 3 : 1)]));
+                }
+                xml.append("</TAGS>\n</NounVerbTask>\n");
+                FileUtils.writeStringToFile(new File(dir, String.format("doc%d_a%d.xml", d, a)),
+                        xml.toString(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    /**
+     * Global coding study built the way it was done before span indexes, by
+     * filtering all parsed tags of each annotator for every span.
+     */
+    private List<String[]> scanGlobalStudyItems(Set<String> targetTags) throws Exception {
+        List<String[]> items = new ArrayList<>();
+        for (String document : indexer.getDocumentNames()) {
+            MaeXMLParser[] parses = cache.getParses(document);
+            TreeSet<int[]> spans = new TreeSet<>(new SortedIntArrayComparator());
+            for (MaeXMLParser parse : parses) {
+                parse.getParsedTags().stream().filter(tag -> targetTags.contains(tag.getTagTypeName()))
+                        .forEach(tag -> spans.add(tag.getSpans()));
+            }
+            for (int[] span : spans) {
+                String[] item = new String[parses.length];
+                for (int i = 0; i < parses.length; i++) {
+                    List<ParsedTag> tags = parses[i].getParsedTags().stream().filter(
+                            tag -> targetTags.contains(tag.getTagTypeName()) && Arrays.equals(tag.getSpans(), span)
+                    ).collect(Collectors.toList());
+                    item[i] = tags.size() == 0 ? UNMARKED_CAT : tags.get(0).getTagTypeName();
+                }
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private static List<String[]> studyItems(CodingItemMatrix study) {
+        List<String[]> items = new ArrayList<>();
+        for (int item = 0; item < study.getItemCount(); item++) {
+            String[] categories = new String[study.getRaterCount()];
+            for (int i = 0; i < categories.length; i++) {
+                Object category = study.getCategory(item, i);
+                categories[i] = category == null ? null : category.toString();
+            }
+            items.add(categories);
+        }
+        return items;
+    }
+
+    @Test
+    public void indexedGlobalStudyMatchesScannedStudy() throws Exception {
+        MappedSet<String, String> targets = new MappedSet<>();
+        targets.putCollection("NAMED_ENTITY", new LinkedList<>());
+        LocalMultiPiCalc calc = new LocalMultiPiCalc(indexer, cache);
+
+        long scanStart = System.nanoTime();
+        List<String[]> scanned = scanGlobalStudyItems(Collections.singleton("NAMED_ENTITY"));
+        long scanTime = System.nanoTime() - scanStart;
+
+        long indexStart = System.nanoTime();
+        List<String[]> indexed = studyItems(calc.prepareGlobalCodingStudy(targets, false));
+        long indexTime = System.nanoTime() - indexStart;
+
+        assertEquals(scanned.size(), indexed.size());
+        for (int i = 0; i < scanned.size(); i++) {
+            assertArrayEquals(scanned.get(i), indexed.get(i));
+        }
+        System.out.println(String.format(
+                "global study of %d items, %d annotators: scanning %d ms, indexed %d ms",
+                indexed.size(), ANNOTATORS, scanTime / 1000000, indexTime / 1000000));
+    }
+
+    @Test
+    public void canBuildLocalStudiesFromIndex() throws Exception {
+        MappedSet<String, String> targets = new MappedSet<>();
+        targets.putCollection("NAMED_ENTITY", new LinkedList<String>() {{add("type");}});
+        Map<String, CodingItemMatrix> studies
+                = new LocalMultiPiCalc(indexer, cache).prepareLocalCodingStudies(targets, false);
+        int spanCount = 0;
+        for (String document : indexer.getDocumentNames()) {
+            Set<SpanKey> spans = new TreeSet<>();
+            for (MaeXMLParser parse : cache.getParses(document)) {
+                spans.addAll(parse.getIndex().getSpansOfTagType("NAMED_ENTITY"));
+            }
+            spanCount += spans.size();
+        }
+        assertEquals(2, studies.size());
+        for (CodingItemMatrix study : studies.values()) {
+            assertEquals(spanCount, study.getItemCount());
+            assertTrue(study.getCategoryCount() >= 2);
+        }
+    }
+
+    @Test
+    public void spanKeysMatchOffsetArrays() throws Exception {
+        int[] spans = {3, 4, 5, 9, 10, 12};
+        SpanKey key = SpanKey.of(spans);
+        assertEquals(3, key.getRunCount());
+        assertEquals(3, key.getStart());
+        assertEquals(13, key.getEnd());
+        assertArrayEquals(spans, key.toArray());
+        assertEquals(key, SpanKey.of(spans.clone()));
+        assertEquals(key.hashCode(), SpanKey.of(spans.clone()).hashCode());
+        assertEquals(SpanKey.EMPTY, SpanKey.of(new int[0]));
+        assertEquals(-1, SpanKey.EMPTY.getStart());
+        assertTrue(SpanKey.of(new int[]{3, 4}).compareTo(SpanKey.of(new int[]{3, 4, 5})) < 0);
+        assertTrue(SpanKey.of(new int[]{3, 4, 5}).compareTo(SpanKey.of(new int[]{4})) < 0);
+    }
+
+    @Test
+    public void attributeUnitsFollowTheirOwnTags() throws Exception {
+        // two annotators agreeing on spans, but not on the type of the last entity
+        File nerDir = Files.createTempDirectory("mae-small-ner").toFile();
+        String text = "Alice met Bob in Paris";
+        String[][] types = {{"a1", "person", "place"}, {"a2", "person", "other"}};
+        for (String[] annotatorTypes : types) {
+            String tags = String.format("<NAMED_ENTITY id=\"NE0\" spans=\"0~5\" text=\"Alice\" type=\"%s\" />\n"
+                    + "<NAMED_ENTITY id=\"NE1\" spans=\"10~13\" text=\"Bob\" type=\"%s\" />\n"
+                    + "<NAMED_ENTITY id=\"NE2\" spans=\"17~22\" text=\"Paris\" type=\"%s\" />\n",
+                    annotatorTypes[1], annotatorTypes[1], annotatorTypes[2]);
+            FileUtils.writeStringToFile(new File(nerDir, String.format("doc_%s.xml", annotatorTypes[0])),
+                    "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<NounVerbTask>\n<TEXT><![CDATA[" + text
+                            + "]]></TEXT>\n<TAGS>\n" + tags + "</TAGS>\n</NounVerbTask>\n", StandardCharsets.UTF_8);
+        }
+        AbstractAnnotationIndexer nerIdx = new AnnotationFilesIndexer();
+        nerIdx.indexAnnotations(new File[]{nerDir});
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        XMLParseCache nerCache = new XMLParseCache(DTDLoader.compile(new File(sampleFileUrl.getPath())), nerIdx, 2);
+
+        MappedSet<String, String> targets = new MappedSet<>();
+        targets.putCollection("NAMED_ENTITY", new LinkedList<String>() {{add("type");}});
+        Map<String, Double> alphaUs = new LocalAlphaUCalc(nerIdx, nerCache, new int[]{text.length()})
+                .calculateAgreement(targets, false);
+
+        UnitizingAnnotationStudy expected = new UnitizingAnnotationStudy(2, text.length());
+        for (int annotator = 0; annotator < 2; annotator++) {
+            expected.addUnit(0, 5, annotator, types[annotator][1]);
+            expected.addUnit(10, 3, annotator, types[annotator][1]);
+            expected.addUnit(17, 5, annotator, types[annotator][2]);
+        }
+        assertEquals(new KrippendorffAlphaUnitizingAgreement(expected).calculateAgreement(),
+                alphaUs.get("NAMED_ENTITY::type"), 0.0001);
+        nerCache.close();
+        FileUtils.deleteDirectory(nerDir);
+    }
+}
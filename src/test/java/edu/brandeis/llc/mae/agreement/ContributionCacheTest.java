@@ -0,0 +1,172 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.agreement;
+
+import edu.brandeis.llc.mae.agreement.calculator.AgreementEngine;
+import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import edu.brandeis.llc.mae.util.MappedSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.*;
+import static org.junit.Assert.assertEquals;
+
+public class ContributionCacheTest {
+
+    private TaskSchema schema;
+    private File datasetDir;
+    private File cacheDir;
+    private Map<String, MappedSet<String, String>> global;
+    private Map<String, MappedSet<String, String>> local;
+
+    @Before
+    public void setUp() throws Exception {
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        URL exampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        schema = DTDLoader.compile(new File(sampleFileUrl.getPath()));
+        // work on a copy, as a test modifies annotation files
+        datasetDir = Files.createTempDirectory("mae-iaa-dataset").toFile();
+        for (File xml : new File(exampleFileUrl.getPath()).listFiles((dir, name) -> name.endsWith(".xml"))) {
+            FileUtils.copyFileToDirectory(xml, datasetDir);
+        }
+        cacheDir = Files.createTempDirectory("mae-iaa-cache").toFile();
+
+        MappedSet<String, String> moods = targets("MOOD_DECL");
+        moods.putCollection("MOOD_IMPE", new LinkedList<>());
+        moods.putCollection("MOOD_SUBJ", new LinkedList<>());
+        global = new LinkedHashMap<>();
+        global.put(MULTIPI_CALC_STRING, moods);
+        global.put(ALPHAU_CALC_STRING, moods);
+        local = new LinkedHashMap<>();
+        local.put(MULTIKAPPA_CALC_STRING, targets("NAMED_ENTITY", "type"));
+        local.put(ALPHAU_CALC_STRING, targets("VERB", "tense", "aspect"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(datasetDir);
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    private static MappedSet<String, String> targets(String tagType, String... attTypes) {
+        MappedSet<String, String> targets = new MappedSet<>();
+        LinkedList<String> atts = new LinkedList<>();
+        for (String attType : attTypes) {
+            atts.add(attType);
+        }
+        targets.putCollection(tagType, atts);
+        return targets;
+    }
+
+    private MaeAgreementMain load(boolean cached) throws Exception {
+        MaeAgreementMain calc = new MaeAgreementMain(schema);
+        calc.indexDataset(datasetDir);
+        if (cached) {
+            calc.useContributionCache(cacheDir);
+        }
+        calc.loadXmlFiles();
+        return calc;
+    }
+
+    private void assertSameResults(AgreementEngine.Results expected, AgreementEngine.Results actual) {
+        for (String metricType : global.keySet()) {
+            assertEquals(expected.getGlobalAgreements(metricType), actual.getGlobalAgreements(metricType));
+        }
+        for (String metricType : local.keySet()) {
+            assertEquals(expected.getLocalAgreements(metricType), actual.getLocalAgreements(metricType));
+        }
+    }
+
+    @Test
+    public void rerunReusesContributionsWithoutParsing() throws Exception {
+        AgreementEngine.Results uncached = load(false).calcAgreements(global, local, false);
+
+        MaeAgreementMain first = load(true);
+        AgreementEngine.Results firstResults = first.calcAgreements(global, local, false);
+        assertSameResults(uncached, firstResults);
+        assertEquals(0, first.getContributionCache().getHitCount());
+
+        MaeAgreementMain second = load(true);
+        AgreementEngine.Results secondResults = second.calcAgreements(global, local, false);
+        assertSameResults(uncached, secondResults);
+        assertEquals(second.getDocumentCount(), second.getContributionCache().getHitCount());
+        assertEquals(0, second.getParseCacheStatistics().getParsedFileCount());
+    }
+
+    @Test
+    public void rerunParsesOnlyChangedDocuments() throws Exception {
+        AgreementEngine.Results uncached = load(false).calcAgreements(global, local, false);
+        load(true).calcAgreements(global, local, false);
+
+        // a trailing newline changes the content hash, not the annotations
+        File changed = new File(datasetDir, "doc2_a3.xml");
+        FileUtils.writeStringToFile(changed, "\n", StandardCharsets.UTF_8, true);
+        MaeAgreementMain rerun = load(true);
+        AgreementEngine.Results rerunResults = rerun.calcAgreements(global, local, false);
+        assertSameResults(uncached, rerunResults);
+        assertEquals(1, rerun.getContributionCache().getMissCount());
+        int doc2Files = datasetDir.listFiles((dir, name) -> name.startsWith("doc2_")).length;
+        assertEquals(doc2Files, rerun.getParseCacheStatistics().getParsedFileCount());
+    }
+
+    @Test
+    public void editedTaskDefinitionMissesCache() throws Exception {
+        load(true).calcAgreements(global, local, false);
+
+        // only a valueset changes; tag type and attribute names stay the same
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        File editedDtd = new File(cacheDir, "edited.dtd");
+        FileUtils.writeStringToFile(editedDtd, FileUtils.readFileToString(new File(sampleFileUrl.getPath()),
+                StandardCharsets.UTF_8).replace("( person | place | other )", "( person | place | org | other )"),
+                StandardCharsets.UTF_8);
+        schema = DTDLoader.compile(editedDtd);
+        MaeAgreementMain rerun = load(true);
+        rerun.calcAgreements(global, local, false);
+        assertEquals(0, rerun.getContributionCache().getHitCount());
+        assertEquals(rerun.getDocumentCount(), rerun.getContributionCache().getMissCount());
+    }
+
+    @Test
+    public void newStudiesAreComputedForCachedDocuments() throws Exception {
+        Map<String, MappedSet<String, String>> onlyGlobal = new LinkedHashMap<>(global);
+        load(true).calcAgreements(onlyGlobal, new LinkedHashMap<>(), false);
+
+        MaeAgreementMain rerun = load(true);
+        AgreementEngine.Results rerunResults = rerun.calcAgreements(global, local, false);
+        assertSameResults(load(false).calcAgreements(global, local, false), rerunResults);
+        assertEquals(rerun.getDocumentCount(), rerun.getContributionCache().getMissCount());
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.agreement;
+
+import edu.brandeis.llc.mae.MaeException;
+import edu.brandeis.llc.mae.agreement.calculator.AgreementEngine;
+import edu.brandeis.llc.mae.agreement.calculator.CodingItemMatrix;
+import edu.brandeis.llc.mae.agreement.calculator.LocalMultiPiCalc;
+import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
+import edu.brandeis.llc.mae.agreement.io.AnnotationFilesIndexer;
+import edu.brandeis.llc.mae.agreement.io.XMLParseCache;
+import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.ParsedArg;
+import edu.brandeis.llc.mae.io.ParsedAtt;
+import edu.brandeis.llc.mae.io.ParsedTag;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import edu.brandeis.llc.mae.util.MappedSet;
+import edu.brandeis.llc.mae.util.SpanKey;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Builds tag-level studies of a link tag over a generated corpus of 4
+ * annotators, where annotators give their own tids to the same nouns and
+ * sometimes swap roles of arguments or leave links out, comparing
+ * argument-indexed matching of links against resolving arguments of every
+ * link by scanning parsed tags.
+ */
+public class LinkAgreementTest {
+
+    private static final int DOCUMENTS = 4;
+    private static final int NOUNS_PER_DOCUMENT = 1000;
+    private static final int ANNOTATORS = 4;
+
+    private File corpusDir;
+    private AbstractAnnotationIndexer indexer;
+    private XMLParseCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        TaskSchema schema = DTDLoader.compile(new File(sampleFileUrl.getPath()));
+        corpusDir = Files.createTempDirectory("mae-links").toFile();
+        generateCorpus(corpusDir, new Random(42));
+        indexer = new AnnotationFilesIndexer();
+        indexer.indexAnnotations(new File[]{corpusDir});
+        cache = new XMLParseCache(schema, indexer, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+        FileUtils.deleteDirectory(corpusDir);
+    }
+
+    private static void generateCorpus(File dir, Random random) throws Exception {
+        for (int d = 0; d < DOCUMENTS; d++) {
+            StringBuilder text = new StringBuilder();
+            List<int[]> nouns = new ArrayList<>();
+            for (int n = 0; n < NOUNS_PER_DOCUMENT; n++) {
+                String noun = "noun" + n;
+                nouns.add(new int[]{text.length(), text.length() + noun.length()});
+                text.append(noun).append(' ');
+            }
+            for (int a = 1; a <= ANNOTATORS; a++) {
+                StringBuilder xml = new StringBuilder();
+                xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<NounVerbTask>\n<TEXT><![CDATA[")
+                        .append(text).append("]]></TEXT>\n<TAGS>\n");
+                // links come first, pointing forward to nouns tagged later
+                for (int n = 0; n + 1 < nouns.size(); n += 2) {
+                    if (random.nextInt(8) == 0) {
+                        continue;
+                    }
+                    boolean swapped = random.nextInt(10) == 0;
+                    xml.append(String.format("<ARGUMENTS id=\"AR%d\" agentID=\"N%d\" agentText=\"\" patientID=\"N%d\" patientText=\"\" has_gap=\"%s\" />\n",
+                            n, nid(a, swapped ? n + 1 : n), nid(a, swapped ? n : n + 1),
+                            random.nextInt(5) == 0 ? "yes" : "no"));
+                }
+                for (int n = 0; n < nouns.size(); n++) {
+                    xml.append(String.format("<NOUN id=\"N%d\" spans=\"%d~%d\" text=\"\" type=\"thing\" />\n",
+                            nid(a, n), nouns.get(n)[0], nouns.get(n)[1]));
+                }
+                xml.append("</TAGS>\n</NounVerbTask>\n");
+                FileUtils.writeStringToFile(new File(dir, String.format("doc%d_a%d.xml", d, a)),
+                        xml.toString(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static int nid(int annotator, int noun) {
+        return (NOUNS_PER_DOCUMENT - noun) * 10 + annotator;
+    }
+
+    /**
+     * Link items found by resolving each argument of each link with a scan of
+     * all parsed tags, keyed by sorted argument spans, with (span, roles,
+     * has_gap) of each annotator.
+     */
+    private List<String> scanLinkItems() throws Exception {
+        List<String> items = new ArrayList<>();
+        for (String document : indexer.getDocumentNames()) {
+            MaeXMLParser[] parses = cache.getParses(document);
+            Map<String, String[]> byArgs = new TreeMap<>();
+            for (int i = 0; i < parses.length; i++) {
+                MaeXMLParser parse = parses[i];
+                for (ParsedTag link : parse.getParsedTags()) {
+                    if (!link.getTagTypeName().equals("ARGUMENTS")) {
+                        continue;
+                    }
+                    TreeMap<SpanKey, String> roles = new TreeMap<>();
+                    for (ParsedArg arg : parse.getParsedArgs()) {
+                        if (arg.getTid().equals(link.getTid())) {
+                            for (ParsedTag tag : parse.getParsedTags()) {
+                                if (tag.getTid().equals(arg.getArgTid())) {
+                                    roles.put(SpanKey.of(tag.getSpans()), arg.getArgTypeName());
+                                }
+                            }
+                        }
+                    }
+                    String hasGap = null;
+                    for (ParsedAtt att : parse.getParsedAtts()) {
+                        if (att.getTid().equals(link.getTid()) && att.getAttTypeName().equals("has_gap")) {
+                            hasGap = att.getAttValue();
+                        }
+                    }
+                    byArgs.computeIfAbsent(roles.keySet().toString(), key -> new String[parses.length])[i]
+                            = String.join(",", roles.values()) + "|" + hasGap;
+                }
+            }
+            for (String[] annotations : byArgs.values()) {
+                StringBuilder item = new StringBuilder();
+                for (String annotation : annotations) {
+                    item.append(annotation == null ? "false|null|null" : "true|" + annotation).append(" ");
+                }
+                items.add(item.toString());
+            }
+        }
+        return items;
+    }
+
+    private static List<String> studyItems(Map<String, CodingItemMatrix> studies) {
+        CodingItemMatrix span = studies.get("ARGUMENTS" + TAG_ATT_DELIM + SPAN_ATT);
+        CodingItemMatrix roles = studies.get("ARGUMENTS" + TAG_ATT_DELIM + ARGS_ATT);
+        CodingItemMatrix hasGap = studies.get("ARGUMENTS" + TAG_ATT_DELIM + "has_gap");
+        List<String> items = new ArrayList<>();
+        for (int item = 0; item < span.getItemCount(); item++) {
+            StringBuilder annotations = new StringBuilder();
+            for (int i = 0; i < span.getRaterCount(); i++) {
+                annotations.append(String.format("%s|%s|%s ", span.getCategory(item, i),
+                        roles.getCategory(item, i), hasGap.getCategory(item, i)));
+            }
+            items.add(annotations.toString());
+        }
+        return items;
+    }
+
+    @Test
+    public void indexedLinkStudiesMatchScannedLinks() throws Exception {
+        MappedSet<String, String> targets = new MappedSet<>();
+        targets.putCollection("ARGUMENTS", Arrays.asList(ARGS_ATT, "has_gap"));
+
+        long scanStart = System.nanoTime();
+        List<String> scanned = scanLinkItems();
+        long scanTime = System.nanoTime() - scanStart;
+
+        long indexStart = System.nanoTime();
+        Map<String, CodingItemMatrix> studies
+                = new LocalMultiPiCalc(indexer, cache).prepareLocalCodingStudies(targets, false);
+        long indexTime = System.nanoTime() - indexStart;
+        List<String> indexed = studyItems(studies);
+
+        // a pair of nouns is a single item, whatever tids and roles annotators gave
+        Collections.sort(scanned);
+        Collections.sort(indexed);
+        assertEquals(scanned, indexed);
+        System.out.println(String.format(
+                "link studies of %d items, %d annotators: scanning %d ms, indexed %d ms",
+                indexed.size(), ANNOTATORS, scanTime / 1000000, indexTime / 1000000));
+    }
+
+    @Test
+    public void engineMeasuresLinksOnTagLevelOnly() throws Exception {
+        MappedSet<String, String> targets = new MappedSet<>();
+        targets.putCollection("ARGUMENTS", Collections.singletonList(ARGS_ATT));
+        Map<String, MappedSet<String, String>> local = new LinkedHashMap<>();
+        local.put(MULTIKAPPA_CALC_STRING, targets);
+        AgreementEngine engine = new AgreementEngine(indexer, cache, new int[DOCUMENTS]);
+        Map<String, Double> agreements = engine.calculateAgreements(new LinkedHashMap<>(), local, false)
+                .getLocalAgreements(MULTIKAPPA_CALC_STRING);
+        assertEquals(new TreeSet<>(Arrays.asList("ARGUMENTS::-", "ARGUMENTS::-args")), agreements.keySet());
+
+        Map<String, MappedSet<String, String>> global = new LinkedHashMap<>();
+        global.put(MULTIPI_CALC_STRING, targets);
+        try {
+            engine.calculateAgreements(global, new LinkedHashMap<>(), false);
+            fail("link tags should not be measured on cross-tag level");
+        } catch (MaeException ignored) {
+        }
+    }
+
+    @Test
+    public void nonConsumingArgumentsDoNotMergeLinks() throws Exception {
+        File dir = Files.createTempDirectory("mae-links-nc").toFile();
+        for (int a = 1; a <= 2; a++) {
+            // every link shares the consuming patient, and differs in a non-consuming or unset agent;
+            // only the first annotator adds the link with an unset agent
+            String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<NounVerbTask>\n"
+                    + "<TEXT><![CDATA[house]]></TEXT>\n<TAGS>\n"
+                    + String.format("<NOUN id=\"N%d0\" spans=\"0~5\" text=\"house\" />\n", a)
+                    + String.format("<NOUN id=\"N%d1\" spans=\"-1~-1\" text=\"\" type=\"person\" />\n", a)
+                    + String.format("<NOUN id=\"N%d2\" spans=\"-1~-1\" text=\"\" type=\"place\" />\n", a)
+                    + String.format("<ARGUMENTS id=\"AR%d0\" agentID=\"N%d1\" agentText=\"\" patientID=\"N%d0\" patientText=\"house\" />\n", a, a, a)
+                    + String.format("<ARGUMENTS id=\"AR%d1\" agentID=\"N%d2\" agentText=\"\" patientID=\"N%d0\" patientText=\"house\" />\n", a, a, a)
+                    + (a == 2 ? "" : String.format("<ARGUMENTS id=\"AR%d2\" agentID=\"\" agentText=\"\" patientID=\"N%d0\" patientText=\"house\" />\n", a, a))
+                    + "</TAGS>\n</NounVerbTask>\n";
+            FileUtils.writeStringToFile(new File(dir, String.format("doc0_a%d.xml", a)), xml, StandardCharsets.UTF_8);
+        }
+        AbstractAnnotationIndexer ncIndexer = new AnnotationFilesIndexer();
+        ncIndexer.indexAnnotations(new File[]{dir});
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        XMLParseCache ncCache = new XMLParseCache(DTDLoader.compile(new File(sampleFileUrl.getPath())), ncIndexer, 2);
+        try {
+            MappedSet<String, String> targets = new MappedSet<>();
+            targets.putCollection("ARGUMENTS", Collections.singletonList(ARGS_ATT));
+            CodingItemMatrix span = new LocalMultiPiCalc(ncIndexer, ncCache).prepareLocalCodingStudies(targets, false)
+                    .get("ARGUMENTS" + TAG_ATT_DELIM + SPAN_ATT);
+            assertEquals(3, span.getItemCount());
+            int missing = 0;
+            for (int item = 0; item < span.getItemCount(); item++) {
+                for (int i = 0; i < span.getRaterCount(); i++) {
+                    if ("false".equals(span.getCategory(item, i))) {
+                        missing++;
+                    }
+                }
+            }
+            assertEquals(1, missing);
+        } finally {
+            ncCache.close();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
@@ -28,18 +28,24 @@ import edu.brandeis.llc.mae.MaeStrings;
 import edu.brandeis.llc.mae.database.LocalSqliteDriverImpl;
 import edu.brandeis.llc.mae.database.MaeDriverI;
 import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.MaeIOException;
 import edu.brandeis.llc.mae.util.MappedSet;
+import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Created by krim on 4/14/2016.
@@ -125,4 +131,38 @@ public class MaeAgreementMainTest {
         System.out.println(calc.calcGlobalAgreementToString(toCalc, false));
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void parsesEachFileOnceForValidationAndCalculation() throws Exception {
+        MappedSet<String, String> sample = new MappedSet<>();
+        sample.putCollection("NAMED_ENTITY", new LinkedList<String>() {{add("type");}});
+        Map<String, MappedSet<String, String>> toCalc  = new HashMap<>();
+        toCalc.put(MaeAgreementStrings.MULTIPI_CALC_STRING, sample);
+        calc.calcLocalAgreementToString(toCalc, false);
+        URL exmapleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        int xmlFiles = new File(exmapleFileUrl.getPath()).listFiles((dir, name) -> name.endsWith(".xml")).length;
+        assertEquals(xmlFiles, calc.getParseCacheStatistics().getParsedFileCount());
+    }
+
+    @Test
+    public void canDetectDifferentPrimaryText() throws Exception {
+        URL exmapleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        File datasetDir = Files.createTempDirectory("mae-iaa-text").toFile();
+        try {
+            File exampleDir = new File(exmapleFileUrl.getPath());
+            FileUtils.copyFileToDirectory(new File(exampleDir, "doc1_a1.xml"), datasetDir);
+            File different = new File(datasetDir, "doc1_a2.xml");
+            String xml = FileUtils.readFileToString(new File(exampleDir, "doc1_a2.xml"), StandardCharsets.UTF_8);
+            FileUtils.writeStringToFile(different, xml.replace("<![CDATA[", "<![CDATA[!"), StandardCharsets.UTF_8);
+            calc.indexDataset(datasetDir);
+            try {
+                calc.loadXmlFiles();
+                fail("expected a validation error");
+            } catch (MaeIOException e) {
+                assertTrue(e.getMessage().endsWith(different.getAbsolutePath()));
+            }
+        } finally {
+            FileUtils.deleteDirectory(datasetDir);
+        }
+    }
+}
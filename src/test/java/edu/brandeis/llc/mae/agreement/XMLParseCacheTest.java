@@ -0,0 +1,187 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.agreement;
+
+import edu.brandeis.llc.mae.agreement.io.AbstractAnnotationIndexer;
+import edu.brandeis.llc.mae.agreement.io.AnnotationFilesIndexer;
+import edu.brandeis.llc.mae.agreement.io.XMLParseCache;
+import edu.brandeis.llc.mae.io.DTDLoader;
+import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.ParsedTag;
+import edu.brandeis.llc.mae.io.TaskSchema;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class XMLParseCacheTest {
+
+    private TaskSchema schema;
+    private File exampleDir;
+
+    @Before
+    public void setUp() throws Exception {
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        schema = DTDLoader.compile(new File(sampleFileUrl.getPath()));
+        URL exmapleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        exampleDir = new File(exmapleFileUrl.getPath());
+    }
+
+    @Test
+    public void canPrewarmCorpusInParallel() throws Exception {
+        AbstractAnnotationIndexer indexer = new AnnotationFilesIndexer();
+        indexer.indexAnnotations(new File[]{exampleDir});
+        XMLParseCache cache = new XMLParseCache(schema, indexer, 4);
+        cache.prewarm();
+
+        for (String docName : indexer.getDocumentNames()) {
+            String[] files = indexer.getAnnotationsOfDocument(docName);
+            MaeXMLParser[] parses = cache.getParses(docName);
+            assertEquals(files.length, parses.length);
+            for (int i = 0; i < files.length; i++) {
+                MaeXMLParser expected = new MaeXMLParser(schema);
+                if (files[i] == null) {
+                    assertNull(parses[i]);
+                    continue;
+                }
+                expected.readAnnotationFile(new File(files[i]));
+                assertNotNull(parses[i]);
+                assertEquals(expected.getParsedTags().size(), parses[i].getParsedTags().size());
+                assertEquals(expected.getParsedPrimaryText(), parses[i].getParsedPrimaryText());
+            }
+            assertTrue(parses == cache.getParses(docName));
+        }
+        assertTrue(cache.getParseWarnings().isEmpty());
+    }
+
+    @Test
+    public void canReportProgressWhileAwaiting() throws Exception {
+        AbstractAnnotationIndexer indexer = new AnnotationFilesIndexer();
+        indexer.indexAnnotations(new File[]{exampleDir});
+        XMLParseCache cache = new XMLParseCache(schema, indexer, 2);
+        cache.prewarm();
+        List<String> loaded = new ArrayList<>();
+        cache.awaitScheduled((docName, done, total) -> {
+            assertEquals(loaded.size() + 1, done);
+            assertEquals(indexer.getDocumentNames().size(), total);
+            loaded.add(docName);
+        });
+        assertEquals(indexer.getDocumentNames(), loaded);
+        cache.close();
+    }
+
+    @Test
+    public void canCaptureBrokenFileInWarnings() throws Exception {
+        File brokenDir = Files.createTempDirectory("mae-iaa-broken").toFile();
+        brokenDir.deleteOnExit();
+        FileUtils.copyFile(new File(exampleDir, "doc1_a1.xml"), new File(brokenDir, "doc1_a1.xml"));
+        File broken = new File(brokenDir, "doc1_a2.xml");
+        FileUtils.writeStringToFile(broken, "<NounVerbTask><TEXT><![CDATA[oops", StandardCharsets.UTF_8);
+        AbstractAnnotationIndexer indexer = new AnnotationFilesIndexer();
+        indexer.indexAnnotations(new File[]{brokenDir});
+
+        XMLParseCache cache = new XMLParseCache(schema, indexer, 2);
+        cache.prewarm();
+        MaeXMLParser[] parses = cache.getParses("doc1");
+        assertNotNull(parses[indexer.getAnnotatorIndex("a1")]);
+        assertNull(parses[indexer.getAnnotatorIndex("a2")]);
+        assertTrue(cache.getParseWarnings().containsKey(broken.getAbsolutePath())
+                || cache.getParseWarnings().containsKey(broken.getPath()));
+        FileUtils.deleteDirectory(brokenDir);
+    }
+
+    @Test
+    public void canCaptureRuntimeFailureInWarnings() throws Exception {
+        File brokenDir = Files.createTempDirectory("mae-iaa-broken").toFile();
+        brokenDir.deleteOnExit();
+        FileUtils.copyFile(new File(exampleDir, "doc1_a1.xml"), new File(brokenDir, "doc1_a1.xml"));
+        File broken = new File(brokenDir, "doc1_a2.xml");
+        FileUtils.writeStringToFile(broken, "<NounVerbTask><TEXT><![CDATA[oops]]></TEXT><TAGS>"
+                + "<NOUN id=\"N0\" start=\"one\" end=\"3\" /></TAGS></NounVerbTask>", StandardCharsets.UTF_8);
+        AbstractAnnotationIndexer indexer = new AnnotationFilesIndexer();
+        indexer.indexAnnotations(new File[]{brokenDir});
+
+        XMLParseCache cache = new XMLParseCache(schema, indexer, 2);
+        MaeXMLParser[] parses = cache.getParses("doc1");
+        assertNotNull(parses[indexer.getAnnotatorIndex("a1")]);
+        assertNull(parses[indexer.getAnnotatorIndex("a2")]);
+        assertTrue(cache.hasParseWarnings("doc1"));
+        assertTrue(cache.getParseWarnings().containsKey(broken.getAbsolutePath())
+                || cache.getParseWarnings().containsKey(broken.getPath()));
+        FileUtils.deleteDirectory(brokenDir);
+    }
+
+    @Test
+    public void canEvictToSpillAndReload() throws Exception {
+        AbstractAnnotationIndexer indexer = new AnnotationFilesIndexer();
+        indexer.indexAnnotations(new File[]{exampleDir});
+        XMLParseCache cache = new XMLParseCache(schema, indexer, 2, 1, Long.MAX_VALUE);
+        List<String> docNames = indexer.getDocumentNames();
+        MaeXMLParser[] first = cache.getParses(docNames.get(0));
+        for (String docName : docNames) {
+            cache.getParses(docName);
+        }
+        XMLParseCache.Statistics beforeReload = cache.getStatistics();
+        assertEquals(docNames.size() - 1, beforeReload.getEvictionCount());
+        assertEquals(docNames.size() - 1, beforeReload.getSpilledCount());
+        assertTrue(beforeReload.getSpillFileBytes() > 0);
+
+        MaeXMLParser[] reloaded = cache.getParses(docNames.get(0));
+        XMLParseCache.Statistics afterReload = cache.getStatistics();
+        assertEquals(1, afterReload.getSpillReadCount());
+        assertEquals(beforeReload.getParsedFileCount(), afterReload.getParsedFileCount());
+        assertEquals(first.length, reloaded.length);
+        for (int i = 0; i < first.length; i++) {
+            if (first[i] == null) {
+                assertNull(reloaded[i]);
+                continue;
+            }
+            assertEquals(first[i].getParsedPrimaryText(), reloaded[i].getParsedPrimaryText());
+            assertEquals(first[i].getParsedTags().size(), reloaded[i].getParsedTags().size());
+            for (int j = 0; j < first[i].getParsedTags().size(); j++) {
+                ParsedTag expected = first[i].getParsedTags().get(j);
+                ParsedTag actual = reloaded[i].getParsedTags().get(j);
+                assertEquals(expected.getTid(), actual.getTid());
+                assertEquals(expected.getText(), actual.getText());
+                assertArrayEquals(expected.getSpans(), actual.getSpans());
+            }
+            assertEquals(first[i].getParsedAtts().size(), reloaded[i].getParsedAtts().size());
+            assertEquals(first[i].getParsedArgs().size(), reloaded[i].getParsedArgs().size());
+        }
+        cache.close();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import org.dkpro.statistics.agreement.coding.CodingAnnotationStudy;
+import org.dkpro.statistics.agreement.coding.FleissKappaAgreement;
+import org.dkpro.statistics.agreement.coding.HubertKappaAgreement;
+import org.dkpro.statistics.agreement.coding.KrippendorffAlphaAgreement;
+import org.dkpro.statistics.agreement.distance.NominalDistanceFunction;
+import org.dkpro.statistics.agreement.unitizing.KrippendorffAlphaUnitizingAgreement;
+import org.dkpro.statistics.agreement.unitizing.UnitizingAnnotationStudy;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.ALPHA_CALC_STRING;
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.MULTIKAPPA_CALC_STRING;
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.MULTIPI_CALC_STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BootstrapEstimatorTest {
+
+    private static final double DELTA = 1e-9;
+    private static final int RATERS = 3;
+
+    private Random random;
+    private List<String[]> items;
+    private int[] documentLength;
+    // per document, units as {offset in document, length, rater, category}
+    private List<List<long[]>> documentUnits;
+
+    @Before
+    public void setUp() throws Exception {
+        random = new Random(42);
+        String[] categories = {"N", "V", "A", "O"};
+        items = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            String[] item = new String[RATERS];
+            String truth = categories[random.nextInt(categories.length)];
+            for (int rater = 0; rater < RATERS; rater++) {
+                item[rater] = random.nextInt(4) == 0 ? categories[random.nextInt(categories.length)] : truth;
+            }
+            // some spans are left unannotated by some annotators
+            if (random.nextInt(10) == 0) {
+                item[random.nextInt(RATERS)] = null;
+            }
+            items.add(item);
+        }
+        documentLength = new int[12];
+        documentUnits = new ArrayList<>();
+        for (int i = 0; i < documentLength.length; i++) {
+            documentLength[i] = 50 + random.nextInt(150);
+            List<long[]> units = new ArrayList<>();
+            for (int rater = 0; rater < RATERS; rater++) {
+                for (int category = 0; category < 2; category++) {
+                    long pos = random.nextInt(10);
+                    while (true) {
+                        long length = 1 + random.nextInt(12);
+                        if (pos + length > documentLength[i]) {
+                            break;
+                        }
+                        units.add(new long[]{pos, length, rater, category});
+                        pos += length + random.nextInt(20);
+                    }
+                }
+            }
+            documentUnits.add(units);
+        }
+    }
+
+    private CodingItemMatrix codingStudy(int[] sample) {
+        CodingItemMatrix study = new CodingItemMatrix(RATERS);
+        for (int item : sample) {
+            study.addItem((Object[]) items.get(item));
+        }
+        return study;
+    }
+
+    private UnitizingAnnotationStudy unitizingStudy(int[] documents) {
+        long length = 0;
+        for (int document : documents) {
+            length += documentLength[document];
+        }
+        UnitizingAnnotationStudy study = new UnitizingAnnotationStudy(RATERS, 0, length);
+        long shift = 0;
+        for (int document : documents) {
+            for (long[] unit : documentUnits.get(document)) {
+                study.addUnit(unit[0] + shift, unit[1], (int) unit[2], unit[3] == 0 ? "N" : "V");
+            }
+            shift += documentLength[document];
+        }
+        return study;
+    }
+
+    private int[] identity(int size) {
+        int[] sample = new int[size];
+        for (int i = 0; i < size; i++) {
+            sample[i] = i;
+        }
+        return sample;
+    }
+
+    private int[] draw(int size) {
+        int[] sample = new int[size];
+        for (int i = 0; i < size; i++) {
+            sample[i] = random.nextInt(size);
+        }
+        return sample;
+    }
+
+    @Test
+    public void codingResamplesMatchRebuiltStudies() throws Exception {
+        CodingItemMatrix matrix = codingStudy(identity(items.size()));
+        for (int[] sample : new int[][]{identity(items.size()), draw(items.size()), draw(items.size())}) {
+            CodingAnnotationStudy rebuilt = codingStudy(sample).toStudy();
+            assertEquals(new FleissKappaAgreement(rebuilt).calculateAgreement(),
+                    matrix.calculateAgreement(MULTIPI_CALC_STRING, sample), DELTA);
+            assertEquals(new HubertKappaAgreement(rebuilt).calculateAgreement(),
+                    matrix.calculateAgreement(MULTIKAPPA_CALC_STRING, sample), DELTA);
+            assertEquals(new KrippendorffAlphaAgreement(rebuilt, new NominalDistanceFunction()).calculateAgreement(),
+                    matrix.calculateAgreement(ALPHA_CALC_STRING, sample), DELTA);
+        }
+        assertEquals(new KrippendorffAlphaAgreement(matrix.toStudy(), new NominalDistanceFunction()).calculateAgreement(),
+                matrix.calculateAgreement(ALPHA_CALC_STRING), DELTA);
+    }
+
+    @Test
+    public void unitizingResamplesMatchRebuiltStudies() throws Exception {
+        BootstrapEstimator.UnitizingDocuments compact = new BootstrapEstimator.UnitizingDocuments(
+                unitizingStudy(identity(documentLength.length)), documentLength);
+        for (int[] sample : new int[][]{identity(documentLength.length), draw(documentLength.length),
+                draw(documentLength.length)}) {
+            assertEquals(new KrippendorffAlphaUnitizingAgreement(unitizingStudy(sample)).calculateAgreement(),
+                    compact.calculate(sample), DELTA);
+        }
+    }
+
+    @Test
+    public void intervalsAreReproducibleWithSeeds() throws Exception {
+        CodingItemMatrix study = codingStudy(identity(items.size()));
+        double agreement = study.calculateAgreement(MULTIPI_CALC_STRING);
+        BootstrapEstimator.Interval interval = new BootstrapEstimator(500, 0.95, 7L).estimate(MULTIPI_CALC_STRING, study);
+        BootstrapEstimator.Interval again = new BootstrapEstimator(500, 0.95, 7L).estimate(MULTIPI_CALC_STRING, study);
+        assertEquals(interval.getLow(), again.getLow(), 0);
+        assertEquals(interval.getHigh(), again.getHigh(), 0);
+        assertEquals(500, interval.getResamples());
+        assertTrue(interval.getLow() < agreement && agreement < interval.getHigh());
+
+        BootstrapEstimator.Interval narrower = new BootstrapEstimator(500, 0.5, 7L).estimate(MULTIPI_CALC_STRING, study);
+        assertTrue(interval.getLow() < narrower.getLow() && narrower.getHigh() < interval.getHigh());
+
+        UnitizingAnnotationStudy unitizing = unitizingStudy(identity(documentLength.length));
+        double alphaU = new KrippendorffAlphaUnitizingAgreement(unitizing).calculateAgreement();
+        BootstrapEstimator.Interval unitizingInterval = new BootstrapEstimator(200, 0.95, 7L).estimate(unitizing, documentLength);
+        assertTrue(unitizingInterval.getLow() <= alphaU && alphaU <= unitizingInterval.getHigh());
+    }
+
+    /**
+     * Resamples a study of the size of a large corpus 1000 times, thus only
+     * runs with -Dmae.benchmark=true.
+     */
+    @Test
+    public void benchmarkResamplingLargeStudies() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("mae.benchmark"));
+        CodingItemMatrix study = new CodingItemMatrix(RATERS);
+        for (int i = 0; i < 50000; i++) {
+            study.addItem((Object[]) items.get(random.nextInt(items.size())));
+        }
+        // warm up once, so that the measurement leaves out class loading and JIT
+        new BootstrapEstimator(100, 0.95, 0L).estimate(MULTIPI_CALC_STRING, study);
+        long start = System.nanoTime();
+        BootstrapEstimator.Interval interval = new BootstrapEstimator(1000, 0.95, 0L).estimate(MULTIPI_CALC_STRING, study);
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("1000 resamples of %d coding items: %d ms",
+                study.getItemCount(), elapsed / 1000000));
+        assertEquals(1000, interval.getResamples());
+        assertTrue(elapsed < 10_000_000_000L);
+    }
+}
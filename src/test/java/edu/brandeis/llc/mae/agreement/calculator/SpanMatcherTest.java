@@ -0,0 +1,217 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+
+package edu.brandeis.llc.mae.agreement.calculator;
+
+import edu.brandeis.llc.mae.io.MaeXMLParser;
+import edu.brandeis.llc.mae.io.ParsedTag;
+import edu.brandeis.llc.mae.util.SpanKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.MULTIKAPPA_CALC_STRING;
+import static edu.brandeis.llc.mae.agreement.MaeAgreementStrings.UNMARKED_CAT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpanMatcherTest {
+
+    private static final int ANNOTATORS = 4;
+    private static final List<String> ANNOTATOR_NAMES = Arrays.asList("a1", "a2", "a3", "a4");
+
+    /**
+     * Spans of a few hundred entities per annotator, with boundaries moved
+     * by up to two characters, some entities skipped, and a few long spans
+     * covering many entities at once.
+     */
+    private static List<Set<SpanKey>> noisySpans(Random random) {
+        List<Set<SpanKey>> spansOfAnnotators = new ArrayList<>();
+        for (int annotator = 0; annotator < ANNOTATORS; annotator++) {
+            spansOfAnnotators.add(new HashSet<>());
+        }
+        for (int entity = 0; entity < 400; entity++) {
+            int start = entity * 12;
+            for (Set<SpanKey> spans : spansOfAnnotators) {
+                if (random.nextInt(8) == 0) {
+                    continue;
+                }
+                spans.add(SpanKey.ofRange(start + random.nextInt(5) - 2, start + 6 + random.nextInt(5) - 2));
+                if (random.nextInt(50) == 0) {
+                    spans.add(SpanKey.ofRange(start, start + 12 * (2 + random.nextInt(6))));
+                }
+            }
+        }
+        spansOfAnnotators.get(0).add(SpanKey.EMPTY);
+        spansOfAnnotators.get(2).add(SpanKey.EMPTY);
+        return spansOfAnnotators;
+    }
+
+    /**
+     * The same greedy matching, comparing every span with every item made so
+     * far instead of only with items still open.
+     */
+    private static List<SpanKey[]> matchNaively(SpanMatcher matcher, List<Set<SpanKey>> spansOfAnnotators) {
+        List<SpanKey[]> sorted = new ArrayList<>();
+        for (int annotator = 0; annotator < spansOfAnnotators.size(); annotator++) {
+            for (SpanKey span : spansOfAnnotators.get(annotator)) {
+                sorted.add(new SpanKey[]{span, SpanKey.ofRange(annotator, annotator + 1)});
+            }
+        }
+        sorted.sort((a, b) -> a[0].compareTo(b[0]) != 0 ? a[0].compareTo(b[0]) : a[1].compareTo(b[1]));
+        List<SpanKey[]> items = new ArrayList<>();
+        List<SpanKey> firsts = new ArrayList<>();
+        for (SpanKey[] annotatorSpan : sorted) {
+            int annotator = annotatorSpan[1].getStart();
+            int best = -1;
+            for (int k = 0; k < items.size(); k++) {
+                if (items.get(k)[annotator] == null && matcher.matches(firsts.get(k), annotatorSpan[0])
+                        && (best < 0 || matcher.similarity(firsts.get(k), annotatorSpan[0])
+                        > matcher.similarity(firsts.get(best), annotatorSpan[0]))) {
+                    best = k;
+                }
+            }
+            if (best < 0) {
+                best = items.size();
+                items.add(new SpanKey[spansOfAnnotators.size()]);
+                firsts.add(annotatorSpan[0]);
+            }
+            items.get(best)[annotator] = annotatorSpan[0];
+        }
+        return items;
+    }
+
+    @Test
+    public void sweepMatchesSameAsComparingAllItems() throws Exception {
+        Random random = new Random(11);
+        for (SpanMatcher matcher : new SpanMatcher[]{SpanMatcher.EXACT, SpanMatcher.OVERLAP,
+                SpanMatcher.jaccard(0.5), SpanMatcher.boundary(2)}) {
+            List<Set<SpanKey>> spansOfAnnotators = noisySpans(random);
+            List<SpanKey[]> expected = matchNaively(matcher, spansOfAnnotators);
+            List<SpanKey[]> actual = matcher.match(spansOfAnnotators);
+            assertEquals(matcher.toString(), expected.size(), actual.size());
+            for (int k = 0; k < expected.size(); k++) {
+                assertArrayEquals(matcher + " item " + k, expected.get(k), actual.get(k));
+            }
+        }
+    }
+
+    @Test
+    public void exactMatchingKeepsItemsOfIdenticalSpans() throws Exception {
+        List<Set<SpanKey>> spansOfAnnotators = noisySpans(new Random(5));
+        spansOfAnnotators.set(1, null);
+        TreeSet<SpanKey> union = new TreeSet<>();
+        spansOfAnnotators.stream().filter(spans -> spans != null).forEach(union::addAll);
+        List<SpanKey[]> items = SpanMatcher.EXACT.match(spansOfAnnotators);
+        assertEquals(union.size(), items.size());
+        int k = 0;
+        for (SpanKey span : union) {
+            for (int annotator = 0; annotator < ANNOTATORS; annotator++) {
+                Set<SpanKey> spans = spansOfAnnotators.get(annotator);
+                assertEquals(spans != null && spans.contains(span) ? span : null, items.get(k)[annotator]);
+            }
+            k++;
+        }
+    }
+
+    @Test
+    public void toleranceModesMatchSpansOffByBoundaries() throws Exception {
+        List<Set<SpanKey>> spansOfAnnotators = Arrays.asList(
+                new HashSet<>(Arrays.asList(SpanKey.ofRange(0, 10), SpanKey.ofRange(20, 24))),
+                new HashSet<>(Arrays.asList(SpanKey.ofRange(1, 10), SpanKey.ofRange(22, 30))),
+                new HashSet<>(Collections.singletonList(SpanKey.ofRange(0, 12))));
+        assertEquals(5, SpanMatcher.EXACT.match(spansOfAnnotators).size());
+        assertEquals(2, SpanMatcher.OVERLAP.match(spansOfAnnotators).size());
+        // 20~24 and 22~30 have 2 of 10 characters in common
+        assertEquals(3, SpanMatcher.jaccard(0.5).match(spansOfAnnotators).size());
+        assertEquals(2, SpanMatcher.jaccard(0.2).match(spansOfAnnotators).size());
+        // ends of 22~30 and 20~24 are 6 apart
+        List<SpanKey[]> items = SpanMatcher.boundary(2).match(spansOfAnnotators);
+        assertEquals(3, items.size());
+        assertArrayEquals(new SpanKey[]{SpanKey.ofRange(0, 10), SpanKey.ofRange(1, 10), SpanKey.ofRange(0, 12)},
+                items.get(0));
+        assertEquals(SpanMatcher.boundary(2).toString(), SpanMatcher.parse("boundary:2").toString());
+        assertEquals(SpanMatcher.Mode.JACCARD, SpanMatcher.parse("jaccard:0.8").getMode());
+    }
+
+    private static MaeXMLParser parseOf(String primaryText, int[][] nouns) {
+        List<ParsedTag> tags = new ArrayList<>();
+        for (int i = 0; i < nouns.length; i++) {
+            ParsedTag tag = new ParsedTag();
+            tag.setTid("N" + i);
+            tag.setTagTypeName(nouns[i][2] == 0 ? "NOUN" : "VERB");
+            tag.setLink(false);
+            tag.setSpans(SpanKey.ofRange(nouns[i][0], nouns[i][1]));
+            tags.add(tag);
+        }
+        return MaeXMLParser.restore("test", primaryText, tags, new ArrayList<>(), new ArrayList<>());
+    }
+
+    @Test
+    public void boundaryToleranceRaisesAgreementOnNoisyBoundaries() throws Exception {
+        Random random = new Random(3);
+        char[] text = new char[1000 * 10];
+        Arrays.fill(text, 'x');
+        int[][][] tagsOfAnnotators = new int[ANNOTATORS][1000][];
+        for (int entity = 0; entity < 1000; entity++) {
+            int label = random.nextInt(2);
+            for (int annotator = 0; annotator < ANNOTATORS; annotator++) {
+                int start = entity * 10 + 2 + (random.nextInt(4) == 0 ? random.nextInt(3) - 1 : 0);
+                int end = entity * 10 + 7 + (random.nextInt(4) == 0 ? random.nextInt(3) - 1 : 0);
+                tagsOfAnnotators[annotator][entity] = new int[]{start, end, random.nextInt(10) == 0 ? 1 - label : label};
+            }
+        }
+        MaeXMLParser[] parses = new MaeXMLParser[ANNOTATORS];
+        for (int annotator = 0; annotator < ANNOTATORS; annotator++) {
+            parses[annotator] = parseOf(new String(text), tagsOfAnnotators[annotator]);
+        }
+        Set<String> targetTags = new TreeSet<>(Arrays.asList("NOUN", "VERB"));
+
+        CodingStudyBuilder.Global exact = new CodingStudyBuilder.Global(ANNOTATOR_NAMES, targetTags, false, SpanMatcher.EXACT);
+        exact.addDocument("doc", parses);
+        CodingStudyBuilder.Global tolerant = new CodingStudyBuilder.Global(ANNOTATOR_NAMES, targetTags, false, SpanMatcher.boundary(2));
+        tolerant.addDocument("doc", parses);
+
+        assertEquals(1000, tolerant.getStudy().getItemCount());
+        assertTrue(exact.getStudy().getItemCount() > 1000);
+        for (int item = 0; item < 1000; item++) {
+            for (int annotator = 0; annotator < ANNOTATORS; annotator++) {
+                assertTrue(!UNMARKED_CAT.equals(tolerant.getStudy().getCategory(item, annotator)));
+            }
+        }
+        double exactKappa = exact.getStudy().calculateAgreement(MULTIKAPPA_CALC_STRING);
+        double tolerantKappa = tolerant.getStudy().calculateAgreement(MULTIKAPPA_CALC_STRING);
+        assertTrue(String.format("exact %f, tolerant %f", exactKappa, tolerantKappa), tolerantKappa > exactKappa + 0.2);
+        assertTrue(!exact.getCacheKey().equals(tolerant.getCacheKey()));
+    }
+}
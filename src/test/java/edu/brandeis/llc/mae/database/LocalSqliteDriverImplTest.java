@@ -34,9 +34,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 import static org.junit.Assert.*;
 
@@ -315,6 +317,32 @@ public class LocalSqliteDriverImplTest {
 
     }
 
+    @Test
+    public void canReadAnchorLocationsOfTagTypesFromAnotherThread() throws Exception {
+        ExtentTag nTag = driver.createExtentTag("N01", noun, "jenny", 5, 6, 7, 8, 9);
+        driver.createExtentTag("N02", noun, "tom", 20, 21, 22);
+        ExtentTag vTag = driver.createExtentTag("V01", verb, "loves", 11, 12, 13, 14, 15);
+        LinkTag link = driver.createLinkTag("A01", semanticRole);
+        driver.addArgument(link, agent, nTag);
+        driver.addArgument(link, pred, vTag);
+
+        List<Map<TagType, List<Integer>>> read = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            try {
+                read.add(driver.readAnchorLocationsOfTagTypes(Arrays.asList(noun, verb, semanticRole)));
+            } catch (MaeDBException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        reader.join();
+        Map<TagType, List<Integer>> anchors = read.get(0);
+        assertEquals(new TreeSet<>(Arrays.asList(5, 6, 7, 8, 9, 20, 21, 22)), new TreeSet<>(anchors.get(noun)));
+        assertEquals(new TreeSet<>(Arrays.asList(11, 12, 13, 14, 15)), new TreeSet<>(anchors.get(verb)));
+        assertEquals(new TreeSet<>(Arrays.asList(5, 6, 7, 8, 9, 11, 12, 13, 14, 15)),
+                new TreeSet<>(anchors.get(semanticRole)));
+    }
+
     @Test
     public void canOnlyDropTagTables() throws Exception {
         ExtentTag nTag = driver.createExtentTag("N01", noun, "jenny", 5,6,7,8,9);
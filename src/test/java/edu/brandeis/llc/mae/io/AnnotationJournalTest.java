@@ -0,0 +1,168 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.io;
+
+import edu.brandeis.llc.mae.MaeStrings;
+import edu.brandeis.llc.mae.database.LocalSqliteDriverImpl;
+import edu.brandeis.llc.mae.model.ExtentTag;
+import edu.brandeis.llc.mae.model.LinkTag;
+import edu.brandeis.llc.mae.model.TagType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AnnotationJournalTest {
+
+    private LocalSqliteDriverImpl driver;
+    private LocalSqliteDriverImpl recovering;
+    private File annotationFile;
+
+    @Before
+    public void setUp() throws Exception {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        File dtd = new File(loader.getResource("xml_samples/sampleTask.dtd").getPath());
+        URL sampleFileUrl = loader.getResource("xml_samples/sampleTask.xml");
+        annotationFile = new File(Files.createTempDirectory("mae-journal-test").toFile(), "sampleTask.xml");
+        annotationFile.deleteOnExit();
+        Files.copy(new File(sampleFileUrl.getPath()).toPath(), annotationFile.toPath());
+
+        driver = new LocalSqliteDriverImpl(MaeStrings.newTempTestDBFile());
+        driver.readTask(dtd);
+        driver.readAnnotation(annotationFile);
+        recovering = new LocalSqliteDriverImpl(MaeStrings.newTempTestDBFile());
+        recovering.readTask(dtd);
+        recovering.readAnnotation(annotationFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        driver.destroy();
+        recovering.destroy();
+    }
+
+    @Test
+    public void canRecoverEditsAfterCrash() throws Exception {
+        AnnotationJournal journal = new AnnotationJournal(
+                AnnotationJournal.getJournalFile(annotationFile.getAbsolutePath()));
+        driver.setJournal(journal);
+
+        TagType verb = driver.getTagTypeByName("VERB");
+        ExtentTag newVerb = driver.createExtentTag("V1", verb, "repainted", 35, 36, 37, 38, 39, 40, 41, 42, 43);
+        driver.updateAttribute(newVerb, driver.getAttributeTypeOfTagTypeByName(verb, "tense"), "past");
+        driver.updateTagText(newVerb, "repaint");
+        driver.deleteTag(driver.getTagByTid("A1"));
+        LinkTag action = driver.createLinkTag("AC2", driver.getTagTypeByName("ACTION"));
+        driver.UpdateArgument(action, driver.getArgumentTypeOfTagTypeByName(action.getTagtype(), "from"), (ExtentTag) driver.getTagByTid("N0"));
+        // simulates a crash: pending edits are written, but the journal is not discarded
+        journal.close();
+        driver.setJournal(null);
+        assertTrue(journal.exists());
+
+        AnnotationJournal recovered = new AnnotationJournal(journal.getJournalFile());
+        assertEquals(6, recovered.replay(recovering));
+        ExtentTag replayedVerb = (ExtentTag) recovering.getTagByTid("V1");
+        assertEquals("repaint", replayedVerb.getText());
+        assertEquals("past", recovering.getAttributeMapOfTag(replayedVerb).get("tense"));
+        assertNull(recovering.getTagByTid("A1"));
+        LinkTag replayedAction = (LinkTag) recovering.getTagByTid("AC2");
+        assertEquals("N0", replayedAction.getArgumentByTypeName("from").getArgument().getId());
+    }
+
+    @Test
+    public void canCompactAndDiscard() throws Exception {
+        AnnotationJournal journal = new AnnotationJournal(
+                AnnotationJournal.getJournalFile(annotationFile.getAbsolutePath()));
+        driver.setJournal(journal);
+        driver.deleteTag(driver.getTagByTid("A1"));
+        journal.flush();
+        assertTrue(journal.exists());
+        assertEquals(1, journal.getRecordCount());
+
+        journal.compact();
+        assertFalse(journal.exists());
+        assertEquals(0, journal.getRecordCount());
+
+        driver.deleteTag(driver.getTagByTid("A0"));
+        journal.flush();
+        assertTrue(journal.exists());
+        driver.destroy();
+        assertFalse(journal.exists());
+        driver = new LocalSqliteDriverImpl(MaeStrings.newTempTestDBFile());
+    }
+
+    @Test
+    public void refusesToReplayOnChangedFile() throws Exception {
+        AnnotationJournal journal = new AnnotationJournal(
+                AnnotationJournal.getJournalFile(annotationFile.getAbsolutePath()));
+        driver.setJournal(journal);
+        driver.deleteTag(driver.getTagByTid("A1"));
+        journal.close();
+        driver.setJournal(null);
+
+        // e.g. saved by another program after the crash
+        Files.write(annotationFile.toPath(), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        AnnotationJournal stale = new AnnotationJournal(journal.getJournalFile());
+        assertFalse(stale.isBasedOnCurrentFile());
+        try {
+            stale.replay(recovering);
+            fail("replayed edits on a changed file");
+        } catch (MaeIOException e) {
+            assertTrue(recovering.getTagByTid("A1") != null);
+        }
+        File setAside = stale.setAside();
+        assertTrue(setAside.exists());
+        assertFalse(stale.exists());
+        assertTrue(stale.isBasedOnCurrentFile());
+    }
+
+    @Test
+    public void skipsLinkTagAsArgument() throws Exception {
+        AnnotationJournal journal = new AnnotationJournal(
+                AnnotationJournal.getJournalFile(annotationFile.getAbsolutePath()));
+        driver.setJournal(journal);
+        driver.createLinkTag("AC2", driver.getTagTypeByName("ACTION"));
+        journal.close();
+        driver.setJournal(null);
+        Files.write(journal.getJournalFile().toPath(),
+                "{\"op\":\"argument\",\"tid\":\"AC2\",\"name\":\"from\",\"value\":\"AC2\"}\n"
+                        .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        assertEquals(1, new AnnotationJournal(journal.getJournalFile()).replay(recovering));
+        LinkTag replayedAction = (LinkTag) recovering.getTagByTid("AC2");
+        assertNull(replayedAction.getArgumentByTypeName("from"));
+    }
+}
@@ -36,8 +36,12 @@ import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -113,6 +117,24 @@ public class AnnotationLoaderTest {
         loader.readAsXml(sampleFile);
     }
 
+    @Test
+    public void canReadGzippedXMLByContent() throws Exception {
+        readSimpleDTD();
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("xml_samples/sampleTask.xml");
+        File sampleFile = new File(sampleFileUrl.getPath());
+        // compressed, but named as a plain XML to make sure detection does not rely on the extension
+        File gzipped = File.createTempFile("mae-gz-test", ".xml");
+        gzipped.deleteOnExit();
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipped.toPath()))) {
+            Files.copy(sampleFile.toPath(), out);
+        }
+        assertTrue(AnnotationLoader.isXml(gzipped));
+        assertTrue(AnnotationLoader.isTaskNameMatching(gzipped, "NounVerbTask"));
+        loader = new AnnotationLoader(driver);
+        loader.readAsXml(gzipped);
+        assertEquals("\nMrs Miller wants the entire house repainted.\n", driver.getPrimaryText());
+    }
+
     @Ignore
     public void canReadComplexXML() throws IOException, SAXException, MaeIOException, MaeDBException {
         readComplexDTD();
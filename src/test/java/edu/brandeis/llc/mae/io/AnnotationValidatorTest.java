@@ -0,0 +1,122 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.io;
+
+import edu.brandeis.llc.mae.MaeStrings;
+import edu.brandeis.llc.mae.database.LocalSqliteDriverImpl;
+import edu.brandeis.llc.mae.database.MaeDriverI;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnnotationValidatorTest {
+
+    private MaeDriverI driver;
+    private TaskSchema schema;
+    private File badFile;
+
+    @Before
+    public void setUp() throws Exception {
+        driver = new LocalSqliteDriverImpl(MaeStrings.newTempTestDBFile());
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example/iaaSample.dtd");
+        driver.readTask(new File(sampleFileUrl.getPath()));
+        schema = TaskSchema.fromDriver(driver);
+        badFile = File.createTempFile("mae-test-invalid", ".xml");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        driver.destroy();
+        badFile.delete();
+    }
+
+    @Test
+    public void canValidateCleanCorpus() throws Exception {
+        URL exampleDirUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        AnnotationValidator validator = new AnnotationValidator(schema, 4);
+        AnnotationValidator.ValidationReport report = validator.validateDirectory(new File(exampleDirUrl.getPath()));
+        assertEquals(19, report.getFileCount());
+        assertTrue(report.isComplete());
+        for (AnnotationValidator.FileReport fileReport : report.getFiles()) {
+            for (ParseWarning issue : fileReport.getIssues()) {
+                assertTrue(issue.toString(), !issue.getType().equals(AnnotationValidator.PARSE_ERROR)
+                        && !issue.getType().equals(AnnotationValidator.TASK_NAME_MISMATCH));
+            }
+        }
+    }
+
+    @Test
+    public void canFindIssues() throws Exception {
+        try (PrintWriter writer = new PrintWriter(badFile, StandardCharsets.UTF_8.name())) {
+            writer.print("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<NounVerbTask>\n" +
+                    "<TEXT><![CDATA[Mrs Miller wants]]></TEXT>\n<TAGS>\n" +
+                    "<NOUN id=\"N0\" spans=\"0~10\" type=\"animal\" />\n" +
+                    "<NOUN id=\"N0\" spans=\"11~16\" />\n" +
+                    "<NOUN id=\"N1\" spans=\"11~100\" />\n" +
+                    "<NAMED_ENTITY id=\"NE0\" spans=\"0~10\" />\n" +
+                    "<PRONOUN id=\"P0\" spans=\"0~3\" />\n" +
+                    "<DESCRIPTION id=\"D0\" type=\"multi\" arg1ID=\"N9\" />\n" +
+                    "</TAGS>\n</NounVerbTask>");
+        }
+        AnnotationValidator validator = new AnnotationValidator(schema, 1);
+        AnnotationValidator.FileReport fileReport = validator.validateFile(badFile);
+        Set<String> types = new HashSet<>();
+        for (ParseWarning issue : fileReport.getIssues()) {
+            types.add(issue.getType());
+        }
+        assertTrue(types.toString(), types.contains(ParseWarning.INVALID_ATT_VALUE));
+        assertTrue(types.toString(), types.contains(ParseWarning.SPAN_OUT_OF_TEXT));
+        assertTrue(types.toString(), types.contains(ParseWarning.UNKNOWN_TAG_TYPE));
+        assertTrue(types.toString(), types.contains(AnnotationValidator.DUPLICATE_TID));
+        assertTrue(types.toString(), types.contains(AnnotationValidator.MISSING_REQUIRED_ATT));
+        assertTrue(types.toString(), types.contains(AnnotationValidator.MISSING_REQUIRED_ARG));
+        assertTrue(types.toString(), types.contains(AnnotationValidator.UNRESOLVED_ARG));
+    }
+
+    @Test
+    public void abortedValidationIsNotValid() throws Exception {
+        URL exampleDirUrl = Thread.currentThread().getContextClassLoader().getResource("iaa_example");
+        File[] files = new File(exampleDirUrl.getPath()).listFiles((dir, name) -> name.endsWith(".xml"));
+        AnnotationValidator validator = new AnnotationValidator(schema, 1);
+        Thread.currentThread().interrupt();
+        AnnotationValidator.ValidationReport report = validator.validate(Arrays.asList(files));
+        assertTrue(Thread.interrupted());
+        assertFalse(report.isComplete());
+        assertFalse(report.isValid());
+        assertTrue(report.getCheckedFileCount() < report.getFileCount());
+    }
+}
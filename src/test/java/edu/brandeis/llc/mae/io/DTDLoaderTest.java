@@ -34,11 +34,15 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -267,5 +271,63 @@ public class DTDLoaderTest {
 
     }
 
-}
+    @Test
+    public void canCompileSchemaWithoutDriver() throws Exception {
+        String tagTypeDefinitions = "<!ENTITY name \"NounVerbTask\">\n" +
+                "<!-- a comment line -->\n" +
+                "<!ELEMENT NOUN ( #PCDATA ) >\n" +
+                "<!ATTLIST NOUN id ID prefix=\"NN\" #REQUIRED >\n" +
+                "<!ATTLIST NOUN head IDREF #REQUIRED >\n" +
+                "<!ELEMENT ACTION EMPTY >\n";
+        TaskSchema schema = DTDLoader.compile(tagTypeDefinitions);
 
+        assertEquals("NounVerbTask", schema.getTaskName());
+        assertEquals("NN", schema.getTagType("NOUN").getPrefix());
+        assertTrue(schema.isLinkTagType("ACTION"));
+        assertEquals(
+                "Expected an underspecified link tag to have 2 default argument types, found: " + schema.getTagType("ACTION").getArgTypes().size(),
+                2, schema.getTagType("ACTION").getArgTypes().size()
+        );
+        TaskSchema.AttTypeDef head = schema.getAttType("NOUN", "head");
+        assertTrue(
+                "Expected \"head\" to be a required id-referencing attribute, found: " + head.isIdRef() + ", " + head.isRequired(),
+                head.isIdRef() && head.isRequired()
+        );
+        assertEquals(
+                "Expected an IDREF attribute to be defined only once, found: " + schema.getTagType("NOUN").getAttTypes().size(),
+                1, schema.getTagType("NOUN").getAttTypes().size()
+        );
+    }
+
+    @Test
+    public void canLoadCompiledSchemaIntoDriver() throws Exception {
+        URL sampleFileUrl = Thread.currentThread().getContextClassLoader().getResource("xml_samples/sampleTask.dtd");
+        File sampleFile = new File(sampleFileUrl.getPath());
+        dtdLoader.read(sampleFile);
+
+        TaskSchema schema = driver.getTaskSchema();
+        assertEquals(schema.getTagTypes().size(), driver.getAllTagTypes().size());
+        for (TagType type : driver.getAllTagTypes()) {
+            TaskSchema.TagTypeDef def = schema.getTagType(type.getName());
+            assertEquals(def.getPrefix(), type.getPrefix());
+            assertEquals(def.isNonConsuming(), type.isNonConsuming());
+            assertEquals(def.getAttTypes().size(), type.getAttributeTypes().size());
+            assertEquals(def.getArgTypes().size(), type.getArgumentTypes().size());
+        }
+    }
+
+    @Test
+    public void canCacheCompiledSchemaOfFile() throws Exception {
+        File dtd = File.createTempFile("mae-dtd-test", ".dtd");
+        dtd.deleteOnExit();
+        Files.write(dtd.toPath(), "<!ENTITY name \"Task\">\n<!ELEMENT NOUN ( #PCDATA ) >\n".getBytes(StandardCharsets.UTF_8));
+        TaskSchema first = DTDLoader.compile(dtd);
+        assertSame(first, DTDLoader.compile(dtd));
+
+        Files.write(dtd.toPath(), "<!ENTITY name \"Task\">\n<!ELEMENT NOUN ( #PCDATA ) >\n<!ELEMENT VERB ( #PCDATA ) >\n".getBytes(StandardCharsets.UTF_8));
+        TaskSchema second = DTDLoader.compile(dtd);
+        assertNotSame(first, second);
+        assertEquals(2, second.getTagTypes().size());
+    }
+
+}
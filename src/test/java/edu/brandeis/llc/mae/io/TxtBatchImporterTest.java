@@ -0,0 +1,126 @@
+/*
+ * MAE - Multi-purpose Annotation Environment
+ *
+ * Copyright Keigh Rim (krim@brandeis.edu)
+ * Department of Computer Science, Brandeis University
+ * Original program by Amber Stubbs (astubbs@cs.brandeis.edu)
+ *
+ * MAE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, @see <a href="http://www.gnu.org/licenses">http://www.gnu.org/licenses</a>.
+ *
+ * For feedback, reporting bugs, use the project on Github
+ * @see <a href="https://github.com/keighrim/mae-annotation">https://github.com/keighrim/mae-annotation</a>.
+ */
+
+package edu.brandeis.llc.mae.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TxtBatchImporterTest {
+
+    private File rootDir;
+
+    @Before
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("mae-test-import").toFile();
+        for (int i = 0; i < 20; i++) {
+            File subDir = new File(rootDir, "sub" + (i % 3));
+            subDir.mkdirs();
+            writeText(new File(subDir, String.format("doc%d.txt", i)), "document number " + i);
+        }
+        writeText(new File(rootDir, "notes.md"), "not a source file");
+        // this should not be overwritten
+        writeText(new File(rootDir, "sub0/doc0.txt.xml"), "taken");
+    }
+
+    private void writeText(File file, String text) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            writer.print(text);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.walk(rootDir.toPath()).map(Path::toFile)
+                .sorted((a, b) -> b.getAbsolutePath().compareTo(a.getAbsolutePath()))
+                .forEach(File::delete);
+    }
+
+    @Test
+    public void canImportDirectoryInParallel() throws Exception {
+        TxtBatchImporter importer = new TxtBatchImporter("TEST-TASK", 4, TxtBatchImporter.DEFAULT_SOURCE_EXT);
+        TxtBatchImporter.Report report = importer.importDirectory(rootDir, null);
+        System.out.println(report);
+        assertEquals(0, report.getFailures().size());
+        assertEquals(20, report.getConvertedCount());
+        assertTrue(new File(rootDir, "sub0/doc0.txt_1.xml").exists());
+        assertTrue(new File(rootDir, "sub1/doc1.txt.xml").exists());
+        assertTrue(AnnotationLoader.isTaskNameMatching(new File(rootDir, "sub2/doc5.txt.xml"), "TEST-TASK"));
+        assertTrue(AnnotationLoader.isPrimaryTextMatching(new File(rootDir, "sub2/doc5.txt.xml"), "document number 5"));
+    }
+
+    @Test
+    public void canReportFailures() throws Exception {
+        writeText(new File(rootDir, "broken.txt"), "CDATA can't hold ]]> in it");
+        TxtBatchImporter importer = new TxtBatchImporter("TEST-TASK", 2, TxtBatchImporter.DEFAULT_SOURCE_EXT);
+        TxtBatchImporter.Report report = importer.importDirectory(rootDir, null);
+        assertEquals(20, report.getConvertedCount());
+        assertEquals(1, report.getFailures().size());
+        assertTrue(!new File(rootDir, "broken.txt.xml").exists());
+    }
+
+    @Test
+    public void canReportRuntimeFailures() throws Exception {
+        TxtBatchImporter importer = new TxtBatchImporter("TEST-TASK", 2, TxtBatchImporter.DEFAULT_SOURCE_EXT) {
+            @Override
+            public File convert(File source, File target) throws MaeIOException {
+                if (source.getName().equals("doc3.txt")) {
+                    throw new IllegalStateException("unexpected content");
+                }
+                return super.convert(source, target);
+            }
+        };
+        TxtBatchImporter.Report report = importer.importDirectory(rootDir, null);
+        assertEquals(19, report.getConvertedCount());
+        assertEquals(1, report.getFailures().size());
+        assertEquals("unexpected content",
+                report.getFailures().get(new File(rootDir, "sub0/doc3.txt").getAbsolutePath()));
+    }
+
+    @Test
+    public void failedWriteReleasesReservedName() throws Exception {
+        TxtBatchImporter importer = new TxtBatchImporter("TEST-TASK", 1, TxtBatchImporter.DEFAULT_SOURCE_EXT);
+        File missing = new File(rootDir, "missing.txt");
+        try {
+            importer.convert(missing, null);
+            fail("converted a file that does not exist");
+        } catch (MaeIOException e) {
+            assertTrue(!new File(rootDir, "missing.txt.xml").exists());
+        }
+        writeText(missing, "now it exists");
+        assertEquals("missing.txt.xml", importer.convert(missing, null).getName());
+    }
+}
@@ -24,6 +24,7 @@
 
 package edu.brandeis.llc.mae.util;
 
+import edu.brandeis.llc.mae.MaeException;
 import edu.brandeis.llc.mae.MaeStrings;
 import org.junit.Test;
 
@@ -326,6 +327,33 @@ public class SpanHandlerTest {
 
     }
 
+    @Test
+    public void testParseSpanKey() throws Exception {
+        assertSame(
+                "Should parse a non-consuming into the empty key",
+                SpanKey.EMPTY, SpanKey.parse(MaeStrings.NCSPAN_PLACEHOLDER)
+        );
+
+        String[] spansStrings = new String[]{"0~3", "0~3,7~11,20~24", "20~24,7~11,0~3", "5~9,0~6", "0~3,3~5,9~10", "2~8,3~4"};
+        for (String spansString : spansStrings) {
+            SpanKey key = SpanKey.parse(spansString);
+            assertArrayEquals(
+                    "Should parse runs of the same offsets as an array, found: " + key,
+                    SpanHandler.convertStringToArray(spansString), key.toArray()
+            );
+            assertEquals(
+                    "Should parse the same key as from an array, found: " + key,
+                    SpanKey.of(SpanHandler.convertStringToArray(spansString)), key
+            );
+        }
+
+        try {
+            SpanKey.parse("3~3");
+            fail("Should reject an empty span");
+        } catch (MaeException ignored) {
+        }
+    }
+
     @Test
     public void testRange() throws Exception {
         assertTrue(